@@ -0,0 +1,71 @@
+package net.daporkchop.ppatches.core.transform;
+
+import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the common analysis steps which are used by many transformers, per class in the corpus.
+ * <p>
+ * {@link #readClassNode()} is also the baseline for {@link TransformerBenchmark}, as each transformer needs a freshly read class to work on.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+    private ClassCorpus.Cycle classes;
+
+    @Setup
+    public void setup() {
+        this.classes = new ClassCorpus.Cycle(ClassCorpus.get(entry -> true));
+    }
+
+    @Benchmark
+    public ClassReader classReader() {
+        return new ClassReader(this.classes.next().bytes);
+    }
+
+    @Benchmark
+    public ConstantPoolIndex constantPoolIndex() {
+        return new ConstantPoolIndex(new ClassReader(this.classes.next().bytes), 0);
+    }
+
+    @Benchmark
+    public ClassNode readClassNode() {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(this.classes.next().bytes).accept(classNode, ClassReader.SKIP_FRAMES);
+        return classNode;
+    }
+
+    @Benchmark
+    public ClassNode analyzedInsnList() {
+        ClassNode classNode = this.readClassNode();
+        for (MethodNode methodNode : classNode.methods) {
+            if ((methodNode.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0) {
+                //the dataflow information is computed lazily, so this only measures the cost of building (and tearing down) the initial state
+                new AnalyzedInsnList(classNode.name, methodNode).close();
+            }
+        }
+        return classNode;
+    }
+}
@@ -0,0 +1,140 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.io.ByteStreams;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads the class files used as input for the benchmarks.
+ * <p>
+ * The corpus consists of every class in the jars and directories listed in the {@code ppatches.benchmark.corpus} system property (separated by
+ * {@link File#pathSeparator}), or of every class in the jars on the classpath if the property isn't set.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class ClassCorpus {
+    private static List<Entry> CORPUS;
+
+    /**
+     * @return all classes in the corpus
+     */
+    public static synchronized List<Entry> get() {
+        if (CORPUS == null) {
+            CORPUS = load();
+        }
+        return CORPUS;
+    }
+
+    /**
+     * Gets all classes in the corpus which match the given filter.
+     *
+     * @param filter the filter
+     * @return the matching classes
+     * @throws IllegalStateException if no classes match the filter
+     */
+    public static Entry[] get(Predicate<Entry> filter) {
+        Entry[] entries = get().stream().filter(filter).toArray(Entry[]::new);
+        if (entries.length == 0) {
+            throw new IllegalStateException("no classes in the corpus match the filter");
+        }
+        return entries;
+    }
+
+    @SneakyThrows(IOException.class)
+    private static List<Entry> load() {
+        String paths = System.getProperty("ppatches.benchmark.corpus");
+        boolean jarsOnly = paths == null;
+        if (paths == null) {
+            paths = System.getProperty("java.class.path");
+        }
+
+        List<Entry> corpus = new ArrayList<>();
+        for (String pathName : paths.split(File.pathSeparator)) {
+            Path path = Paths.get(pathName);
+            if (Files.isRegularFile(path) && pathName.endsWith(".jar")) {
+                loadJar(path, corpus);
+            } else if (Files.isDirectory(path) && !jarsOnly) {
+                loadDirectory(path, corpus);
+            }
+        }
+
+        System.out.printf("Loaded %d classes (%d bytes) into the benchmark corpus%n", corpus.size(), corpus.stream().mapToLong(entry -> entry.bytes.length).sum());
+        return corpus;
+    }
+
+    private static void loadJar(Path jar, List<Entry> corpus) throws IOException {
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                String entryName = entry.getName();
+                if (entry.isDirectory() || !entryName.endsWith(".class") || entryName.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    corpus.add(new Entry(entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.'), ByteStreams.toByteArray(in)));
+                }
+            }
+        }
+    }
+
+    private static void loadDirectory(Path directory, List<Entry> corpus) throws IOException {
+        try (Stream<Path> stream = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) stream::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(".jar")) { //this is probably a mods folder
+                    loadJar(file, corpus);
+                } else if (fileName.endsWith(".class")) {
+                    String name = directory.relativize(file).toString();
+                    corpus.add(new Entry(name.substring(0, name.length() - ".class".length()).replace(File.separatorChar, '.'), Files.readAllBytes(file)));
+                }
+            }
+        }
+    }
+
+    /**
+     * A single class in the corpus.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    public static final class Entry {
+        public final String name;
+        public final byte[] bytes;
+    }
+
+    /**
+     * Cycles through an array of corpus entries, so that each benchmark invocation can process a single class.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    public static final class Cycle {
+        private final Entry[] entries;
+        private int index;
+
+        public Entry next() {
+            Entry entry = this.entries[this.index];
+            if (++this.index == this.entries.length) {
+                this.index = 0;
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package net.daporkchop.ppatches.core.transform;
+
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of running the entire transformer pipeline built by {@link PPatchesTransformerRoot}, per class in the corpus.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    //the transformers to put in the pipeline, separated by commas
+    @Param("net.daporkchop.ppatches.modules.asm.foldTypeConstants.FoldTypeConstantsTransformer,"
+           + "net.daporkchop.ppatches.modules.java.dynamicStringConcatenation.DynamicStringConcatenationTransformer,"
+           + "net.daporkchop.ppatches.modules.java.flattenStreams.FlattenStreamsTransformer,"
+           + "net.daporkchop.ppatches.modules.java.foldTrivialConstants.FoldTrivialConstantsTransformer_MethodHandles,"
+           + "net.daporkchop.ppatches.modules.mixin.optimizeCallbackInfoAllocation.OptimizeCallbackInfoAllocationTransformer,"
+           + "net.daporkchop.ppatches.modules.vanilla.useFieldsForSimpleConstantGetters.UseFieldsForSimpleConstantGettersTransformer")
+    public String transformerClasses;
+
+    private PPatchesTransformerRoot.TransformerPipeline pipeline;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        String[] classNames = this.transformerClasses.split(",");
+        ITreeClassTransformer[] transformers = new ITreeClassTransformer[classNames.length];
+        for (int i = 0; i < classNames.length; i++) {
+            transformers[i] = (ITreeClassTransformer) Class.forName(classNames[i].trim()).newInstance();
+        }
+
+        PPatchesTransformerRoot.registerTransformers(transformers);
+        this.pipeline = PPatchesTransformerRoot.currentPipeline();
+    }
+
+    /**
+     * Each thread gets its own position in the corpus.
+     *
+     * @author DaPorkchop_
+     */
+    @State(Scope.Thread)
+    public static class Classes {
+        ClassCorpus.Cycle classes;
+
+        @Setup
+        public void setup() {
+            this.classes = new ClassCorpus.Cycle(ClassCorpus.get(entry -> true));
+        }
+    }
+
+    /**
+     * Runs the whole pipeline on every class in the corpus, exactly as {@link PPatchesTransformerRoot#transform(String, String, byte[])} would.
+     */
+    @Benchmark
+    public byte[] transform(Classes classes) {
+        ClassCorpus.Entry entry = classes.classes.next();
+
+        BitSet interestedMask = this.pipeline.determineInterested(entry.name, entry.name);
+        return interestedMask.isEmpty()
+                ? entry.bytes
+                : PPatchesTransformerRoot.transformCached(this.pipeline, entry.name, entry.name, entry.bytes, interestedMask);
+    }
+
+    /**
+     * Only determines which transformers are interested in each class in the corpus, without actually transforming anything.
+     */
+    @Benchmark
+    public BitSet determineInterested(Classes classes) {
+        ClassCorpus.Entry entry = classes.classes.next();
+
+        BitSet interestedMask = this.pipeline.determineInterested(entry.name, entry.name);
+        if (!interestedMask.isEmpty()) {
+            this.pipeline.determineInterestedExact(entry.name, entry.name, new ClassReader(entry.bytes), interestedMask);
+        }
+        return interestedMask;
+    }
+}
@@ -0,0 +1,19 @@
+package net.daporkchop.ppatches.core.transform;
+
+/**
+ * A small piece of code which is used to compare the performance of the original and transformed bytecode produced by a transformer.
+ * <p>
+ * Implementations must have a public no-args constructor, and shouldn't reference any other classes which would need to be transformed as well.
+ *
+ * @author DaPorkchop_
+ * @see SampleClassLoader
+ */
+public interface Sample {
+    /**
+     * Runs the sample code.
+     *
+     * @param seed a value which changes on every invocation, to prevent the JIT from constant folding everything away
+     * @return the result, which should depend on the entire computation
+     */
+    Object run(int seed);
+}
@@ -0,0 +1,96 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.io.ByteStreams;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A class loader which loads a second copy of a {@link Sample} class, after running it through a single transformer.
+ * <p>
+ * This allows comparing the original and transformed versions of the same code side-by-side in the same JVM, without needing to run the rest of the game.
+ *
+ * @author DaPorkchop_
+ */
+public final class SampleClassLoader extends ClassLoader {
+    /**
+     * Creates a new instance of the given sample class, after running it through the given transformer.
+     *
+     * @param sampleClass the sample class
+     * @param transformer the transformer
+     * @return an instance of the transformed sample class
+     * @throws IllegalStateException if the transformer didn't change the sample class
+     */
+    public static Sample loadTransformed(Class<? extends Sample> sampleClass, ITreeClassTransformer transformer) throws ReflectiveOperationException {
+        return (Sample) new SampleClassLoader(sampleClass, transformer).loadClass(sampleClass.getName()).newInstance();
+    }
+
+    private final String sampleClassName;
+    private final ITreeClassTransformer transformer;
+
+    private SampleClassLoader(Class<? extends Sample> sampleClass, ITreeClassTransformer transformer) {
+        super(sampleClass.getClassLoader());
+        this.sampleClassName = sampleClass.getName();
+        this.transformer = transformer;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        //the sample class and any of its nested classes are loaded by this class loader instead of being delegated to the parent
+        if (!name.equals(this.sampleClassName) && !name.startsWith(this.sampleClassName + '$')) {
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (this.getClassLoadingLock(name)) {
+            Class<?> clazz = this.findLoadedClass(name);
+            if (clazz == null) {
+                clazz = this.findClass(name);
+            }
+            if (resolve) {
+                this.resolveClass(clazz);
+            }
+            return clazz;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] basicClass;
+        try (InputStream in = this.getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            basicClass = ByteStreams.toByteArray(in);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        byte[] transformedClass = name.equals(this.sampleClassName) ? this.transform(name, basicClass) : basicClass;
+        return this.defineClass(name, transformedClass, 0, transformedClass.length);
+    }
+
+    private byte[] transform(String name, byte[] basicClass) {
+        ClassReader reader = new ClassReader(basicClass);
+        ClassNode classNode = new ClassNode();
+        reader.accept(classNode, 0);
+
+        int changeFlags = this.transformer.transformClass(name, name, classNode);
+        if (changeFlags == 0) {
+            throw new IllegalStateException(this.transformer.getClass().getTypeName() + " didn't change " + name);
+        }
+
+        //we always recompute frames here, there's no point in trying to be clever when we only transform a single class once
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                String commonSuperClass = ClassHierarchyIndex.getCommonSuperClass(type1, type2);
+                return commonSuperClass != null ? commonSuperClass : super.getCommonSuperClass(type1, type2);
+            }
+        };
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,88 @@
+package net.daporkchop.ppatches.core.transform;
+
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferenceTable;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of running a single transformer, per class in the corpus which the transformer is interested in.
+ * <p>
+ * Each invocation includes reading the class into a fresh {@link ClassNode}, see {@link AnalysisBenchmark#readClassNode()} for the cost of that alone.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformerBenchmark {
+    @Param({
+            "net.daporkchop.ppatches.modules.asm.foldTypeConstants.FoldTypeConstantsTransformer",
+            "net.daporkchop.ppatches.modules.java.dynamicStringConcatenation.DynamicStringConcatenationTransformer",
+            "net.daporkchop.ppatches.modules.java.flattenStreams.FlattenStreamsTransformer",
+            "net.daporkchop.ppatches.modules.java.foldTrivialConstants.FoldTrivialConstantsTransformer_MethodHandles",
+            "net.daporkchop.ppatches.modules.mixin.optimizeCallbackInfoAllocation.OptimizeCallbackInfoAllocationTransformer",
+            "net.daporkchop.ppatches.modules.vanilla.useFieldsForSimpleConstantGetters.UseFieldsForSimpleConstantGettersTransformer",
+    })
+    public String transformerClass;
+
+    private ITreeClassTransformer transformer;
+    private ClassCorpus.Cycle classes;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        ITreeClassTransformer transformer = this.transformer = (ITreeClassTransformer) Class.forName(this.transformerClass).newInstance();
+
+        //only benchmark the classes which the transformer would actually be run on
+        ConstantPoolReferenceTable referenceTable = transformer instanceof ITreeClassTransformer.ReferenceInterested
+                ? new ConstantPoolReferenceTable(new ConstantPoolReferences[]{ ((ITreeClassTransformer.ReferenceInterested) transformer).interestingReferences() })
+                : null;
+        this.classes = new ClassCorpus.Cycle(ClassCorpus.get(entry -> {
+            if (!PPatchesTransformerRoot.transformerInterestedInClass(transformer, entry.name, entry.name)) {
+                return false;
+            }
+
+            ClassReader reader = new ClassReader(entry.bytes);
+            if (referenceTable != null) {
+                BitSet interestedMask = new BitSet();
+                interestedMask.set(0);
+                referenceTable.filter(reader, interestedMask);
+                if (interestedMask.isEmpty()) {
+                    return false;
+                }
+            }
+            if (transformer instanceof ITreeClassTransformer.ExactInterested) {
+                ITreeClassTransformer.ExactInterested exactInterested = (ITreeClassTransformer.ExactInterested) transformer;
+                return exactInterested.interestedInClass(entry.name, entry.name, reader, new ConstantPoolIndex(reader, exactInterested.cpIndexFlags()));
+            }
+            return true;
+        }));
+    }
+
+    @Benchmark
+    public int transform() {
+        ClassCorpus.Entry entry = this.classes.next();
+
+        ClassNode classNode = new ClassNode();
+        new ClassReader(entry.bytes).accept(classNode, ClassReader.SKIP_FRAMES);
+        return this.transformer.transformClass(entry.name, entry.name, classNode);
+    }
+}
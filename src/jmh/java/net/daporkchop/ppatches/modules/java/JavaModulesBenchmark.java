@@ -0,0 +1,76 @@
+package net.daporkchop.ppatches.modules.java;
+
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.core.transform.Sample;
+import net.daporkchop.ppatches.core.transform.SampleClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the runtime performance of the original and transformed versions of a {@link Sample} for each of the {@code java.*} modules.
+ * <p>
+ * Each module's sample is named {@code <module>Sample} and lives in the same package as the module's transformer. Run with {@code -prof gc} (which the
+ * {@code jmh} task does by default) to also compare the allocation rates.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JavaModulesBenchmark {
+    @Param({
+            "cacheEnumValues.CacheEnumValues",
+            "dynamicStringConcatenation.DynamicStringConcatenation",
+            "flattenGuavaIterables.FlattenGuavaIterables",
+            "flattenOptionals.FlattenOptionals",
+            "flattenStreams.FlattenStreams",
+            "guardDisabledLogging.GuardDisabledLogging",
+            "optimizeAngleConversions.OptimizeAngleConversions",
+            "optimizeConstantVarargs.OptimizeConstantVarargs",
+            "optimizeStringFormat.OptimizeStringFormat",
+            "separatedExceptionConstruction.SeparatedExceptionConstruction",
+    })
+    public String module;
+
+    @Param({ "original", "transformed" })
+    public String variant;
+
+    private Sample sample;
+    private int seed;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        String prefix = JavaModulesBenchmark.class.getPackage().getName() + '.' + this.module;
+        Class<? extends Sample> sampleClass = Class.forName(prefix + "Sample").asSubclass(Sample.class);
+
+        switch (this.variant) {
+            case "original":
+                this.sample = sampleClass.newInstance();
+                break;
+            case "transformed":
+                this.sample = SampleClassLoader.loadTransformed(sampleClass, (ITreeClassTransformer) Class.forName(prefix + "Transformer").newInstance());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown variant: " + this.variant);
+        }
+    }
+
+    @Benchmark
+    public Object run() {
+        return this.sample.run(this.seed++);
+    }
+}
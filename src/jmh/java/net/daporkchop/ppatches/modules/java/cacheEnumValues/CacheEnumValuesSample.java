@@ -0,0 +1,30 @@
+package net.daporkchop.ppatches.modules.java.cacheEnumValues;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+/**
+ * @author DaPorkchop_
+ */
+public class CacheEnumValuesSample implements Sample {
+    @Override
+    public Object run(int seed) {
+        int sum = 0;
+        for (Direction direction : Direction.values()) {
+            sum += direction.offset * seed;
+        }
+        return sum + Direction.values()[seed & 3].ordinal() + Direction.values().length;
+    }
+
+    private enum Direction {
+        NORTH(-1),
+        SOUTH(1),
+        EAST(2),
+        WEST(-2);
+
+        private final int offset;
+
+        Direction(int offset) {
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package net.daporkchop.ppatches.modules.java.dynamicStringConcatenation;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+/**
+ * @author DaPorkchop_
+ */
+public class DynamicStringConcatenationSample implements Sample {
+    private final String name = "sample";
+
+    @Override
+    public Object run(int seed) {
+        return "value " + seed + " of " + this.name + '!';
+    }
+}
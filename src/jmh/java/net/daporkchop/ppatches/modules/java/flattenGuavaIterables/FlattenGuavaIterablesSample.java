@@ -0,0 +1,28 @@
+package net.daporkchop.ppatches.modules.java.flattenGuavaIterables;
+
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Iterables;
+import net.daporkchop.ppatches.core.transform.Sample;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author DaPorkchop_
+ */
+public class FlattenGuavaIterablesSample implements Sample {
+    private final List<Integer> values = new ArrayList<>();
+
+    {
+        for (int i = 0; i < 64; i++) {
+            this.values.add(i);
+        }
+    }
+
+    @Override
+    public Object run(int seed) {
+        boolean any = Iterables.any(Iterables.transform(this.values, i -> i * seed), i -> i == 1234);
+        int size = FluentIterable.from(this.values).filter(i -> i > (seed & 63)).toList().size();
+        return any ? -size : size;
+    }
+}
@@ -0,0 +1,18 @@
+package net.daporkchop.ppatches.modules.java.flattenOptionals;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * @author DaPorkchop_
+ */
+public class FlattenOptionalsSample implements Sample {
+    @Override
+    public Object run(int seed) {
+        String value = (seed & 1) == 0 ? null : Integer.toString(seed);
+        int length = Optional.ofNullable(value).map(String::trim).filter(s -> !s.isEmpty()).map(String::length).orElse(-1);
+        return length + OptionalInt.of(seed).orElse(0);
+    }
+}
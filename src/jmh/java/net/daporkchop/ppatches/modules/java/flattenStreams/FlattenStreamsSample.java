@@ -0,0 +1,20 @@
+package net.daporkchop.ppatches.modules.java.flattenStreams;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * @author DaPorkchop_
+ */
+public class FlattenStreamsSample implements Sample {
+    private final int[] values = IntStream.range(0, 64).toArray();
+
+    @Override
+    public Object run(int seed) {
+        int sum = IntStream.range(0, 64).map(i -> i * seed).filter(i -> (i & 1) == 0).sum();
+        long count = Arrays.stream(this.values).filter(i -> i > (seed & 63)).count();
+        return sum + count;
+    }
+}
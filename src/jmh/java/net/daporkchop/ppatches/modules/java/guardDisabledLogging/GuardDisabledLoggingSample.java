@@ -0,0 +1,23 @@
+package net.daporkchop.ppatches.modules.java.guardDisabledLogging;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * @author DaPorkchop_
+ */
+public class GuardDisabledLoggingSample implements Sample {
+    private static final Logger LOGGER = LogManager.getLogger("GuardDisabledLoggingSample");
+
+    private final String name = "sample";
+
+    @Override
+    public Object run(int seed) {
+        //written out by hand so that these stay StringBuilder chains regardless of how the sample is compiled
+        LOGGER.debug(new StringBuilder().append("value ").append(seed).append(" of ").append(this.name).toString());
+        LOGGER.trace(new StringBuilder(this.name).append(':').append(seed).toString());
+        LOGGER.debug("value {} of {}", seed, this.name);
+        return seed;
+    }
+}
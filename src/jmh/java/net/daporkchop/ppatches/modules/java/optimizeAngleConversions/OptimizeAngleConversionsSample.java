@@ -0,0 +1,14 @@
+package net.daporkchop.ppatches.modules.java.optimizeAngleConversions;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+/**
+ * @author DaPorkchop_
+ */
+public class OptimizeAngleConversionsSample implements Sample {
+    @Override
+    public Object run(int seed) {
+        double radians = Math.toRadians(seed % 360);
+        return Math.toDegrees(radians * 0.5d) + Math.toRadians(seed * 0.25d);
+    }
+}
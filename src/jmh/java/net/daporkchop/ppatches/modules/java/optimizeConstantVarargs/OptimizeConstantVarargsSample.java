@@ -0,0 +1,20 @@
+package net.daporkchop.ppatches.modules.java.optimizeConstantVarargs;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import net.daporkchop.ppatches.core.transform.Sample;
+
+import java.util.Arrays;
+
+/**
+ * @author DaPorkchop_
+ */
+public class OptimizeConstantVarargsSample implements Sample {
+    @Override
+    public Object run(int seed) {
+        Preconditions.checkArgument(seed != Integer.MIN_VALUE, "invalid seed %s (%s)", seed, "min value");
+        String name = Integer.toString(seed & 7);
+        int result = Arrays.asList("1", "3", "5").contains(name) ? 1 : 0;
+        return result + ImmutableList.of("0", "2", "4", "6").indexOf(name);
+    }
+}
@@ -0,0 +1,15 @@
+package net.daporkchop.ppatches.modules.java.optimizeStringFormat;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+/**
+ * @author DaPorkchop_
+ */
+public class OptimizeStringFormatSample implements Sample {
+    private final String name = "sample";
+
+    @Override
+    public Object run(int seed) {
+        return String.format("value %d of %s!", seed, this.name);
+    }
+}
@@ -0,0 +1,25 @@
+package net.daporkchop.ppatches.modules.java.separatedExceptionConstruction;
+
+import net.daporkchop.ppatches.core.transform.Sample;
+
+/**
+ * @author DaPorkchop_
+ */
+public class SeparatedExceptionConstructionSample implements Sample {
+    private final int[] values = new int[64];
+
+    @Override
+    public Object run(int seed) {
+        //the exception is never actually thrown, but constructing it inline makes the method bigger and therefore less likely to be inlined
+        return this.get(seed & 63) + this.get((seed >>> 6) & 63);
+    }
+
+    private int get(int index) {
+        if (index < 0 || index >= this.values.length) {
+            throw new IndexOutOfBoundsException("index must be in range [0, " + this.values.length + ") (given: " + index + ')');
+        } else if (this.values[index] < 0) {
+            throw new IllegalStateException("negative value");
+        }
+        return this.values[index] += index;
+    }
+}
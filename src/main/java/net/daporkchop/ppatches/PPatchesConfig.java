@@ -249,6 +249,30 @@ public class PPatchesConfig {
     })
     public static final ModuleConfigBase iChunUtil_fixClientClassAccess = new ModuleConfigBase(ModuleState.AUTO);
 
+    @Config.Comment({
+            "Replaces calls to an enum's values() method with a direct read of the enum's internal values array, if the returned array is only ever read and doesn't"
+                    + " escape the method.",
+            "This avoids cloning the values array every time, which can be a significant source of garbage when done inside loops (e.g. iterating over EnumFacing.values()).",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.cacheEnumValues.CacheEnumValuesTransformer")
+    public static final ModuleConfigBase java_cacheEnumValues = new ModuleConfigBase(ModuleState.ENABLED);
+
+    @Config.Comment({
+            "Replaces virtual and interface method calls whose owner only has a single implementation on the classpath with a direct call to that implementation,"
+                    + " guarded by a check of the receiver's exact type.",
+            "If a different implementation is encountered at runtime (e.g. a class which is generated at runtime), the call site falls back to a regular virtual call.",
+            "This may help the JIT compiler inline more aggressively, but requires the class hierarchy index to be enabled (-Dppatches.classHierarchyIndex=true) and"
+                    + " is therefore disabled by default.",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.devirtualizeCalls.DevirtualizeCallsTransformer")
+    public static final ModuleConfigBase java_devirtualizeCalls = new ModuleConfigBase(ModuleState.DISABLED);
+
     @Config.Comment({
             "Patches all Java code to move string concatenation out of the main method body and into a separate INVOKEDYNAMIC instruction.",
             "This emulates the standard behavior for string concatenation in Java 9+.",
@@ -260,6 +284,28 @@ public class PPatchesConfig {
             transformerClass = "net.daporkchop.ppatches.modules.java.dynamicStringConcatenation.DynamicStringConcatenationTransformer")
     public static final ModuleConfigBase java_dynamicStringConcatenation = new ModuleConfigBase(ModuleState.ENABLED);
 
+    @Config.Comment({
+            "Rewrites chains of Guava's lazy collection views (Iterables.filter/transform, Collections2, FluentIterable) which are immediately consumed into"
+                    + " equivalent loop(s) and conditional(s).",
+            "This avoids allocating the intermediate views, their iterators and any lambdas passed to them, and is only done if none of the views escape.",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.flattenGuavaIterables.FlattenGuavaIterablesTransformer")
+    public static final ModuleConfigBase java_flattenGuavaIterables = new ModuleConfigBase(ModuleState.ENABLED);
+
+    @Config.Comment({
+            "Rewrites chains of calls on Optional, OptionalInt, OptionalLong and OptionalDouble (of/ofNullable, map, filter, flatMap, orElse etc.) into"
+                    + " equivalent null check(s) and conditional(s).",
+            "This avoids allocating the intermediate optionals and any lambdas passed to them, and is only done if none of the optionals escape.",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.flattenOptionals.FlattenOptionalsTransformer")
+    public static final ModuleConfigBase java_flattenOptionals = new ModuleConfigBase(ModuleState.ENABLED);
+
     @Config.Comment({
             "Rewrites simple usages of Java's Stream API into equivalent loop(s) and conditional(s).",
             "This can significantly improve performance when using mods which make extensive use of the Stream API, however vanilla code is unlikely to benefit.",
@@ -284,6 +330,17 @@ public class PPatchesConfig {
             })
     public static final ModuleConfigBase java_foldTrivialConstants = new ModuleConfigBase(ModuleState.ENABLED);
 
+    @Config.Comment({
+            "Patches all Java code to skip building the message arguments of Log4j debug and trace calls if the corresponding log level is disabled.",
+            "This only affects calls whose arguments are known to be free of side effects, such as string concatenations, String.format() and toString() calls.",
+            "This can reduce allocation rates when using mods which build debug messages in frequently called code, and has no effect on which messages are logged.",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.guardDisabledLogging.GuardDisabledLoggingTransformer")
+    public static final ModuleConfigBase java_guardDisabledLogging = new ModuleConfigBase(ModuleState.ENABLED);
+
     @Config.Comment({
             "Optimizes calls to Math.toDegrees(double) and Math.toRadians(double) with a simple multiplication by a constant.",
             "This is the standard behavior on Java 9+ (see https://bugs.openjdk.org/browse/JDK-4477961), and as such should be totally safe to use. However, as it"
@@ -297,6 +354,29 @@ public class PPatchesConfig {
             transformerClass = "net.daporkchop.ppatches.modules.java.optimizeAngleConversions.OptimizeAngleConversionsTransformer")
     public static final ModuleConfigBase java_optimizeAngleConversions = new ModuleConfigBase(ModuleState.DISABLED);
 
+    @Config.Comment({
+            "Replaces calls to collection factories (Arrays.asList, EnumSet.of, ImmutableList/ImmutableSet/ImmutableMap.of) whose elements are all constants with a"
+                    + " collection which is only created once, and defers allocating the varargs array passed to Guava's Preconditions methods until the check fails.",
+            "The mutable collections returned by Arrays.asList and EnumSet.of are only shared if they're immediately used for a read-only query such as contains().",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.optimizeConstantVarargs.OptimizeConstantVarargsTransformer")
+    public static final ModuleConfigBase java_optimizeConstantVarargs = new ModuleConfigBase(ModuleState.ENABLED);
+
+    @Config.Comment({
+            "Optimizes reflective method/constructor calls and field accesses on Method, Constructor and Field instances stored in static final fields by binding them"
+                    + " directly to the reflected member using INVOKEDYNAMIC.",
+            "This avoids allocating argument arrays, boxing primitive arguments and repeating access checks on every call, which can noticeably reduce allocation"
+                    + " rates when using mods which use reflection in frequently called code.",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.optimizeReflection.OptimizeReflectionTransformer")
+    public static final ModuleConfigBase java_optimizeReflection = new ModuleConfigBase(ModuleState.ENABLED);
+
     @Config.Comment({
             "Optimizes simple calls to String.format() into equivalent string concatenations.",
             "This can result in minor performance increases overall.",
@@ -317,6 +397,19 @@ public class PPatchesConfig {
             transformerClass = "net.daporkchop.ppatches.modules.java.separatedExceptionConstruction.SeparatedExceptionConstructionTransformer")
     public static final ModuleConfigBase java_separatedExceptionConstruction = new ModuleConfigBase(ModuleState.ENABLED);
 
+    @Config.Comment({
+            "Patches all Java code to store the values of private static final ThreadLocal fields in Netty FastThreadLocals when accessed from a FastThreadLocalThread.",
+            "Fields are only patched if the ThreadLocal never leaves the class which declares it, and ThreadLocals which override get(), set() or remove() are left"
+                    + " alone.",
+            "This will slightly reduce the cost of thread-local accesses in code which runs on the threads patched by vanilla.useFastThreadLocalThread.",
+    })
+    @ModuleDescriptor(
+            registerPhase = PPatchesBootstrap.Phase.PREINIT,
+            requires = @Requirement(moduleEnabled = "vanilla.useFastThreadLocalThread"),
+            mixins = {},
+            transformerClass = "net.daporkchop.ppatches.modules.java.useFastThreadLocal.UseFastThreadLocalTransformer")
+    public static final ModuleConfigBase java_useFastThreadLocal = new ModuleConfigBase(ModuleState.ENABLED);
+
     @Config.Comment({
             "Patches JourneyMap to prevent it from rendering a tooltip for every widget on the screen, regardless of whether or not the mouse is hovering over the widget"
                     + " in question.",
@@ -1,10 +1,18 @@
 package net.daporkchop.ppatches;
 
 import lombok.SneakyThrows;
+import net.daporkchop.ppatches.command.CommandTransformerStatistics;
+import net.daporkchop.ppatches.core.transform.ParallelPretransformer;
+import net.daporkchop.ppatches.core.transform.PrebakedClasses;
+import net.daporkchop.ppatches.core.transform.TransformedClassCache;
+import net.daporkchop.ppatches.core.transform.TransformerPruning;
+import net.daporkchop.ppatches.core.transform.TransformerStatistics;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.ProgressManager;
 import net.minecraftforge.fml.common.event.FMLConstructionEvent;
+import net.minecraftforge.fml.common.event.FMLLoadCompleteEvent;
+import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -42,4 +50,30 @@ public final class PPatchesMod {
         }
         ProgressManager.pop(bar);
     }
+
+    @Mod.EventHandler
+    public void loadComplete(FMLLoadCompleteEvent event) {
+        if (ParallelPretransformer.ENABLED) {
+            ParallelPretransformer.logStatistics();
+        }
+        if (TransformedClassCache.ENABLED) {
+            TransformedClassCache.logStatistics();
+        }
+        if (PrebakedClasses.AVAILABLE) {
+            PrebakedClasses.logStatistics();
+        }
+        if (TransformerPruning.ENABLED) {
+            TransformerPruning.logStatistics();
+        }
+        if (TransformerStatistics.ENABLED) {
+            TransformerStatistics.dumpReport();
+        }
+    }
+
+    @Mod.EventHandler
+    public void serverStarting(FMLServerStartingEvent event) {
+        if (TransformerStatistics.ENABLED) {
+            event.registerServerCommand(new CommandTransformerStatistics());
+        }
+    }
 }
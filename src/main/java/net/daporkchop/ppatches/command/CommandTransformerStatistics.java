@@ -0,0 +1,30 @@
+package net.daporkchop.ppatches.command;
+
+import net.daporkchop.ppatches.core.transform.TransformerStatistics;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+/**
+ * Writes the statistics collected by {@link TransformerStatistics} to the log on demand.
+ *
+ * @author DaPorkchop_
+ */
+public final class CommandTransformerStatistics extends CommandBase {
+    @Override
+    public String getName() {
+        return "ppatches_transformerstats";
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/ppatches_transformerstats";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) {
+        TransformerStatistics.dumpReport();
+        sender.sendMessage(new TextComponentString("Transformer statistics have been written to the log."));
+    }
+}
@@ -8,18 +8,25 @@ import lombok.experimental.UtilityClass;
 import net.daporkchop.ppatches.PPatchesConfig;
 import net.daporkchop.ppatches.PPatchesLoadingPlugin;
 import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ClassHierarchyIndex;
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.core.transform.PPatchesTransformerRoot;
+import net.daporkchop.ppatches.core.transform.ParallelPretransformer;
 import net.daporkchop.ppatches.util.compat.mixin.MixinCompatHelper;
 import net.minecraft.launchwrapper.Launch;
 import net.minecraft.launchwrapper.LaunchClassLoader;
+import net.minecraftforge.fml.common.FMLModContainer;
+import net.minecraftforge.fml.common.Loader;
+import net.minecraftforge.fml.common.ModContainer;
 import org.spongepowered.asm.mixin.MixinEnvironment;
 import org.spongepowered.asm.mixin.Mixins;
 
+import java.io.File;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -95,6 +102,21 @@ public class PPatchesBootstrap {
         notifyBeginPhase(EFFECTIVE_PHASE);
         MixinCompatHelper.forceSelectConfigs();
 
+        if (ClassHierarchyIndex.ENABLED) {
+            ClassHierarchyIndex.build(Launch.classLoader.getSources());
+        }
+
+        if (ParallelPretransformer.ENABLED) {
+            //collect the jar files of all regular mods (the Minecraft jar and coremods are skipped)
+            Set<File> modJars = new LinkedHashSet<>();
+            for (ModContainer mod : Loader.instance().getModList()) {
+                if (mod instanceof FMLModContainer && mod.getSource().isFile()) {
+                    modJars.add(mod.getSource());
+                }
+            }
+            ParallelPretransformer.pretransform(modJars);
+        }
+
         EVENT_BUS.post(new CompletedStateTransitionEvent(EFFECTIVE_PHASE));
     }
 
@@ -0,0 +1,523 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.ppatches.PPatchesMod;
+import net.minecraft.launchwrapper.Launch;
+import net.minecraftforge.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Index of the superclass, interfaces and access flags of every class on the launch classpath, built directly from the class bytes without loading any classes.
+ * <p>
+ * The index is built on a pool of worker threads once all mods have been added to the classpath, and the results for each jar are cached on disk. Classes which
+ * aren't in the index (e.g. because they're part of the JDK, or because the index hasn't been built yet) are read from the class loader's resources on demand.
+ * <p>
+ * Note that the index always reflects the untransformed classes, so interfaces which were added to a class by a transformer (e.g. by a Mixin) won't be visible.
+ * This doesn't matter when computing common superclasses, which is what the index is primarily used for.
+ * <p>
+ * All class names in the index are deobfuscated using {@link FMLDeobfuscatingRemapper}, as that's what transformers see. The on-disk cache stores the names
+ * exactly as they appear in the jar, so it doesn't depend on the mappings.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class ClassHierarchyIndex {
+    public static final boolean ENABLED = Boolean.getBoolean("ppatches.classHierarchyIndex");
+    private static final int THREADS = Integer.getInteger("ppatches.classHierarchyIndex.threads", Runtime.getRuntime().availableProcessors());
+
+    //increment this whenever the cache format changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Path ROOT = Paths.get(".ppatches_cache", "classHierarchy");
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    //the direct subtypes of every class which was indexed from the classpath. this is null until the index has been built.
+    private static volatile Map<String, List<String>> DIRECT_SUBTYPES;
+    private static final Map<String, Optional<String>> SINGLE_IMPLEMENTATIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes all classes in the given classpath entries.
+     * <p>
+     * This blocks until all classpath entries have been processed. Classes which were already indexed are left unchanged, and if the same class is present in
+     * multiple classpath entries, the first one wins.
+     *
+     * @param sources the classpath entries
+     */
+    public static void build(Collection<URL> sources) {
+        PPatchesMod.LOGGER.info("Building class hierarchy index for {} classpath entries using {} threads...", sources.size(), THREADS);
+        long startTime = System.nanoTime();
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, task -> {
+            Thread thread = new Thread(task, "PPatches class hierarchy index thread #" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Set<Path> usedCacheFiles = ConcurrentHashMap.newKeySet();
+        List<Future<Map<String, Entry>>> futures = new ArrayList<>(sources.size());
+        try {
+            for (URL source : sources) {
+                Path path;
+                try {
+                    path = Paths.get(source.toURI());
+                } catch (URISyntaxException | IllegalArgumentException e) { //not a local file
+                    continue;
+                }
+
+                futures.add(executor.submit(() -> {
+                    try {
+                        if (Files.isRegularFile(path)) {
+                            return indexJar(path, usedCacheFiles);
+                        } else if (Files.isDirectory(path)) {
+                            return indexDirectory(path);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        PPatchesMod.LOGGER.warn("Unable to index classes in " + path, e);
+                    }
+                    return null;
+                }));
+            }
+
+            //merge the results in classpath order, so that if a class is present in more than one classpath entry the one which would actually be loaded wins
+            Map<String, Entry> indexed = new HashMap<>();
+            for (Future<Map<String, Entry>> future : futures) {
+                Map<String, Entry> entries;
+                try {
+                    entries = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+
+                if (entries != null) {
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        String name = remap(entry.getKey());
+                        Entry remappedEntry = entry.getValue().remap();
+                        if (!indexed.containsKey(name)) {
+                            //the class may already have been indexed on demand, in which case that entry is the one everyone else sees and has to be registered
+                            //  as a subtype as well
+                            Entry existing = ENTRIES.putIfAbsent(name, remappedEntry);
+                            indexed.put(name, existing != null ? existing : remappedEntry);
+                        }
+                    }
+                }
+            }
+
+            DIRECT_SUBTYPES = buildDirectSubtypes(indexed);
+            SINGLE_IMPLEMENTATIONS.clear();
+
+            PPatchesMod.LOGGER.info("Indexed {} classes in {}ms", indexed.size(), (System.nanoTime() - startTime) / 1_000_000.0d);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        deleteUnusedCacheFiles(usedCacheFiles);
+    }
+
+    /**
+     * Gets the index entry for the given class.
+     *
+     * @param internalName the class' internal name
+     * @return the class' index entry, or {@code null} if the class couldn't be found
+     */
+    public static Entry get(String internalName) {
+        Entry entry = ENTRIES.get(internalName);
+        if (entry == null && (entry = readEntry(internalName)) != null) {
+            Entry existing = ENTRIES.putIfAbsent(internalName, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        return entry;
+    }
+
+    private static String remap(String internalName) {
+        return internalName != null ? FMLDeobfuscatingRemapper.INSTANCE.map(internalName) : null;
+    }
+
+    /**
+     * Checks whether a value of the given type could be assigned to a variable of the given supertype.
+     *
+     * @param superType the internal name of the supertype
+     * @param type      the internal name of the type
+     * @return whether or not {@code type} is a subtype of {@code superType}, or {@code null} if any of the classes which need to be checked couldn't be found
+     */
+    public static Boolean isAssignableFrom(String superType, String type) {
+        if (superType.equals(type) || "java/lang/Object".equals(superType)) {
+            return true;
+        }
+
+        Entry superTypeEntry = get(superType);
+        if (superTypeEntry == null) {
+            return null;
+        }
+        boolean superTypeIsInterface = superTypeEntry.isInterface();
+
+        Set<String> visited = new HashSet<>();
+        Queue<String> queue = new ArrayDeque<>();
+        queue.add(type);
+        for (String name; (name = queue.poll()) != null; ) {
+            if (name.equals(superType)) {
+                return true;
+            } else if (!visited.add(name)) {
+                continue;
+            }
+
+            Entry entry = get(name);
+            if (entry == null) {
+                return null;
+            } else if (entry.superName != null) {
+                queue.add(entry.superName);
+            }
+            if (superTypeIsInterface) { //only bother checking interfaces if we're actually looking for one
+                for (String interfaceName : entry.interfaces) {
+                    queue.add(interfaceName);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the most specific common superclass of the two given classes, using the same rules as {@link org.objectweb.asm.ClassWriter#getCommonSuperClass}.
+     *
+     * @param type1 the internal name of the first class
+     * @param type2 the internal name of the second class
+     * @return the internal name of the common superclass, or {@code null} if any of the classes which need to be checked couldn't be found
+     */
+    public static String getCommonSuperClass(String type1, String type2) {
+        Boolean assignable = isAssignableFrom(type1, type2);
+        if (assignable == null) {
+            return null;
+        } else if (assignable) {
+            return type1;
+        }
+
+        assignable = isAssignableFrom(type2, type1);
+        if (assignable == null) {
+            return null;
+        } else if (assignable) {
+            return type2;
+        }
+
+        Entry entry1 = get(type1);
+        Entry entry2 = get(type2);
+        if (entry1 == null || entry2 == null) {
+            return null;
+        } else if (entry1.isInterface() || entry2.isInterface()) {
+            return "java/lang/Object";
+        }
+
+        String superType = type1;
+        do {
+            Entry superEntry = get(superType);
+            if (superEntry == null) {
+                return null;
+            }
+            superType = superEntry.superName;
+            Preconditions.checkState(superType != null, "reached the root of the class hierarchy while searching for common superclass of %s and %s", type1, type2);
+        } while ((assignable = isAssignableFrom(superType, type2)) != null && !assignable);
+        return assignable != null ? superType : null;
+    }
+
+    /**
+     * Finds the only concrete (i.e. neither abstract nor an interface) class on the classpath which is a subtype of the given type.
+     * <p>
+     * Only classes which were indexed from the classpath are considered, so this doesn't know about classes which are defined at runtime (e.g. lambdas and
+     * proxies) or which only implement the type because of a transformer. Callers must therefore be prepared for other implementations to show up anyway.
+     *
+     * @param internalName the internal name of the type
+     * @return the internal name of the type's only implementation (which may be the type itself), or {@code null} if the type has zero or multiple
+     * implementations, wasn't indexed from the classpath or the index hasn't been built yet
+     */
+    public static String findSingleImplementation(String internalName) {
+        Map<String, List<String>> directSubtypes = DIRECT_SUBTYPES;
+        if (directSubtypes == null || !directSubtypes.containsKey(internalName)) {
+            return null;
+        }
+        return SINGLE_IMPLEMENTATIONS.computeIfAbsent(internalName, name -> Optional.ofNullable(computeSingleImplementation(directSubtypes, name))).orElse(null);
+    }
+
+    private static String computeSingleImplementation(Map<String, List<String>> directSubtypes, String internalName) {
+        String implementation = null;
+
+        Set<String> visited = new HashSet<>();
+        Queue<String> queue = new ArrayDeque<>();
+        queue.add(internalName);
+        for (String name; (name = queue.poll()) != null; ) {
+            if (!visited.add(name)) {
+                continue;
+            }
+
+            if ((ENTRIES.get(name).access & (ACC_INTERFACE | ACC_ABSTRACT)) == 0) {
+                if (implementation != null) { //there's more than one implementation
+                    return null;
+                }
+                implementation = name;
+            }
+            queue.addAll(directSubtypes.get(name));
+        }
+        return implementation;
+    }
+
+    private static Map<String, List<String>> buildDirectSubtypes(Map<String, Entry> indexed) {
+        //every indexed class gets a key, even if it doesn't have any subtypes, so that we can tell which classes were indexed from the classpath. subtypes of
+        //  classes which weren't indexed from the classpath (e.g. JDK classes) are irrelevant, as we don't know all of their implementations anyway.
+        Map<String, List<String>> directSubtypes = new HashMap<>(indexed.size());
+        for (String name : indexed.keySet()) {
+            directSubtypes.put(name, Collections.emptyList());
+        }
+
+        indexed.forEach((name, entry) -> {
+            if (entry.superName != null) {
+                addDirectSubtype(directSubtypes, entry.superName, name);
+            }
+            for (String interfaceName : entry.interfaces) {
+                addDirectSubtype(directSubtypes, interfaceName, name);
+            }
+        });
+        return directSubtypes;
+    }
+
+    private static void addDirectSubtype(Map<String, List<String>> directSubtypes, String superType, String subtype) {
+        List<String> subtypes = directSubtypes.get(superType);
+        if (subtypes == null) { //the supertype wasn't indexed from the classpath
+            return;
+        } else if (subtypes.isEmpty()) { //replace the shared empty list
+            directSubtypes.put(superType, subtypes = new ArrayList<>(1));
+        }
+        subtypes.add(subtype);
+    }
+
+    private static Entry readEntry(String internalName) {
+        if (internalName.startsWith("[")) { //array types don't have a class file
+            return null;
+        }
+
+        try {
+            //try the launch class loader's sources first, then fall back to the system class loader (which is where the JDK classes will come from). the launch
+            //  class loader won't exist if we aren't running inside the game (e.g. in the benchmarks). the class bytes have to be looked up using the obfuscated
+            //  name, as that's what's in the jar.
+            String untransformedName = FMLDeobfuscatingRemapper.INSTANCE.unmap(internalName);
+            byte[] classBytes = Launch.classLoader != null ? Launch.classLoader.getClassBytes(untransformedName.replace('/', '.')) : null;
+            if (classBytes == null) {
+                try (InputStream in = ClassLoader.getSystemResourceAsStream(untransformedName + ".class")) {
+                    if (in == null) {
+                        return null;
+                    }
+                    classBytes = ByteStreams.toByteArray(in);
+                }
+            }
+            return Entry.read(new ClassReader(classBytes)).remap();
+        } catch (IOException | RuntimeException e) {
+            PPatchesMod.LOGGER.debug("Unable to read class " + internalName + " for class hierarchy index", e);
+            return null;
+        }
+    }
+
+    private static Map<String, Entry> indexJar(Path jar, Set<Path> usedCacheFiles) throws IOException {
+        //as with TransformedClassCache, the size and modification time of the jar should be sufficient to identify it
+        Path cacheFile = ROOT.resolve(Hashing.murmur3_128().newHasher()
+                .putString(jar.toAbsolutePath().toString(), StandardCharsets.UTF_8)
+                .putLong(Files.size(jar)).putLong(Files.getLastModifiedTime(jar).toMillis())
+                .hash() + ".bin");
+        usedCacheFiles.add(cacheFile);
+
+        Map<String, Entry> entries = readCacheFile(cacheFile);
+        if (entries != null) {
+            return entries;
+        }
+
+        entries = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            for (Enumeration<? extends ZipEntry> zipEntries = zipFile.entries(); zipEntries.hasMoreElements(); ) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                String entryName = zipEntry.getName();
+                if (zipEntry.isDirectory() || !entryName.endsWith(".class") || entryName.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                    ClassReader reader = new ClassReader(ByteStreams.toByteArray(in));
+                    entries.putIfAbsent(reader.getClassName(), Entry.read(reader));
+                } catch (RuntimeException e) { //some jars contain garbage with a .class extension
+                    PPatchesMod.LOGGER.debug("Unable to read " + entryName + " in " + jar + " for class hierarchy index", e);
+                }
+            }
+        }
+
+        writeCacheFile(cacheFile, entries);
+        return entries;
+    }
+
+    private static Map<String, Entry> indexDirectory(Path directory) throws IOException {
+        //directories are only really used in development environments, where their contents change all the time, so there's no point in caching them
+        List<Path> classFiles;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            classFiles = stream.filter(path -> path.getFileName().toString().endsWith(".class") && Files.isRegularFile(path)).collect(Collectors.toList());
+        }
+
+        Map<String, Entry> entries = new HashMap<>();
+        for (Path classFile : classFiles) {
+            try {
+                ClassReader reader = new ClassReader(Files.readAllBytes(classFile));
+                entries.putIfAbsent(reader.getClassName(), Entry.read(reader));
+            } catch (RuntimeException e) {
+                PPatchesMod.LOGGER.debug("Unable to read " + classFile + " for class hierarchy index", e);
+            }
+        }
+        return entries;
+    }
+
+    private static Map<String, Entry> readCacheFile(Path cacheFile) {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int access = in.readInt();
+                String superName = in.readBoolean() ? in.readUTF() : null;
+                String[] interfaces = new String[in.readUnsignedShort()];
+                for (int j = 0; j < interfaces.length; j++) {
+                    interfaces[j] = in.readUTF();
+                }
+                entries.put(name, new Entry(access, superName, interfaces));
+            }
+            return entries;
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to read class hierarchy index cache file " + cacheFile + ", discarding it", e);
+            return null;
+        }
+    }
+
+    private static void writeCacheFile(Path cacheFile, Map<String, Entry> entries) {
+        try {
+            Files.createDirectories(ROOT);
+
+            //write to a temporary file first to make sure nobody ever sees a partially written file
+            Path tempFile = Files.createTempFile(ROOT, "index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().access);
+                    out.writeBoolean(entry.getValue().superName != null);
+                    if (entry.getValue().superName != null) {
+                        out.writeUTF(entry.getValue().superName);
+                    }
+                    out.writeShort(entry.getValue().interfaces.length);
+                    for (String interfaceName : entry.getValue().interfaces) {
+                        out.writeUTF(interfaceName);
+                    }
+                }
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to write class hierarchy index cache file " + cacheFile, e);
+        }
+    }
+
+    private static void deleteUnusedCacheFiles(Set<Path> usedCacheFiles) {
+        if (!Files.isDirectory(ROOT)) {
+            return;
+        }
+
+        //cache files for jars which are no longer on the classpath (or have been modified since) will never be used again
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(ROOT, "*.bin")) {
+            for (Path cacheFile : stream) {
+                if (!usedCacheFiles.contains(cacheFile)) {
+                    Files.delete(cacheFile);
+                }
+            }
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to delete unused class hierarchy index cache files", e);
+        }
+    }
+
+    /**
+     * The information about a single class stored in the index.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    public static final class Entry {
+        static Entry read(ClassReader reader) {
+            return new Entry(reader.getAccess(), reader.getSuperName(), reader.getInterfaces());
+        }
+
+        public final int access;
+        public final String superName; //null for java/lang/Object
+        public final String[] interfaces;
+
+        /**
+         * @return a copy of this entry with all class names deobfuscated
+         */
+        Entry remap() {
+            String[] remappedInterfaces = new String[this.interfaces.length];
+            for (int i = 0; i < remappedInterfaces.length; i++) {
+                remappedInterfaces[i] = ClassHierarchyIndex.remap(this.interfaces[i]);
+            }
+            return new Entry(this.access, ClassHierarchyIndex.remap(this.superName), remappedInterfaces);
+        }
+
+        public boolean isInterface() {
+            return (this.access & ACC_INTERFACE) != 0;
+        }
+    }
+}
@@ -2,11 +2,16 @@ package net.daporkchop.ppatches.core.transform;
 
 import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
 import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.MethodNode;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * @author DaPorkchop_
  */
@@ -18,13 +23,38 @@ public interface ITreeClassTransformer extends Comparable<ITreeClassTransformer>
         return 1000;
     }
 
+    /**
+     * Gets the types of the transformers which this transformer must be run before.
+     * <p>
+     * Transformers of these types which aren't registered are ignored. Ordering constraints always take precedence over {@link #priority()}.
+     *
+     * @return the types of the transformers which this transformer must be run before
+     */
+    default Collection<Class<? extends ITreeClassTransformer>> runsBefore() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Gets the types of the transformers which this transformer must be run after.
+     * <p>
+     * Transformers of these types which aren't registered are ignored. Ordering constraints always take precedence over {@link #priority()}.
+     *
+     * @return the types of the transformers which this transformer must be run after
+     */
+    default Collection<Class<? extends ITreeClassTransformer>> runsAfter() {
+        return Collections.emptyList();
+    }
+
     @Override
     default int compareTo(ITreeClassTransformer o) {
         int d = Integer.compare(this.priority(), o.priority());
         if (d == 0) {
             d = Boolean.compare(this instanceof IndividualMethod, o instanceof IndividualMethod);
             if (d == 0) {
-                d = Boolean.compare(this instanceof OptimizationPass, o instanceof OptimizationPass);
+                d = Boolean.compare(this instanceof IndividualMethod.Analyzed, o instanceof IndividualMethod.Analyzed);
+                if (d == 0) {
+                    d = Boolean.compare(this instanceof OptimizationPass, o instanceof OptimizationPass);
+                }
             }
         }
         return d;
@@ -53,6 +83,40 @@ public interface ITreeClassTransformer extends Comparable<ITreeClassTransformer>
         boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex);
     }
 
+    /**
+     * Indicates that an {@link ITreeClassTransformer} is only interested in classes which reference at least one of a fixed set of classes, fields or methods.
+     * <p>
+     * The references declared by all transformers are combined into a single table, which allows determining the interested transformers with only a single pass
+     * over the class' constant pool. This is much cheaper than {@link ExactInterested}, and should be preferred wherever possible. If a transformer implements both,
+     * {@link ExactInterested#interestedInClass(String, String, ClassReader, ConstantPoolIndex)} will only be called if at least one of the references was found.
+     *
+     * @author DaPorkchop_
+     */
+    interface ReferenceInterested {
+        /**
+         * Gets the references which this transformer is interested in. This is only called when the transformer pipeline is built.
+         *
+         * @return the references which this transformer is interested in
+         */
+        ConstantPoolReferences interestingReferences();
+    }
+
+    /**
+     * A {@link ReferenceInterested} {@link IndividualMethod method transformer} which will never modify a method unless the method's code directly references
+     * at least one of the transformer's {@link #interestingReferences() references}.
+     * <p>
+     * A reference is considered to be direct if it's the operand of one of the method's instructions, or if it's a class reference and the class is the
+     * owner of a field or method which is the operand of one of the method's instructions, or a caught exception type. References which are only used as a
+     * bootstrap argument of an {@code INVOKEDYNAMIC} instruction or in a descriptor aren't considered.
+     * <p>
+     * If every transformer which is interested in a class implements this interface, methods which don't reference any of them aren't parsed at all, and are
+     * copied to the transformed class as-is. Such methods will still be present in {@link ClassNode#methods}, but their instruction lists will be empty.
+     *
+     * @author DaPorkchop_
+     */
+    interface MethodReferenceInterested extends ReferenceInterested, IndividualMethod {
+    }
+
     /**
      * Marker interface to indicate that a transformer is an optimization pass, and may be repeatedly invoked until no more changes are made.
      * <p>
@@ -63,6 +127,38 @@ public interface ITreeClassTransformer extends Comparable<ITreeClassTransformer>
     interface OptimizationPass {
     }
 
+    /**
+     * An {@link OptimizationPass} on {@link IndividualMethod.Analyzed analyzed} methods which can tell which changed instructions could allow it to make more changes.
+     * <p>
+     * Once such a pass has run on a method, it will only be run on that method again if one of the instructions which were changed in the meantime is relevant
+     * to it. Instructions are considered to be changed if they were inserted, or if they use a value produced by an instruction which was inserted or removed.
+     *
+     * @author DaPorkchop_
+     */
+    interface IncrementalOptimizationPass extends OptimizationPass {
+        /**
+         * Checks whether a change to the given instruction could allow this pass to make more changes.
+         *
+         * @param instructions the method's instructions
+         * @param insn         the changed instruction
+         * @return whether this pass should be run again because of the change to the given instruction
+         */
+        boolean interestedInChangedInstruction(AnalyzedInsnList instructions, AbstractInsnNode insn);
+    }
+
+    /**
+     * Marker interface to indicate that a transformer never causes any classes to be loaded and doesn't depend on any mutable global state while transforming a class.
+     * <p>
+     * Such transformers may be invoked from any thread, concurrently with other transformers, and possibly before the class being transformed is actually requested.
+     * <p>
+     * {@link IndividualMethod Method transformers} must additionally only modify the method they're given, not the {@link ClassNode} itself or any of its other
+     * methods, as the methods of a single class may be transformed concurrently.
+     *
+     * @author DaPorkchop_
+     */
+    interface LoadingFree {
+    }
+
     interface IndividualMethod extends ITreeClassTransformer {
         default boolean interestedInMethod(String className, String classTransformedName, MethodNode methodNode) {
             return true;
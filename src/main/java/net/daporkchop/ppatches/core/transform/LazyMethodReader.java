@@ -0,0 +1,205 @@
+package net.daporkchop.ppatches.core.transform;
+
+import lombok.experimental.UtilityClass;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Reads a class into a {@link ClassNode}, but only parses the code of the methods which directly reference at least one of a given set of constant pool items.
+ * <p>
+ * All other methods are replaced with empty stubs, which are meant to be copied over from the original class when the class is written again (see
+ * {@link ITreeClassTransformer.MethodReferenceInterested}). The references in each method's code are found by scanning the raw bytecode, without decoding
+ * any of the instructions into objects.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+class LazyMethodReader {
+    //opcodes which aren't defined in Opcodes, as ASM never exposes them to visitors
+    private static final int LDC_W = 19;
+    private static final int LDC2_W = 20;
+    private static final int WIDE = 196;
+    private static final int GOTO_W = 200;
+    private static final int JSR_W = 201;
+
+    //the length in bytes of each instruction, or 0 for instructions with a variable length
+    private static final byte[] INSTRUCTION_LENGTHS = new byte[256];
+
+    static {
+        for (int opcode = NOP; opcode <= JSR_W; opcode++) {
+            INSTRUCTION_LENGTHS[opcode] = 1;
+        }
+        for (int opcode : new int[]{ BIPUSH, LDC, ILOAD, LLOAD, FLOAD, DLOAD, ALOAD, ISTORE, LSTORE, FSTORE, DSTORE, ASTORE, RET, NEWARRAY }) {
+            INSTRUCTION_LENGTHS[opcode] = 2;
+        }
+        for (int opcode : new int[]{ SIPUSH, LDC_W, LDC2_W, IINC, IFNULL, IFNONNULL, NEW, ANEWARRAY, CHECKCAST, INSTANCEOF }) {
+            INSTRUCTION_LENGTHS[opcode] = 3;
+        }
+        for (int opcode = IFEQ; opcode <= JSR; opcode++) {
+            INSTRUCTION_LENGTHS[opcode] = 3;
+        }
+        for (int opcode = GETSTATIC; opcode <= INVOKESTATIC; opcode++) {
+            INSTRUCTION_LENGTHS[opcode] = 3;
+        }
+        INSTRUCTION_LENGTHS[MULTIANEWARRAY] = 4;
+        INSTRUCTION_LENGTHS[INVOKEINTERFACE] = 5;
+        INSTRUCTION_LENGTHS[INVOKEDYNAMIC] = 5;
+        INSTRUCTION_LENGTHS[GOTO_W] = 5;
+        INSTRUCTION_LENGTHS[JSR_W] = 5;
+        INSTRUCTION_LENGTHS[TABLESWITCH] = 0;
+        INSTRUCTION_LENGTHS[LOOKUPSWITCH] = 0;
+        INSTRUCTION_LENGTHS[WIDE] = 0;
+    }
+
+    /**
+     * Reads the given class, only parsing the methods which reference any of the given constant pool items.
+     *
+     * @param reader    a {@link ClassReader} containing the class
+     * @param items     the indices of the constant pool items to search for, as returned by
+     *                  {@link net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferenceTable#findItems(ClassReader, BitSet)}
+     * @param classNode the {@link ClassNode} to read the class into
+     * @param stubs     a {@link Set} to which the stubs for the methods which weren't parsed will be added
+     */
+    public static void readClass(ClassReader reader, BitSet items, ClassNode classNode, Set<MethodNode> stubs) {
+        Set<String> skippedMethods = findUnreferencingMethods(reader, items);
+        if (skippedMethods.isEmpty()) {
+            reader.accept(classNode, ClassReader.SKIP_FRAMES);
+            return;
+        }
+
+        reader.accept(new ClassVisitor(ASM5, classNode) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (skippedMethods.contains(name + desc)) {
+                    MethodNode stub = new MethodNode(ASM5, access, name, desc, signature, exceptions);
+                    classNode.methods.add(stub);
+                    stubs.add(stub);
+                    return null;
+                }
+                return super.visitMethod(access, name, desc, signature, exceptions);
+            }
+        }, ClassReader.SKIP_FRAMES);
+    }
+
+    private static Set<String> findUnreferencingMethods(ClassReader reader, BitSet items) {
+        Set<String> methods = new HashSet<>();
+        char[] buf = new char[reader.getMaxStringLength()];
+
+        //skip over the class header and the fields, see https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.1
+        int offset = reader.header + 6;
+        offset += 2 + (reader.readUnsignedShort(offset) << 1);
+        int fieldCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            offset = skipAttributes(reader, offset + 6);
+        }
+
+        int methodCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < methodCount; i++) {
+            String name = reader.readUTF8(offset + 2, buf);
+            String desc = reader.readUTF8(offset + 4, buf);
+
+            boolean referencing = false;
+            int attributeCount = reader.readUnsignedShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributeCount; j++) {
+                int attributeLength = reader.readInt(offset + 2);
+                if ("Code".equals(reader.readUTF8(offset, buf))) {
+                    referencing = codeReferencesAny(reader, offset + 6, items);
+                }
+                offset += 6 + attributeLength;
+            }
+
+            if (!referencing) { //this also includes abstract and native methods, which don't have any code
+                methods.add(name + desc);
+            }
+        }
+        return methods;
+    }
+
+    private static int skipAttributes(ClassReader reader, int offset) {
+        int attributeCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            offset += 6 + reader.readInt(offset + 2);
+        }
+        return offset;
+    }
+
+    private static boolean codeReferencesAny(ClassReader reader, int codeAttribute, BitSet items) {
+        byte[] b = reader.b;
+        int codeStart = codeAttribute + 8;
+        int codeEnd = codeStart + reader.readInt(codeAttribute + 4);
+
+        for (int offset = codeStart; offset < codeEnd; ) {
+            int opcode = b[offset] & 0xFF;
+            switch (opcode) {
+                case LDC:
+                    if (items.get(b[offset + 1] & 0xFF)) {
+                        return true;
+                    }
+                    break;
+                case LDC_W:
+                case LDC2_W:
+                case GETSTATIC:
+                case PUTSTATIC:
+                case GETFIELD:
+                case PUTFIELD:
+                case INVOKEVIRTUAL:
+                case INVOKESPECIAL:
+                case INVOKESTATIC:
+                case INVOKEINTERFACE:
+                case NEW:
+                case ANEWARRAY:
+                case CHECKCAST:
+                case INSTANCEOF:
+                case MULTIANEWARRAY:
+                    if (items.get(reader.readUnsignedShort(offset + 1))) {
+                        return true;
+                    }
+                    break;
+            }
+
+            int length = INSTRUCTION_LENGTHS[opcode];
+            if (length == 0) {
+                switch (opcode) {
+                    case TABLESWITCH: {
+                        int padded = offset + 4 - ((offset - codeStart) & 3); //the operands are aligned to a multiple of 4 bytes from the start of the code
+                        length = padded - offset + 12 + ((reader.readInt(padded + 8) - reader.readInt(padded + 4) + 1) << 2);
+                        break;
+                    }
+                    case LOOKUPSWITCH: {
+                        int padded = offset + 4 - ((offset - codeStart) & 3);
+                        length = padded - offset + 8 + (reader.readInt(padded + 4) << 3);
+                        break;
+                    }
+                    case WIDE:
+                        length = (b[offset + 1] & 0xFF) == IINC ? 6 : 4;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("invalid opcode " + opcode + " at offset " + (offset - codeStart));
+                }
+            }
+            offset += length;
+        }
+
+        //caught exception types are also references to the class
+        int exceptionTable = codeEnd;
+        for (int i = 0, exceptionCount = reader.readUnsignedShort(exceptionTable); i < exceptionCount; i++) {
+            if (items.get(reader.readUnsignedShort(exceptionTable + 2 + (i << 3) + 6))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -7,6 +7,9 @@ import org.spongepowered.asm.transformers.MixinClassWriter;
  * @author DaPorkchop_
  */
 public class PPatchesClassWriter extends MixinClassWriter {
+    //Mixin's ClassInfo isn't thread-safe, and we may be writing classes from multiple threads at once
+    private static final Object COMMON_SUPER_CLASS_LOCK = new Object();
+
     public PPatchesClassWriter(int flags) {
         super(flags);
     }
@@ -17,8 +20,18 @@ public class PPatchesClassWriter extends MixinClassWriter {
 
     @Override
     protected String getCommonSuperClass(String type1, String type2) {
+        if (ClassHierarchyIndex.ENABLED) {
+            String commonSuperClass = ClassHierarchyIndex.getCommonSuperClass(type1, type2);
+            if (commonSuperClass != null) {
+                return commonSuperClass;
+            }
+            //one of the classes isn't in the index, fall back to asking Mixin (which may cause classes to be loaded)
+        }
+
         try {
-            return super.getCommonSuperClass(type1, type2);
+            synchronized (COMMON_SUPER_CLASS_LOCK) {
+                return super.getCommonSuperClass(type1, type2);
+            }
         } catch (Exception e) {
             throw new UnknownCommonSuperClassException(e, type1, type2);
         }
@@ -1,7 +1,8 @@
 package net.daporkchop.ppatches.core.transform;
 
 import com.google.common.base.Preconditions;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
+import com.google.common.hash.HashCode;
+import lombok.EqualsAndHashCode;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import net.daporkchop.ppatches.PPatchesMod;
@@ -12,8 +13,11 @@ import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
 import net.daporkchop.ppatches.util.asm.analysis.ReachabilityAnalyzer;
 import net.daporkchop.ppatches.util.asm.cp.ConstantPoolConstants;
 import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferenceTable;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.minecraft.launchwrapper.IClassTransformer;
 import org.objectweb.asm.*;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.MethodNode;
@@ -29,7 +33,15 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static org.objectweb.asm.Opcodes.*;
 
@@ -42,6 +54,16 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
 
     private static final boolean LOG_CHANGES = Boolean.getBoolean("ppatches.logTransformerChanges");
 
+    //only parse the methods which are actually referenced by the interested transformers, see ITreeClassTransformer.MethodReferenceInterested
+    private static final boolean LAZY_METHOD_PARSING = Boolean.getBoolean("ppatches.lazyMethodParsing");
+
+    //transform the methods of big classes in parallel, if all the interested method transformers are ITreeClassTransformer.LoadingFree
+    private static final boolean PARALLEL_METHODS = Boolean.getBoolean("ppatches.parallelMethods");
+    private static final int PARALLEL_METHODS_MIN_METHODS = Integer.getInteger("ppatches.parallelMethods.minMethods", 64);
+    private static final ForkJoinPool PARALLEL_METHODS_POOL = PARALLEL_METHODS
+            ? new ForkJoinPool(Integer.getInteger("ppatches.parallelMethods.threads", Runtime.getRuntime().availableProcessors()))
+            : null;
+
     private static final List<PPatchesTransformerRoot> INSTANCES = new ArrayList<>();
     private static TransformerPipeline PIPELINE = buildTransformerPipeline();
 
@@ -61,11 +83,72 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
             }
         }
 
-        ITreeClassTransformer[] newTransformers = COWArrayUtils.concat(PIPELINE.allTransformers, transformers);
-        Arrays.sort(newTransformers);
+        ITreeClassTransformer[] newTransformers = scheduleTransformers(COWArrayUtils.concat(PIPELINE.allTransformers, transformers));
         PIPELINE = buildTransformerPipeline(newTransformers);
     }
 
+    /**
+     * Orders the given transformers such that all of their {@link ITreeClassTransformer#runsBefore()} and {@link ITreeClassTransformer#runsAfter()} constraints are
+     * satisfied. Transformers which aren't constrained relative to each other are ordered according to {@link ITreeClassTransformer#compareTo}, and then by their
+     * original order.
+     */
+    private static ITreeClassTransformer[] scheduleTransformers(ITreeClassTransformer[] transformers) {
+        int length = transformers.length;
+
+        //predecessors[i] contains the indices of all the transformers which must be run before transformers[i]
+        BitSet[] predecessors = new BitSet[length];
+        for (int i = 0; i < length; i++) {
+            predecessors[i] = new BitSet(length);
+        }
+        for (int i = 0; i < length; i++) {
+            for (int j = 0; j < length; j++) {
+                if (i == j) {
+                    continue;
+                }
+                for (Class<? extends ITreeClassTransformer> type : transformers[i].runsBefore()) {
+                    if (type.isInstance(transformers[j])) {
+                        predecessors[j].set(i);
+                    }
+                }
+                for (Class<? extends ITreeClassTransformer> type : transformers[i].runsAfter()) {
+                    if (type.isInstance(transformers[j])) {
+                        predecessors[i].set(j);
+                    }
+                }
+            }
+        }
+
+        ITreeClassTransformer[] result = new ITreeClassTransformer[length];
+        BitSet scheduled = new BitSet(length);
+        for (int resultIndex = 0; resultIndex < length; resultIndex++) {
+            //find the first of the remaining transformers whose predecessors have all been scheduled already
+            int next = -1;
+            for (int i = scheduled.nextClearBit(0); i < length; i = scheduled.nextClearBit(i + 1)) {
+                BitSet remainingPredecessors = (BitSet) predecessors[i].clone();
+                remainingPredecessors.andNot(scheduled);
+                if (remainingPredecessors.isEmpty() && (next < 0 || transformers[i].compareTo(transformers[next]) < 0)) {
+                    next = i;
+                }
+            }
+
+            if (next < 0) {
+                List<String> remaining = new ArrayList<>();
+                for (int i = scheduled.nextClearBit(0); i < length; i = scheduled.nextClearBit(i + 1)) {
+                    remaining.add(transformers[i].getClass().getName());
+                }
+                throw new IllegalArgumentException("cyclic ordering constraints between transformers: " + remaining);
+            }
+
+            scheduled.set(next);
+            result[resultIndex] = transformers[next];
+        }
+        return result;
+    }
+
+    static TransformerPipeline currentPipeline() {
+        return PIPELINE;
+    }
+
     public static void dumpClass(String name, ClassWriter writer) {
         if (DUMP_CLASSES) {
             try {
@@ -135,16 +218,89 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
 
         TransformerPipeline pipeline = PIPELINE;
 
-        //TODO: i'd like to redesign this so that transformers can be ordered individually, and we aren't limited to running transformers of a single type together
+        byte[] prebakedClass;
+        if (PrebakedClasses.AVAILABLE && (prebakedClass = PrebakedClasses.take(pipeline, name, transformedName, basicClass)) != null) {
+            //this class was already transformed during an earlier launch
+            return prebakedClass;
+        }
 
         //determine which transformers are interested in transforming this class
         BitSet interestedMask = pipeline.determineInterested(name, transformedName);
 
+        if (TransformerPruning.ENABLED && !interestedMask.isEmpty()) {
+            //skip the transformers which didn't change this class during previous launches
+            TransformerPruning.prune(pipeline, transformedName, basicClass, interestedMask);
+        }
+
         if (interestedMask.isEmpty()) {
             //no transformers are interested in transforming this class
             return basicClass;
         }
 
+        byte[] transformedClass;
+        if (ParallelPretransformer.ENABLED && (transformedClass = ParallelPretransformer.take(pipeline, name, transformedName, basicClass, interestedMask)) != null) {
+            //the pretransformer doesn't use the cache, as it only runs some of the transformers. the result is only accepted if it was produced by exactly the
+            //  same transformers which would be run now, so it's complete and can be cached
+            if (TransformedClassCache.ENABLED) {
+                TransformedClassCache.put(TransformedClassCache.key(pipeline.fingerprint(), name, transformedName, basicClass), basicClass, transformedClass);
+            }
+        } else {
+            //this class wasn't already transformed ahead of time
+            transformedClass = transformCached(pipeline, name, transformedName, basicClass, interestedMask);
+        }
+
+        if (PrebakedClasses.WRITE) {
+            PrebakedClasses.record(pipeline, name, transformedName, basicClass, transformedClass);
+        }
+        return transformedClass;
+    }
+
+    static byte[] transformCached(TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass, BitSet interestedMask) {
+        if (TransformedClassCache.ENABLED) {
+            HashCode cacheKey = TransformedClassCache.key(pipeline.fingerprint(), name, transformedName, basicClass);
+            byte[] cachedClass = TransformedClassCache.get(cacheKey, basicClass);
+            if (cachedClass != null) {
+                return cachedClass;
+            }
+
+            byte[] transformedClass = transform(pipeline, name, transformedName, basicClass, interestedMask);
+            TransformedClassCache.put(cacheKey, basicClass, transformedClass);
+            return transformedClass;
+        } else {
+            return transform(pipeline, name, transformedName, basicClass, interestedMask);
+        }
+    }
+
+    static byte[] transform(TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass, BitSet interestedMask) {
+        if (TransformerPruning.ENABLED) {
+            BitSet originalInterestedMask = (BitSet) interestedMask.clone(); //transform0 modifies the mask
+            BitSet previousPruningState = TransformerPruning.beginClass();
+            try {
+                byte[] transformedClass = transformWithStatistics(pipeline, name, transformedName, basicClass, interestedMask);
+                TransformerPruning.recordClass(pipeline, transformedName, basicClass, originalInterestedMask);
+                return transformedClass;
+            } finally {
+                TransformerPruning.endClass(previousPruningState);
+            }
+        } else {
+            return transformWithStatistics(pipeline, name, transformedName, basicClass, interestedMask);
+        }
+    }
+
+    private static byte[] transformWithStatistics(TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass, BitSet interestedMask) {
+        if (TransformerStatistics.ENABLED) {
+            BitSet previousStatisticsState = TransformerStatistics.beginClass();
+            try {
+                return transform0(pipeline, name, transformedName, basicClass, interestedMask);
+            } finally {
+                TransformerStatistics.endClass(previousStatisticsState);
+            }
+        } else {
+            return transform0(pipeline, name, transformedName, basicClass, interestedMask);
+        }
+    }
+
+    private static byte[] transform0(TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass, BitSet interestedMask) {
         //at least one transformer is interested in optimizing this class, so we should read it
         ClassReader reader = new ClassReader(basicClass);
 
@@ -159,45 +315,64 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
             PPatchesMod.LOGGER.info("Beginning to transform {}", name);
         }
 
-        ClassNode classNode = readClass(reader);
+        //methods which weren't parsed are represented by empty stubs, and are always copied over from the original class
+        Set<MethodNode> stubMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+        ClassNode classNode = readClass(pipeline, reader, interestedMask, stubMethods);
         int changeFlags = 0;
 
-        //run regular transformers
-        changeFlags |= pipeline.applyRegularTransformers(name, transformedName, classNode, interestedMask);
+        //keep track of which methods were changed, so that the ones which weren't can be copied over from the original class as-is
+        List<MethodNode> originalMethods = new ArrayList<>(classNode.methods);
+        List<MethodHeader> originalHeaders = new ArrayList<>(originalMethods.size());
+        for (MethodNode methodNode : originalMethods) {
+            originalHeaders.add(new MethodHeader(methodNode));
+        }
+        Set<MethodNode> changedMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean classTransformersChanged = false;
 
-        //run individual method transformers
-        if (pipeline.anyMethodTransformersInterestedInClass(interestedMask)) {
-            for (MethodNode methodNode : classNode.methods) { //TODO: doing this in parallel seems impossible, due to LaunchClassLoader not allowing concurrent loading - we'd need to preload all classes which could potentially be accessed by any transformer
-                if ((methodNode.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) { //we can skip transforming abstract and native methods
+        //run all the interested transformers in the order determined by the pipeline's schedule
+        for (TransformerPipeline.Segment segment : pipeline.schedule) {
+            if (!segment.transformers.intersects(interestedMask)) {
+                continue;
+            }
+
+            if (segment.methods) {
+                if (PARALLEL_METHODS && classNode.methods.size() >= PARALLEL_METHODS_MIN_METHODS && pipeline.allLoadingFree(segment.transformers, interestedMask)) {
+                    //none of the transformers will try to load any classes, so we can safely transform each method on a different thread
+                    changeFlags |= applyMethodSegmentInParallel(pipeline, segment, name, transformedName, classNode, stubMethods, changedMethods, interestedMask);
                     continue;
                 }
 
-                //remove unreachable instructions from the list
-                ReachabilityAnalyzer.removeUnreachableInstructions(classNode.name, methodNode);
-
-                if (pipeline.anyBasicMethodTransformersInterestedInClass(interestedMask)) {
-                    changeFlags |= pipeline.applyBasicMethodTransformers(name, transformedName, classNode, methodNode, methodNode.instructions, interestedMask);
-
-                    //keep running all the optimization passes until they all stop making changes
-                    for (int prevRoundChangeFlags; (prevRoundChangeFlags = pipeline.applyBasicMethodOptimizationPasses(name, transformedName, classNode, methodNode, methodNode.instructions, interestedMask)) != 0; ) {
-                        changeFlags |= prevRoundChangeFlags;
+                for (MethodNode methodNode : classNode.methods) { //methods can only be transformed in parallel if none of the transformers load any classes, as LaunchClassLoader doesn't allow concurrent loading
+                    if ((methodNode.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0 //we can skip transforming abstract and native methods
+                        || stubMethods.contains(methodNode)) {
+                        continue;
                     }
-                }
 
-                if (pipeline.anyAnalyzedMethodTransformersInterestedInClass(interestedMask)) {
-                    try (AnalyzedInsnList analyzedInstructions = new AnalyzedInsnList(classNode.name, methodNode)) {
-                        changeFlags |= pipeline.applyAnalyzedMethodTransformers(name, transformedName, classNode, methodNode, analyzedInstructions, interestedMask);
+                    //remove unreachable instructions from the list
+                    ReachabilityAnalyzer.removeUnreachableInstructions(classNode.name, methodNode);
 
-                        //keep running all the optimization passes until they all stop making changes
-                        for (int prevRoundChangeFlags; (prevRoundChangeFlags = pipeline.applyAnalyzedMethodOptimizationPasses(name, transformedName, classNode, methodNode, analyzedInstructions, interestedMask)) != 0; ) {
-                            changeFlags |= prevRoundChangeFlags;
-                        }
+                    int methodChangeFlags = applyMethodSegment(pipeline, segment, name, transformedName, classNode, methodNode, interestedMask);
+                    if (methodChangeFlags != 0) {
+                        changedMethods.add(methodNode);
+                        changeFlags |= methodChangeFlags;
                     }
                 }
+            } else {
+                int classChangeFlags = pipeline.applyClassTransformers(segment.groups[0].index, name, transformedName, classNode, interestedMask);
+                if (classChangeFlags != 0) {
+                    classTransformersChanged = true;
+                    changeFlags |= classChangeFlags;
+                }
             }
         }
 
         if ((changeFlags & ITreeClassTransformer.CHANGED) != 0) {
+            //unchanged methods can only be copied if the original class was required to contain stack map frames, as we're going to need them now. class
+            //  transformers could have modified any of the methods without us being able to tell, so we can't copy anything if they made changes.
+            Map<String, MethodNode> copiedMethods = (classNode.version & 0xFFFF) >= V1_7 && !classTransformersChanged
+                    ? findUnchangedMethods(classNode, originalMethods, originalHeaders, changedMethods, stubMethods)
+                    : Collections.emptyMap();
+
             if (classNode.version < V1_8) {
                 PPatchesMod.LOGGER.trace("upgrading {} bytecode version to 1.8 (" + V1_8 + ") from {}", transformedName, classNode.version);
                 classNode.version = V1_8;
@@ -207,7 +382,7 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
             try {
                 //as it turns out, this currently isn't necessary, but it may be at some point in the future:
                 //  classNode.accept(new OptimizingClassVisitor(writer));
-                classNode.accept(writer);
+                writeClass(reader, classNode, writer, copiedMethods);
             } catch (PPatchesClassWriter.UnknownCommonSuperClassException e) {
                 //this can only occur in a few very rare situations where two different object types are being merged together from different sides of a branch, and one of the types refers
                 //  to a class which isn't available at runtime. this makes automatic computation of the resulting stackmap frame effectively impossible (technically it would still be
@@ -238,6 +413,241 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
         }
     }
 
+    /**
+     * Finds the methods whose code can be copied over from the original class as-is.
+     *
+     * @return the methods to copy, keyed by their original name and descriptor
+     */
+    private static Map<String, MethodNode> findUnchangedMethods(ClassNode classNode, List<MethodNode> originalMethods, List<MethodHeader> originalHeaders, Set<MethodNode> changedMethods, Set<MethodNode> stubMethods) {
+        Set<MethodNode> currentMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+        currentMethods.addAll(classNode.methods);
+
+        Map<String, MethodNode> unchangedMethods = new HashMap<>();
+        for (int i = 0; i < originalMethods.size(); i++) {
+            MethodNode methodNode = originalMethods.get(i);
+            MethodHeader originalHeader = originalHeaders.get(i);
+            if (!currentMethods.contains(methodNode)) {
+                continue;
+            }
+
+            //a transformer may have modified the header of a method other than the one it was given (e.g. by clearing ACC_SYNTHETIC on a lambda method it
+            //  inlined), which it has no way of reporting. such methods have to be written from the MethodNode, unless they're stubs, in which case the
+            //  original code is copied using the modified header.
+            if (stubMethods.contains(methodNode) || (!changedMethods.contains(methodNode) && originalHeader.equals(new MethodHeader(methodNode)))) {
+                unchangedMethods.put(originalHeader.name + originalHeader.desc, methodNode);
+            }
+        }
+        return unchangedMethods;
+    }
+
+    private static void writeClass(ClassReader reader, ClassNode classNode, ClassWriter writer, Map<String, MethodNode> copiedMethods) {
+        if (copiedMethods.isEmpty()) {
+            classNode.accept(writer);
+            return;
+        }
+
+        Set<MethodNode> copiedMethodNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        copiedMethodNodes.addAll(copiedMethods.values());
+
+        List<MethodNode> allMethods = classNode.methods;
+        List<MethodNode> writtenMethods = new ArrayList<>(allMethods.size() - copiedMethods.size());
+        for (MethodNode methodNode : allMethods) {
+            if (!copiedMethodNodes.contains(methodNode)) {
+                writtenMethods.add(methodNode);
+            }
+        }
+
+        classNode.methods = writtenMethods;
+        try {
+            classNode.accept(new ClassVisitor(ASM5, writer) {
+                @Override
+                public void visitEnd() {
+                    //passing the original methods straight from the ClassReader to the ClassWriter it was created from makes the ClassWriter copy the original
+                    //  bytecode (including the stack map frames) instead of having to rebuild and recompute everything
+                    reader.accept(new ClassVisitor(ASM5) {
+                        @Override
+                        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                            MethodNode methodNode = copiedMethods.get(name + desc);
+                            if (methodNode == null) {
+                                return null;
+                            }
+
+                            //the header is taken from the MethodNode, as it may have been modified if the method is a stub
+                            return writer.visitMethod(methodNode.access, methodNode.name, methodNode.desc, methodNode.signature,
+                                    methodNode.exceptions != null ? methodNode.exceptions.toArray(new String[0]) : null);
+                        }
+                    }, 0);
+
+                    super.visitEnd();
+                }
+            });
+        } finally {
+            classNode.methods = allMethods;
+        }
+    }
+
+    /**
+     * The parts of a method which are defined outside of its code.
+     *
+     * @author DaPorkchop_
+     */
+    @EqualsAndHashCode
+    private static final class MethodHeader {
+        public final int access;
+        public final String name;
+        public final String desc;
+        public final String signature;
+        public final List<String> exceptions;
+
+        MethodHeader(MethodNode methodNode) {
+            this.access = methodNode.access;
+            this.name = methodNode.name;
+            this.desc = methodNode.desc;
+            this.signature = methodNode.signature;
+            this.exceptions = methodNode.exceptions != null ? new ArrayList<>(methodNode.exceptions) : Collections.emptyList();
+        }
+    }
+
+    private static int applyMethodSegmentInParallel(TransformerPipeline pipeline, TransformerPipeline.Segment segment, String name, String transformedName, ClassNode classNode, Set<MethodNode> stubMethods, Set<MethodNode> changedMethods, BitSet interestedMask) {
+        List<MethodTask> tasks = new ArrayList<>(classNode.methods.size());
+        for (MethodNode methodNode : classNode.methods) {
+            if ((methodNode.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0 && !stubMethods.contains(methodNode)) {
+                tasks.add(new MethodTask(pipeline, segment, name, transformedName, classNode, methodNode, interestedMask));
+            }
+        }
+
+        PARALLEL_METHODS_POOL.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        int changeFlags = 0;
+        for (MethodTask task : tasks) {
+            if (task.changeFlags != 0) {
+                changedMethods.add(task.methodNode);
+                changeFlags |= task.changeFlags;
+            }
+            if (TransformerStatistics.ENABLED) {
+                TransformerStatistics.mergeTaskChanges(task.statisticsChanges);
+            }
+            if (TransformerPruning.ENABLED) {
+                TransformerPruning.mergeTaskChanges(task.pruningChanges);
+            }
+        }
+        return changeFlags;
+    }
+
+    private static int applyMethodSegment(TransformerPipeline pipeline, TransformerPipeline.Segment segment, String name, String transformedName, ClassNode classNode, MethodNode methodNode, BitSet interestedMask) {
+        int changeFlags = 0;
+
+        //adjacent groups of analyzed transformers all share the same analyzed instruction list, so that the method doesn't have to be re-analyzed for each group
+        AnalyzedInsnList analyzedInstructions = null;
+        try {
+            for (TransformerPipeline.Group group : segment.groups) {
+                if (!group.transformers.intersects(interestedMask)) {
+                    continue;
+                }
+
+                if (group.analyzed) {
+                    if (analyzedInstructions == null) {
+                        analyzedInstructions = new AnalyzedInsnList(classNode.name, methodNode);
+                    }
+                } else if (analyzedInstructions != null) {
+                    //basic transformers modify the method's instructions directly, which would leave the analysis results in an inconsistent state
+                    analyzedInstructions.close();
+                    analyzedInstructions = null;
+                }
+
+                if (group.optimization) {
+                    changeFlags |= applyOptimizationGroup(pipeline, group, name, transformedName, classNode, methodNode, analyzedInstructions, interestedMask);
+                } else {
+                    changeFlags |= applyMethodGroup(pipeline, group, name, transformedName, classNode, methodNode, analyzedInstructions, interestedMask);
+                }
+            }
+        } finally {
+            if (analyzedInstructions != null) {
+                analyzedInstructions.close();
+            }
+        }
+        return changeFlags;
+    }
+
+    private static int applyOptimizationGroup(TransformerPipeline pipeline, TransformerPipeline.Group group, String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList analyzedInstructions, BitSet interestedMask) {
+        BitSet groupMask = (BitSet) group.transformers.clone();
+        groupMask.and(interestedMask);
+        int[] passes = groupMask.stream().toArray();
+
+        //each optimization pass is run on its own, and is only run again once some other pass (or the pass itself) has made changes since the last time it was run.
+        //  passes which are able to tell which changes are relevant to them are only run again if a relevant instruction was changed.
+        if (analyzedInstructions != null) {
+            analyzedInstructions.trackChanges();
+        }
+        int epoch = 0; //incremented every time a pass makes changes
+        int[] lastRunEpochs = new int[passes.length];
+        int[] lastRunChangeLogPositions = new int[passes.length];
+        Arrays.fill(lastRunEpochs, -1);
+
+        BitSet passMask = new BitSet(pipeline.allTransformers.length);
+        int changeFlags = 0;
+        int rounds = 0;
+        for (boolean changed = true; changed; rounds++) {
+            changed = false;
+            for (int i = 0; i < passes.length; i++) {
+                if (lastRunEpochs[i] == epoch) { //nothing has changed since this pass was last run
+                    continue;
+                }
+
+                ITreeClassTransformer pass = pipeline.allTransformers[passes[i]];
+                boolean skip = lastRunEpochs[i] >= 0 && analyzedInstructions != null && pass instanceof ITreeClassTransformer.IncrementalOptimizationPass
+                               && !anyChangedInsnInteresting((ITreeClassTransformer.IncrementalOptimizationPass) pass, analyzedInstructions, lastRunChangeLogPositions[i]);
+
+                lastRunEpochs[i] = epoch;
+                if (analyzedInstructions != null) {
+                    lastRunChangeLogPositions[i] = analyzedInstructions.changeLogPosition();
+                }
+                if (skip) {
+                    continue;
+                }
+
+                passMask.set(passes[i]);
+                int passChangeFlags = applyMethodGroup(pipeline, group, name, transformedName, classNode, methodNode, analyzedInstructions, passMask);
+                passMask.clear(passes[i]);
+
+                if (passChangeFlags != 0) {
+                    changeFlags |= passChangeFlags;
+                    changed = true;
+                    epoch++;
+                }
+            }
+        }
+
+        if (TransformerStatistics.ENABLED) {
+            TransformerStatistics.recordOptimizationRounds(group.analyzed, rounds);
+        }
+        return changeFlags;
+    }
+
+    private static boolean anyChangedInsnInteresting(ITreeClassTransformer.IncrementalOptimizationPass pass, AnalyzedInsnList instructions, int changeLogPosition) {
+        Set<AbstractInsnNode> changedInsns = instructions.changedInsnsSince(changeLogPosition);
+        if (changedInsns == null) { //the control flow was changed, so we can't tell which instructions are affected
+            return true;
+        }
+        for (AbstractInsnNode changedInsn : changedInsns) {
+            if (pass.interestedInChangedInstruction(instructions, changedInsn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int applyMethodGroup(TransformerPipeline pipeline, TransformerPipeline.Group group, String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList analyzedInstructions, BitSet interestedMask) {
+        return group.analyzed
+                ? pipeline.applyAnalyzedMethodTransformers(group.index, name, transformedName, classNode, methodNode, analyzedInstructions, interestedMask)
+                : pipeline.applyBasicMethodTransformers(group.index, name, transformedName, classNode, methodNode, methodNode.instructions, interestedMask);
+    }
+
     public static int updateChangeFlags(int currentChangeFlags, ITreeClassTransformer transformer, int transformerChangeFlags) {
         //if ((transformerChangeFlags & ~currentChangeFlags) != 0) {
         if (transformerChangeFlags != 0) {
@@ -310,7 +720,7 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
         return true;
     }
 
-    private static boolean transformerInterestedInClass(ITreeClassTransformer transformer, String name, String transformedName) {
+    static boolean transformerInterestedInClass(ITreeClassTransformer transformer, String name, String transformedName) {
         return transformer.interestedInClass(name, transformedName)
                && !transformedName.startsWith(transformer.getClass().getName()); //prevent transformers from transforming their own inner classes
     }
@@ -327,41 +737,51 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
 
         cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL, className, null, Type.getInternalName(TransformerPipeline.class), null);
 
-        IntArrayList regularTransformers = new IntArrayList();
-        IntArrayList allMethodTransformers = new IntArrayList();
-        IntArrayList allBasicMethodTransformers = new IntArrayList();
-        IntArrayList basicMethodTransformers = new IntArrayList();
-        IntArrayList basicMethodOptimizationPasses = new IntArrayList();
-        IntArrayList allAnalyzedMethodTransformers = new IntArrayList();
-        IntArrayList analyzedMethodTransformers = new IntArrayList();
-        IntArrayList analyzedMethodOptimizationPasses = new IntArrayList();
+        List<TransformerPipeline.Segment> schedule = new ArrayList<>();
+        List<TransformerPipeline.Group> classGroups = new ArrayList<>();
+        List<TransformerPipeline.Group> basicMethodGroups = new ArrayList<>();
+        List<TransformerPipeline.Group> analyzedMethodGroups = new ArrayList<>();
         boolean anyExactInterested = false;
+        boolean anyReferenceInterested = false;
+
+        //split the (already ordered) transformers up into groups of adjacent transformers of the same kind, and then combine adjacent groups of method transformers
+        //  into segments so that all of them can be applied to each method in turn
+        List<TransformerPipeline.Group> currentSegment = new ArrayList<>();
+        TransformerPipeline.Group currentGroup = null;
         for (int i = 0; i < transformers.length; i++) {
             ITreeClassTransformer transformer = transformers[i];
             anyExactInterested |= transformer instanceof ITreeClassTransformer.ExactInterested;
+            anyReferenceInterested |= transformer instanceof ITreeClassTransformer.ReferenceInterested;
+            boolean method = transformer instanceof ITreeClassTransformer.IndividualMethod;
+            boolean analyzed = transformer instanceof ITreeClassTransformer.IndividualMethod.Analyzed;
             boolean optimization = transformer instanceof ITreeClassTransformer.OptimizationPass;
-            if (transformer instanceof ITreeClassTransformer.IndividualMethod) {
-                allMethodTransformers.add(i);
-                if (transformer instanceof ITreeClassTransformer.IndividualMethod.Analyzed) {
-                    allAnalyzedMethodTransformers.add(i);
-                    (optimization ? analyzedMethodOptimizationPasses : analyzedMethodTransformers).add(i);
-                } else {
-                    allBasicMethodTransformers.add(i);
-                    (optimization ? basicMethodOptimizationPasses : basicMethodTransformers).add(i);
+            Preconditions.checkArgument(method || !optimization, "non-method optimization passes aren't supported!", transformer);
+
+            if (currentGroup == null || currentGroup.method != method || currentGroup.analyzed != analyzed || currentGroup.optimization != optimization) {
+                if (currentGroup != null && !(currentGroup.method && method)) {
+                    schedule.add(new TransformerPipeline.Segment(currentSegment.toArray(new TransformerPipeline.Group[0])));
+                    currentSegment.clear();
                 }
-            } else {
-                Preconditions.checkArgument(!optimization, "non-method optimization passes aren't supported!", transformer);
-                regularTransformers.add(i);
+
+                List<TransformerPipeline.Group> groupsOfKind = method ? analyzed ? analyzedMethodGroups : basicMethodGroups : classGroups;
+                currentGroup = new TransformerPipeline.Group(method, analyzed, optimization, groupsOfKind.size(), new BitSet(transformers.length));
+                groupsOfKind.add(currentGroup);
+                currentSegment.add(currentGroup);
             }
+            currentGroup.transformers.set(i);
+        }
+        if (!currentSegment.isEmpty()) {
+            schedule.add(new TransformerPipeline.Segment(currentSegment.toArray(new TransformerPipeline.Group[0])));
         }
 
         { //constructor
-            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ITreeClassTransformer[].class)), null, null);
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ITreeClassTransformer[].class), Type.getType(TransformerPipeline.Segment[].class)), null, null);
             mv.visitCode();
 
             mv.visitVarInsn(ALOAD, 0);
             mv.visitVarInsn(ALOAD, 1);
-            mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(TransformerPipeline.class), "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ITreeClassTransformer[].class)), false);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(TransformerPipeline.class), "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ITreeClassTransformer[].class), Type.getType(TransformerPipeline.Segment[].class)), false);
             mv.visitInsn(RETURN);
 
             mv.visitMaxs(0, 0);
@@ -390,10 +810,12 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
                 mv.visitLdcInsn(transformer.getClass().getName());
                 mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(String.class), "startsWith", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(String.class)), false);
                 mv.visitJumpInsn(IFNE, falseLbl);
+                visitBeginStatistics(mv, 4);
                 cw.addConstant(mv, transformer, Type.getInternalName(transformer.getClass()));
                 mv.visitVarInsn(ALOAD, 1);
                 mv.visitVarInsn(ALOAD, 2);
                 mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(transformer.getClass()), "interestedInClass", "(Ljava/lang/String;Ljava/lang/String;)Z", false);
+                visitEndStatistics(cw, mv, transformer, 4, "recordInterested", Type.BOOLEAN_TYPE);
                 mv.visitJumpInsn(IFEQ, falseLbl);
                 mv.visitInsn(ICONST_1);
                 mv.visitJumpInsn(GOTO, tailLbl);
@@ -414,21 +836,51 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
             MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "determineInterestedExact", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassReader.class), Type.getType(BitSet.class)), null, null);
             mv.visitCode();
 
+            Label returnLbl = new Label();
+            Label releaseHandlerLbl = new Label();
+
+            if (anyReferenceInterested) {
+                ConstantPoolReferences[] references = new ConstantPoolReferences[transformers.length];
+                for (int i = 0; i < transformers.length; i++) {
+                    if (transformers[i] instanceof ITreeClassTransformer.ReferenceInterested) {
+                        references[i] = Preconditions.checkNotNull(((ITreeClassTransformer.ReferenceInterested) transformers[i]).interestingReferences(), transformers[i]);
+                    }
+                }
+
+                //remove all the transformers whose declared references don't appear in the class' constant pool
+                cw.addConstant(mv, new ConstantPoolReferenceTable(references), Type.getInternalName(ConstantPoolReferenceTable.class));
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitVarInsn(ALOAD, 4);
+                mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(ConstantPoolReferenceTable.class), "filter", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ClassReader.class), Type.getType(BitSet.class)), false);
+            }
+
             if (anyExactInterested) {
                 int indexFlags = 0;
-                for (ITreeClassTransformer transformer : transformers) {
-                    if (transformer instanceof ITreeClassTransformer.ExactInterested) {
-                        indexFlags |= ((ITreeClassTransformer.ExactInterested) transformer).cpIndexFlags();
+                BitSet exactInterestedTransformers = new BitSet(transformers.length);
+                for (int i = 0; i < transformers.length; i++) {
+                    if (transformers[i] instanceof ITreeClassTransformer.ExactInterested) {
+                        indexFlags |= ((ITreeClassTransformer.ExactInterested) transformers[i]).cpIndexFlags();
+                        exactInterestedTransformers.set(i);
                     }
                 }
 
-                mv.visitTypeInsn(NEW, Type.getInternalName(ConstantPoolIndex.class));
-                mv.visitInsn(DUP);
+                //don't bother building a constant pool index if none of the transformers which would use it are still interested
+                mv.visitVarInsn(ALOAD, 4);
+                cw.addConstant(mv, exactInterestedTransformers, Type.getInternalName(BitSet.class));
+                mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BitSet.class), "intersects", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(BitSet.class)), false);
+                mv.visitJumpInsn(IFEQ, returnLbl);
+
                 mv.visitVarInsn(ALOAD, 3);
                 mv.visitLdcInsn(indexFlags);
-                mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(ConstantPoolIndex.class), "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(ClassReader.class), Type.INT_TYPE), false);
+                mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(ConstantPoolIndex.class), "acquire", Type.getMethodDescriptor(Type.getType(ConstantPoolIndex.class), Type.getType(ClassReader.class), Type.INT_TYPE), false);
                 mv.visitVarInsn(ASTORE, 5);
 
+                //the index has to be released even if a transformer throws an exception, otherwise it'll never be reused on this thread
+                Label tryStartLbl = new Label();
+                Label tryEndLbl = new Label();
+                mv.visitTryCatchBlock(tryStartLbl, tryEndLbl, releaseHandlerLbl, null);
+                mv.visitLabel(tryStartLbl);
+
                 for (int i = 0; i < transformers.length; i++) {
                     ITreeClassTransformer transformer = transformers[i];
                     if (!(transformer instanceof ITreeClassTransformer.ExactInterested)) {
@@ -444,12 +896,14 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
                     mv.visitLdcInsn(i);
                     mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BitSet.class), "get", "(I)Z", false);
                     mv.visitJumpInsn(IFEQ, falseLbl);
+                    visitBeginStatistics(mv, 6);
                     cw.addConstant(mv, transformer, Type.getInternalName(transformer.getClass()));
                     mv.visitVarInsn(ALOAD, 1);
                     mv.visitVarInsn(ALOAD, 2);
                     mv.visitVarInsn(ALOAD, 3);
                     mv.visitVarInsn(ALOAD, 5);
                     mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(transformer.getClass()), "interestedInClass", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassReader.class), Type.getType(ConstantPoolIndex.class)), false);
+                    visitEndStatistics(cw, mv, transformer, 6, "recordInterestedExact", Type.BOOLEAN_TYPE);
                     mv.visitJumpInsn(IFEQ, falseLbl);
                     mv.visitInsn(ICONST_1);
                     mv.visitJumpInsn(GOTO, tailLbl);
@@ -458,193 +912,328 @@ public final class PPatchesTransformerRoot implements IClassTransformer, ITransf
                     mv.visitLabel(tailLbl);
                     mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BitSet.class), "set", "(IZ)V", false);
                 }
+                mv.visitLabel(tryEndLbl);
+
+                //the index is reused for the next class transformed on this thread
+                mv.visitVarInsn(ALOAD, 5);
+                mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(ConstantPoolIndex.class), "release", "()V", false);
             }
 
+            mv.visitLabel(returnLbl);
             mv.visitInsn(RETURN);
 
+            if (anyExactInterested) { //release the index and rethrow the exception
+                mv.visitLabel(releaseHandlerLbl);
+                mv.visitVarInsn(ALOAD, 5);
+                mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(ConstantPoolIndex.class), "release", "()V", false);
+                mv.visitInsn(ATHROW);
+            }
+
             mv.visitMaxs(0, 0);
             mv.visitEnd();
         }
 
-        { //int applyRegularTransformers(String name, String internalName, ClassNode classNode, BitSet interestedMask)
-            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "applyRegularTransformers", Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(BitSet.class)), null, null);
-            mv.visitCode();
+        visitApplyTransformersMethodInPipeline(cw, transformers, "applyClassTransformers", classGroups, ITreeClassTransformer.class, null);
+        visitApplyTransformersMethodInPipeline(cw, transformers, "applyBasicMethodTransformers", basicMethodGroups, ITreeClassTransformer.IndividualMethod.class, InsnList.class);
+        visitApplyTransformersMethodInPipeline(cw, transformers, "applyAnalyzedMethodTransformers", analyzedMethodGroups, ITreeClassTransformer.IndividualMethod.Analyzed.class, AnalyzedInsnList.class);
+
+        cw.visitEnd();
+
+        dumpClass(className, cw);
+
+        return (TransformerPipeline) MethodHandles.publicLookup().findConstructor(cw.defineAnonymousClass(PPatchesTransformerRoot.class), MethodType.methodType(void.class, ITreeClassTransformer[].class, TransformerPipeline.Segment[].class))
+                .invoke(transformers, schedule.toArray(new TransformerPipeline.Segment[0]));
+    }
+
+    private static void visitApplyTransformersMethodInPipeline(AnonymousClassWriter cw, ITreeClassTransformer[] transformers, String methodName, List<TransformerPipeline.Group> groups, Class<?> transformerClass, Class<?> instructionsClass) {
+        boolean method = instructionsClass != null;
+        String methodDesc;
+        String transformMethodName;
+        String transformMethodDesc;
+        String transformerClassInternalName = Type.getInternalName(transformerClass);
+        int interestedFlagsLvtIndex;
+        if (method) {
+            methodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(MethodNode.class), Type.getType(instructionsClass), Type.getType(BitSet.class));
+            transformMethodName = "transformMethod";
+            transformMethodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(MethodNode.class), Type.getType(instructionsClass));
+            interestedFlagsLvtIndex = 7;
+        } else {
+            methodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(BitSet.class));
+            transformMethodName = "transformClass";
+            transformMethodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class));
+            interestedFlagsLvtIndex = 5;
+        }
+        int accumulatorLvtIndex = interestedFlagsLvtIndex + 1;
+        int startTimeLvtIndex = interestedFlagsLvtIndex + 2;
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, methodName, methodDesc, null, null);
+        mv.visitCode();
+
+        //jump to the code for the requested group
+        Label defaultLbl = new Label();
+        Label[] groupLbls = new Label[groups.size()];
+        if (!groups.isEmpty()) {
+            for (int groupIndex = 0; groupIndex < groups.size(); groupIndex++) {
+                groupLbls[groupIndex] = new Label();
+            }
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitTableSwitchInsn(0, groups.size() - 1, defaultLbl, groupLbls);
+        }
+
+        for (int groupIndex = 0; groupIndex < groups.size(); groupIndex++) {
+            mv.visitLabel(groupLbls[groupIndex]);
 
             mv.visitInsn(ICONST_0);
-            mv.visitVarInsn(ISTORE, 5);
+            mv.visitVarInsn(ISTORE, accumulatorLvtIndex);
 
-            for (int i : regularTransformers) {
+            BitSet groupTransformers = groups.get(groupIndex).transformers;
+            for (int i = groupTransformers.nextSetBit(0); i >= 0; i = groupTransformers.nextSetBit(i + 1)) {
                 Label tailLbl = new Label();
 
-                mv.visitVarInsn(ALOAD, 4);
+                mv.visitVarInsn(ALOAD, interestedFlagsLvtIndex);
                 mv.visitLdcInsn(i);
                 mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BitSet.class), "get", "(I)Z", false);
                 mv.visitJumpInsn(IFEQ, tailLbl);
 
-                mv.visitVarInsn(ILOAD, 5);
-                cw.addConstant(mv, transformers[i], Type.getInternalName(ITreeClassTransformer.class));
+                if (method) {
+                    cw.addConstant(mv, transformers[i], transformerClassInternalName);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitVarInsn(ALOAD, 3);
+                    mv.visitVarInsn(ALOAD, 5);
+                    mv.visitMethodInsn(INVOKEINTERFACE, transformerClassInternalName, "interestedInMethod", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(MethodNode.class)), true);
+                    mv.visitJumpInsn(IFEQ, tailLbl);
+                }
+
+                visitBeginStatistics(mv, startTimeLvtIndex);
+                mv.visitVarInsn(ILOAD, accumulatorLvtIndex);
+                cw.addConstant(mv, transformers[i], transformerClassInternalName);
                 if (LOG_CHANGES) {
                     mv.visitInsn(DUP);
                 }
-                mv.visitVarInsn(ALOAD, 1);
                 mv.visitVarInsn(ALOAD, 2);
                 mv.visitVarInsn(ALOAD, 3);
-                mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(ITreeClassTransformer.class), "transformClass", Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class)), true);
+                mv.visitVarInsn(ALOAD, 4);
+                if (method) {
+                    mv.visitVarInsn(ALOAD, 5);
+                    mv.visitVarInsn(ALOAD, 6);
+                }
+                mv.visitMethodInsn(INVOKEINTERFACE, transformerClassInternalName, transformMethodName, transformMethodDesc, true);
+                visitEndStatistics(cw, mv, transformers[i], startTimeLvtIndex, "recordTransform", Type.INT_TYPE);
+                if (TransformerPruning.ENABLED) { //the transformer's return value is on the top of the stack, TransformerPruning will return it unmodified
+                    mv.visitLdcInsn(i);
+                    mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(TransformerPruning.class), "recordTransform", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE), false);
+                }
                 if (LOG_CHANGES) {
                     mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PPatchesTransformerRoot.class), "updateChangeFlags", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE, Type.getType(ITreeClassTransformer.class), Type.INT_TYPE), false);
                 } else {
                     mv.visitInsn(IOR);
                 }
-                mv.visitVarInsn(ISTORE, 5);
+                mv.visitVarInsn(ISTORE, accumulatorLvtIndex);
 
                 mv.visitLabel(tailLbl);
             }
 
-            mv.visitVarInsn(ILOAD, 5);
+            mv.visitVarInsn(ILOAD, accumulatorLvtIndex);
             mv.visitInsn(IRETURN);
-
-            mv.visitMaxs(0, 0);
-            mv.visitEnd();
-        }
-
-        visitAnyInterestedMethodInPipeline(cw, transformers, "anyMethodTransformersInterestedInClass", allMethodTransformers);
-
-        visitAnyInterestedMethodInPipeline(cw, transformers, "anyBasicMethodTransformersInterestedInClass", allBasicMethodTransformers);
-        visitApplyMethodTransformersMethodInPipeline(cw, transformers, "applyBasicMethodTransformers", basicMethodTransformers, false);
-        visitApplyMethodTransformersMethodInPipeline(cw, transformers, "applyBasicMethodOptimizationPasses", basicMethodOptimizationPasses, false);
-
-        visitAnyInterestedMethodInPipeline(cw, transformers, "anyAnalyzedMethodTransformersInterestedInClass", allAnalyzedMethodTransformers);
-        visitApplyMethodTransformersMethodInPipeline(cw, transformers, "applyAnalyzedMethodTransformers", analyzedMethodTransformers, true);
-        visitApplyMethodTransformersMethodInPipeline(cw, transformers, "applyAnalyzedMethodOptimizationPasses", analyzedMethodOptimizationPasses, true);
-
-        cw.visitEnd();
-
-        dumpClass(className, cw);
-
-        return (TransformerPipeline) MethodHandles.publicLookup().findConstructor(cw.defineAnonymousClass(PPatchesTransformerRoot.class), MethodType.methodType(void.class, ITreeClassTransformer[].class)).invoke(transformers);
-    }
-
-    private static void visitAnyInterestedMethodInPipeline(AnonymousClassWriter cw, ITreeClassTransformer[] transformers, String methodName, IntArrayList transformerIndices) {
-        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, methodName, Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(BitSet.class)), null, null);
-        mv.visitCode();
-
-        Label trueLbl = new Label();
-        Label tailLbl = new Label();
-
-        for (int i : transformerIndices) {
-            mv.visitVarInsn(ALOAD, 1);
-            mv.visitLdcInsn(i);
-            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BitSet.class), "get", "(I)Z", false);
-            mv.visitJumpInsn(IFNE, trueLbl);
         }
 
-        mv.visitInsn(ICONST_0);
-        mv.visitJumpInsn(GOTO, tailLbl);
-        mv.visitLabel(trueLbl);
-        mv.visitInsn(ICONST_1);
-        mv.visitLabel(tailLbl);
-        mv.visitInsn(IRETURN);
+        mv.visitLabel(defaultLbl);
+        mv.visitTypeInsn(NEW, Type.getInternalName(IllegalArgumentException.class));
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(IllegalArgumentException.class), "<init>", "()V", false);
+        mv.visitInsn(ATHROW);
 
         mv.visitMaxs(0, 0);
         mv.visitEnd();
     }
 
-    private static void visitApplyMethodTransformersMethodInPipeline(AnonymousClassWriter cw, ITreeClassTransformer[] transformers, String methodName, IntArrayList transformerIndices, boolean analyzed) {
-        String methodDesc;
-        String transformMethodDesc;
-        String transformerClassInternalName;
-        int interestedFlagsLvtIndex = 6;
-        int accumulatorLvtIndex = 7;
-        if (analyzed) {
-            methodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(MethodNode.class), Type.getType(AnalyzedInsnList.class), Type.getType(BitSet.class));
-            transformMethodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(MethodNode.class), Type.getType(AnalyzedInsnList.class));
-            transformerClassInternalName = Type.getInternalName(ITreeClassTransformer.IndividualMethod.Analyzed.class);
-        } else {
-            methodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(MethodNode.class), Type.getType(InsnList.class), Type.getType(BitSet.class));
-            transformMethodDesc = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(ClassNode.class), Type.getType(MethodNode.class), Type.getType(InsnList.class));
-            transformerClassInternalName = Type.getInternalName(ITreeClassTransformer.IndividualMethod.class);
+    private static void visitBeginStatistics(MethodVisitor mv, int startTimeLvtIndex) {
+        if (TransformerStatistics.ENABLED) {
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(System.class), "nanoTime", "()J", false);
+            mv.visitVarInsn(LSTORE, startTimeLvtIndex);
         }
+    }
 
-        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, methodName, methodDesc, null, null);
-        mv.visitCode();
-
-        mv.visitInsn(ICONST_0);
-        mv.visitVarInsn(ISTORE, accumulatorLvtIndex);
-
-        for (int i : transformerIndices) {
-            Label tailLbl = new Label();
-
-            mv.visitVarInsn(ALOAD, interestedFlagsLvtIndex);
-            mv.visitLdcInsn(i);
-            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BitSet.class), "get", "(I)Z", false);
-            mv.visitJumpInsn(IFEQ, tailLbl);
+    private static void visitEndStatistics(AnonymousClassWriter cw, MethodVisitor mv, ITreeClassTransformer transformer, int startTimeLvtIndex, String recordMethodName, Type resultType) {
+        if (TransformerStatistics.ENABLED) { //the transformer's return value is on the top of the stack, TransformerStatistics will return it unmodified
+            cw.addConstant(mv, TransformerStatistics.entry(transformer), Type.getInternalName(TransformerStatistics.Entry.class));
+            mv.visitVarInsn(LLOAD, startTimeLvtIndex);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(TransformerStatistics.class), recordMethodName, Type.getMethodDescriptor(resultType, resultType, Type.getType(TransformerStatistics.Entry.class), Type.LONG_TYPE), false);
+        }
+    }
 
-            cw.addConstant(mv, transformers[i], transformerClassInternalName);
-            mv.visitVarInsn(ALOAD, 1);
-            mv.visitVarInsn(ALOAD, 2);
-            mv.visitVarInsn(ALOAD, 4);
-            mv.visitMethodInsn(INVOKEINTERFACE, transformerClassInternalName, "interestedInMethod", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(String.class), Type.getType(String.class), Type.getType(MethodNode.class)), true);
-            mv.visitJumpInsn(IFEQ, tailLbl);
+    /**
+     * Applies all the transformers in a method segment to a single method, possibly on a different thread than the one which is transforming the class.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    private static final class MethodTask extends RecursiveAction {
+        private final TransformerPipeline pipeline;
+        private final TransformerPipeline.Segment segment;
+        private final String name;
+        private final String transformedName;
+        private final ClassNode classNode;
+        private final MethodNode methodNode;
+        private final BitSet interestedMask;
+
+        private int changeFlags;
+        private BitSet statisticsChanges;
+        private BitSet pruningChanges;
+
+        @Override
+        protected void compute() {
+            //the transformers which made changes are tracked per thread, so we need to collect them separately and merge them into the class' state afterwards
+            BitSet previousStatisticsState = TransformerStatistics.ENABLED ? TransformerStatistics.beginClass() : null;
+            BitSet previousPruningState = TransformerPruning.ENABLED ? TransformerPruning.beginClass() : null;
+            try {
+                //remove unreachable instructions from the list
+                ReachabilityAnalyzer.removeUnreachableInstructions(this.classNode.name, this.methodNode);
 
-            mv.visitVarInsn(ILOAD, accumulatorLvtIndex);
-            cw.addConstant(mv, transformers[i], transformerClassInternalName);
-            if (LOG_CHANGES) {
-                mv.visitInsn(DUP);
-            }
-            mv.visitVarInsn(ALOAD, 1);
-            mv.visitVarInsn(ALOAD, 2);
-            mv.visitVarInsn(ALOAD, 3);
-            mv.visitVarInsn(ALOAD, 4);
-            mv.visitVarInsn(ALOAD, 5);
-            mv.visitMethodInsn(INVOKEINTERFACE, transformerClassInternalName, "transformMethod", transformMethodDesc, true);
-            if (LOG_CHANGES) {
-                mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PPatchesTransformerRoot.class), "updateChangeFlags", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE, Type.getType(ITreeClassTransformer.class), Type.INT_TYPE), false);
-            } else {
-                mv.visitInsn(IOR);
+                this.changeFlags = applyMethodSegment(this.pipeline, this.segment, this.name, this.transformedName, this.classNode, this.methodNode, this.interestedMask);
+            } finally {
+                if (TransformerStatistics.ENABLED) {
+                    this.statisticsChanges = TransformerStatistics.endTask(previousStatisticsState);
+                }
+                if (TransformerPruning.ENABLED) {
+                    this.pruningChanges = TransformerPruning.endTask(previousPruningState);
+                }
             }
-            mv.visitVarInsn(ISTORE, accumulatorLvtIndex);
-
-            mv.visitLabel(tailLbl);
         }
-
-        mv.visitVarInsn(ILOAD, accumulatorLvtIndex);
-        mv.visitInsn(IRETURN);
-
-        mv.visitMaxs(0, 0);
-        mv.visitEnd();
     }
 
-    private static ClassNode readClass(ClassReader reader) {
+    private static ClassNode readClass(TransformerPipeline pipeline, ClassReader reader, BitSet interestedMask, Set<MethodNode> stubMethods) {
         ClassNode classNode = new ClassNode();
 
+        //methods can only be left unparsed if every interested transformer is only interested in the methods which reference something specific, and the class
+        //  contains stack map frames (otherwise the unparsed methods couldn't be copied over as-is)
+        if (LAZY_METHOD_PARSING && pipeline.methodReferenceTable != null && (reader.readInt(4) & 0xFFFF) >= V1_7) {
+            BitSet nonLazyTransformers = (BitSet) interestedMask.clone();
+            nonLazyTransformers.andNot(pipeline.methodReferenceInterested);
+            if (nonLazyTransformers.isEmpty()) {
+                LazyMethodReader.readClass(reader, pipeline.methodReferenceTable.findItems(reader, interestedMask), classNode, stubMethods);
+                return classNode;
+            }
+        }
+
         //we use SKIP_FRAMES to help make transformers run slightly faster, as there will be slightly fewer instructions which need to be skipped over
         reader.accept(classNode, ClassReader.SKIP_FRAMES);
 
         return classNode;
     }
 
-    @RequiredArgsConstructor
-    private static abstract class TransformerPipeline {
+    static abstract class TransformerPipeline {
         public final ITreeClassTransformer[] allTransformers;
+        public final Segment[] schedule;
 
-        public abstract BitSet determineInterested(String name, String transformedName);
+        public final BitSet loadingFree; //the indices of all the transformers which implement ITreeClassTransformer.LoadingFree
+        public final BitSet methodReferenceInterested; //the indices of all the transformers which implement ITreeClassTransformer.MethodReferenceInterested
+        public final ConstantPoolReferenceTable methodReferenceTable; //null if there are no such transformers
 
-        public abstract void determineInterestedExact(String name, String transformedName, ClassReader reader, BitSet interestedMask);
+        private HashCode fingerprint;
+        private Map<String, Integer> transformerIndices;
 
-        public abstract int applyRegularTransformers(String name, String transformedName, ClassNode classNode, BitSet interestedMask);
+        public TransformerPipeline(ITreeClassTransformer[] allTransformers, Segment[] schedule) {
+            this.allTransformers = allTransformers;
+            this.schedule = schedule;
 
-        public abstract boolean anyMethodTransformersInterestedInClass(BitSet interestedMask);
+            this.loadingFree = new BitSet(allTransformers.length);
+            this.methodReferenceInterested = new BitSet(allTransformers.length);
+            ConstantPoolReferences[] methodReferences = new ConstantPoolReferences[allTransformers.length];
+            for (int i = 0; i < allTransformers.length; i++) {
+                if (allTransformers[i] instanceof ITreeClassTransformer.LoadingFree) {
+                    this.loadingFree.set(i);
+                }
+                if (allTransformers[i] instanceof ITreeClassTransformer.MethodReferenceInterested) {
+                    this.methodReferenceInterested.set(i);
+                    methodReferences[i] = ((ITreeClassTransformer.MethodReferenceInterested) allTransformers[i]).interestingReferences();
+                }
+            }
+            this.methodReferenceTable = this.methodReferenceInterested.isEmpty() ? null : new ConstantPoolReferenceTable(methodReferences);
+        }
 
-        public abstract boolean anyBasicMethodTransformersInterestedInClass(BitSet interestedMask);
+        public final HashCode fingerprint() {
+            HashCode fingerprint = this.fingerprint;
+            if (fingerprint == null) { //this is racy, but computing the fingerprint is deterministic
+                this.fingerprint = fingerprint = TransformedClassCache.pipelineFingerprint(this.allTransformers);
+            }
+            return fingerprint;
+        }
 
-        public abstract int applyBasicMethodTransformers(String name, String transformedName, ClassNode classNode, MethodNode methodNode, InsnList instructions, BitSet interestedMask);
+        /**
+         * Checks whether all the transformers which are in the given set and are interested in a class are {@link ITreeClassTransformer.LoadingFree}.
+         *
+         * @param transformers   the indices of the transformers to check
+         * @param interestedMask the indices of the transformers which are interested in the class
+         */
+        public final boolean allLoadingFree(BitSet transformers, BitSet interestedMask) {
+            BitSet interestedTransformers = (BitSet) transformers.clone();
+            interestedTransformers.and(interestedMask);
+            interestedTransformers.andNot(this.loadingFree);
+            return interestedTransformers.isEmpty();
+        }
 
-        public abstract int applyBasicMethodOptimizationPasses(String name, String transformedName, ClassNode classNode, MethodNode methodNode, InsnList instructions, BitSet interestedMask);
+        /**
+         * Gets the index of the transformer with the given class name in this pipeline.
+         *
+         * @param transformerClassName the transformer's class name
+         * @return the transformer's index, or {@code -1} if this pipeline doesn't contain such a transformer
+         */
+        public final int transformerIndex(String transformerClassName) {
+            Map<String, Integer> transformerIndices = this.transformerIndices;
+            if (transformerIndices == null) { //this is racy, but building the map is deterministic
+                transformerIndices = new HashMap<>();
+                for (int i = 0; i < this.allTransformers.length; i++) {
+                    transformerIndices.put(this.allTransformers[i].getClass().getName(), i);
+                }
+                this.transformerIndices = transformerIndices;
+            }
+            return transformerIndices.getOrDefault(transformerClassName, -1);
+        }
+
+        public abstract BitSet determineInterested(String name, String transformedName);
 
-        public abstract boolean anyAnalyzedMethodTransformersInterestedInClass(BitSet interestedMask);
+        public abstract void determineInterestedExact(String name, String transformedName, ClassReader reader, BitSet interestedMask);
 
-        public abstract int applyAnalyzedMethodTransformers(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions, BitSet interestedMask);
+        public abstract int applyClassTransformers(int group, String name, String transformedName, ClassNode classNode, BitSet interestedMask);
+
+        public abstract int applyBasicMethodTransformers(int group, String name, String transformedName, ClassNode classNode, MethodNode methodNode, InsnList instructions, BitSet interestedMask);
+
+        public abstract int applyAnalyzedMethodTransformers(int group, String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions, BitSet interestedMask);
+
+        /**
+         * A sequence of {@link Group}s which are run one after the other. If the groups consist of method transformers, the entire sequence is applied to each
+         * method in turn.
+         *
+         * @author DaPorkchop_
+         */
+        static final class Segment {
+            public final boolean methods;
+            public final Group[] groups;
+            public final BitSet transformers; //the indices of all the transformers in this segment
+
+            Segment(Group[] groups) {
+                this.methods = groups[0].method;
+                this.groups = groups;
+                this.transformers = new BitSet();
+                for (Group group : groups) {
+                    this.transformers.or(group.transformers);
+                }
+            }
+        }
 
-        public abstract int applyAnalyzedMethodOptimizationPasses(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions, BitSet interestedMask);
+        /**
+         * A sequence of adjacent transformers of the same kind.
+         *
+         * @author DaPorkchop_
+         */
+        @RequiredArgsConstructor
+        static final class Group {
+            public final boolean method;
+            public final boolean analyzed;
+            public final boolean optimization;
+            public final int index; //the index of this group among all the groups of the same kind, passed to the generated apply*Transformers methods
+            public final BitSet transformers; //the indices of all the transformers in this group
+        }
     }
 }
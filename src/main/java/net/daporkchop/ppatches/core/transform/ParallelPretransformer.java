@@ -0,0 +1,279 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.ppatches.PPatchesMod;
+import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.Launch;
+import net.minecraftforge.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Transforms all classes in the mod jars on a pool of worker threads as soon as the mods are added to the classpath, so that {@link PPatchesTransformerRoot} can
+ * simply return the precomputed result once a class is actually loaded.
+ * <p>
+ * Only transformers which implement {@link ITreeClassTransformer.LoadingFree} are run ahead of time. If any other transformer is interested in a class, or if the
+ * bytes which eventually reach {@link PPatchesTransformerRoot} differ from the ones which were transformed ahead of time (e.g. because a transformer which runs
+ * before us modified the class), the class falls back to being transformed normally when it's loaded.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class ParallelPretransformer {
+    public static final boolean ENABLED = Boolean.getBoolean("ppatches.pretransformModClasses");
+    private static final int THREADS = Integer.getInteger("ppatches.pretransformModClasses.threads", Runtime.getRuntime().availableProcessors());
+
+    //the names of transformers which run before PPatches and are known to be safe to invoke from multiple threads at once. any other transformers which run before
+    //  PPatches are skipped, which will most likely cause the pretransformed result to be discarded if they modify the class.
+    private static final Set<String> PRECEDING_TRANSFORMERS = ImmutableSet.copyOf(System.getProperty("ppatches.pretransformModClasses.precedingTransformers",
+            "net.minecraftforge.fml.common.asm.transformers.DeobfuscationTransformer").split(","));
+
+    private static final Map<String, Result> RESULTS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong FALLBACKS = new AtomicLong();
+
+    /**
+     * Transforms all classes in the given jar files ahead of time.
+     * <p>
+     * This blocks until all classes have been processed. While this is happening, nothing else should be loading classes or using Mixin.
+     *
+     * @param jars the jar files
+     */
+    public static void pretransform(Collection<File> jars) {
+        PPatchesTransformerRoot.TransformerPipeline pipeline = PPatchesTransformerRoot.currentPipeline();
+
+        boolean anyLoadingFree = false;
+        for (ITreeClassTransformer transformer : pipeline.allTransformers) {
+            anyLoadingFree |= transformer instanceof ITreeClassTransformer.LoadingFree;
+        }
+        if (!anyLoadingFree) {
+            PPatchesMod.LOGGER.info("Not pretransforming mod classes, as no enabled transformers support it");
+            return;
+        }
+
+        List<IClassTransformer> precedingTransformers = findPrecedingTransformers();
+
+        PPatchesMod.LOGGER.info("Pretransforming classes from {} mod jars using {} threads...", jars.size(), THREADS);
+        long startTime = System.nanoTime();
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, task -> {
+            Thread thread = new Thread(task, "PPatches pretransform thread #" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(Launch.classLoader);
+            return thread;
+        });
+
+        AtomicInteger changedCount = new AtomicInteger();
+        AtomicInteger failedCount = new AtomicInteger();
+        List<ZipFile> zipFiles = new ArrayList<>(jars.size());
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (File jar : jars) {
+                ZipFile zipFile;
+                try {
+                    zipFile = new ZipFile(jar);
+                } catch (IOException e) {
+                    PPatchesMod.LOGGER.warn("Unable to open mod jar " + jar + ", its classes won't be pretransformed", e);
+                    continue;
+                }
+                zipFiles.add(zipFile);
+
+                for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    String entryName = entry.getName();
+                    if (entry.isDirectory() || !entryName.endsWith(".class") || entryName.startsWith("META-INF/")) {
+                        continue;
+                    }
+
+                    futures.add(executor.submit(() -> {
+                        String name = entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+                        try (InputStream in = zipFile.getInputStream(entry)) {
+                            if (pretransformClass(pipeline, precedingTransformers, name, ByteStreams.toByteArray(in))) {
+                                changedCount.incrementAndGet();
+                            }
+                        } catch (Throwable t) {
+                            //the class will simply be transformed normally once it's loaded, which will report the error again if it's an actual problem
+                            PPatchesMod.LOGGER.debug("Unable to pretransform " + name, t);
+                            failedCount.incrementAndGet();
+                        }
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (ZipFile zipFile : zipFiles) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    PPatchesMod.LOGGER.warn("Unable to close mod jar " + zipFile.getName(), e);
+                }
+            }
+        }
+
+        PPatchesMod.LOGGER.info("Pretransformed {} classes in {}ms ({} modified, {} failed)",
+                futures.size(), (System.nanoTime() - startTime) / 1_000_000.0d, changedCount.get(), failedCount.get());
+    }
+
+    private static boolean pretransformClass(PPatchesTransformerRoot.TransformerPipeline pipeline, List<IClassTransformer> precedingTransformers, String name, byte[] rawClass) {
+        //mod classes aren't obfuscated, so the transformed name is always the same as the untransformed name
+        String transformedName = name;
+
+        //only consider transformers which are safe to run ahead of time. if any other transformers are interested in this class, the interested mask which will be
+        //  computed when the class is actually loaded won't match this one, and we'll fall back to transforming the class normally.
+        BitSet interestedMask = new BitSet(pipeline.allTransformers.length);
+        for (int i = 0; i < pipeline.allTransformers.length; i++) {
+            ITreeClassTransformer transformer = pipeline.allTransformers[i];
+            if (transformer instanceof ITreeClassTransformer.LoadingFree && PPatchesTransformerRoot.transformerInterestedInClass(transformer, name, transformedName)) {
+                interestedMask.set(i);
+            }
+        }
+        if (interestedMask.isEmpty()) { //PPatchesTransformerRoot will skip this class on its own
+            return false;
+        }
+
+        byte[] basicClass = rawClass;
+        for (IClassTransformer transformer : precedingTransformers) {
+            basicClass = transformer.transform(name, transformedName, basicClass);
+        }
+
+        if (TransformerPruning.ENABLED) { //PPatchesTransformerRoot will prune exactly the same transformers
+            TransformerPruning.prune(pipeline, transformedName, basicClass, interestedMask);
+        }
+        pipeline.determineInterestedExact(name, transformedName, new ClassReader(basicClass), interestedMask);
+        if (interestedMask.isEmpty()) { //PPatchesTransformerRoot won't do anything expensive for this class either
+            return false;
+        }
+
+        HashCode basicClassHash = Hashing.murmur3_128().hashBytes(basicClass);
+        //this mustn't go through the transformed class cache: the cache key doesn't include the interested mask, and the result may have been produced by only
+        //  some of the transformers which will be interested in the class when it's actually loaded
+        byte[] transformedClass = PPatchesTransformerRoot.transform(pipeline, name, transformedName, basicClass, (BitSet) interestedMask.clone());
+
+        boolean changed = transformedClass != basicClass;
+        RESULTS.put(transformedName, new Result(pipeline, interestedMask, basicClassHash, changed ? transformedClass : null));
+        return changed;
+    }
+
+    private static List<IClassTransformer> findPrecedingTransformers() {
+        List<IClassTransformer> allTransformers = Launch.classLoader.getTransformers();
+
+        //find the last instance of PPatchesTransformerRoot, as that's the only one which is still active
+        int rootIndex = allTransformers.size() - 1;
+        while (rootIndex >= 0 && !(allTransformers.get(rootIndex) instanceof PPatchesTransformerRoot)) {
+            rootIndex--;
+        }
+
+        List<IClassTransformer> precedingTransformers = new ArrayList<>();
+        for (int i = 0; i < rootIndex; i++) {
+            IClassTransformer transformer = allTransformers.get(i);
+            if (PRECEDING_TRANSFORMERS.contains(transformer.getClass().getName())) {
+                precedingTransformers.add(transformer);
+            } else {
+                PPatchesMod.LOGGER.debug("Skipping transformer {} while pretransforming", transformer.getClass().getName());
+            }
+        }
+
+        try {
+            //the deobfuscation remapper lazily populates these maps, which would break if it's accessed from multiple threads at once
+            for (String name : new String[]{ "rawFieldMaps", "rawMethodMaps" }) {
+                Field field = FMLDeobfuscatingRemapper.class.getDeclaredField(name);
+                field.setAccessible(true);
+                if (!(field.get(FMLDeobfuscatingRemapper.INSTANCE) instanceof ConcurrentHashMap)) {
+                    field.set(FMLDeobfuscatingRemapper.INSTANCE, new ConcurrentHashMap<>((Map<?, ?>) field.get(FMLDeobfuscatingRemapper.INSTANCE)));
+                }
+            }
+        } catch (Exception e) {
+            PPatchesMod.LOGGER.warn("Unable to make FMLDeobfuscatingRemapper thread-safe, not running any other transformers while pretransforming", e);
+            return Collections.emptyList();
+        }
+
+        return precedingTransformers;
+    }
+
+    /**
+     * Gets the result of transforming the given class ahead of time, if any.
+     * <p>
+     * The result is discarded after this method is called, regardless of whether or not it could be used.
+     *
+     * @param pipeline        the transformer pipeline which would be used to transform the class
+     * @param name            the class' name
+     * @param transformedName the class' transformed name
+     * @param basicClass      the untransformed class bytes
+     * @param interestedMask  the transformers which are interested in the class (based only on the class' name)
+     * @return the transformed class bytes, or {@code null} if the class wasn't transformed ahead of time or the result can't be used
+     */
+    static byte[] take(PPatchesTransformerRoot.TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass, BitSet interestedMask) {
+        Result result = RESULTS.remove(transformedName);
+        if (result == null) {
+            return null;
+        } else if (result.pipeline != pipeline || !result.basicClassHash.equals(Hashing.murmur3_128().hashBytes(basicClass))) {
+            FALLBACKS.incrementAndGet();
+            return null;
+        }
+
+        //make sure that exactly the same transformers would be run now as were run ahead of time. this is still much cheaper than actually transforming the class.
+        BitSet exactInterestedMask = (BitSet) interestedMask.clone();
+        pipeline.determineInterestedExact(name, transformedName, new ClassReader(basicClass), exactInterestedMask);
+        if (!result.exactInterestedMask.equals(exactInterestedMask)) {
+            FALLBACKS.incrementAndGet();
+            return null;
+        }
+
+        HITS.incrementAndGet();
+        return result.transformedClass != null ? result.transformedClass : basicClass;
+    }
+
+    /**
+     * Logs the number of pretransformed classes which could and couldn't be used.
+     */
+    public static void logStatistics() {
+        PPatchesMod.LOGGER.info("Pretransformed classes: {} used, {} discarded, {} not loaded yet", HITS.get(), FALLBACKS.get(), RESULTS.size());
+    }
+
+    @RequiredArgsConstructor
+    private static final class Result {
+        public final PPatchesTransformerRoot.TransformerPipeline pipeline;
+        public final BitSet exactInterestedMask;
+        public final HashCode basicClassHash;
+        public final byte[] transformedClass; //null if the class wasn't modified
+    }
+}
@@ -0,0 +1,235 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.ppatches.PPatchesMod;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stores the output of {@link PPatchesTransformerRoot} for every class which was transformed during a launch in a single jar file, so that subsequent launches
+ * with the same configuration can skip running the transformers entirely.
+ * <p>
+ * Launching the game with {@code -Dppatches.prebaked.write=true} records the result of transforming each class, and writes them all to the pre-baked jar once
+ * the game exits. On any subsequent launch, the pre-baked jar is loaded, and each class which is about to be transformed is looked up in it. The pre-baked
+ * result is only used if the class bytes which reach PPatches (i.e. after every preceding transformer, including Mixin, has run) and the fingerprint of the
+ * transformer pipeline are identical to the ones which were recorded. Classes which weren't pre-baked, or whose entries don't match, are simply transformed
+ * normally.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class PrebakedClasses {
+    public static final boolean WRITE = Boolean.getBoolean("ppatches.prebaked.write");
+    private static final Path FILE = Paths.get(System.getProperty("ppatches.prebaked.file", "ppatches_prebaked.jar"));
+
+    //increment this whenever the file format changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String INDEX_ENTRY = "META-INF/ppatches_prebaked.bin";
+    private static final String MANIFEST_ENTRY = "META-INF/ppatches_prebaked.properties";
+
+    //placeholder used to indicate that a class wasn't changed by the transformers
+    private static final byte[] NOT_CHANGED = {};
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static ZipFile zipFile;
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISMATCHES = new AtomicLong();
+
+    public static final boolean AVAILABLE = !WRITE && load();
+
+    static {
+        if (WRITE) {
+            PPatchesMod.LOGGER.info("Recording transformed classes to {}", FILE.toAbsolutePath());
+            Runtime.getRuntime().addShutdownHook(new Thread(PrebakedClasses::save, "PPatches pre-baked class writer"));
+        }
+    }
+
+    private static boolean load() {
+        if (!Files.isRegularFile(FILE)) {
+            return false;
+        }
+
+        try {
+            zipFile = new ZipFile(FILE.toFile());
+
+            ZipEntry indexEntry = zipFile.getEntry(INDEX_ENTRY);
+            if (indexEntry == null) {
+                PPatchesMod.LOGGER.warn("{} doesn't contain an index, ignoring it", FILE);
+                zipFile.close();
+                return false;
+            }
+
+            try (DataInputStream in = new DataInputStream(zipFile.getInputStream(indexEntry))) {
+                if (in.readInt() != FORMAT_VERSION) {
+                    PPatchesMod.LOGGER.warn("{} was created by a different version of PPatches, ignoring it", FILE);
+                    zipFile.close();
+                    return false;
+                }
+
+                byte[] buf = new byte[16];
+                for (int i = 0, count = in.readInt(); i < count; i++) {
+                    String transformedName = in.readUTF();
+                    String name = in.readUTF();
+                    in.readFully(buf);
+                    HashCode pipelineFingerprint = HashCode.fromBytes(buf);
+                    in.readFully(buf);
+                    HashCode basicClassHash = HashCode.fromBytes(buf);
+                    boolean changed = in.readBoolean();
+                    ENTRIES.put(transformedName, new Entry(name, pipelineFingerprint, basicClassHash, changed ? null : NOT_CHANGED));
+                }
+            }
+
+            PPatchesMod.LOGGER.info("Loaded {} pre-baked classes from {}", ENTRIES.size(), FILE);
+            return true;
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to read pre-baked classes from " + FILE + ", ignoring them", e);
+            ENTRIES.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the pre-baked result of transforming the given class, if any.
+     * <p>
+     * The entry is discarded after this method is called, regardless of whether or not it could be used.
+     *
+     * @param pipeline        the transformer pipeline which would be used to transform the class
+     * @param name            the class' name
+     * @param transformedName the class' transformed name
+     * @param basicClass      the untransformed class bytes
+     * @return the transformed class bytes, or {@code null} if the class wasn't pre-baked or the pre-baked result can't be used
+     */
+    static byte[] take(PPatchesTransformerRoot.TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass) {
+        Entry entry = ENTRIES.remove(transformedName);
+        if (entry == null) {
+            return null;
+        } else if (!entry.name.equals(name) || !entry.pipelineFingerprint.equals(pipeline.fingerprint())
+                   || !entry.basicClassHash.equals(Hashing.murmur3_128().hashBytes(basicClass))) {
+            MISMATCHES.incrementAndGet();
+            return null;
+        }
+
+        if (entry.transformedClass == NOT_CHANGED) {
+            HITS.incrementAndGet();
+            return basicClass;
+        }
+
+        try (InputStream in = zipFile.getInputStream(zipFile.getEntry(classEntryName(transformedName)))) {
+            byte[] transformedClass = ByteStreams.toByteArray(in);
+            HITS.incrementAndGet();
+            return transformedClass;
+        } catch (IOException | RuntimeException e) {
+            PPatchesMod.LOGGER.warn("Unable to read pre-baked class " + transformedName, e);
+            MISMATCHES.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Records the result of transforming the given class.
+     *
+     * @param pipeline         the transformer pipeline which was used to transform the class
+     * @param name             the class' name
+     * @param transformedName  the class' transformed name
+     * @param basicClass       the untransformed class bytes
+     * @param transformedClass the transformed class bytes
+     */
+    static void record(PPatchesTransformerRoot.TransformerPipeline pipeline, String name, String transformedName, byte[] basicClass, byte[] transformedClass) {
+        ENTRIES.put(transformedName, new Entry(name, pipeline.fingerprint(), Hashing.murmur3_128().hashBytes(basicClass),
+                transformedClass == basicClass ? NOT_CHANGED : transformedClass));
+    }
+
+    private static void save() {
+        Set<String> fingerprints = new TreeSet<>();
+        int changedCount = 0;
+
+        try {
+            Path tempFile = Files.createTempFile(FILE.toAbsolutePath().getParent(), "ppatches_prebaked", ".tmp");
+            try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                //the transformed classes themselves
+                for (Map.Entry<String, Entry> entry : ENTRIES.entrySet()) {
+                    fingerprints.add(entry.getValue().pipelineFingerprint.toString());
+                    if (entry.getValue().transformedClass != NOT_CHANGED) {
+                        out.putNextEntry(new ZipEntry(classEntryName(entry.getKey())));
+                        out.write(entry.getValue().transformedClass);
+                        out.closeEntry();
+                        changedCount++;
+                    }
+                }
+
+                //the index, which contains the information needed to validate each entry
+                out.putNextEntry(new ZipEntry(INDEX_ENTRY));
+                DataOutputStream indexOut = new DataOutputStream(out);
+                indexOut.writeInt(FORMAT_VERSION);
+                indexOut.writeInt(ENTRIES.size());
+                for (Map.Entry<String, Entry> entry : ENTRIES.entrySet()) {
+                    indexOut.writeUTF(entry.getKey());
+                    indexOut.writeUTF(entry.getValue().name);
+                    indexOut.write(entry.getValue().pipelineFingerprint.asBytes());
+                    indexOut.write(entry.getValue().basicClassHash.asBytes());
+                    indexOut.writeBoolean(entry.getValue().transformedClass != NOT_CHANGED);
+                }
+                indexOut.flush();
+                out.closeEntry();
+
+                //a human-readable manifest, so that it's possible to tell which configurations the classes were baked with
+                Properties manifest = new Properties();
+                manifest.setProperty("formatVersion", String.valueOf(FORMAT_VERSION));
+                manifest.setProperty("classes", String.valueOf(ENTRIES.size()));
+                manifest.setProperty("changedClasses", String.valueOf(changedCount));
+                manifest.setProperty("pipelineFingerprints", String.join(",", fingerprints));
+                out.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                manifest.store(out, "PPatches pre-baked classes");
+                out.closeEntry();
+            }
+            Files.move(tempFile, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.error("Unable to write pre-baked classes to " + FILE, e);
+            return;
+        }
+
+        PPatchesMod.LOGGER.info("Wrote {} pre-baked classes ({} modified) to {}", ENTRIES.size(), changedCount, FILE.toAbsolutePath());
+    }
+
+    private static String classEntryName(String transformedName) {
+        return transformedName.replace('.', '/') + ".class";
+    }
+
+    /**
+     * Logs the number of pre-baked classes which could and couldn't be used.
+     */
+    public static void logStatistics() {
+        PPatchesMod.LOGGER.info("Pre-baked classes: {} used, {} discarded, {} not loaded yet", HITS.get(), MISMATCHES.get(), ENTRIES.size());
+    }
+
+    @RequiredArgsConstructor
+    private static final class Entry {
+        public final String name;
+        public final HashCode pipelineFingerprint;
+        public final HashCode basicClassHash;
+        public final byte[] transformedClass; //NOT_CHANGED if the class wasn't modified, null if it was modified but hasn't been read from the file yet
+    }
+}
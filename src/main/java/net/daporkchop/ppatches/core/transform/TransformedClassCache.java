@@ -0,0 +1,338 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.ppatches.PPatchesMod;
+import net.minecraft.launchwrapper.Launch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, content-addressed cache of the output of {@link PPatchesTransformerRoot}.
+ * <p>
+ * Entries are keyed by the class name, the untransformed class bytes and a fingerprint of the transformer pipeline which produced them, so an entry can never be
+ * returned for a different input or a different set of transformers. Classes which were transformed are stored as individual files, while classes which the pipeline
+ * decided not to modify are only remembered by their key in a single index file.
+ * <p>
+ * This is opt-in, as transformers which have side effects beyond modifying the class they're given won't be run for classes which are served from the cache.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class TransformedClassCache {
+    public static final boolean ENABLED = Boolean.getBoolean("ppatches.transformCache");
+    private static final long MAX_SIZE = Long.getLong("ppatches.transformCache.maxSizeMB", 256L) << 20L;
+    private static final int MAX_UNCHANGED_ENTRIES = Integer.getInteger("ppatches.transformCache.maxUnchangedEntries", 1 << 20);
+
+    //increment this whenever the cache format or the way keys are computed changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Path ROOT = Paths.get(".ppatches_cache", "transformedClasses");
+    private static final Path UNCHANGED_INDEX = ROOT.resolve("unchanged.bin");
+
+    private static final Set<HashCode> UNCHANGED = ConcurrentHashMap.newKeySet();
+    private static final Set<HashCode> USED = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong STORES = new AtomicLong();
+
+    static {
+        if (ENABLED) {
+            PPatchesMod.LOGGER.info("Using transformed class cache at {}", ROOT.toAbsolutePath());
+            loadUnchangedIndex();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                saveUnchangedIndex();
+                trim();
+                logStatistics();
+            }, "PPatches transformed class cache shutdown"));
+        }
+    }
+
+    /**
+     * Computes a fingerprint for a transformer pipeline consisting of the given transformers.
+     * <p>
+     * The fingerprint covers the transformers' code, the PPatches configuration and the contents of the classpath, as transformers are allowed to inspect other
+     * classes while transforming.
+     *
+     * @param transformers the transformers in the pipeline
+     * @return the pipeline's fingerprint
+     */
+    @SneakyThrows(IOException.class)
+    public static HashCode pipelineFingerprint(ITreeClassTransformer[] transformers) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(FORMAT_VERSION);
+
+        //the transformers themselves, in order
+        for (ITreeClassTransformer transformer : transformers) {
+            String className = transformer.getClass().getName();
+            hasher.putUnencodedChars(className);
+
+            byte[] classBytes = Launch.classLoader.getClassBytes(className);
+            if (classBytes != null) {
+                hasher.putBytes(classBytes);
+            }
+        }
+
+        //the PPatches jar (covers any helper classes used by the transformers)
+        CodeSource codeSource = PPatchesTransformerRoot.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            hashSource(hasher, codeSource.getLocation());
+        }
+
+        //all other jars on the classpath
+        for (URL source : Launch.classLoader.getSources()) {
+            hashSource(hasher, source);
+        }
+
+        //the module configuration
+        Path configFile = Paths.get("config", "ppatches.cfg");
+        if (Files.isRegularFile(configFile)) {
+            hasher.putBytes(Files.readAllBytes(configFile));
+        }
+
+        //any system properties which could be used to configure transformers
+        for (String key : new TreeSet<>(System.getProperties().stringPropertyNames())) {
+            if (key.startsWith("ppatches.") && !key.startsWith("ppatches.prebaked.")) { //the pre-baked class settings don't affect the transformers' output
+                hasher.putUnencodedChars(key).putUnencodedChars(System.getProperty(key));
+            }
+        }
+
+        return hasher.hash();
+    }
+
+    private static void hashSource(Hasher hasher, URL source) throws IOException {
+        hasher.putUnencodedChars(source.toString());
+
+        Path path;
+        try {
+            path = Paths.get(source.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) { //not a local file
+            return;
+        }
+
+        if (Files.isRegularFile(path)) {
+            //we don't want to hash the entire contents of every jar on every launch, the size and modification time should be sufficient
+            hasher.putLong(Files.size(path)).putLong(Files.getLastModifiedTime(path).toMillis());
+        }
+    }
+
+    /**
+     * Computes the cache key for the given class.
+     *
+     * @param pipelineFingerprint the fingerprint of the transformer pipeline, as returned by {@link #pipelineFingerprint(ITreeClassTransformer[])}
+     * @param name                the class' name
+     * @param transformedName     the class' transformed name
+     * @param basicClass          the untransformed class bytes
+     * @return the cache key
+     */
+    public static HashCode key(HashCode pipelineFingerprint, String name, String transformedName, byte[] basicClass) {
+        return Hashing.murmur3_128().newHasher()
+                .putBytes(pipelineFingerprint.asBytes())
+                .putUnencodedChars(name).putByte((byte) 0)
+                .putUnencodedChars(transformedName).putByte((byte) 0)
+                .putBytes(basicClass)
+                .hash();
+    }
+
+    /**
+     * Looks up the transformed bytes of the class with the given key.
+     *
+     * @param key        the key, as returned by {@link #key(HashCode, String, String, byte[])}
+     * @param basicClass the untransformed class bytes
+     * @return the transformed class bytes (which will be {@code basicClass} if the transformers didn't modify the class), or {@code null} if the cache doesn't contain
+     * an entry for the given key
+     */
+    public static byte[] get(HashCode key, byte[] basicClass) {
+        if (UNCHANGED.contains(key)) {
+            USED.add(key);
+            HITS.incrementAndGet();
+            return basicClass;
+        }
+
+        Path file = entryFile(key);
+        if (Files.isRegularFile(file)) {
+            try {
+                byte[] transformedClass = Files.readAllBytes(file);
+
+                //update the modification time so that this entry won't be evicted soon
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+                USED.add(key);
+                HITS.incrementAndGet();
+                return transformedClass;
+            } catch (IOException e) {
+                PPatchesMod.LOGGER.warn("Unable to read transformed class cache entry " + file, e);
+            }
+        }
+
+        MISSES.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the transformed bytes of the class with the given key.
+     *
+     * @param key              the key, as returned by {@link #key(HashCode, String, String, byte[])}
+     * @param basicClass       the untransformed class bytes
+     * @param transformedClass the transformed class bytes
+     */
+    public static void put(HashCode key, byte[] basicClass, byte[] transformedClass) {
+        USED.add(key);
+        STORES.incrementAndGet();
+
+        if (transformedClass == basicClass) { //the class wasn't modified, we only need to remember the key
+            UNCHANGED.add(key);
+            return;
+        }
+
+        Path file = entryFile(key);
+        try {
+            Files.createDirectories(file.getParent());
+
+            //write to a temporary file first to make sure nobody ever sees a partially written entry
+            Path tempFile = Files.createTempFile(file.getParent(), key.toString(), ".tmp");
+            Files.write(tempFile, transformedClass);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to write transformed class cache entry " + file, e);
+        }
+    }
+
+    /**
+     * Logs the number of cache hits and misses since the game was started.
+     */
+    public static void logStatistics() {
+        long hits = HITS.get();
+        long misses = MISSES.get();
+        PPatchesMod.LOGGER.info("Transformed class cache: {} hits, {} misses ({}% hit rate), {} entries stored",
+                hits, misses, hits + misses == 0L ? 0.0d : hits * 100.0d / (hits + misses), STORES.get());
+    }
+
+    private static Path entryFile(HashCode key) {
+        String hex = key.toString();
+        return ROOT.resolve(hex.substring(0, 2)).resolve(hex + ".class");
+    }
+
+    private static void loadUnchangedIndex() {
+        if (!Files.isRegularFile(UNCHANGED_INDEX)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(UNCHANGED_INDEX)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                PPatchesMod.LOGGER.info("Transformed class cache was created by a different version of PPatches, discarding it");
+                in.close();
+                clear();
+                return;
+            }
+
+            byte[] buf = new byte[16];
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                in.readFully(buf);
+                UNCHANGED.add(HashCode.fromBytes(buf));
+            }
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to read transformed class cache index, discarding it", e);
+            UNCHANGED.clear();
+        }
+    }
+
+    private static void saveUnchangedIndex() {
+        //prefer keys which were used during this session, then fill up the remaining space with older ones
+        List<HashCode> keys = new ArrayList<>(Math.min(UNCHANGED.size(), MAX_UNCHANGED_ENTRIES));
+        UNCHANGED.stream().filter(USED::contains).limit(MAX_UNCHANGED_ENTRIES).forEach(keys::add);
+        UNCHANGED.stream().filter(key -> !USED.contains(key)).limit(MAX_UNCHANGED_ENTRIES - keys.size()).forEach(keys::add);
+
+        try {
+            Files.createDirectories(ROOT);
+
+            Path tempFile = Files.createTempFile(ROOT, "unchanged", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(keys.size());
+                for (HashCode key : keys) {
+                    out.write(key.asBytes());
+                }
+            }
+            Files.move(tempFile, UNCHANGED_INDEX, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to write transformed class cache index", e);
+        }
+    }
+
+    private static void trim() {
+        if (!Files.isDirectory(ROOT)) {
+            return;
+        }
+
+        try {
+            List<Path> entries;
+            try (Stream<Path> stream = Files.walk(ROOT)) {
+                entries = stream.filter(path -> path.getFileName().toString().endsWith(".class")).collect(Collectors.toList());
+            }
+
+            long totalSize = 0L;
+            for (Path entry : entries) {
+                totalSize += Files.size(entry);
+            }
+            if (totalSize <= MAX_SIZE) {
+                return;
+            }
+
+            //evict the least recently used entries first
+            entries.sort(Comparator.comparingLong(TransformedClassCache::lastModified));
+            int evicted = 0;
+            for (int i = 0; i < entries.size() && totalSize > MAX_SIZE; i++, evicted++) {
+                Path entry = entries.get(i);
+                totalSize -= Files.size(entry);
+                Files.delete(entry);
+            }
+            PPatchesMod.LOGGER.info("Evicted {} entries from the transformed class cache", evicted);
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to trim transformed class cache", e);
+        }
+    }
+
+    @SneakyThrows(IOException.class)
+    private static long lastModified(Path path) {
+        return Files.getLastModifiedTime(path).toMillis();
+    }
+
+    private static void clear() throws IOException {
+        UNCHANGED.clear();
+
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(ROOT)) {
+            paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+}
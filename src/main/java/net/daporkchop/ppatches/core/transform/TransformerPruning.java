@@ -0,0 +1,294 @@
+package net.daporkchop.ppatches.core.transform;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.ppatches.PPatchesMod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which transformers were interested in each class during previous launches without actually changing it, so that those transformers can be skipped
+ * for the same class on the next launch.
+ * <p>
+ * Each entry is only used if the class bytes which reach PPatches and the fingerprint of the transformer pipeline are identical to the ones which were recorded,
+ * which means that any change to the class, the transformers, the configuration or the contents of the classpath causes the affected transformers to be run
+ * again. The recorded information is written to {@code config/ppatches_pruning.bin} when the game exits.
+ * <p>
+ * This is opt-in, as it assumes that the transformers are deterministic: a transformer which didn't change a class once will never change the same class.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class TransformerPruning {
+    public static final boolean ENABLED = Boolean.getBoolean("ppatches.adaptivePruning");
+
+    private static final Path FILE = Paths.get("config", "ppatches_pruning.bin");
+
+    //increment this whenever the file format changes
+    private static final int FORMAT_VERSION = 1;
+
+    //the entries recorded during previous launches. these are never modified after being loaded, so that every lookup for the same class gives the same result.
+    private static final Map<String, Entry> PREVIOUS = new HashMap<>();
+
+    //the entries recorded during this launch, these replace the previous ones when saving
+    private static final Map<String, Entry> CURRENT = new ConcurrentHashMap<>();
+
+    //the ids of the transformers which made changes to the class currently being transformed on this thread
+    private static final ThreadLocal<BitSet> CHANGED_IN_CURRENT_CLASS = new ThreadLocal<>();
+
+    private static final AtomicLong PRUNED = new AtomicLong();
+
+    static {
+        if (ENABLED) {
+            load();
+            Runtime.getRuntime().addShutdownHook(new Thread(TransformerPruning::save, "PPatches transformer pruning writer"));
+        }
+    }
+
+    private static void load() {
+        if (!Files.isRegularFile(FILE)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(FILE)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                PPatchesMod.LOGGER.warn("{} was created by a different version of PPatches, ignoring it", FILE);
+                return;
+            }
+
+            byte[] buf = new byte[16];
+            in.readFully(buf);
+            HashCode pipelineFingerprint = HashCode.fromBytes(buf);
+
+            String[] transformerNames = new String[in.readInt()];
+            for (int i = 0; i < transformerNames.length; i++) {
+                transformerNames[i] = in.readUTF();
+            }
+
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                String transformedName = in.readUTF();
+                in.readFully(buf);
+                HashCode basicClassHash = HashCode.fromBytes(buf);
+                String[] unchangedTransformers = new String[in.readUnsignedShort()];
+                for (int j = 0; j < unchangedTransformers.length; j++) {
+                    unchangedTransformers[j] = transformerNames[in.readUnsignedShort()];
+                }
+                PREVIOUS.put(transformedName, new Entry(pipelineFingerprint, basicClassHash, unchangedTransformers));
+            }
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.warn("Unable to read " + FILE + ", ignoring it", e);
+            PREVIOUS.clear();
+            return;
+        }
+
+        PPatchesMod.LOGGER.info("Loaded transformer pruning information for {} classes from {}", PREVIOUS.size(), FILE);
+    }
+
+    private static void save() {
+        //only keep entries which were recorded by the most recent pipeline, any others would be discarded when loading them again anyway
+        HashCode pipelineFingerprint = PPatchesTransformerRoot.currentPipeline().fingerprint();
+        Map<String, Entry> entries = new HashMap<>();
+        PREVIOUS.forEach((transformedName, entry) -> {
+            if (entry.pipelineFingerprint.equals(pipelineFingerprint)) {
+                entries.put(transformedName, entry);
+            }
+        });
+        CURRENT.forEach((transformedName, entry) -> {
+            if (entry.pipelineFingerprint.equals(pipelineFingerprint)) {
+                entries.put(transformedName, entry);
+            }
+        });
+
+        Map<String, Integer> transformerIds = new HashMap<>();
+        List<String> transformerNames = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            for (String transformerName : entry.unchangedTransformers) {
+                transformerIds.computeIfAbsent(transformerName, n -> {
+                    transformerNames.add(n);
+                    return transformerNames.size() - 1;
+                });
+            }
+        }
+
+        try {
+            Files.createDirectories(FILE.toAbsolutePath().getParent());
+            Path tempFile = Files.createTempFile(FILE.toAbsolutePath().getParent(), "ppatches_pruning", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.write(pipelineFingerprint.asBytes());
+
+                out.writeInt(transformerNames.size());
+                for (String transformerName : transformerNames) {
+                    out.writeUTF(transformerName);
+                }
+
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.write(entry.getValue().basicClassHash.asBytes());
+                    out.writeShort(entry.getValue().unchangedTransformers.length);
+                    for (String transformerName : entry.getValue().unchangedTransformers) {
+                        out.writeShort(transformerIds.get(transformerName));
+                    }
+                }
+            }
+            Files.move(tempFile, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            PPatchesMod.LOGGER.error("Unable to write transformer pruning information to " + FILE, e);
+        }
+    }
+
+    /**
+     * Removes all the transformers which were interested in the given class during a previous launch without changing it from the given interested mask.
+     *
+     * @param pipeline        the transformer pipeline which will be used to transform the class
+     * @param transformedName the class' transformed name
+     * @param basicClass      the untransformed class bytes
+     * @param interestedMask  the indices of the transformers which are currently interested in the class
+     */
+    static void prune(PPatchesTransformerRoot.TransformerPipeline pipeline, String transformedName, byte[] basicClass, BitSet interestedMask) {
+        Entry entry = PREVIOUS.get(transformedName);
+        if (entry == null || !entry.pipelineFingerprint.equals(pipeline.fingerprint()) || !entry.basicClassHash.equals(Hashing.murmur3_128().hashBytes(basicClass))) {
+            return;
+        }
+
+        for (String transformerName : entry.unchangedTransformers) {
+            int index = pipeline.transformerIndex(transformerName);
+            if (index >= 0 && interestedMask.get(index)) {
+                interestedMask.clear(index);
+                PRUNED.incrementAndGet();
+            }
+        }
+    }
+
+    //
+    // method called from the generated pipeline code
+    //
+
+    public static int recordTransform(int result, int transformerIndex) {
+        BitSet changedInCurrentClass;
+        if (result != 0 && (changedInCurrentClass = CHANGED_IN_CURRENT_CLASS.get()) != null) {
+            changedInCurrentClass.set(transformerIndex);
+        }
+        return result;
+    }
+
+    //
+    // methods called from PPatchesTransformerRoot
+    //
+
+    /**
+     * Notifies the pruning tracker that a class is about to be transformed on the current thread.
+     *
+     * @return a value which must be passed to {@link #endClass(BitSet)} once the class has been transformed
+     */
+    static BitSet beginClass() {
+        //transformers may cause other classes to be loaded (and therefore transformed), so we have to be able to restore the previous state afterwards
+        BitSet previous = CHANGED_IN_CURRENT_CLASS.get();
+        CHANGED_IN_CURRENT_CLASS.set(new BitSet());
+        return previous;
+    }
+
+    /**
+     * Records which of the transformers which were interested in the class currently being transformed on this thread didn't change it.
+     *
+     * @param pipeline        the transformer pipeline which was used to transform the class
+     * @param transformedName the class' transformed name
+     * @param basicClass      the untransformed class bytes
+     * @param interestedMask  the indices of the transformers which were interested in the class before it was transformed
+     */
+    static void recordClass(PPatchesTransformerRoot.TransformerPipeline pipeline, String transformedName, byte[] basicClass, BitSet interestedMask) {
+        BitSet unchangedMask = (BitSet) interestedMask.clone();
+        unchangedMask.andNot(CHANGED_IN_CURRENT_CLASS.get());
+
+        HashCode pipelineFingerprint = pipeline.fingerprint();
+        HashCode basicClassHash = Hashing.murmur3_128().hashBytes(basicClass);
+
+        List<String> unchangedTransformers = new ArrayList<>();
+        for (int i = unchangedMask.nextSetBit(0); i >= 0; i = unchangedMask.nextSetBit(i + 1)) {
+            unchangedTransformers.add(pipeline.allTransformers[i].getClass().getName());
+        }
+
+        //the transformers which were already pruned won't have been run this time, so we need to carry them over from the previous entry
+        Entry previousEntry = PREVIOUS.get(transformedName);
+        if (previousEntry != null && previousEntry.pipelineFingerprint.equals(pipelineFingerprint) && previousEntry.basicClassHash.equals(basicClassHash)) {
+            for (String transformerName : previousEntry.unchangedTransformers) {
+                if (!unchangedTransformers.contains(transformerName)) {
+                    unchangedTransformers.add(transformerName);
+                }
+            }
+        }
+
+        if (unchangedTransformers.isEmpty()) {
+            CURRENT.remove(transformedName);
+        } else {
+            CURRENT.put(transformedName, new Entry(pipelineFingerprint, basicClassHash, unchangedTransformers.toArray(new String[0])));
+        }
+    }
+
+    /**
+     * Notifies the pruning tracker that the transformers which were run on the current thread on behalf of a class being transformed on another thread are done. The
+     * task must have been started using {@link #beginClass()}.
+     *
+     * @param previous the value returned by the corresponding call to {@link #beginClass()}
+     * @return the changes made by the task, which must be passed to {@link #mergeTaskChanges(BitSet)} on the thread which is transforming the class
+     */
+    static BitSet endTask(BitSet previous) {
+        BitSet changes = CHANGED_IN_CURRENT_CLASS.get();
+        CHANGED_IN_CURRENT_CLASS.set(previous);
+        return changes;
+    }
+
+    /**
+     * Merges the changes made by a task on another thread into the state of the class currently being transformed on this thread.
+     *
+     * @param changes the value returned by {@link #endTask(BitSet)}
+     */
+    static void mergeTaskChanges(BitSet changes) {
+        BitSet changedInCurrentClass = CHANGED_IN_CURRENT_CLASS.get();
+        if (changedInCurrentClass != null) {
+            changedInCurrentClass.or(changes);
+        }
+    }
+
+    /**
+     * Notifies the pruning tracker that the class which was being transformed on the current thread is done.
+     *
+     * @param previous the value returned by the corresponding call to {@link #beginClass()}
+     */
+    static void endClass(BitSet previous) {
+        CHANGED_IN_CURRENT_CLASS.set(previous);
+    }
+
+    /**
+     * Logs the number of transformer invocations which were skipped.
+     */
+    public static void logStatistics() {
+        PPatchesMod.LOGGER.info("Transformer pruning: skipped {} transformers, {} classes recorded during this launch, {} from previous launches",
+                PRUNED.get(), CURRENT.size(), PREVIOUS.size());
+    }
+
+    @RequiredArgsConstructor
+    private static final class Entry {
+        public final HashCode pipelineFingerprint;
+        public final HashCode basicClassHash;
+        public final String[] unchangedTransformers; //the class names of the transformers which were interested in the class but didn't change it
+    }
+}
@@ -0,0 +1,215 @@
+package net.daporkchop.ppatches.core.transform;
+
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.ppatches.PPatchesMod;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timing and change statistics for each transformer in the pipeline built by {@link PPatchesTransformerRoot}.
+ * <p>
+ * If enabled, the generated pipeline methods record how often each transformer was invoked, how much time it spent and how often it made changes.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class TransformerStatistics {
+    public static final boolean ENABLED = Boolean.getBoolean("ppatches.transformerStatistics");
+
+    private static final Map<ITreeClassTransformer, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final List<Entry> ENTRIES_BY_ID = new CopyOnWriteArrayList<>();
+
+    //the ids of the transformers which made changes to the class currently being transformed on this thread
+    private static final ThreadLocal<BitSet> CHANGED_IN_CURRENT_CLASS = new ThreadLocal<>();
+
+    private static final OptimizationRounds BASIC_OPTIMIZATION_ROUNDS = new OptimizationRounds("basic");
+    private static final OptimizationRounds ANALYZED_OPTIMIZATION_ROUNDS = new OptimizationRounds("analyzed");
+
+    /**
+     * Gets the statistics entry for the given transformer, creating it if necessary.
+     *
+     * @param transformer the transformer
+     * @return the statistics entry
+     */
+    public static synchronized Entry entry(ITreeClassTransformer transformer) {
+        return ENTRIES.computeIfAbsent(transformer, t -> {
+            Entry entry = new Entry(t.getClass().getName(), ENTRIES_BY_ID.size());
+            ENTRIES_BY_ID.add(entry);
+            return entry;
+        });
+    }
+
+    //
+    // methods called from the generated pipeline code
+    //
+
+    public static boolean recordInterested(boolean result, Entry entry, long startTime) {
+        entry.interested.record(startTime, result);
+        return result;
+    }
+
+    public static boolean recordInterestedExact(boolean result, Entry entry, long startTime) {
+        entry.interestedExact.record(startTime, result);
+        return result;
+    }
+
+    public static int recordTransform(int result, Entry entry, long startTime) {
+        entry.transform.record(startTime, result != 0);
+
+        BitSet changedInCurrentClass;
+        if (result != 0 && (changedInCurrentClass = CHANGED_IN_CURRENT_CLASS.get()) != null) {
+            changedInCurrentClass.set(entry.id);
+        }
+        return result;
+    }
+
+    //
+    // methods called from PPatchesTransformerRoot
+    //
+
+    /**
+     * Notifies the statistics tracker that a class is about to be transformed on the current thread.
+     *
+     * @return a value which must be passed to {@link #endClass(BitSet)} once the class has been transformed
+     */
+    static BitSet beginClass() {
+        //transformers may cause other classes to be loaded (and therefore transformed), so we have to be able to restore the previous state afterwards
+        BitSet previous = CHANGED_IN_CURRENT_CLASS.get();
+        CHANGED_IN_CURRENT_CLASS.set(new BitSet());
+        return previous;
+    }
+
+    /**
+     * Notifies the statistics tracker that the transformers which were run on the current thread on behalf of a class being transformed on another thread are done. The
+     * task must have been started using {@link #beginClass()}.
+     *
+     * @param previous the value returned by the corresponding call to {@link #beginClass()}
+     * @return the changes made by the task, which must be passed to {@link #mergeTaskChanges(BitSet)} on the thread which is transforming the class
+     */
+    static BitSet endTask(BitSet previous) {
+        BitSet changes = CHANGED_IN_CURRENT_CLASS.get();
+        CHANGED_IN_CURRENT_CLASS.set(previous);
+        return changes;
+    }
+
+    /**
+     * Merges the changes made by a task on another thread into the state of the class currently being transformed on this thread.
+     *
+     * @param changes the value returned by {@link #endTask(BitSet)}
+     */
+    static void mergeTaskChanges(BitSet changes) {
+        BitSet changedInCurrentClass = CHANGED_IN_CURRENT_CLASS.get();
+        if (changedInCurrentClass != null) {
+            changedInCurrentClass.or(changes);
+        }
+    }
+
+    /**
+     * Notifies the statistics tracker that the class which was being transformed on the current thread is done.
+     *
+     * @param previous the value returned by the corresponding call to {@link #beginClass()}
+     */
+    static void endClass(BitSet previous) {
+        BitSet changedInCurrentClass = CHANGED_IN_CURRENT_CLASS.get();
+        for (int id = changedInCurrentClass.nextSetBit(0); id >= 0; id = changedInCurrentClass.nextSetBit(id + 1)) {
+            ENTRIES_BY_ID.get(id).classesChanged.increment();
+        }
+        CHANGED_IN_CURRENT_CLASS.set(previous);
+    }
+
+    static void recordOptimizationRounds(boolean analyzed, int rounds) {
+        (analyzed ? ANALYZED_OPTIMIZATION_ROUNDS : BASIC_OPTIMIZATION_ROUNDS).record(rounds);
+    }
+
+    /**
+     * Logs the statistics collected so far, sorted by the total time spent in each transformer.
+     */
+    public static void dumpReport() {
+        List<Entry> entries = new ArrayList<>(ENTRIES_BY_ID);
+        entries.sort(Comparator.comparingLong(Entry::totalNanos).reversed());
+
+        PPatchesMod.LOGGER.info("Transformer statistics ({} transformers, sorted by total time):", entries.size());
+        for (Entry entry : entries) {
+            PPatchesMod.LOGGER.info("  {}: {}ms total, {} classes changed", entry.name, entry.totalNanos() / 1_000_000.0d, entry.classesChanged.sum());
+            entry.interested.log("interestedInClass");
+            entry.interestedExact.log("interestedInClass (exact)");
+            entry.transform.log("transform");
+        }
+        BASIC_OPTIMIZATION_ROUNDS.log();
+        ANALYZED_OPTIMIZATION_ROUNDS.log();
+    }
+
+    /**
+     * Statistics for a single transformer.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    public static final class Entry {
+        public final String name;
+        final int id;
+
+        final Counter interested = new Counter();
+        final Counter interestedExact = new Counter();
+        final Counter transform = new Counter();
+
+        final LongAdder classesChanged = new LongAdder();
+
+        long totalNanos() {
+            return this.interested.nanos.sum() + this.interestedExact.nanos.sum() + this.transform.nanos.sum();
+        }
+    }
+
+    private static final class Counter {
+        final LongAdder invocations = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder positiveResults = new LongAdder();
+
+        void record(long startTime, boolean positiveResult) {
+            this.nanos.add(System.nanoTime() - startTime);
+            this.invocations.increment();
+            if (positiveResult) {
+                this.positiveResults.increment();
+            }
+        }
+
+        void log(String what) {
+            long invocations = this.invocations.sum();
+            if (invocations != 0L) {
+                PPatchesMod.LOGGER.info("    {}: {} invocations ({} positive), {}ms", what, invocations, this.positiveResults.sum(), this.nanos.sum() / 1_000_000.0d);
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static final class OptimizationRounds {
+        final String kind;
+
+        final LongAdder methods = new LongAdder();
+        final LongAdder rounds = new LongAdder();
+        final LongAccumulator maxRounds = new LongAccumulator(Math::max, 0L);
+
+        void record(int rounds) {
+            this.methods.increment();
+            this.rounds.add(rounds);
+            this.maxRounds.accumulate(rounds);
+        }
+
+        void log() {
+            long methods = this.methods.sum();
+            if (methods != 0L) {
+                PPatchesMod.LOGGER.info("Ran {} optimization passes on {} methods: {} rounds total, {} rounds per method on average, {} rounds max",
+                        this.kind, methods, this.rounds.sum(), (double) this.rounds.sum() / methods, this.maxRounds.get());
+            }
+        }
+    }
+}
@@ -11,8 +11,7 @@ import net.daporkchop.ppatches.util.asm.VarargsParameterDecoder;
 import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
 import net.daporkchop.ppatches.util.asm.analysis.IReverseDataflowProvider;
 import net.daporkchop.ppatches.util.asm.concat.PreparedConcatGenerator;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
-import org.objectweb.asm.ClassReader;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -37,10 +36,23 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class FoldTypeConstantsTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.ExactInterested, ITreeClassTransformer.OptimizationPass {
+public class FoldTypeConstantsTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.IncrementalOptimizationPass, ITreeClassTransformer.LoadingFree {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesClass("org/objectweb/asm/Type");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass("org/objectweb/asm/Type");
+    }
+
+    @Override
+    public boolean interestedInChangedInstruction(AnalyzedInsnList instructions, AbstractInsnNode insn) {
+        switch (insn.getOpcode()) {
+            case INVOKESTATIC:
+                return "org/objectweb/asm/Type".equals(((MethodInsnNode) insn).owner);
+            case AASTORE: //the instruction may be storing an element of a varargs array
+                return true;
+            default:
+                return false;
+        }
     }
 
     @Override
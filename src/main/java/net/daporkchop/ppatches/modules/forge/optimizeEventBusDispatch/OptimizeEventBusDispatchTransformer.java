@@ -11,12 +11,11 @@ import net.daporkchop.ppatches.util.asm.AnonymousClassWriter;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
 import net.daporkchop.ppatches.util.asm.analysis.IReverseDataflowProvider;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.minecraftforge.fml.common.eventhandler.Event;
 import net.minecraftforge.fml.common.eventhandler.EventBus;
 import net.minecraftforge.fml.common.eventhandler.IEventListener;
 import net.minecraftforge.fml.common.eventhandler.ListenerList;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
@@ -42,10 +41,11 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class OptimizeEventBusDispatchTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.ExactInterested {
+public class OptimizeEventBusDispatchTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.ReferenceInterested {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod("net/minecraftforge/fml/common/eventhandler/EventBus", "post", "(Lnet/minecraftforge/fml/common/eventhandler/Event;)Z");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod("net/minecraftforge/fml/common/eventhandler/EventBus", "post", "(Lnet/minecraftforge/fml/common/eventhandler/Event;)Z");
     }
 
     @Override
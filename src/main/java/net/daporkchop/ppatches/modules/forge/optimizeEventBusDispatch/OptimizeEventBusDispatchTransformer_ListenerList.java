@@ -2,10 +2,9 @@ package net.daporkchop.ppatches.modules.forge.optimizeEventBusDispatch;
 
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.minecraftforge.fml.common.eventhandler.Event;
 import net.minecraftforge.fml.common.eventhandler.ListenerList;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
@@ -30,10 +29,11 @@ import static org.objectweb.asm.Opcodes.*;
  *
  * @author DaPorkchop_
  */
-public class OptimizeEventBusDispatchTransformer_ListenerList implements ITreeClassTransformer, ITreeClassTransformer.ExactInterested {
+public class OptimizeEventBusDispatchTransformer_ListenerList implements ITreeClassTransformer, ITreeClassTransformer.ReferenceInterested {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod("net/minecraftforge/fml/common/eventhandler/ListenerList", "<init>", "(Lnet/minecraftforge/fml/common/eventhandler/ListenerList;)V");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod("net/minecraftforge/fml/common/eventhandler/ListenerList", "<init>", "(Lnet/minecraftforge/fml/common/eventhandler/ListenerList;)V");
     }
 
     @Override
@@ -3,6 +3,7 @@ package net.daporkchop.ppatches.modules.forge.optimizeEventInstanceAllocation;
 import com.google.common.base.Preconditions;
 import net.daporkchop.ppatches.PPatchesMod;
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.modules.mixin.optimizeCallbackInfoAllocation.OptimizeCallbackInfoAllocationTransformer;
 import net.daporkchop.ppatches.util.MethodHandleUtils;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.InvokeDynamicUtils;
@@ -29,8 +30,8 @@ import static org.objectweb.asm.Opcodes.*;
  */
 public class OptimizeEventInstanceAllocationTransformer_Events implements ITreeClassTransformer {
     @Override
-    public int priority() {
-        return 1500; //we want this to run after OptimzeCallbackInfoTransformer
+    public Collection<Class<? extends ITreeClassTransformer>> runsAfter() {
+        return Collections.singletonList(OptimizeCallbackInfoAllocationTransformer.class);
     }
 
     static boolean isEventClass(String transformedName) {
@@ -5,12 +5,12 @@ import net.daporkchop.ppatches.PPatchesConfig;
 import net.daporkchop.ppatches.PPatchesMod;
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.modules.forge.optimizeEventBusDispatch.OptimizeEventBusDispatchTransformer;
+import net.daporkchop.ppatches.modules.mixin.optimizeCallbackInfoAllocation.OptimizeCallbackInfoAllocationTransformer;
 import net.daporkchop.ppatches.util.MethodHandleUtils;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.minecraftforge.fml.common.eventhandler.Event;
 import net.minecraftforge.fml.common.eventhandler.EventBus;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.signature.SignatureWriter;
@@ -41,6 +41,8 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
@@ -54,15 +56,16 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class OptimizeEventInstanceAllocationTransformer_IndividualMethods implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ExactInterested {
+public class OptimizeEventInstanceAllocationTransformer_IndividualMethods implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ReferenceInterested {
     @Override
-    public int priority() {
-        return 1600; //we want this to run after OptimzeCallbackInfoTransformer and OptimizeEventInstanceAllocationTransformer_Events
+    public Collection<Class<? extends ITreeClassTransformer>> runsAfter() {
+        return Arrays.asList(OptimizeCallbackInfoAllocationTransformer.class, OptimizeEventInstanceAllocationTransformer_Events.class);
     }
 
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod("net/minecraftforge/fml/common/eventhandler/EventBus", "post", "(Lnet/minecraftforge/fml/common/eventhandler/Event;)Z");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod("net/minecraftforge/fml/common/eventhandler/EventBus", "post", "(Lnet/minecraftforge/fml/common/eventhandler/Event;)Z");
     }
 
     @Override
@@ -0,0 +1,171 @@
+package net.daporkchop.ppatches.modules.java.cacheEnumValues;
+
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
+import net.daporkchop.ppatches.util.asm.analysis.UsageValue;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Replaces calls to an enum's {@code values()} method whose result is only ever read (indexed, or having its length queried) with an {@code INVOKEDYNAMIC}
+ * instruction which reads the enum's internal values array directly, in order to avoid cloning the array every time the method is invoked.
+ * <p>
+ * As the array is never allowed to escape from the method, it is impossible for the transformed code to modify it. The internal array is read every time
+ * rather than being captured once, as Forge's {@code EnumHelper} adds constants to enums at runtime by replacing it.
+ *
+ * @author DaPorkchop_
+ */
+public class CacheEnumValuesTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.LoadingFree {
+    @Override
+    public boolean interestedInMethod(String className, String classTransformedName, MethodNode methodNode) {
+        //avoid analyzing the method if there's nothing to transform
+        return !"<clinit>".equals(methodNode.name) && containsCandidateValuesCall(methodNode.instructions);
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions) {
+        List<MethodInsnNode> cacheableInsns = new ArrayList<>();
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (isCandidateValuesCall(insn) && !instructions.isUnreachable(insn) && isOnlyRead(instructions, insn, BytecodeHelper.makeInsnSet())) {
+                cacheableInsns.add((MethodInsnNode) insn);
+            }
+        }
+
+        if (cacheableInsns.isEmpty()) {
+            return 0;
+        }
+
+        try (AnalyzedInsnList.ChangeBatch batch = instructions.beginChanges()) {
+            for (MethodInsnNode invokeInsn : cacheableInsns) {
+                PPatchesMod.LOGGER.debug("Caching call to L{};values() at L{};{}{} {}",
+                        invokeInsn.owner, classNode.name, methodNode.name, methodNode.desc, BytecodeHelper.findLineNumberForLog(invokeInsn));
+
+                batch.set(invokeInsn, new InvokeDynamicInsnNode(invokeInsn.name, invokeInsn.desc,
+                        new Handle(H_INVOKESTATIC,
+                                Type.getInternalName(CacheEnumValuesTransformer.class),
+                                "bootstrapValues",
+                                Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class), Type.getType(MethodType.class)),
+                                CacheEnumValuesTransformer.class.isInterface())));
+            }
+        }
+        return CHANGED;
+    }
+
+    private static boolean isCandidateValuesCall(AbstractInsnNode insn) {
+        if (insn.getOpcode() != INVOKESTATIC) {
+            return false;
+        }
+
+        //we can't tell whether or not the owner is actually an enum without loading it, this is checked when the call site is linked instead
+        MethodInsnNode methodInsn = (MethodInsnNode) insn;
+        return !methodInsn.itf && "values".equals(methodInsn.name) && methodInsn.desc.equals("()[L" + methodInsn.owner + ';');
+    }
+
+    private static boolean containsCandidateValuesCall(InsnList instructions) {
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (isCandidateValuesCall(insn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the array produced by the given instruction is only ever read, following it through any local variables it's stored in.
+     *
+     * @param visitedStores the local variable store instructions which have already been checked
+     */
+    private static boolean isOnlyRead(AnalyzedInsnList instructions, AbstractInsnNode producerInsn, Set<AbstractInsnNode> visitedStores) {
+        for (AbstractInsnNode usageInsn : instructions.getSoleResultStackUsages(producerInsn).insns) {
+            switch (usageInsn.getOpcode()) {
+                case ARRAYLENGTH:
+                case AALOAD: //the array can only be the first operand, as the index is an int
+                case POP:
+                    break;
+                case ASTORE:
+                    if (visitedStores.add(usageInsn) && !isLocalOnlyRead(instructions, usageInsn, visitedStores)) {
+                        return false;
+                    }
+                    break;
+                default: //the array is used in some other way which could modify it or allow it to escape
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLocalOnlyRead(AnalyzedInsnList instructions, AbstractInsnNode storeInsn, Set<AbstractInsnNode> visitedStores) {
+        UsageValue localUsages = instructions.getLocalUsages(storeInsn);
+        if (localUsages == null) {
+            return false;
+        }
+
+        for (AbstractInsnNode loadInsn : localUsages.insns) {
+            if (loadInsn.getOpcode() != ALOAD || !isOnlyRead(instructions, loadInsn, visitedStores)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static CallSite bootstrapValues(MethodHandles.Lookup lookup, String name, MethodType type) throws Throwable {
+        Class<?> owner = type.returnType().getComponentType();
+        MethodHandle valuesMethod = lookup.findStatic(owner, name, type);
+
+        if (!owner.isEnum()) { //this is some other method which happens to look like an enum's values() method, we can't assume anything about what it returns
+            PPatchesMod.LOGGER.debug("Not caching {}.{}() as {} isn't an enum", owner.getName(), name, owner.getName());
+            return new ConstantCallSite(valuesMethod);
+        }
+
+        Field valuesField = findValuesField(owner);
+        if (valuesField == null) {
+            PPatchesMod.LOGGER.debug("Not caching {}.{}() as the values array field couldn't be found", owner.getName(), name);
+            return new ConstantCallSite(valuesMethod);
+        }
+
+        MethodHandle valuesGetter;
+        try {
+            valuesField.setAccessible(true);
+            valuesGetter = MethodHandles.lookup().unreflectGetter(valuesField);
+        } catch (RuntimeException | IllegalAccessException e) {
+            PPatchesMod.LOGGER.debug("Not caching {}.{}(): {}", owner.getName(), name, e);
+            return new ConstantCallSite(valuesMethod);
+        }
+        return new ConstantCallSite(valuesGetter.asType(type));
+    }
+
+    /**
+     * Finds the synthetic field which an enum's {@code values()} method clones ({@code $VALUES} when compiled with javac, {@code ENUM$VALUES} with ecj).
+     */
+    private static Field findValuesField(Class<?> owner) {
+        Class<?> arrayType = Array.newInstance(owner, 0).getClass();
+        for (Field field : owner.getDeclaredFields()) {
+            if (field.isSynthetic() && Modifier.isStatic(field.getModifiers()) && field.getType() == arrayType) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,209 @@
+package net.daporkchop.ppatches.modules.java.devirtualizeCalls;
+
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ClassHierarchyIndex;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Replaces {@code INVOKEVIRTUAL} and {@code INVOKEINTERFACE} instructions whose owner only has a single implementation on the classpath with an
+ * {@code INVOKEDYNAMIC} instruction which checks the receiver's exact type and then invokes the method as resolved against that type.
+ * <p>
+ * The class hierarchy index doesn't know about classes which are defined at runtime or implement an interface because of a mixin, so the call site is re-linked to
+ * a regular virtual call as soon as it sees a receiver of any other type.
+ *
+ * @author DaPorkchop_
+ */
+public class DevirtualizeCallsTransformer implements ITreeClassTransformer.IndividualMethod {
+    @Override
+    public boolean interestedInClass(String name, String transformedName) {
+        return ClassHierarchyIndex.ENABLED;
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, InsnList instructions) {
+        int changeFlags = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(), next; insn != null; insn = next) {
+            next = insn.getNext();
+
+            if (insn.getOpcode() == INVOKEVIRTUAL || insn.getOpcode() == INVOKEINTERFACE) {
+                changeFlags |= transformInvoke(classNode, methodNode, instructions, (MethodInsnNode) insn);
+            }
+        }
+        return changeFlags;
+    }
+
+    private static int transformInvoke(ClassNode classNode, MethodNode methodNode, InsnList instructions, MethodInsnNode invokeInsn) {
+        if (invokeInsn.owner.startsWith("[")) { //array types don't have any implementations
+            return 0;
+        } else if (invokeInsn.getOpcode() == INVOKEINTERFACE && isObjectMethod(invokeInsn.name, invokeInsn.desc)) {
+            return 0;
+        }
+
+        String implementation = ClassHierarchyIndex.findSingleImplementation(invokeInsn.owner);
+        if (implementation == null || implementation.equals(invokeInsn.owner)) {
+            //if the owner is its own only implementation, it's a leaf class and the JIT's class hierarchy analysis can already devirtualize calls to it
+            return 0;
+        }
+
+        PPatchesMod.LOGGER.debug("Devirtualizing call to L{};{}{} at L{};{}{} {} with single implementation {}",
+                invokeInsn.owner, invokeInsn.name, invokeInsn.desc,
+                classNode.name, methodNode.name, methodNode.desc, BytecodeHelper.findLineNumberForLog(invokeInsn),
+                implementation);
+
+        Type[] argumentTypes = Type.getArgumentTypes(invokeInsn.desc);
+        Type[] indyArgumentTypes = new Type[argumentTypes.length + 1];
+        indyArgumentTypes[0] = Type.getObjectType(invokeInsn.owner);
+        System.arraycopy(argumentTypes, 0, indyArgumentTypes, 1, argumentTypes.length);
+
+        instructions.set(invokeInsn, new InvokeDynamicInsnNode(invokeInsn.name, Type.getMethodDescriptor(Type.getReturnType(invokeInsn.desc), indyArgumentTypes),
+                new Handle(H_INVOKESTATIC,
+                        Type.getInternalName(DevirtualizeCallsTransformer.class),
+                        "bootstrapDevirtualized",
+                        Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class), Type.getType(MethodType.class), Type.getType(String.class)),
+                        DevirtualizeCallsTransformer.class.isInterface()),
+                implementation.replace('/', '.')));
+        return CHANGED;
+    }
+
+    private static boolean isObjectMethod(String name, String desc) {
+        //interfaces may redeclare the public methods of Object, but INVOKEINTERFACE on them is resolved against Object
+        switch (name) {
+            case "equals":
+                return "(Ljava/lang/Object;)Z".equals(desc);
+            case "hashCode":
+                return "()I".equals(desc);
+            case "toString":
+                return "()Ljava/lang/String;".equals(desc);
+            default:
+                return false;
+        }
+    }
+
+    public static CallSite bootstrapDevirtualized(MethodHandles.Lookup lookup, String name, MethodType type, String expectedImplementationName) throws ReflectiveOperationException {
+        //the caller is allowed to invoke the original method, so the lookup will always be able to find it. for protected methods, this will restrict the receiver
+        //  to the caller's type, which is fine since the original call would have had the same restriction.
+        MethodHandle virtualTarget = lookup.findVirtual(type.parameterType(0), name, type.dropParameterTypes(0, 1)).asType(type);
+        return new DevirtualizingCallSite(lookup, name, virtualTarget, expectedImplementationName);
+    }
+
+    /**
+     * A {@link MutableCallSite} which is linked to a direct call to the expected implementation when it's first invoked, and falls back to a regular virtual call
+     * if it ever sees a receiver of a different type.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class DevirtualizingCallSite extends MutableCallSite {
+        private static final MethodHandle LINK;
+        private static final MethodHandle IS_EXACTLY;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                LINK = lookup.findVirtual(DevirtualizingCallSite.class, "link", MethodType.methodType(Object.class, Object[].class));
+                IS_EXACTLY = lookup.findStatic(DevirtualizingCallSite.class, "isExactly", MethodType.methodType(boolean.class, Class.class, Object.class));
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private static boolean isExactly(Class<?> expectedClass, Object receiver) {
+            return receiver != null && receiver.getClass() == expectedClass;
+        }
+
+        private final MethodHandles.Lookup lookup;
+        private final String name;
+        private final MethodHandle virtualTarget;
+        private final String expectedImplementationName;
+        private boolean linked;
+        private boolean fallenBack;
+
+        DevirtualizingCallSite(MethodHandles.Lookup lookup, String name, MethodHandle virtualTarget, String expectedImplementationName) {
+            super(virtualTarget.type());
+            this.lookup = lookup;
+            this.name = name;
+            this.virtualTarget = virtualTarget;
+            this.expectedImplementationName = expectedImplementationName;
+
+            this.setTarget(this.linkHandle());
+        }
+
+        private MethodHandle linkHandle() {
+            return LINK.bindTo(this).asCollector(Object[].class, this.type().parameterCount()).asType(this.type());
+        }
+
+        private Object link(Object[] args) throws Throwable {
+            Object receiver = args[0];
+            if (receiver != null) { //if it's null, the virtual call will throw a NullPointerException, exactly like the original instruction would have
+                this.relink(receiver.getClass());
+            }
+
+            //this mustn't be done while holding the lock, as the target could run arbitrary code (including invoking this same call site from another thread)
+            return this.virtualTarget.invokeWithArguments(args);
+        }
+
+        private synchronized void relink(Class<?> receiverClass) {
+            if (this.fallenBack) { //another thread already saw a different receiver type while this one was invoking the old target
+                return;
+            }
+
+            if (receiverClass.getName().equals(this.expectedImplementationName)) {
+                if (this.linked) { //another thread already linked the call site while this one was invoking the old target
+                    return;
+                }
+
+                MethodHandle directTarget = this.findDirectTarget(receiverClass);
+                if (directTarget != null) {
+                    this.linked = true;
+
+                    MethodType type = this.type();
+                    MethodHandle test = MethodHandles.dropArguments(IS_EXACTLY.bindTo(receiverClass).asType(MethodType.methodType(boolean.class, type.parameterType(0))),
+                            1, type.parameterList().subList(1, type.parameterCount()));
+                    this.setTarget(MethodHandles.guardWithTest(test, directTarget, this.linkHandle()));
+                    return;
+                }
+            }
+
+            PPatchesMod.LOGGER.debug("Devirtualized call site for {} saw receiver of type {} (expected {}), falling back to virtual dispatch",
+                    this.type(), receiverClass.getName(), this.expectedImplementationName);
+            this.fallenBack = true;
+            this.setTarget(this.virtualTarget);
+        }
+
+        /**
+         * Resolves the method against the implementation class itself rather than against the original owner.
+         * <p>
+         * The original owner is usually an interface or abstract class, so the JIT can't bind calls to it statically. The implementation is a concrete class
+         * with no subclasses, so its class hierarchy analysis can bind the resolved method directly (and will deoptimize the call site if a subclass is loaded
+         * later on).
+         *
+         * @return a handle which invokes the method on a receiver of exactly the given type, or {@code null} if the method can't be resolved from the caller
+         */
+        private MethodHandle findDirectTarget(Class<?> receiverClass) {
+            MethodType type = this.type();
+            try {
+                return this.lookup.findVirtual(receiverClass, this.name, type.dropParameterTypes(0, 1)).asType(type);
+            } catch (ReflectiveOperationException e) {
+                //the implementation class isn't accessible from the caller (e.g. it's package-private)
+                PPatchesMod.LOGGER.debug("Unable to resolve {} on devirtualized implementation {}: {}", type, receiverClass.getName(), e);
+                return null;
+            }
+        }
+    }
+}
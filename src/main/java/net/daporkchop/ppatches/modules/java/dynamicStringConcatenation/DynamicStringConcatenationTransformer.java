@@ -5,8 +5,7 @@ import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
 import net.daporkchop.ppatches.util.asm.concat.DynamicConcatGenerator;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
-import org.objectweb.asm.ClassReader;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
@@ -20,10 +19,11 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class DynamicStringConcatenationTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.ExactInterested {
+public class DynamicStringConcatenationTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.LoadingFree {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod("java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod("java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
     }
 
     @Override
@@ -0,0 +1,768 @@
+package net.daporkchop.ppatches.modules.java.flattenGuavaIterables;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import lombok.RequiredArgsConstructor;
+import lombok.With;
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import net.daporkchop.ppatches.util.asm.LVTReference;
+import net.daporkchop.ppatches.util.asm.LambdaFlattener;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.apache.commons.lang3.mutable.MutableInt;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Rewrites chains of Guava's lazy {@link Iterable} views (as created by {@link Iterables}, {@link Collections2} and {@link FluentIterable}) which are
+ * immediately consumed by a terminal operation into an equivalent loop, using the same approach as
+ * {@link net.daporkchop.ppatches.modules.java.flattenStreams.FlattenStreamsTransformer}.
+ * <p>
+ * A view is only eliminated if its sole usage is as the input to the next stage of the chain, so views which escape the method (or are used more than once)
+ * are left untouched and simply iterated over.
+ *
+ * @author DaPorkchop_
+ */
+public class FlattenGuavaIterablesTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested {
+    private static final String ITERABLES_NAME = Type.getInternalName(Iterables.class);
+    private static final String COLLECTIONS2_NAME = Type.getInternalName(Collections2.class);
+    private static final String FLUENT_ITERABLE_NAME = Type.getInternalName(FluentIterable.class);
+
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type ITERABLE_TYPE = Type.getType(Iterable.class);
+    private static final Type COLLECTION_TYPE = Type.getType(Collection.class);
+    private static final Type FLUENT_ITERABLE_TYPE = Type.getType(FluentIterable.class);
+    private static final Type PREDICATE_TYPE = Type.getType(Predicate.class);
+    private static final Type FUNCTION_TYPE = Type.getType(com.google.common.base.Function.class);
+    private static final Type CONSUMER_TYPE = Type.getType(Consumer.class);
+    private static final Type OPTIONAL_TYPE = Type.getType(com.google.common.base.Optional.class);
+
+    private static final Handle PREDICATE_APPLY_HANDLE = new Handle(H_INVOKEINTERFACE, PREDICATE_TYPE.getInternalName(), "apply", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, OBJECT_TYPE), true);
+    private static final Handle FUNCTION_APPLY_HANDLE = new Handle(H_INVOKEINTERFACE, FUNCTION_TYPE.getInternalName(), "apply", Type.getMethodDescriptor(OBJECT_TYPE, OBJECT_TYPE), true);
+    private static final Handle CONSUMER_ACCEPT_HANDLE = new Handle(H_INVOKEINTERFACE, CONSUMER_TYPE.getInternalName(), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, OBJECT_TYPE), true);
+
+    private static Optional<IntermediateOp> tryMapIntermediateOp(MethodInsnNode insn) {
+        if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "filter", Type.getMethodDescriptor(ITERABLE_TYPE, ITERABLE_TYPE, PREDICATE_TYPE))
+            || BytecodeHelper.isINVOKESTATIC(insn, COLLECTIONS2_NAME, "filter", Type.getMethodDescriptor(COLLECTION_TYPE, COLLECTION_TYPE, PREDICATE_TYPE))
+            || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "filter", Type.getMethodDescriptor(FLUENT_ITERABLE_TYPE, PREDICATE_TYPE))) {
+            return Optional.of(new IntermediateOp.Filter(insn));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "filter", Type.getMethodDescriptor(ITERABLE_TYPE, ITERABLE_TYPE, Type.getType(Class.class)))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "filter", Type.getMethodDescriptor(FLUENT_ITERABLE_TYPE, Type.getType(Class.class)))) {
+            return Optional.of(new IntermediateOp.FilterInstance(insn));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "transform", Type.getMethodDescriptor(ITERABLE_TYPE, ITERABLE_TYPE, FUNCTION_TYPE))
+                   || BytecodeHelper.isINVOKESTATIC(insn, COLLECTIONS2_NAME, "transform", Type.getMethodDescriptor(COLLECTION_TYPE, COLLECTION_TYPE, FUNCTION_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "transform", Type.getMethodDescriptor(FLUENT_ITERABLE_TYPE, FUNCTION_TYPE))) {
+            return Optional.of(new IntermediateOp.Transform(insn));
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<TerminalOp> tryMapTerminalOp(MethodInsnNode insn) {
+        if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "any", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, ITERABLE_TYPE, PREDICATE_TYPE))
+            || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "anyMatch", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, PREDICATE_TYPE))) {
+            return Optional.of(new TerminalOp.Match(insn, true, false));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "all", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, ITERABLE_TYPE, PREDICATE_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "allMatch", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, PREDICATE_TYPE))) {
+            return Optional.of(new TerminalOp.Match(insn, false, true));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "find", Type.getMethodDescriptor(OBJECT_TYPE, ITERABLE_TYPE, PREDICATE_TYPE))) {
+            return Optional.of(new TerminalOp.Find(insn, true, TerminalOp.FindResult.ELEMENT_OR_THROW));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "find", Type.getMethodDescriptor(OBJECT_TYPE, ITERABLE_TYPE, PREDICATE_TYPE, OBJECT_TYPE))) {
+            return Optional.of(new TerminalOp.Find(insn, true, TerminalOp.FindResult.ELEMENT_OR_DEFAULT));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "tryFind", Type.getMethodDescriptor(OPTIONAL_TYPE, ITERABLE_TYPE, PREDICATE_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "firstMatch", Type.getMethodDescriptor(OPTIONAL_TYPE, PREDICATE_TYPE))) {
+            return Optional.of(new TerminalOp.Find(insn, true, TerminalOp.FindResult.OPTIONAL));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "getFirst", Type.getMethodDescriptor(OBJECT_TYPE, ITERABLE_TYPE, OBJECT_TYPE))) {
+            return Optional.of(new TerminalOp.Find(insn, false, TerminalOp.FindResult.ELEMENT_OR_DEFAULT));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "first", Type.getMethodDescriptor(OPTIONAL_TYPE))) {
+            return Optional.of(new TerminalOp.Find(insn, false, TerminalOp.FindResult.OPTIONAL));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "isEmpty", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, ITERABLE_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "isEmpty", Type.getMethodDescriptor(Type.BOOLEAN_TYPE))) {
+            return Optional.of(new TerminalOp.IsEmpty(insn));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, ITERABLES_NAME, "size", Type.getMethodDescriptor(Type.INT_TYPE, ITERABLE_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "size", Type.getMethodDescriptor(Type.INT_TYPE))) {
+            return Optional.of(new TerminalOp.Size(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "forEach", Type.getMethodDescriptor(Type.VOID_TYPE, CONSUMER_TYPE))
+                   || BytecodeHelper.isINVOKEINTERFACE(insn, ITERABLE_TYPE.getInternalName(), "forEach", Type.getMethodDescriptor(Type.VOID_TYPE, CONSUMER_TYPE))
+                   || BytecodeHelper.isINVOKEINTERFACE(insn, COLLECTION_TYPE.getInternalName(), "forEach", Type.getMethodDescriptor(Type.VOID_TYPE, CONSUMER_TYPE))) {
+            return Optional.of(new TerminalOp.ForEach(insn));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, Type.getInternalName(Lists.class), "newArrayList", Type.getMethodDescriptor(Type.getType(ArrayList.class), ITERABLE_TYPE))) {
+            return Optional.of(new TerminalOp.ToCollection(insn, Type.getType(ArrayList.class), false));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, Type.getInternalName(Sets.class), "newHashSet", Type.getMethodDescriptor(Type.getType(HashSet.class), ITERABLE_TYPE))) {
+            return Optional.of(new TerminalOp.ToCollection(insn, Type.getType(HashSet.class), false));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, Type.getInternalName(ImmutableList.class), "copyOf", Type.getMethodDescriptor(Type.getType(ImmutableList.class), ITERABLE_TYPE))
+                   || BytecodeHelper.isINVOKESTATIC(insn, Type.getInternalName(ImmutableList.class), "copyOf", Type.getMethodDescriptor(Type.getType(ImmutableList.class), COLLECTION_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "toList", Type.getMethodDescriptor(Type.getType(ImmutableList.class)))) {
+            return Optional.of(new TerminalOp.ToCollection(insn, Type.getType(ImmutableList.class), true));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, Type.getInternalName(ImmutableSet.class), "copyOf", Type.getMethodDescriptor(Type.getType(ImmutableSet.class), ITERABLE_TYPE))
+                   || BytecodeHelper.isINVOKESTATIC(insn, Type.getInternalName(ImmutableSet.class), "copyOf", Type.getMethodDescriptor(Type.getType(ImmutableSet.class), COLLECTION_TYPE))
+                   || BytecodeHelper.isINVOKEVIRTUAL(insn, FLUENT_ITERABLE_NAME, "toSet", Type.getMethodDescriptor(Type.getType(ImmutableSet.class)))) {
+            return Optional.of(new TerminalOp.ToCollection(insn, Type.getType(ImmutableSet.class), true));
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isFluentIterableFrom(MethodInsnNode insn) {
+        return BytecodeHelper.isINVOKESTATIC(insn, FLUENT_ITERABLE_NAME, "from", Type.getMethodDescriptor(FLUENT_ITERABLE_TYPE, ITERABLE_TYPE));
+    }
+
+    /**
+     * Gets the types of the operands consumed by the given stage instruction, excluding the {@link Iterable} being consumed.
+     */
+    private static ImmutableList<Type> ownOperandTypes(MethodInsnNode stageInsn) {
+        List<Type> argumentTypes = Arrays.asList(Type.getArgumentTypes(stageInsn.desc));
+        return ImmutableList.copyOf(stageInsn.getOpcode() == INVOKESTATIC ? argumentTypes.subList(1, argumentTypes.size()) : argumentTypes);
+    }
+
+    /**
+     * Gets the type of the {@link Iterable} being consumed by the given stage instruction.
+     */
+    private static Type upstreamOperandType(MethodInsnNode stageInsn) {
+        return stageInsn.getOpcode() == INVOKESTATIC ? Type.getArgumentTypes(stageInsn.desc)[0] : Type.getObjectType(stageInsn.owner);
+    }
+
+    @Override
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass(ITERABLES_NAME)
+                .referencesClass(COLLECTIONS2_NAME)
+                .referencesClass(FLUENT_ITERABLE_NAME);
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, InsnList instructions) {
+        int changeFlags = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(), next; insn != null; insn = next) {
+            next = insn.getNext();
+
+            TerminalOp terminalOp;
+            if (!(insn instanceof MethodInsnNode) || (terminalOp = tryMapTerminalOp((MethodInsnNode) insn).orElse(null)) == null) {
+                continue;
+            }
+
+            changeFlags |= transformIterableCall(classNode, methodNode, terminalOp);
+        }
+        return changeFlags;
+    }
+
+    private static String stringifyChain(List<Stage> allStages) {
+        List<AbstractInsnNode> stageInsns = new ArrayList<>(allStages.size());
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : allStages) {
+            builder.append(stage);
+            if (stage.stageInsn != null) {
+                stageInsns.add(stage.stageInsn);
+            }
+        }
+        return BytecodeHelper.findLineNumberRangeForLog(stageInsns) + ' ' + builder;
+    }
+
+    private static int transformIterableCall(ClassNode classNode, MethodNode methodNode, TerminalOp terminalOp) {
+        Frame<SourceValue>[] sourceFrames = BytecodeHelper.analyzeSources(classNode.name, methodNode);
+        Function<AbstractInsnNode, Frame<SourceValue>> findSources = insn -> sourceFrames[methodNode.instructions.indexOf(insn)];
+        if (findSources.apply(terminalOp.stageInsn) == null) { //unreachable code
+            return 0;
+        }
+
+        //walk backwards up the chain of views until we reach a value which isn't a view whose only purpose is to be consumed by the next stage
+        List<IntermediateOp> intermediateOps = new ArrayList<>();
+        Source sourceOp = null;
+        for (MethodInsnNode consumerInsn = terminalOp.stageInsn; sourceOp == null; ) {
+            AbstractInsnNode upstreamInsn = BytecodeHelper.getSingleSourceInsnFromTop(findSources.apply(consumerInsn), ownOperandTypes(consumerInsn).size());
+            if (upstreamInsn instanceof MethodInsnNode && isSoleUsage(classNode, methodNode, sourceFrames, upstreamInsn, consumerInsn)) {
+                MethodInsnNode upstreamMethodInsn = (MethodInsnNode) upstreamInsn;
+
+                Optional<IntermediateOp> optionalIntermediate = tryMapIntermediateOp(upstreamMethodInsn);
+                if (optionalIntermediate.isPresent()) {
+                    intermediateOps.add(0, optionalIntermediate.get());
+                    consumerInsn = upstreamMethodInsn;
+                    continue;
+                } else if (isFluentIterableFrom(upstreamMethodInsn)) {
+                    sourceOp = new Source(upstreamMethodInsn);
+                    continue;
+                }
+            }
+
+            //the upstream value is an ordinary iterable which we'll simply iterate over
+            sourceOp = new Source(null);
+        }
+
+        if (intermediateOps.isEmpty() && sourceOp.stageInsn == null) { //there are no views to eliminate, so there's nothing to gain by flattening the terminal operation
+            return 0;
+        }
+
+        if ((terminalOp instanceof TerminalOp.IsEmpty || terminalOp instanceof TerminalOp.Size) && endsWithTransform(intermediateOps)) {
+            //Guava doesn't apply a transform view's function just to count its elements or check whether there are any (e.g. Collections2.transform() simply
+            //  delegates size() to the backing collection), while the flattened loop would apply it to every element it visits
+            return 0;
+        }
+
+        List<Stage> allStages = new ArrayList<>(intermediateOps.size() + 2);
+        allStages.add(sourceOp);
+        allStages.addAll(intermediateOps);
+        allStages.add(terminalOp);
+
+        //link stages together
+        for (int i = 0; i < allStages.size() - 1; i++) {
+            ((ProducerStage) allStages.get(i)).nextStage = allStages.get(i + 1);
+        }
+
+        //allow stages to pre-transform their operands and save them into local variables
+        MutableInt newMaxLocals = new MutableInt(methodNode.maxLocals);
+        LVTReference.Allocator lvtAlloc = type -> new LVTReference(type, newMaxLocals.getAndAdd(type.getSize()));
+
+        List<AbstractInsnNode> removeInsns = new ArrayList<>();
+        List<InsnList> allTransformInsns = new ArrayList<>(allStages.size());
+        for (int i = 0; i < allStages.size(); i++) {
+            Stage stage = allStages.get(i);
+            if (stage.stageInsn == null) { //the source is an ordinary value, its operand will be saved by the first consumer stage
+                allTransformInsns.add(null);
+                continue;
+            }
+
+            InsnList transformInsns = new InsnList();
+            stage.transformOperands(stage == sourceOp ? ImmutableList.copyOf(Type.getArgumentTypes(stage.stageInsn.desc)) : ownOperandTypes(stage.stageInsn),
+                    lvtAlloc, transformInsns, removeInsns, findSources);
+            if (i == 1 && sourceOp.stageInsn == null) {
+                //the source iterable is still on the stack below this stage's own operands
+                sourceOp.transformOperands(ImmutableList.of(upstreamOperandType(stage.stageInsn)), lvtAlloc, transformInsns, removeInsns, findSources);
+            }
+            allTransformInsns.add(transformInsns);
+        }
+
+        //actually generate the bytecode
+        InsnList out = new InsnList();
+        LabelNode breakLabel = new LabelNode();
+        LabelNode tailLabel = new LabelNode();
+        sourceOp.visitCode(out, new BranchLabels(null, breakLabel, tailLabel), null);
+        out.add(breakLabel);
+        terminalOp.finalizeReturnValue(out);
+        out.add(tailLabel);
+
+        PPatchesMod.LOGGER.info("Optimizing Guava iterable usage at L{};{}{} {}",
+                classNode.name, methodNode.name, methodNode.desc, stringifyChain(allStages));
+
+        methodNode.maxLocals = newMaxLocals.intValue();
+
+        //insert the main code sequence which emulates the views' behavior
+        methodNode.instructions.insert(terminalOp.stageInsn, out);
+
+        //insert code sequence to save and transform the stack operands for each stage
+        for (int i = 0; i < allStages.size(); i++) {
+            if (allTransformInsns.get(i) != null) {
+                methodNode.instructions.insert(allStages.get(i).stageInsn, allTransformInsns.get(i));
+            }
+        }
+
+        //remove the method invocation representing each stage
+        for (Stage stage : allStages) {
+            if (stage.stageInsn != null) {
+                methodNode.instructions.remove(stage.stageInsn);
+            }
+        }
+
+        //allow each stage to modify the class node if it wants to
+        for (Stage stage : allStages) {
+            stage.visitClassNode(classNode);
+        }
+
+        //remove any other instructions a stage requested to remove
+        for (AbstractInsnNode removeInsn : removeInsns) {
+            methodNode.instructions.remove(removeInsn);
+        }
+
+        return CHANGED;
+    }
+
+    /**
+     * Checks whether the chain ends with a transform view, i.e. whether there's a transform view whose results aren't needed by any filter after it.
+     */
+    private static boolean endsWithTransform(List<IntermediateOp> intermediateOps) {
+        for (int i = intermediateOps.size() - 1; i >= 0; i--) {
+            if (intermediateOps.get(i) instanceof IntermediateOp.Transform) {
+                return true;
+            } else if (intermediateOps.get(i) instanceof IntermediateOp.Filter || intermediateOps.get(i) instanceof IntermediateOp.FilterInstance) {
+                return false; //the filter has to see the transformed elements, so every transform before it is applied by Guava as well
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoleUsage(ClassNode classNode, MethodNode methodNode, Frame<SourceValue>[] sourceFrames, AbstractInsnNode sourceInsn, AbstractInsnNode usageInsn) {
+        Set<AbstractInsnNode> usages = BytecodeHelper.analyzeUsages(classNode.name, methodNode, sourceFrames, sourceInsn);
+        return usages != null && usages.size() == 1 && usages.contains(usageInsn);
+    }
+
+    @RequiredArgsConstructor
+    @With
+    private static class BranchLabels {
+        /**
+         * If jumped to, immediately stops processing the current element and advances to the next one.
+         */
+        public final LabelNode skipLabel;
+
+        /**
+         * If jumped to, immediately stops processing the current element, skips all remaining elements, and lets the terminal operation finalize and return the end value.
+         */
+        public final LabelNode breakLabel;
+
+        /**
+         * If jumped to, immediately returns the value currently on the stack without allowing the terminal operation to finalize.
+         */
+        public final LabelNode returnLabel;
+    }
+
+    @RequiredArgsConstructor
+    private static abstract class Stage {
+        public final MethodInsnNode stageInsn; //may only be null for a source which is an ordinary iterable
+
+        public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+            storeOperands(operandTypes, lvtAlloc, out);
+        }
+
+        /**
+         * Stores the given operands into newly allocated local variables.
+         *
+         * @return the local variables, in the same order as the operand types
+         */
+        protected static LVTReference[] storeOperands(List<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out) {
+            LVTReference[] operandValues = new LVTReference[operandTypes.size()];
+            for (int i = operandValues.length - 1; i >= 0; i--) {
+                operandValues[i] = lvtAlloc.allocate(operandTypes.get(i));
+                out.add(operandValues[i].makeStore());
+            }
+            return operandValues;
+        }
+
+        public abstract void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue);
+
+        public void visitClassNode(ClassNode classNode) {
+            //no-op
+        }
+
+        @Override
+        public String toString() {
+            return (this.stageInsn.getOpcode() == INVOKESTATIC ? BytecodeHelper.stripStdlibPackageFromInternalName(this.stageInsn.owner) : "")
+                   + '.' + this.stageInsn.name + BytecodeHelper.methodDescriptorToPrettyString(this.stageInsn.desc, true, false);
+        }
+    }
+
+    private static abstract class ProducerStage extends Stage {
+        public Stage nextStage;
+
+        public ProducerStage(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+    }
+
+    private static final class Source extends ProducerStage {
+        protected LVTReference iterableValue;
+        protected LVTReference iteratorValue;
+        protected LVTReference producedValue;
+
+        public Source(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+
+        @Override
+        public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+            this.iterableValue = storeOperands(operandTypes, lvtAlloc, out)[0];
+            this.iteratorValue = lvtAlloc.allocate(Type.getType(Iterator.class));
+            this.producedValue = lvtAlloc.allocate(OBJECT_TYPE);
+        }
+
+        @Override
+        public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+            // for (Iterator iterator = iterable.iterator(); iterator.hasNext(); ) nextStage(iterator.next());
+
+            //the iterator is only created here (rather than in transformOperands) so that it's created at the same point as the terminal operation would have created it
+            LabelNode headLabel = new LabelNode();
+
+            out.add(this.iterableValue.makeLoad());
+            out.add(new MethodInsnNode(INVOKEINTERFACE, ITERABLE_TYPE.getInternalName(), "iterator", Type.getMethodDescriptor(Type.getType(Iterator.class)), true));
+            out.add(this.iteratorValue.makeStore());
+
+            out.add(headLabel);
+            out.add(this.iteratorValue.makeLoad());
+            out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Iterator.class), "hasNext", "()Z", true));
+            out.add(new JumpInsnNode(IFEQ, labels.breakLabel));
+            out.add(this.iteratorValue.makeLoad());
+            out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Iterator.class), "next", "()Ljava/lang/Object;", true));
+            out.add(this.producedValue.makeStore());
+            this.nextStage.visitCode(out, labels.withSkipLabel(headLabel), this.producedValue);
+            out.add(new JumpInsnNode(GOTO, headLabel));
+        }
+
+        @Override
+        public String toString() {
+            return this.stageInsn != null ? super.toString() : "<iterable>";
+        }
+    }
+
+    private static abstract class IntermediateOp extends ProducerStage {
+        public IntermediateOp(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+
+        private static class Filter extends IntermediateOp {
+            protected LambdaFlattener predicateFlattener;
+
+            public Filter(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.predicateFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, PREDICATE_APPLY_HANDLE).visitCaptureState(out, removeInsns);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                this.predicateFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.predicateFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.predicateFlattener.visitPostInvoke(out);
+                out.add(new JumpInsnNode(IFEQ, labels.skipLabel));
+                this.nextStage.visitCode(out, labels, consumedValue);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.predicateFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class FilterInstance extends IntermediateOp {
+            protected LVTReference classValue;
+
+            public FilterInstance(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.classValue = storeOperands(operandTypes, lvtAlloc, out)[0];
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // if (!clazz.isInstance(consumedValue)) continue;
+
+                out.add(this.classValue.makeLoad());
+                out.add(consumedValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(Class.class), "isInstance", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, OBJECT_TYPE), false));
+                out.add(new JumpInsnNode(IFEQ, labels.skipLabel));
+                this.nextStage.visitCode(out, labels, consumedValue);
+            }
+        }
+
+        private static class Transform extends IntermediateOp {
+            protected LambdaFlattener functionFlattener;
+            protected LVTReference producedValue;
+
+            public Transform(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.functionFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, FUNCTION_APPLY_HANDLE).visitCaptureState(out, removeInsns);
+                this.producedValue = lvtAlloc.allocate(OBJECT_TYPE);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                this.functionFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.functionFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.functionFlattener.visitPostInvoke(out);
+                out.add(this.producedValue.makeStore());
+                this.nextStage.visitCode(out, labels, this.producedValue);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.functionFlattener.visitClassNode(classNode);
+            }
+        }
+    }
+
+    private static abstract class TerminalOp extends Stage {
+        public TerminalOp(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+
+        public abstract void finalizeReturnValue(InsnList out);
+
+        private static class Match extends TerminalOp {
+            protected final boolean breakWhenTestReturns;
+            protected final boolean defaultReturnValue;
+
+            protected LambdaFlattener predicateFlattener;
+            protected LVTReference returnValue;
+
+            public Match(MethodInsnNode stageInsn, boolean breakWhenTestReturns, boolean defaultReturnValue) {
+                super(stageInsn);
+                this.breakWhenTestReturns = breakWhenTestReturns;
+                this.defaultReturnValue = defaultReturnValue;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.predicateFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, PREDICATE_APPLY_HANDLE).visitCaptureState(out, removeInsns);
+
+                this.returnValue = lvtAlloc.allocate(Type.BOOLEAN_TYPE);
+                out.add(new InsnNode(this.defaultReturnValue ? ICONST_1 : ICONST_0));
+                out.add(this.returnValue.makeStore());
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.returnValue.makeLoad());
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                this.predicateFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.predicateFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.predicateFlattener.visitPostInvoke(out);
+                out.add(new JumpInsnNode(this.breakWhenTestReturns ? IFEQ : IFNE, labels.skipLabel));
+                out.add(new InsnNode(this.defaultReturnValue ? ICONST_0 : ICONST_1)); //return opposite of defaultReturnValue on match
+                out.add(this.returnValue.makeStore());
+                out.add(new JumpInsnNode(GOTO, labels.breakLabel));
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.predicateFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private enum FindResult {
+            /**
+             * The element is returned directly, and a {@link NoSuchElementException} is thrown if no element is found.
+             */
+            ELEMENT_OR_THROW,
+            /**
+             * The element is returned directly, and the default value (the terminal operation's last operand) is returned if no element is found.
+             */
+            ELEMENT_OR_DEFAULT,
+            /**
+             * The element is returned wrapped in a {@link com.google.common.base.Optional}.
+             */
+            OPTIONAL,
+        }
+
+        private static class Find extends TerminalOp {
+            public final boolean hasPredicate; //if false, this simply finds the first element
+            public final FindResult result;
+
+            protected LambdaFlattener predicateFlattener;
+            protected LVTReference defaultValue;
+
+            public Find(MethodInsnNode stageInsn, boolean hasPredicate, FindResult result) {
+                super(stageInsn);
+                this.hasPredicate = hasPredicate;
+                this.result = result;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                int predicateIndexFromTop = 0;
+                if (this.result == FindResult.ELEMENT_OR_DEFAULT) { //the default value is on top of the stack
+                    this.defaultValue = storeOperands(operandTypes.subList(operandTypes.size() - 1, operandTypes.size()), lvtAlloc, out)[0];
+                    predicateIndexFromTop++;
+                }
+
+                if (this.hasPredicate) {
+                    this.predicateFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), predicateIndexFromTop, lvtAlloc, PREDICATE_APPLY_HANDLE).visitCaptureState(out, removeInsns);
+                }
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                switch (this.result) {
+                    case ELEMENT_OR_THROW:
+                        out.add(new TypeInsnNode(NEW, Type.getInternalName(NoSuchElementException.class)));
+                        out.add(new InsnNode(DUP));
+                        out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(NoSuchElementException.class), "<init>", "()V", false));
+                        out.add(new InsnNode(ATHROW));
+                        break;
+                    case ELEMENT_OR_DEFAULT:
+                        out.add(this.defaultValue.makeLoad());
+                        break;
+                    case OPTIONAL:
+                        out.add(new MethodInsnNode(INVOKESTATIC, OPTIONAL_TYPE.getInternalName(), "absent", Type.getMethodDescriptor(OPTIONAL_TYPE), false));
+                        break;
+                }
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                if (this.hasPredicate) {
+                    this.predicateFlattener.visitPreInvoke(out);
+                    out.add(consumedValue.makeLoad());
+                    this.predicateFlattener.visitPostLoadInvokeArgument(out, 0);
+                    this.predicateFlattener.visitPostInvoke(out);
+                    out.add(new JumpInsnNode(IFEQ, labels.skipLabel));
+                }
+
+                out.add(consumedValue.makeLoad());
+                if (this.result == FindResult.OPTIONAL) { //this throws a NullPointerException if the element is null, which is the same behavior as Guava
+                    out.add(new MethodInsnNode(INVOKESTATIC, OPTIONAL_TYPE.getInternalName(), "of", Type.getMethodDescriptor(OPTIONAL_TYPE, OBJECT_TYPE), false));
+                }
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                if (this.hasPredicate) {
+                    this.predicateFlattener.visitClassNode(classNode);
+                }
+            }
+        }
+
+        private static class IsEmpty extends TerminalOp {
+            public IsEmpty(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(new InsnNode(ICONST_1));
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(new InsnNode(ICONST_0));
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+        }
+
+        private static class Size extends TerminalOp {
+            protected LVTReference counterValue;
+
+            public Size(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.counterValue = lvtAlloc.allocate(Type.INT_TYPE);
+                out.add(new InsnNode(ICONST_0));
+                out.add(this.counterValue.makeStore());
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.counterValue.makeLoad());
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(new IincInsnNode(this.counterValue.var(), 1));
+            }
+        }
+
+        private static class ForEach extends TerminalOp {
+            protected LambdaFlattener actionFlattener;
+
+            public ForEach(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.actionFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, CONSUMER_ACCEPT_HANDLE).visitCaptureState(out, removeInsns);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                //no-op
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                this.actionFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.actionFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.actionFlattener.visitPostInvoke(out);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.actionFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class ToCollection extends TerminalOp {
+            public final Type collectionType;
+            public final boolean immutable; //if true, the collection is created using its builder
+
+            protected Type containerType;
+            protected LVTReference containerValue;
+
+            public ToCollection(MethodInsnNode stageInsn, Type collectionType, boolean immutable) {
+                super(stageInsn);
+                this.collectionType = collectionType;
+                this.immutable = immutable;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                if (this.immutable) {
+                    this.containerType = Type.getObjectType(this.collectionType.getInternalName() + "$Builder");
+                    out.add(new MethodInsnNode(INVOKESTATIC, this.collectionType.getInternalName(), "builder", Type.getMethodDescriptor(this.containerType), false));
+                } else {
+                    this.containerType = this.collectionType;
+                    out.add(new TypeInsnNode(NEW, this.containerType.getInternalName()));
+                    out.add(new InsnNode(DUP));
+                    out.add(new MethodInsnNode(INVOKESPECIAL, this.containerType.getInternalName(), "<init>", "()V", false));
+                }
+
+                this.containerValue = lvtAlloc.allocate(this.containerType);
+                out.add(this.containerValue.makeStore());
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.containerValue.makeLoad());
+                if (this.immutable) {
+                    out.add(new MethodInsnNode(INVOKEVIRTUAL, this.containerType.getInternalName(), "build", Type.getMethodDescriptor(this.collectionType), false));
+                }
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // container.add(consumedValue);
+
+                out.add(this.containerValue.makeLoad());
+                out.add(consumedValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, this.containerType.getInternalName(), "add",
+                        Type.getMethodDescriptor(this.immutable ? this.containerType : Type.BOOLEAN_TYPE, OBJECT_TYPE), false));
+                out.add(new InsnNode(POP));
+            }
+        }
+    }
+}
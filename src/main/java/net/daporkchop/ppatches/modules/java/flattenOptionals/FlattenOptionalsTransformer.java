@@ -0,0 +1,704 @@
+package net.daporkchop.ppatches.modules.java.flattenOptionals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import lombok.RequiredArgsConstructor;
+import lombok.With;
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import net.daporkchop.ppatches.util.asm.LVTReference;
+import net.daporkchop.ppatches.util.asm.LambdaFlattener;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.apache.commons.lang3.mutable.MutableInt;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.*;
+import java.util.function.*;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Rewrites chains of calls on {@link Optional}, {@link OptionalInt}, {@link OptionalLong} and {@link OptionalDouble} which end in a method that unwraps the
+ * optional (such as {@link Optional#orElse(Object)}) into plain null checks and conditionals, using the same approach as
+ * {@link net.daporkchop.ppatches.modules.java.flattenStreams.FlattenStreamsTransformer}.
+ * <p>
+ * An intermediate optional is only eliminated if its sole usage is as the input to the next stage of the chain, so optionals which escape the method (or are
+ * used more than once) are left untouched and simply unwrapped.
+ *
+ * @author DaPorkchop_
+ */
+public class FlattenOptionalsTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested {
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type OPTIONAL_TYPE = Type.getType(Optional.class);
+
+    private static final Handle FUNCTION_APPLY_HANDLE = new Handle(H_INVOKEINTERFACE, Type.getInternalName(Function.class), "apply", Type.getMethodDescriptor(OBJECT_TYPE, OBJECT_TYPE), true);
+    private static final Handle PREDICATE_TEST_HANDLE = new Handle(H_INVOKEINTERFACE, Type.getInternalName(Predicate.class), "test", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, OBJECT_TYPE), true);
+    private static final Handle SUPPLIER_GET_HANDLE = new Handle(H_INVOKEINTERFACE, Type.getInternalName(Supplier.class), "get", Type.getMethodDescriptor(OBJECT_TYPE), true);
+
+    private static final Map<String, PerOptionalTypeInfo> OPTIONAL_TYPE_INFO = ImmutableMap.of(
+            Type.getInternalName(Optional.class), new PerOptionalTypeInfo(OPTIONAL_TYPE, OBJECT_TYPE, "get",
+                    Type.getType(Consumer.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(Consumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, OBJECT_TYPE), true),
+                    Type.getType(Supplier.class), SUPPLIER_GET_HANDLE),
+            Type.getInternalName(OptionalInt.class), new PerOptionalTypeInfo(Type.getType(OptionalInt.class), Type.INT_TYPE, "getAsInt",
+                    Type.getType(IntConsumer.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(IntConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE), true),
+                    Type.getType(IntSupplier.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(IntSupplier.class), "getAsInt", Type.getMethodDescriptor(Type.INT_TYPE), true)),
+            Type.getInternalName(OptionalLong.class), new PerOptionalTypeInfo(Type.getType(OptionalLong.class), Type.LONG_TYPE, "getAsLong",
+                    Type.getType(LongConsumer.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(LongConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.LONG_TYPE), true),
+                    Type.getType(LongSupplier.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(LongSupplier.class), "getAsLong", Type.getMethodDescriptor(Type.LONG_TYPE), true)),
+            Type.getInternalName(OptionalDouble.class), new PerOptionalTypeInfo(Type.getType(OptionalDouble.class), Type.DOUBLE_TYPE, "getAsDouble",
+                    Type.getType(DoubleConsumer.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(DoubleConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.DOUBLE_TYPE), true),
+                    Type.getType(DoubleSupplier.class), new Handle(H_INVOKEINTERFACE, Type.getInternalName(DoubleSupplier.class), "getAsDouble", Type.getMethodDescriptor(Type.DOUBLE_TYPE), true)));
+
+    @RequiredArgsConstructor
+    private static final class PerOptionalTypeInfo {
+        public final Type optionalType;
+        public final Type elementType;
+        public final String getterName;
+
+        public final Type consumerType;
+        public final Handle consumerAcceptHandle;
+        public final Type supplierType;
+        public final Handle supplierGetHandle;
+    }
+
+    private static Optional<Source> tryMapSource(MethodInsnNode insn) {
+        PerOptionalTypeInfo info = OPTIONAL_TYPE_INFO.get(insn.owner);
+        if (info == null) {
+            return Optional.empty();
+        }
+
+        if (BytecodeHelper.isINVOKESTATIC(insn, insn.owner, "of", Type.getMethodDescriptor(info.optionalType, info.elementType))) {
+            return Optional.of(new Source.Of(insn, false));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, insn.owner, "ofNullable", Type.getMethodDescriptor(info.optionalType, info.elementType))) {
+            return Optional.of(new Source.Of(insn, true));
+        } else if (BytecodeHelper.isINVOKESTATIC(insn, insn.owner, "empty", Type.getMethodDescriptor(info.optionalType))) {
+            return Optional.of(new Source.Empty(insn));
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<IntermediateOp> tryMapIntermediateOp(MethodInsnNode insn) {
+        if (BytecodeHelper.isINVOKEVIRTUAL(insn, OPTIONAL_TYPE.getInternalName(), "map", Type.getMethodDescriptor(OPTIONAL_TYPE, Type.getType(Function.class)))) {
+            return Optional.of(new IntermediateOp.Map(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, OPTIONAL_TYPE.getInternalName(), "flatMap", Type.getMethodDescriptor(OPTIONAL_TYPE, Type.getType(Function.class)))) {
+            return Optional.of(new IntermediateOp.FlatMap(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, OPTIONAL_TYPE.getInternalName(), "filter", Type.getMethodDescriptor(OPTIONAL_TYPE, Type.getType(Predicate.class)))) {
+            return Optional.of(new IntermediateOp.Filter(insn));
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<TerminalOp> tryMapTerminalOp(MethodInsnNode insn) {
+        PerOptionalTypeInfo info = OPTIONAL_TYPE_INFO.get(insn.owner);
+        if (info == null || insn.getOpcode() != INVOKEVIRTUAL) {
+            return Optional.empty();
+        }
+
+        if (BytecodeHelper.isINVOKEVIRTUAL(insn, insn.owner, "isPresent", Type.getMethodDescriptor(Type.BOOLEAN_TYPE))) {
+            return Optional.of(new TerminalOp.IsPresent(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, insn.owner, info.getterName, Type.getMethodDescriptor(info.elementType))) {
+            return Optional.of(new TerminalOp.Get(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, insn.owner, "orElse", Type.getMethodDescriptor(info.elementType, info.elementType))) {
+            return Optional.of(new TerminalOp.OrElse(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, insn.owner, "orElseGet", Type.getMethodDescriptor(info.elementType, info.supplierType))) {
+            return Optional.of(new TerminalOp.OrElseGet(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, insn.owner, "orElseThrow", Type.getMethodDescriptor(info.elementType, Type.getType(Supplier.class)))) {
+            return Optional.of(new TerminalOp.OrElseThrow(insn));
+        } else if (BytecodeHelper.isINVOKEVIRTUAL(insn, insn.owner, "ifPresent", Type.getMethodDescriptor(Type.VOID_TYPE, info.consumerType))) {
+            return Optional.of(new TerminalOp.IfPresent(insn));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass(Type.getInternalName(Optional.class))
+                .referencesClass(Type.getInternalName(OptionalInt.class))
+                .referencesClass(Type.getInternalName(OptionalLong.class))
+                .referencesClass(Type.getInternalName(OptionalDouble.class));
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, InsnList instructions) {
+        int changeFlags = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(), next; insn != null; insn = next) {
+            next = insn.getNext();
+
+            TerminalOp terminalOp;
+            if (!(insn instanceof MethodInsnNode) || (terminalOp = tryMapTerminalOp((MethodInsnNode) insn).orElse(null)) == null) {
+                continue;
+            }
+
+            changeFlags |= transformOptionalCall(classNode, methodNode, terminalOp);
+        }
+        return changeFlags;
+    }
+
+    private static String stringifyChain(List<Stage> allStages) {
+        List<AbstractInsnNode> stageInsns = new ArrayList<>(allStages.size());
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : allStages) {
+            builder.append(stage);
+            if (stage.stageInsn != null) {
+                stageInsns.add(stage.stageInsn);
+            }
+        }
+        return BytecodeHelper.findLineNumberRangeForLog(stageInsns) + ' ' + builder;
+    }
+
+    private static int transformOptionalCall(ClassNode classNode, MethodNode methodNode, TerminalOp terminalOp) {
+        Frame<SourceValue>[] sourceFrames = BytecodeHelper.analyzeSources(classNode.name, methodNode);
+        Function<AbstractInsnNode, Frame<SourceValue>> findSources = insn -> sourceFrames[methodNode.instructions.indexOf(insn)];
+        if (findSources.apply(terminalOp.stageInsn) == null) { //unreachable code
+            return 0;
+        }
+
+        //walk backwards up the call chain until we reach an optional which wasn't created solely to be consumed by the next stage
+        List<IntermediateOp> intermediateOps = new ArrayList<>();
+        Source sourceOp = null;
+        for (MethodInsnNode consumerInsn = terminalOp.stageInsn; sourceOp == null; ) {
+            AbstractInsnNode upstreamInsn = BytecodeHelper.getSingleSourceInsnFromTop(findSources.apply(consumerInsn), Type.getArgumentTypes(consumerInsn.desc).length);
+            if (upstreamInsn instanceof MethodInsnNode && isSoleUsage(classNode, methodNode, sourceFrames, upstreamInsn, consumerInsn)) {
+                MethodInsnNode upstreamMethodInsn = (MethodInsnNode) upstreamInsn;
+
+                Optional<IntermediateOp> optionalIntermediate = tryMapIntermediateOp(upstreamMethodInsn);
+                if (optionalIntermediate.isPresent()) {
+                    intermediateOps.add(0, optionalIntermediate.get());
+                    consumerInsn = upstreamMethodInsn;
+                    continue;
+                }
+
+                Optional<Source> optionalSource = tryMapSource(upstreamMethodInsn);
+                if (optionalSource.isPresent()) {
+                    sourceOp = optionalSource.get();
+                    continue;
+                }
+            }
+
+            //the upstream value is an ordinary optional which we'll simply unwrap
+            sourceOp = new Source.OfOptional(Type.getObjectType(consumerInsn.owner));
+        }
+
+        if (intermediateOps.isEmpty() && sourceOp.stageInsn == null) { //there are no optionals to eliminate, so there's nothing to gain by flattening the terminal operation
+            return 0;
+        }
+
+        List<Stage> allStages = new ArrayList<>(intermediateOps.size() + 2);
+        allStages.add(sourceOp);
+        allStages.addAll(intermediateOps);
+        allStages.add(terminalOp);
+
+        //link stages together
+        for (int i = 0; i < allStages.size() - 1; i++) {
+            ((ProducerStage) allStages.get(i)).nextStage = allStages.get(i + 1);
+        }
+
+        //allow stages to pre-transform their operands and save them into local variables
+        MutableInt newMaxLocals = new MutableInt(methodNode.maxLocals);
+        LVTReference.Allocator lvtAlloc = type -> new LVTReference(type, newMaxLocals.getAndAdd(type.getSize()));
+
+        List<AbstractInsnNode> removeInsns = new ArrayList<>();
+        List<InsnList> allTransformInsns = new ArrayList<>(allStages.size());
+        for (int i = 0; i < allStages.size(); i++) {
+            Stage stage = allStages.get(i);
+            if (stage.stageInsn == null) { //the source is an ordinary value, its operand will be saved by the first consumer stage
+                allTransformInsns.add(null);
+                continue;
+            }
+
+            InsnList transformInsns = new InsnList();
+            stage.transformOperands(ImmutableList.copyOf(Type.getArgumentTypes(stage.stageInsn.desc)), lvtAlloc, transformInsns, removeInsns, findSources);
+            if (i == 1 && sourceOp.stageInsn == null) {
+                //the source optional is still on the stack below this stage's own operands
+                sourceOp.transformOperands(ImmutableList.of(Type.getObjectType(stage.stageInsn.owner)), lvtAlloc, transformInsns, removeInsns, findSources);
+            }
+            allTransformInsns.add(transformInsns);
+        }
+
+        //actually generate the bytecode
+        InsnList out = new InsnList();
+        LabelNode emptyLabel = new LabelNode();
+        LabelNode tailLabel = new LabelNode();
+        sourceOp.visitCode(out, new BranchLabels(emptyLabel, tailLabel), null);
+        out.add(emptyLabel);
+        terminalOp.finalizeReturnValue(out);
+        out.add(tailLabel);
+
+        PPatchesMod.LOGGER.info("Optimizing Optional usage at L{};{}{} {}",
+                classNode.name, methodNode.name, methodNode.desc, stringifyChain(allStages));
+
+        methodNode.maxLocals = newMaxLocals.intValue();
+
+        //insert the main code sequence which emulates the optionals' behavior
+        methodNode.instructions.insert(terminalOp.stageInsn, out);
+
+        //insert code sequence to save and transform the stack operands for each stage
+        for (int i = 0; i < allStages.size(); i++) {
+            if (allTransformInsns.get(i) != null) {
+                methodNode.instructions.insert(allStages.get(i).stageInsn, allTransformInsns.get(i));
+            }
+        }
+
+        //remove the method invocation representing each stage
+        for (Stage stage : allStages) {
+            if (stage.stageInsn != null) {
+                methodNode.instructions.remove(stage.stageInsn);
+            }
+        }
+
+        //allow each stage to modify the class node if it wants to
+        for (Stage stage : allStages) {
+            stage.visitClassNode(classNode);
+        }
+
+        //remove any other instructions a stage requested to remove
+        for (AbstractInsnNode removeInsn : removeInsns) {
+            methodNode.instructions.remove(removeInsn);
+        }
+
+        return CHANGED;
+    }
+
+    private static boolean isSoleUsage(ClassNode classNode, MethodNode methodNode, Frame<SourceValue>[] sourceFrames, AbstractInsnNode sourceInsn, AbstractInsnNode usageInsn) {
+        Set<AbstractInsnNode> usages = BytecodeHelper.analyzeUsages(classNode.name, methodNode, sourceFrames, sourceInsn);
+        return usages != null && usages.size() == 1 && usages.contains(usageInsn);
+    }
+
+    @RequiredArgsConstructor
+    @With
+    private static class BranchLabels {
+        /**
+         * If jumped to, the optional is considered to be empty and the terminal operation will finalize and return the end value.
+         */
+        public final LabelNode emptyLabel;
+
+        /**
+         * If jumped to, immediately returns the value currently on the stack without allowing the terminal operation to finalize.
+         */
+        public final LabelNode returnLabel;
+    }
+
+    @RequiredArgsConstructor
+    private static abstract class Stage {
+        public final MethodInsnNode stageInsn; //may only be null for a source which is an ordinary optional
+
+        public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+            storeOperands(operandTypes, lvtAlloc, out);
+        }
+
+        /**
+         * Stores the given operands into newly allocated local variables.
+         *
+         * @return the local variables, in the same order as the operand types
+         */
+        protected static LVTReference[] storeOperands(List<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out) {
+            LVTReference[] operandValues = new LVTReference[operandTypes.size()];
+            for (int i = operandValues.length - 1; i >= 0; i--) {
+                operandValues[i] = lvtAlloc.allocate(operandTypes.get(i));
+                out.add(operandValues[i].makeStore());
+            }
+            return operandValues;
+        }
+
+        /**
+         * Gets information about the type of optional consumed by this stage.
+         */
+        protected PerOptionalTypeInfo consumedTypeInfo() {
+            return OPTIONAL_TYPE_INFO.get(this.stageInsn.owner);
+        }
+
+        public abstract void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue);
+
+        public void visitClassNode(ClassNode classNode) {
+            //no-op
+        }
+
+        @Override
+        public String toString() {
+            return (this.stageInsn.getOpcode() == INVOKESTATIC ? BytecodeHelper.stripStdlibPackageFromInternalName(this.stageInsn.owner) : "")
+                   + '.' + this.stageInsn.name + BytecodeHelper.methodDescriptorToPrettyString(this.stageInsn.desc, true, false);
+        }
+    }
+
+    private static abstract class ProducerStage extends Stage {
+        public Stage nextStage;
+
+        public ProducerStage(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+    }
+
+    private static abstract class Source extends ProducerStage {
+        public Source(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+
+        private static class Of extends Source {
+            public final boolean nullable;
+
+            protected LVTReference value;
+
+            public Of(MethodInsnNode stageInsn, boolean nullable) {
+                super(stageInsn);
+                this.nullable = nullable;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                if (!this.nullable && BytecodeHelper.isReference(operandTypes.get(0))) { //Optional.of() throws a NullPointerException immediately if the value is null
+                    out.add(new MethodInsnNode(INVOKESTATIC, Type.getInternalName(Objects.class), "requireNonNull", Type.getMethodDescriptor(OBJECT_TYPE, OBJECT_TYPE), false));
+                }
+                this.value = storeOperands(operandTypes, lvtAlloc, out)[0];
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                if (this.nullable) {
+                    out.add(this.value.makeLoad());
+                    out.add(new JumpInsnNode(IFNULL, labels.emptyLabel));
+                }
+                this.nextStage.visitCode(out, labels, this.value);
+            }
+        }
+
+        private static class Empty extends Source {
+            public Empty(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                //no-op, the optional is always empty so control flow simply falls through to the empty case
+            }
+        }
+
+        private static class OfOptional extends Source {
+            public final Type optionalType;
+
+            protected LVTReference optionalValue;
+            protected LVTReference producedValue;
+
+            public OfOptional(Type optionalType) {
+                super(null);
+                this.optionalType = optionalType;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.optionalValue = storeOperands(operandTypes, lvtAlloc, out)[0];
+                this.producedValue = lvtAlloc.allocate(OPTIONAL_TYPE_INFO.get(this.optionalType.getInternalName()).elementType);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // if (!optional.isPresent()) goto empty; nextStage(optional.get());
+
+                PerOptionalTypeInfo info = OPTIONAL_TYPE_INFO.get(this.optionalType.getInternalName());
+
+                out.add(this.optionalValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, info.optionalType.getInternalName(), "isPresent", Type.getMethodDescriptor(Type.BOOLEAN_TYPE), false));
+                out.add(new JumpInsnNode(IFEQ, labels.emptyLabel));
+                out.add(this.optionalValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, info.optionalType.getInternalName(), info.getterName, Type.getMethodDescriptor(info.elementType), false));
+                out.add(this.producedValue.makeStore());
+                this.nextStage.visitCode(out, labels, this.producedValue);
+            }
+
+            @Override
+            public String toString() {
+                return "<" + BytecodeHelper.stripStdlibPackageFromInternalName(this.optionalType.getInternalName()) + '>';
+            }
+        }
+    }
+
+    private static abstract class IntermediateOp extends ProducerStage {
+        public IntermediateOp(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+
+        private static class Map extends IntermediateOp {
+            protected LambdaFlattener mapperFlattener;
+            protected LVTReference producedValue;
+
+            public Map(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.mapperFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, FUNCTION_APPLY_HANDLE).visitCaptureState(out, removeInsns);
+                this.producedValue = lvtAlloc.allocate(OBJECT_TYPE);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // if ((producedValue = mapper.apply(consumedValue)) == null) goto empty; nextStage(producedValue);
+
+                this.mapperFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.mapperFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.mapperFlattener.visitPostInvoke(out);
+                out.add(this.producedValue.makeStore());
+                out.add(this.producedValue.makeLoad());
+                out.add(new JumpInsnNode(IFNULL, labels.emptyLabel));
+                this.nextStage.visitCode(out, labels, this.producedValue);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.mapperFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class FlatMap extends IntermediateOp {
+            protected LambdaFlattener mapperFlattener;
+            protected LVTReference mappedOptionalValue;
+            protected LVTReference producedValue;
+
+            public FlatMap(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.mapperFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, FUNCTION_APPLY_HANDLE).visitCaptureState(out, removeInsns);
+                this.mappedOptionalValue = lvtAlloc.allocate(OPTIONAL_TYPE);
+                this.producedValue = lvtAlloc.allocate(OBJECT_TYPE);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // mappedOptional = Objects.requireNonNull((Optional) mapper.apply(consumedValue));
+                // if (!mappedOptional.isPresent()) goto empty; nextStage(mappedOptional.get());
+
+                this.mapperFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.mapperFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.mapperFlattener.visitPostInvoke(out);
+                out.add(new MethodInsnNode(INVOKESTATIC, Type.getInternalName(Objects.class), "requireNonNull", Type.getMethodDescriptor(OBJECT_TYPE, OBJECT_TYPE), false));
+                out.add(new TypeInsnNode(CHECKCAST, OPTIONAL_TYPE.getInternalName()));
+                out.add(this.mappedOptionalValue.makeStore());
+
+                out.add(this.mappedOptionalValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, OPTIONAL_TYPE.getInternalName(), "isPresent", Type.getMethodDescriptor(Type.BOOLEAN_TYPE), false));
+                out.add(new JumpInsnNode(IFEQ, labels.emptyLabel));
+                out.add(this.mappedOptionalValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, OPTIONAL_TYPE.getInternalName(), "get", Type.getMethodDescriptor(OBJECT_TYPE), false));
+                out.add(this.producedValue.makeStore());
+                this.nextStage.visitCode(out, labels, this.producedValue);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.mapperFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class Filter extends IntermediateOp {
+            protected LambdaFlattener predicateFlattener;
+
+            public Filter(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.predicateFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, PREDICATE_TEST_HANDLE).visitCaptureState(out, removeInsns);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                this.predicateFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.predicateFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.predicateFlattener.visitPostInvoke(out);
+                out.add(new JumpInsnNode(IFEQ, labels.emptyLabel));
+                this.nextStage.visitCode(out, labels, consumedValue);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.predicateFlattener.visitClassNode(classNode);
+            }
+        }
+    }
+
+    private static abstract class TerminalOp extends Stage {
+        public TerminalOp(MethodInsnNode stageInsn) {
+            super(stageInsn);
+        }
+
+        /**
+         * Generates the code which is executed if the optional is empty.
+         */
+        public abstract void finalizeReturnValue(InsnList out);
+
+        private static class IsPresent extends TerminalOp {
+            public IsPresent(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(new InsnNode(ICONST_0));
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(new InsnNode(ICONST_1));
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+        }
+
+        private static class Get extends TerminalOp {
+            public Get(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(new TypeInsnNode(NEW, Type.getInternalName(NoSuchElementException.class)));
+                out.add(new InsnNode(DUP));
+                out.add(new LdcInsnNode("No value present"));
+                out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(NoSuchElementException.class), "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(String.class)), false));
+                out.add(new InsnNode(ATHROW));
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(consumedValue.makeLoad());
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+        }
+
+        private static class OrElse extends TerminalOp {
+            protected LVTReference otherValue;
+
+            public OrElse(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.otherValue = storeOperands(operandTypes, lvtAlloc, out)[0];
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.otherValue.makeLoad());
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(consumedValue.makeLoad());
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+        }
+
+        private static class OrElseGet extends TerminalOp {
+            protected LambdaFlattener supplierFlattener;
+
+            public OrElseGet(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.supplierFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, this.consumedTypeInfo().supplierGetHandle).visitCaptureState(out, removeInsns);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                this.supplierFlattener.visitPreInvoke(out);
+                this.supplierFlattener.visitPostInvoke(out);
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(consumedValue.makeLoad());
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.supplierFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class OrElseThrow extends TerminalOp {
+            protected LambdaFlattener exceptionSupplierFlattener;
+
+            public OrElseThrow(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.exceptionSupplierFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, SUPPLIER_GET_HANDLE).visitCaptureState(out, removeInsns);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                this.exceptionSupplierFlattener.visitPreInvoke(out);
+                this.exceptionSupplierFlattener.visitPostInvoke(out);
+                out.add(new TypeInsnNode(CHECKCAST, Type.getInternalName(Throwable.class)));
+                out.add(new InsnNode(ATHROW));
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                out.add(consumedValue.makeLoad());
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.exceptionSupplierFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class IfPresent extends TerminalOp {
+            protected LambdaFlattener actionFlattener;
+
+            public IfPresent(MethodInsnNode stageInsn) {
+                super(stageInsn);
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.actionFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), 0, lvtAlloc, this.consumedTypeInfo().consumerAcceptHandle).visitCaptureState(out, removeInsns);
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                //no-op
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                this.actionFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.actionFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.actionFlattener.visitPostInvoke(out);
+                out.add(new JumpInsnNode(GOTO, labels.returnLabel));
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.actionFlattener.visitClassNode(classNode);
+            }
+        }
+    }
+}
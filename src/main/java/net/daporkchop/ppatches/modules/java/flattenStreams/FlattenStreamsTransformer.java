@@ -17,9 +17,8 @@ import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.InvokeDynamicUtils;
 import net.daporkchop.ppatches.util.asm.LVTReference;
 import net.daporkchop.ppatches.util.asm.LambdaFlattener;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.apache.commons.lang3.mutable.MutableInt;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
@@ -28,6 +27,7 @@ import org.objectweb.asm.tree.analysis.SourceValue;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.stream.Collector;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
@@ -38,7 +38,7 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class FlattenStreamsTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ExactInterested {
+public class FlattenStreamsTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested {
     private static boolean isStreamType(String internalName) {
         switch (internalName) {
             case "java/util/stream/Stream":
@@ -106,6 +106,10 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(Predicate.class), "test", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(Object.class)), true),
                     Type.getType(Consumer.class),
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(Consumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class)), true),
+                    Type.getType(BinaryOperator.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(BinaryOperator.class), "apply", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(Object.class)), true),
+                    Type.getType(BiConsumer.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(BiConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class), Type.getType(Object.class)), true),
                     new Type[]{Type.getType(Comparator.class)},
                     ImmutableMap.<Type, PerElementTypeInfo.PerResultMapTypeInfo>builder()
                             .put(Type.getType(Object.class), new PerElementTypeInfo.PerResultMapTypeInfo(Type.getType(Object.class),
@@ -145,6 +149,10 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(IntPredicate.class), "test", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.INT_TYPE), true),
                     Type.getType(IntConsumer.class),
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(IntConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE), true),
+                    Type.getType(IntBinaryOperator.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(IntBinaryOperator.class), "applyAsInt", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE), true),
+                    Type.getType(ObjIntConsumer.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(ObjIntConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class), Type.INT_TYPE), true),
                     new Type[0],
                     ImmutableMap.<Type, PerElementTypeInfo.PerResultMapTypeInfo>builder()
                             .put(Type.getType(Object.class), new PerElementTypeInfo.PerResultMapTypeInfo(Type.getType(Object.class),
@@ -181,6 +189,10 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(LongPredicate.class), "test", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.LONG_TYPE), true),
                     Type.getType(LongConsumer.class),
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(LongConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.LONG_TYPE), true),
+                    Type.getType(LongBinaryOperator.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(LongBinaryOperator.class), "applyAsLong", Type.getMethodDescriptor(Type.LONG_TYPE, Type.LONG_TYPE, Type.LONG_TYPE), true),
+                    Type.getType(ObjLongConsumer.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(ObjLongConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class), Type.LONG_TYPE), true),
                     new Type[0],
                     ImmutableMap.<Type, PerElementTypeInfo.PerResultMapTypeInfo>builder()
                             .put(Type.getType(Object.class), new PerElementTypeInfo.PerResultMapTypeInfo(Type.getType(Object.class),
@@ -215,6 +227,10 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(DoublePredicate.class), "test", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.DOUBLE_TYPE), true),
                     Type.getType(DoubleConsumer.class),
                     new Handle(H_INVOKEINTERFACE, Type.getInternalName(DoubleConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.DOUBLE_TYPE), true),
+                    Type.getType(DoubleBinaryOperator.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(DoubleBinaryOperator.class), "applyAsDouble", Type.getMethodDescriptor(Type.DOUBLE_TYPE, Type.DOUBLE_TYPE, Type.DOUBLE_TYPE), true),
+                    Type.getType(ObjDoubleConsumer.class),
+                    new Handle(H_INVOKEINTERFACE, Type.getInternalName(ObjDoubleConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class), Type.DOUBLE_TYPE), true),
                     new Type[0],
                     ImmutableMap.<Type, PerElementTypeInfo.PerResultMapTypeInfo>builder()
                             .put(Type.getType(Object.class), new PerElementTypeInfo.PerResultMapTypeInfo(Type.getType(Object.class),
@@ -255,6 +271,10 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
         public final Handle elementPredicateTestHandle;
         public final Type elementConsumerType;
         public final Handle elementConsumerAcceptHandle;
+        public final Type elementBinaryOperatorType;
+        public final Handle elementBinaryOperatorApplyHandle;
+        public final Type elementObjConsumerType; //consumes a container object and an element, as used by collect(Supplier, ObjConsumer, BiConsumer)
+        public final Handle elementObjConsumerAcceptHandle;
 
         public final Type[] comparatorArray;
 
@@ -380,8 +400,21 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
                        && BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "toArray", Type.getMethodDescriptor(info.elementArrayType, Type.getType(IntFunction.class)))) {
                 return Optional.of(new TerminalOp.ToArray(insn, true));
             }
-            //TODO: reduce, collect
-            else if (BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "min", Type.getMethodDescriptor(info.elementOptionalType, info.comparatorArray))) {
+            else if (BytecodeHelper.isReference(elementType)
+                       && BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "collect", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Collector.class)))) {
+                return Optional.of(new TerminalOp.Collect(insn, true));
+            } else if (BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "collect",
+                    Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Supplier.class), info.elementObjConsumerType, Type.getType(BiConsumer.class)))) {
+                return Optional.of(new TerminalOp.Collect(insn, false));
+            } else if (BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "reduce", Type.getMethodDescriptor(elementType, elementType, info.elementBinaryOperatorType))) {
+                return Optional.of(new TerminalOp.Reduce(insn, true, false));
+            } else if (BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "reduce", Type.getMethodDescriptor(info.elementOptionalType, info.elementBinaryOperatorType))) {
+                return Optional.of(new TerminalOp.Reduce(insn, false, false));
+            } else if (BytecodeHelper.isReference(elementType)
+                       && BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "reduce",
+                    Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(BiFunction.class), Type.getType(BinaryOperator.class)))) {
+                return Optional.of(new TerminalOp.Reduce(insn, true, true));
+            } else if (BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "min", Type.getMethodDescriptor(info.elementOptionalType, info.comparatorArray))) {
                 return Optional.of(new TerminalOp.MinMax(insn, false));
             } else if (BytecodeHelper.isINVOKEINTERFACE(insn, insn.owner, "max", Type.getMethodDescriptor(info.elementOptionalType, info.comparatorArray))) {
                 return Optional.of(new TerminalOp.MinMax(insn, true));
@@ -412,8 +445,12 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
     }
 
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesClass("java/util/stream/Stream") || cpIndex.referencesClass("java/util/stream/IntStream") || cpIndex.referencesClass("java/util/stream/LongStream") || cpIndex.referencesClass("java/util/stream/DoubleStream");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass("java/util/stream/Stream")
+                .referencesClass("java/util/stream/IntStream")
+                .referencesClass("java/util/stream/LongStream")
+                .referencesClass("java/util/stream/DoubleStream");
     }
 
     @Override
@@ -480,6 +517,9 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
     private static int transformStreamCall(ClassNode classNode, MethodNode methodNode, TerminalOp terminalOp) {
         Frame<SourceValue>[] sourceFrames = BytecodeHelper.analyzeSources(classNode.name, methodNode);
 
+        //now that we know where the terminal operation's operands come from, it may be able to replace itself with a more specialized implementation
+        terminalOp = terminalOp.specialize(insn -> sourceFrames[methodNode.instructions.indexOf(insn)]);
+
         //walk backwards up the stream call chain to determine the whole stream call sequence
         List<IntermediateOp> intermediateOps = new ArrayList<>();
         Source sourceOp = null;
@@ -1378,6 +1418,29 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
             throw new UnsupportedOperationException(this.getClass().getTypeName());
         }
 
+        /**
+         * Gives this terminal operation a chance to replace itself with a more specialized implementation once the sources of its operands are known.
+         */
+        public TerminalOp specialize(Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+            return this;
+        }
+
+        /**
+         * Computes the initial capacity of a {@link HashMap} or {@link HashSet} which will contain the given number of elements, in the same way as
+         * {@link HashSet#HashSet(Collection)}.
+         */
+        protected static void computeHashCapacity(InsnList out) {
+            // Math.max((int) (size / .75f) + 1, 16)
+            out.add(new InsnNode(I2F));
+            out.add(new LdcInsnNode(.75f));
+            out.add(new InsnNode(FDIV));
+            out.add(new InsnNode(F2I));
+            out.add(new InsnNode(ICONST_1));
+            out.add(new InsnNode(IADD));
+            out.add(new IntInsnNode(BIPUSH, 16));
+            out.add(new MethodInsnNode(INVOKESTATIC, Type.getInternalName(Math.class), "max", "(II)I", false));
+        }
+
         @Override
         public void visitDone(InsnList out, LabelNode breakLabel, LabelNode returnLabel) {
             //no-op
@@ -1560,24 +1623,534 @@ public class FlattenStreamsTransformer implements ITreeClassTransformer.Individu
             public final boolean hasIdentity;
             public final boolean hasCombiner;
 
+            protected LambdaFlattener accumulatorFlattener;
+            protected LVTReference resultValue;
+            protected LVTReference seenValue; //null if hasIdentity
+
             public Reduce(MethodInsnNode stageInsn, boolean hasIdentity, boolean hasCombiner) {
                 super(stageInsn);
                 this.hasIdentity = hasIdentity;
                 this.hasCombiner = hasCombiner;
             }
 
-            //TODO
+            protected Type resultType() {
+                return this.hasCombiner ? Type.getType(Object.class) : this.consumedElementType();
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, List<LVTReference> operandValues, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                int accumulatorIndexFromTop = 0;
+                if (this.hasCombiner) { //the combiner is never used for sequential streams, but it's already been evaluated so we just discard it
+                    out.add(new InsnNode(POP));
+                    accumulatorIndexFromTop++;
+                }
+
+                this.accumulatorFlattener = LambdaFlattener.createFromSources(findSources.apply(this.stageInsn), accumulatorIndexFromTop, lvtAlloc, this.hasCombiner
+                        ? new Handle(H_INVOKEINTERFACE, Type.getInternalName(BiFunction.class), "apply", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(Object.class)), true)
+                        : this.consumedElementTypeInfo().elementBinaryOperatorApplyHandle).visitCaptureState(out, removeInsns);
+                operandTypes = ImmutableList.of();
+
+                super.transformOperands(operandTypes, operandValues, lvtAlloc, out, removeInsns, findSources);
+
+                this.resultValue = lvtAlloc.allocate(this.resultType());
+                if (this.hasIdentity) { //the identity value is now on top of the stack
+                    out.add(this.resultValue.makeStore());
+                } else {
+                    out.add(BytecodeHelper.loadConstantDefaultValueInsn(this.resultType()));
+                    out.add(this.resultValue.makeStore());
+
+                    this.seenValue = lvtAlloc.allocate(Type.BOOLEAN_TYPE);
+                    out.add(new InsnNode(ICONST_0));
+                    out.add(this.seenValue.makeStore());
+                }
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                if (this.hasIdentity) {
+                    out.add(this.resultValue.makeLoad());
+                } else {
+                    // (seen ? Optional.of(result) : Optional.empty())
+
+                    PerElementTypeInfo info = this.consumedElementTypeInfo();
+                    LabelNode emptyLabel = new LabelNode();
+                    LabelNode tailLabel = new LabelNode();
+
+                    out.add(this.seenValue.makeLoad());
+                    out.add(new JumpInsnNode(IFEQ, emptyLabel));
+                    out.add(this.resultValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKESTATIC, info.elementOptionalType.getInternalName(), "of", Type.getMethodDescriptor(info.elementOptionalType, info.elementType), false));
+                    out.add(new JumpInsnNode(GOTO, tailLabel));
+
+                    out.add(emptyLabel);
+                    out.add(new MethodInsnNode(INVOKESTATIC, info.elementOptionalType.getInternalName(), "empty", Type.getMethodDescriptor(info.elementOptionalType), false));
+
+                    out.add(tailLabel);
+                }
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                LabelNode tailLabel = null;
+                if (!this.hasIdentity) {
+                    // if (!seen) { seen = true; result = consumedValue; } else ...
+                    LabelNode accumulateLabel = new LabelNode();
+                    tailLabel = new LabelNode();
+
+                    out.add(this.seenValue.makeLoad());
+                    out.add(new JumpInsnNode(IFNE, accumulateLabel));
+                    out.add(new InsnNode(ICONST_1));
+                    out.add(this.seenValue.makeStore());
+                    out.add(consumedValue.makeLoad());
+                    out.add(this.resultValue.makeStore());
+                    out.add(new JumpInsnNode(GOTO, tailLabel));
+                    out.add(accumulateLabel);
+                }
+
+                // result = accumulator.apply(result, consumedValue);
+                this.accumulatorFlattener.visitPreInvoke(out);
+                out.add(this.resultValue.makeLoad());
+                this.accumulatorFlattener.visitPostLoadInvokeArgument(out, 0);
+                out.add(consumedValue.makeLoad());
+                this.accumulatorFlattener.visitPostLoadInvokeArgument(out, 1);
+                this.accumulatorFlattener.visitPostInvoke(out);
+                out.add(this.resultValue.makeStore());
+
+                if (tailLabel != null) {
+                    out.add(tailLabel);
+                }
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.accumulatorFlattener.visitClassNode(classNode);
+            }
         }
 
         private static class Collect extends TerminalOp {
             public final boolean hasCollector;
 
+            //only set if hasCollector
+            protected LVTReference collectorValue;
+            protected LVTReference accumulatorValue;
+
+            //only set if !hasCollector
+            protected LambdaFlattener supplierFlattener;
+            protected LambdaFlattener accumulatorFlattener;
+
+            protected LVTReference containerValue;
+
             public Collect(MethodInsnNode stageInsn, boolean hasCollector) {
                 super(stageInsn);
                 this.hasCollector = hasCollector;
             }
 
-            //TODO
+            @Override
+            public TerminalOp specialize(Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                if (!this.hasCollector) {
+                    return this;
+                }
+
+                //check if the collector was created by one of the well-known factory methods in Collectors
+                AbstractInsnNode collectorInsn = BytecodeHelper.getSingleSourceInsnFromTop(findSources.apply(this.stageInsn), 0);
+                if (collectorInsn == null || collectorInsn.getOpcode() != INVOKESTATIC || !"java/util/stream/Collectors".equals(((MethodInsnNode) collectorInsn).owner)) {
+                    return this;
+                }
+
+                MethodInsnNode collectorFactoryInsn = (MethodInsnNode) collectorInsn;
+                switch (collectorFactoryInsn.name + collectorFactoryInsn.desc) {
+                    case "toList()Ljava/util/stream/Collector;":
+                        return new CollectToCollection(this.stageInsn, collectorFactoryInsn, Type.getType(ArrayList.class));
+                    case "toSet()Ljava/util/stream/Collector;":
+                        return new CollectToCollection(this.stageInsn, collectorFactoryInsn, Type.getType(HashSet.class));
+                    case "joining()Ljava/util/stream/Collector;":
+                    case "joining(Ljava/lang/CharSequence;)Ljava/util/stream/Collector;":
+                    case "joining(Ljava/lang/CharSequence;Ljava/lang/CharSequence;Ljava/lang/CharSequence;)Ljava/util/stream/Collector;":
+                        return new CollectJoining(this.stageInsn, collectorFactoryInsn);
+                    case "toMap(Ljava/util/function/Function;Ljava/util/function/Function;)Ljava/util/stream/Collector;":
+                        return new CollectToMap(this.stageInsn, collectorFactoryInsn);
+                    case "groupingBy(Ljava/util/function/Function;)Ljava/util/stream/Collector;":
+                        return new CollectGroupingBy(this.stageInsn, collectorFactoryInsn);
+                }
+                return this;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, List<LVTReference> operandValues, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                if (this.hasCollector) {
+                    super.transformOperands(operandTypes, operandValues, lvtAlloc, out, removeInsns, findSources);
+                    this.collectorValue = operandValues.get(0);
+
+                    // container = collector.supplier().get(); accumulator = collector.accumulator();
+                    this.containerValue = lvtAlloc.allocate(Type.getType(Object.class));
+                    out.add(this.collectorValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Collector.class), "supplier", Type.getMethodDescriptor(Type.getType(Supplier.class)), true));
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Supplier.class), "get", Type.getMethodDescriptor(Type.getType(Object.class)), true));
+                    out.add(this.containerValue.makeStore());
+
+                    this.accumulatorValue = lvtAlloc.allocate(Type.getType(BiConsumer.class));
+                    out.add(this.collectorValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Collector.class), "accumulator", Type.getMethodDescriptor(Type.getType(BiConsumer.class)), true));
+                    out.add(this.accumulatorValue.makeStore());
+                } else {
+                    //the combiner is never used for sequential streams, but it's already been evaluated so we just discard it
+                    out.add(new InsnNode(POP));
+
+                    Frame<SourceValue> sources = findSources.apply(this.stageInsn);
+                    this.accumulatorFlattener = LambdaFlattener.createFromSources(sources, 1, lvtAlloc, this.consumedElementTypeInfo().elementObjConsumerAcceptHandle).visitCaptureState(out, removeInsns);
+                    this.supplierFlattener = LambdaFlattener.createFromSources(sources, 2, lvtAlloc,
+                            new Handle(H_INVOKEINTERFACE, Type.getInternalName(Supplier.class), "get", Type.getMethodDescriptor(Type.getType(Object.class)), true)).visitCaptureState(out, removeInsns);
+                    operandTypes = ImmutableList.of();
+
+                    super.transformOperands(operandTypes, operandValues, lvtAlloc, out, removeInsns, findSources);
+
+                    // container = supplier.get();
+                    this.containerValue = lvtAlloc.allocate(Type.getType(Object.class));
+                    this.supplierFlattener.visitPreInvoke(out);
+                    this.supplierFlattener.visitPostInvoke(out);
+                    out.add(this.containerValue.makeStore());
+                }
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                if (this.hasCollector) {
+                    // (collector.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH) ? container : collector.finisher().apply(container))
+
+                    LabelNode finishLabel = new LabelNode();
+                    LabelNode tailLabel = new LabelNode();
+
+                    out.add(this.collectorValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Collector.class), "characteristics", Type.getMethodDescriptor(Type.getType(Set.class)), true));
+                    out.add(new FieldInsnNode(GETSTATIC, Type.getInternalName(Collector.Characteristics.class), "IDENTITY_FINISH", Type.getDescriptor(Collector.Characteristics.class)));
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Set.class), "contains", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(Object.class)), true));
+                    out.add(new JumpInsnNode(IFEQ, finishLabel));
+                    out.add(this.containerValue.makeLoad());
+                    out.add(new JumpInsnNode(GOTO, tailLabel));
+
+                    out.add(finishLabel);
+                    out.add(this.collectorValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Collector.class), "finisher", Type.getMethodDescriptor(Type.getType(Function.class)), true));
+                    out.add(this.containerValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(Function.class), "apply", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class)), true));
+
+                    out.add(tailLabel);
+                } else {
+                    out.add(this.containerValue.makeLoad());
+                }
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                if (this.hasCollector) {
+                    // accumulator.accept(container, consumedValue);
+
+                    out.add(this.accumulatorValue.makeLoad());
+                    out.add(this.containerValue.makeLoad());
+                    out.add(consumedValue.makeLoad());
+                    out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(BiConsumer.class), "accept", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class), Type.getType(Object.class)), true));
+                } else {
+                    this.accumulatorFlattener.visitPreInvoke(out);
+                    out.add(this.containerValue.makeLoad());
+                    this.accumulatorFlattener.visitPostLoadInvokeArgument(out, 0);
+                    out.add(consumedValue.makeLoad());
+                    this.accumulatorFlattener.visitPostLoadInvokeArgument(out, 1);
+                    this.accumulatorFlattener.visitPostInvoke(out);
+                }
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                if (!this.hasCollector) {
+                    this.supplierFlattener.visitClassNode(classNode);
+                    this.accumulatorFlattener.visitClassNode(classNode);
+                }
+            }
+        }
+
+        /**
+         * Base class for implementations of {@code collect(Collector)} where the collector is created by a well-known factory method in
+         * {@link java.util.stream.Collectors}, which is removed and replaced with equivalent inline code.
+         */
+        private static abstract class CollectWellKnown extends TerminalOp {
+            protected final MethodInsnNode collectorFactoryInsn;
+
+            public CollectWellKnown(MethodInsnNode stageInsn, MethodInsnNode collectorFactoryInsn) {
+                super(stageInsn);
+                this.collectorFactoryInsn = collectorFactoryInsn;
+            }
+
+            @Override
+            public void transformOperands(ImmutableList<Type> operandTypes, List<LVTReference> operandValues, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                //the collector factory's own operands are left on the stack in place of the collector
+                removeInsns.add(this.collectorFactoryInsn);
+                this.transformFactoryOperands(ImmutableList.copyOf(Type.getArgumentTypes(this.collectorFactoryInsn.desc)), lvtAlloc, out, removeInsns, findSources);
+
+                operandTypes = ImmutableList.of();
+                super.transformOperands(operandTypes, operandValues, lvtAlloc, out, removeInsns, findSources);
+            }
+
+            protected abstract void transformFactoryOperands(ImmutableList<Type> factoryOperandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources);
+
+            @Override
+            public String toString() {
+                return super.toString() + "[Collectors." + this.collectorFactoryInsn.name + BytecodeHelper.methodDescriptorToPrettyString(this.collectorFactoryInsn.desc, true, false) + ']';
+            }
+        }
+
+        private static class CollectToCollection extends CollectWellKnown {
+            protected final Type collectionType;
+            protected LVTReference collectionValue;
+
+            public CollectToCollection(MethodInsnNode stageInsn, MethodInsnNode collectorFactoryInsn, Type collectionType) {
+                super(stageInsn, collectorFactoryInsn);
+                this.collectionType = collectionType;
+            }
+
+            @Override
+            protected void transformFactoryOperands(ImmutableList<Type> factoryOperandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.collectionValue = lvtAlloc.allocate(this.collectionType);
+                out.add(new TypeInsnNode(NEW, this.collectionType.getInternalName()));
+                out.add(new InsnNode(DUP));
+                if ((this.previousStage.knownSpliteratorCharacteristics() & Spliterator.SIZED) != 0) { //we can presize the collection
+                    this.previousStage.loadExactSize(out, true);
+                    if (!Type.getType(ArrayList.class).equals(this.collectionType)) {
+                        computeHashCapacity(out);
+                    }
+                    out.add(new MethodInsnNode(INVOKESPECIAL, this.collectionType.getInternalName(), "<init>", "(I)V", false));
+                } else {
+                    out.add(new MethodInsnNode(INVOKESPECIAL, this.collectionType.getInternalName(), "<init>", "()V", false));
+                }
+                out.add(this.collectionValue.makeStore());
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.collectionValue.makeLoad());
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // collection.add(consumedValue);
+
+                out.add(this.collectionValue.makeLoad());
+                out.add(consumedValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, this.collectionType.getInternalName(), "add", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(Object.class)), false));
+                out.add(new InsnNode(POP));
+            }
+        }
+
+        private static class CollectJoining extends CollectWellKnown {
+            protected Type joinerType; //StringBuilder if there's no delimiter, otherwise StringJoiner
+            protected LVTReference joinerValue;
+
+            public CollectJoining(MethodInsnNode stageInsn, MethodInsnNode collectorFactoryInsn) {
+                super(stageInsn, collectorFactoryInsn);
+            }
+
+            @Override
+            protected void transformFactoryOperands(ImmutableList<Type> factoryOperandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                //the delimiter, prefix and suffix have to be moved into local variables, since the new StringJoiner instance needs to be created below them on the stack
+                this.joinerType = factoryOperandTypes.isEmpty() ? Type.getType(StringBuilder.class) : Type.getType(StringJoiner.class);
+                this.joinerValue = lvtAlloc.allocate(this.joinerType);
+
+                LVTReference[] factoryOperandValues = new LVTReference[factoryOperandTypes.size()];
+                for (int i = factoryOperandValues.length - 1; i >= 0; i--) {
+                    factoryOperandValues[i] = lvtAlloc.allocate(factoryOperandTypes.get(i));
+                    out.add(factoryOperandValues[i].makeStore());
+                }
+
+                out.add(new TypeInsnNode(NEW, this.joinerType.getInternalName()));
+                out.add(new InsnNode(DUP));
+                for (LVTReference factoryOperandValue : factoryOperandValues) {
+                    out.add(factoryOperandValue.makeLoad());
+                }
+                out.add(new MethodInsnNode(INVOKESPECIAL, this.joinerType.getInternalName(), "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, factoryOperandTypes.toArray(new Type[0])), false));
+                out.add(this.joinerValue.makeStore());
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.joinerValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, this.joinerType.getInternalName(), "toString", Type.getMethodDescriptor(Type.getType(String.class)), false));
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // joiner.append((CharSequence) consumedValue);
+
+                out.add(this.joinerValue.makeLoad());
+                out.add(consumedValue.makeLoad());
+                out.add(new TypeInsnNode(CHECKCAST, Type.getInternalName(CharSequence.class)));
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, this.joinerType.getInternalName(), Type.getType(StringBuilder.class).equals(this.joinerType) ? "append" : "add",
+                        Type.getMethodDescriptor(this.joinerType, Type.getType(CharSequence.class)), false));
+                out.add(new InsnNode(POP));
+            }
+        }
+
+        private static class CollectToMap extends CollectWellKnown {
+            protected LambdaFlattener keyMapperFlattener;
+            protected LambdaFlattener valueMapperFlattener;
+
+            protected LVTReference mapValue;
+            protected LVTReference oldValue;
+
+            public CollectToMap(MethodInsnNode stageInsn, MethodInsnNode collectorFactoryInsn) {
+                super(stageInsn, collectorFactoryInsn);
+            }
+
+            @Override
+            protected void transformFactoryOperands(ImmutableList<Type> factoryOperandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                Handle applyHandle = new Handle(H_INVOKEINTERFACE, Type.getInternalName(Function.class), "apply", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class)), true);
+                Frame<SourceValue> sources = findSources.apply(this.collectorFactoryInsn);
+                this.valueMapperFlattener = LambdaFlattener.createFromSources(sources, 0, lvtAlloc, applyHandle).visitCaptureState(out, removeInsns);
+                this.keyMapperFlattener = LambdaFlattener.createFromSources(sources, 1, lvtAlloc, applyHandle).visitCaptureState(out, removeInsns);
+
+                this.mapValue = lvtAlloc.allocate(Type.getType(HashMap.class));
+                out.add(new TypeInsnNode(NEW, Type.getInternalName(HashMap.class)));
+                out.add(new InsnNode(DUP));
+                if ((this.previousStage.knownSpliteratorCharacteristics() & Spliterator.SIZED) != 0) { //we can presize the map
+                    this.previousStage.loadExactSize(out, true);
+                    computeHashCapacity(out);
+                    out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(HashMap.class), "<init>", "(I)V", false));
+                } else {
+                    out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(HashMap.class), "<init>", "()V", false));
+                }
+                out.add(this.mapValue.makeStore());
+
+                this.oldValue = lvtAlloc.allocate(Type.getType(Object.class));
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.mapValue.makeLoad());
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // if ((old = map.putIfAbsent(keyMapper.apply(consumedValue), Objects.requireNonNull(valueMapper.apply(consumedValue)))) != null) {
+                //     throw new IllegalStateException("Duplicate key " + old);
+                // }
+
+                LabelNode tailLabel = new LabelNode();
+
+                out.add(this.mapValue.makeLoad());
+
+                this.keyMapperFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.keyMapperFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.keyMapperFlattener.visitPostInvoke(out);
+
+                this.valueMapperFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.valueMapperFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.valueMapperFlattener.visitPostInvoke(out);
+                out.add(new MethodInsnNode(INVOKESTATIC, Type.getInternalName(Objects.class), "requireNonNull", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class)), false));
+
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(HashMap.class), "putIfAbsent", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(Object.class)), false));
+                out.add(this.oldValue.makeStore());
+                out.add(this.oldValue.makeLoad());
+                out.add(new JumpInsnNode(IFNULL, tailLabel));
+
+                out.add(new TypeInsnNode(NEW, Type.getInternalName(IllegalStateException.class)));
+                out.add(new InsnNode(DUP));
+                out.add(new LdcInsnNode("Duplicate key "));
+                out.add(this.oldValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKESTATIC, Type.getInternalName(String.class), "valueOf", Type.getMethodDescriptor(Type.getType(String.class), Type.getType(Object.class)), false));
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(String.class), "concat", Type.getMethodDescriptor(Type.getType(String.class), Type.getType(String.class)), false));
+                out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(IllegalStateException.class), "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(String.class)), false));
+                out.add(new InsnNode(ATHROW));
+
+                out.add(tailLabel);
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.keyMapperFlattener.visitClassNode(classNode);
+                this.valueMapperFlattener.visitClassNode(classNode);
+            }
+        }
+
+        private static class CollectGroupingBy extends CollectWellKnown {
+            protected LambdaFlattener classifierFlattener;
+
+            protected LVTReference mapValue;
+            protected LVTReference keyValue;
+            protected LVTReference listValue;
+
+            public CollectGroupingBy(MethodInsnNode stageInsn, MethodInsnNode collectorFactoryInsn) {
+                super(stageInsn, collectorFactoryInsn);
+            }
+
+            @Override
+            protected void transformFactoryOperands(ImmutableList<Type> factoryOperandTypes, LVTReference.Allocator lvtAlloc, InsnList out, List<AbstractInsnNode> removeInsns, Function<AbstractInsnNode, Frame<SourceValue>> findSources) {
+                this.classifierFlattener = LambdaFlattener.createFromSources(findSources.apply(this.collectorFactoryInsn), 0, lvtAlloc,
+                        new Handle(H_INVOKEINTERFACE, Type.getInternalName(Function.class), "apply", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class)), true)).visitCaptureState(out, removeInsns);
+
+                this.mapValue = lvtAlloc.allocate(Type.getType(HashMap.class));
+                out.add(new TypeInsnNode(NEW, Type.getInternalName(HashMap.class)));
+                out.add(new InsnNode(DUP));
+                out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(HashMap.class), "<init>", "()V", false));
+                out.add(this.mapValue.makeStore());
+
+                this.keyValue = lvtAlloc.allocate(Type.getType(Object.class));
+                this.listValue = lvtAlloc.allocate(Type.getType(List.class));
+            }
+
+            @Override
+            public void finalizeReturnValue(InsnList out) {
+                out.add(this.mapValue.makeLoad());
+            }
+
+            @Override
+            public void visitCode(InsnList out, BranchLabels labels, LVTReference consumedValue) {
+                // key = Objects.requireNonNull(classifier.apply(consumedValue), "element cannot be mapped to a null key");
+                // if ((list = (List) map.get(key)) == null) { map.put(key, list = new ArrayList()); }
+                // list.add(consumedValue);
+
+                LabelNode addLabel = new LabelNode();
+
+                this.classifierFlattener.visitPreInvoke(out);
+                out.add(consumedValue.makeLoad());
+                this.classifierFlattener.visitPostLoadInvokeArgument(out, 0);
+                this.classifierFlattener.visitPostInvoke(out);
+                out.add(new LdcInsnNode("element cannot be mapped to a null key"));
+                out.add(new MethodInsnNode(INVOKESTATIC, Type.getInternalName(Objects.class), "requireNonNull", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(String.class)), false));
+                out.add(this.keyValue.makeStore());
+
+                out.add(this.mapValue.makeLoad());
+                out.add(this.keyValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(HashMap.class), "get", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class)), false));
+                out.add(new TypeInsnNode(CHECKCAST, Type.getInternalName(List.class)));
+                out.add(this.listValue.makeStore());
+                out.add(this.listValue.makeLoad());
+                out.add(new JumpInsnNode(IFNONNULL, addLabel));
+
+                out.add(new TypeInsnNode(NEW, Type.getInternalName(ArrayList.class)));
+                out.add(new InsnNode(DUP));
+                out.add(new MethodInsnNode(INVOKESPECIAL, Type.getInternalName(ArrayList.class), "<init>", "()V", false));
+                out.add(this.listValue.makeStore());
+                out.add(this.mapValue.makeLoad());
+                out.add(this.keyValue.makeLoad());
+                out.add(this.listValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(HashMap.class), "put", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object.class), Type.getType(Object.class)), false));
+                out.add(new InsnNode(POP));
+
+                out.add(addLabel);
+                out.add(this.listValue.makeLoad());
+                out.add(consumedValue.makeLoad());
+                out.add(new MethodInsnNode(INVOKEINTERFACE, Type.getInternalName(List.class), "add", Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(Object.class)), true));
+                out.add(new InsnNode(POP));
+            }
+
+            @Override
+            public void visitClassNode(ClassNode classNode) {
+                super.visitClassNode(classNode);
+                this.classifierFlattener.visitClassNode(classNode);
+            }
         }
 
         private static class MinMax extends TerminalOp {
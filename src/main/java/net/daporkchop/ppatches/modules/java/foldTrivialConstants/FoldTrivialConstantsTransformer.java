@@ -3,8 +3,7 @@ package net.daporkchop.ppatches.modules.java.foldTrivialConstants;
 import net.daporkchop.ppatches.PPatchesMod;
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
-import org.objectweb.asm.ClassReader;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
@@ -21,11 +20,12 @@ import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 /**
  * @author DaPorkchop_
  */
-public class FoldTrivialConstantsTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ExactInterested {
+public class FoldTrivialConstantsTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.LoadingFree {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod(Type.getInternalName(System.class), "lineSeparator", Type.getMethodDescriptor(Type.getType(String.class)))
-                || cpIndex.referencesClass(Type.getInternalName(File.class)); //a few different fields in File, this is faster than checking each one individually
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod(Type.getInternalName(System.class), "lineSeparator", Type.getMethodDescriptor(Type.getType(String.class)))
+                .referencesClass(Type.getInternalName(File.class)); //a few different fields in File, this is faster than checking each one individually
     }
 
     @Override
@@ -6,8 +6,7 @@ import net.daporkchop.ppatches.core.transform.PPatchesTransformerRoot;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.VarargsParameterDecoder;
 import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
-import org.objectweb.asm.ClassReader;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -31,14 +30,29 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class FoldTrivialConstantsTransformer_MethodHandles implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.ExactInterested, ITreeClassTransformer.OptimizationPass {
+public class FoldTrivialConstantsTransformer_MethodHandles implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.IncrementalOptimizationPass, ITreeClassTransformer.LoadingFree {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesClass("java/lang/invoke/MethodType");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass("java/lang/invoke/MethodType");
         //TODO: narrow this test to only check for some subset of the methods we're testing for
         //TODO: also check for MethodHandles$Lookup
     }
 
+    @Override
+    public boolean interestedInChangedInstruction(AnalyzedInsnList instructions, AbstractInsnNode insn) {
+        switch (insn.getOpcode()) {
+            case INVOKESTATIC:
+                return "java/lang/invoke/MethodType".equals(((MethodInsnNode) insn).owner);
+            case INVOKEVIRTUAL:
+                return "java/lang/invoke/MethodHandles$Lookup".equals(((MethodInsnNode) insn).owner);
+            case AASTORE: //the instruction may be storing an element of a varargs array
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions) {
         int changeFlags = 0;
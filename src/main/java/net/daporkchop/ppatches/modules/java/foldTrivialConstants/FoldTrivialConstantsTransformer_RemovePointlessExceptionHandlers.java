@@ -18,7 +18,7 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class FoldTrivialConstantsTransformer_RemovePointlessExceptionHandlers implements ITreeClassTransformer.IndividualMethod {
+public class FoldTrivialConstantsTransformer_RemovePointlessExceptionHandlers implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.LoadingFree {
     @Override
     public boolean interestedInMethod(String className, String classTransformedName, MethodNode methodNode) {
         return !methodNode.tryCatchBlocks.isEmpty();
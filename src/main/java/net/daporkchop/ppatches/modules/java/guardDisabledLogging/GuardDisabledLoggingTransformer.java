@@ -0,0 +1,295 @@
+package net.daporkchop.ppatches.modules.java.guardDisabledLogging;
+
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Wraps calls to {@code Logger#debug} and {@code Logger#trace} whose arguments do any real work (string concatenation, formatting, boxing, allocating a varargs
+ * array...) in a check for {@code Logger#isDebugEnabled()} or {@code Logger#isTraceEnabled()}, so that none of the work is done if the message would be
+ * discarded anyway.
+ * <p>
+ * As this prevents the arguments from being evaluated at all, this is only done if evaluating the arguments has no side effects other than possibly throwing an
+ * exception, which is determined using a fairly conservative whitelist of methods known to be free of side effects.
+ *
+ * @author DaPorkchop_
+ */
+public class GuardDisabledLoggingTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.LoadingFree {
+    private static final String LOGGER_NAME = "org/apache/logging/log4j/Logger";
+
+    @Override
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass(LOGGER_NAME);
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions) {
+        Set<LabelNode> referencedLabels = null;
+        List<AbstractInsnNode[]> guardedRanges = new ArrayList<>();
+
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() == INVOKEINTERFACE && isGuardableLoggingCall((MethodInsnNode) insn) && !instructions.isUnreachable(insn)) {
+                if (referencedLabels == null) {
+                    referencedLabels = findReferencedLabels(methodNode);
+                }
+
+                AbstractInsnNode rangeStart = findGuardableRangeStart(instructions, (MethodInsnNode) insn, referencedLabels);
+                if (rangeStart != null) {
+                    guardedRanges.add(new AbstractInsnNode[]{ rangeStart, instructions.getSingleStackOperandSourceFromBottom(insn, 0), insn });
+                }
+            }
+        }
+
+        if (guardedRanges.isEmpty()) {
+            return 0;
+        }
+
+        try (AnalyzedInsnList.ChangeBatch batch = instructions.beginChanges()) {
+            for (AbstractInsnNode[] range : guardedRanges) {
+                AbstractInsnNode rangeStart = range[0];
+                AbstractInsnNode loadLoggerInsn = range[1];
+                MethodInsnNode logInsn = (MethodInsnNode) range[2];
+
+                PPatchesMod.LOGGER.debug("Guarding call to Logger#{} at L{};{}{} {}",
+                        logInsn.name, classNode.name, methodNode.name, methodNode.desc, BytecodeHelper.findLineNumberForLog(logInsn));
+
+                //load the logger a second time (the range always starts with the instructions which load it) and skip the whole call if the level is disabled
+                LabelNode skipLabel = new LabelNode();
+                InsnList guardInsns = new InsnList();
+                for (AbstractInsnNode insn = rangeStart; ; insn = insn.getNext()) {
+                    guardInsns.add(insn.clone(Collections.emptyMap()));
+                    if (insn == loadLoggerInsn) {
+                        break;
+                    }
+                }
+                guardInsns.add(new MethodInsnNode(INVOKEINTERFACE, LOGGER_NAME, "debug".equals(logInsn.name) ? "isDebugEnabled" : "isTraceEnabled", "()Z", true));
+                guardInsns.add(new JumpInsnNode(IFEQ, skipLabel));
+
+                batch.insertBefore(rangeStart, guardInsns);
+                batch.insertAfter(logInsn, skipLabel);
+            }
+        }
+        return CHANGED;
+    }
+
+    private static boolean isGuardableLoggingCall(MethodInsnNode insn) {
+        if (!LOGGER_NAME.equals(insn.owner) || (!"debug".equals(insn.name) && !"trace".equals(insn.name))) {
+            return false;
+        }
+
+        //the overloads which take a Marker may be enabled by a marker filter even if the level is disabled, and the overloads which take a Supplier are already lazy
+        for (Type argumentType : Type.getArgumentTypes(insn.desc)) {
+            String argumentName = argumentType.getInternalName();
+            if ("org/apache/logging/log4j/Marker".equals(argumentName) || argumentName.endsWith("Supplier")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<LabelNode> findReferencedLabels(MethodNode methodNode) {
+        Set<LabelNode> referencedLabels = BytecodeHelper.makeInsnSet();
+        for (AbstractInsnNode insn = methodNode.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (BytecodeHelper.canAdvanceJumpingToLabel(insn)) {
+                referencedLabels.addAll(BytecodeHelper.possibleNextLabels(insn));
+            }
+        }
+        if (methodNode.tryCatchBlocks != null) {
+            for (TryCatchBlockNode tryCatchBlock : methodNode.tryCatchBlocks) {
+                referencedLabels.add(tryCatchBlock.start);
+                referencedLabels.add(tryCatchBlock.end);
+                referencedLabels.add(tryCatchBlock.handler);
+            }
+        }
+        return referencedLabels;
+    }
+
+    /**
+     * Finds the first instruction of the straight-line sequence of instructions which loads the logger and evaluates the arguments of the given logging call.
+     *
+     * @return the first instruction of the sequence, or {@code null} if the sequence can't be safely skipped
+     */
+    private static AbstractInsnNode findGuardableRangeStart(AnalyzedInsnList instructions, MethodInsnNode logInsn, Set<LabelNode> referencedLabels) {
+        AbstractInsnNode loadLoggerInsn = instructions.getSingleStackOperandSourceFromBottom(logInsn, 0);
+        if (loadLoggerInsn == null || instructions.getSoleResultSingleStackUsage(loadLoggerInsn) != logInsn) {
+            return null;
+        }
+
+        //the logger has to be loaded in a way which can be repeated without side effects
+        AbstractInsnNode rangeStart;
+        switch (loadLoggerInsn.getOpcode()) {
+            case GETSTATIC:
+            case ALOAD:
+                rangeStart = loadLoggerInsn;
+                break;
+            case GETFIELD:
+                rangeStart = loadLoggerInsn.getPrevious();
+                if (rangeStart == null || rangeStart.getOpcode() != ALOAD || instructions.getSingleStackOperandSourceFromBottom(loadLoggerInsn, 0) != rangeStart) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+
+        boolean doesWork = false;
+        for (AbstractInsnNode insn = loadLoggerInsn.getNext(); insn != logInsn; insn = insn.getNext()) {
+            if (insn instanceof LabelNode) {
+                if (referencedLabels.contains(insn)) { //something could jump into the middle of the sequence
+                    return null;
+                }
+                continue;
+            } else if (!BytecodeHelper.isNormalCodeInstruction(insn)) {
+                continue;
+            }
+
+            switch (insn.getOpcode()) {
+                case NEW:
+                    if (!"java/lang/StringBuilder".equals(((TypeInsnNode) insn).desc)) {
+                        return null;
+                    }
+                    //fallthrough
+                case NEWARRAY:
+                case ANEWARRAY:
+                    doesWork = true;
+                    break;
+                case IASTORE:
+                case LASTORE:
+                case FASTORE:
+                case DASTORE:
+                case AASTORE:
+                case BASTORE:
+                case CASTORE:
+                case SASTORE:
+                    if (!isStoreToNewArray(instructions, insn)) {
+                        return null;
+                    }
+                    break;
+                case INVOKEVIRTUAL:
+                case INVOKESPECIAL:
+                case INVOKESTATIC:
+                case INVOKEINTERFACE:
+                    if (!isSideEffectFree(instructions, (MethodInsnNode) insn)) {
+                        return null;
+                    }
+                    doesWork = true;
+                    break;
+                case INVOKEDYNAMIC:
+                    if (!isStringConcatenation((InvokeDynamicInsnNode) insn)) {
+                        return null;
+                    }
+                    doesWork = true;
+                    break;
+                case ISTORE:
+                case LSTORE:
+                case FSTORE:
+                case DSTORE:
+                case ASTORE:
+                case IINC:
+                case PUTSTATIC:
+                case PUTFIELD:
+                case MONITORENTER:
+                case MONITOREXIT:
+                case ATHROW:
+                case DUP_X1: //these could modify stack values below the logger, so it's easier to just not bother with them
+                case DUP_X2:
+                case DUP2_X1:
+                case DUP2_X2:
+                case SWAP:
+                    return null;
+                default:
+                    if (BytecodeHelper.canAdvanceJumpingToLabel(insn) || !BytecodeHelper.canAdvanceNormallyToNextInstruction(insn)) {
+                        return null;
+                    }
+            }
+        }
+
+        //if the arguments are just constants and local variables, the call is already about as cheap as checking the level
+        return doesWork ? rangeStart : null;
+    }
+
+    private static boolean isStoreToNewArray(AnalyzedInsnList instructions, AbstractInsnNode storeInsn) {
+        AbstractInsnNode arraySource = instructions.getSingleStackOperandSourceFromBottom(storeInsn, 0);
+        if (arraySource != null && arraySource.getOpcode() == DUP) {
+            arraySource = instructions.getSingleStackOperandSourceFromBottom(arraySource, 0);
+        }
+        return arraySource != null && (arraySource.getOpcode() == NEWARRAY || arraySource.getOpcode() == ANEWARRAY);
+    }
+
+    private static boolean isSideEffectFree(AnalyzedInsnList instructions, MethodInsnNode insn) {
+        switch (insn.owner) {
+            case "java/lang/StringBuilder": //only allowed on a StringBuilder which was created while evaluating the arguments
+                return insn.getOpcode() != INVOKESTATIC && isNewStringBuilder(instructions, instructions.getSingleStackOperandSourceFromBottom(insn, 0));
+            case "java/lang/String":
+                return "valueOf".equals(insn.name) || "format".equals(insn.name);
+            case "java/lang/Boolean":
+            case "java/lang/Byte":
+            case "java/lang/Short":
+            case "java/lang/Character":
+            case "java/lang/Integer":
+            case "java/lang/Long":
+            case "java/lang/Float":
+            case "java/lang/Double":
+                return "valueOf".equals(insn.name) || "toString".equals(insn.name) || "toHexString".equals(insn.name);
+            case "java/util/Arrays":
+                return "toString".equals(insn.name) || "deepToString".equals(insn.name);
+            case "java/util/Objects":
+                return "toString".equals(insn.name);
+        }
+
+        //conventionally, these methods are side-effect free on any type
+        switch (insn.name) {
+            case "toString":
+            case "getName":
+            case "getSimpleName":
+                return "()Ljava/lang/String;".equals(insn.desc) && insn.getOpcode() != INVOKESTATIC;
+            case "getClass":
+                return "()Ljava/lang/Class;".equals(insn.desc);
+            case "name":
+                return "()Ljava/lang/String;".equals(insn.desc) && insn.getOpcode() != INVOKESTATIC;
+            case "size":
+            case "length":
+            case "hashCode":
+            case "ordinal":
+                return "()I".equals(insn.desc) && insn.getOpcode() != INVOKESTATIC;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isNewStringBuilder(AnalyzedInsnList instructions, AbstractInsnNode src) {
+        while (src instanceof MethodInsnNode && BytecodeHelper.isINVOKEVIRTUAL(src, "java/lang/StringBuilder", "append", ((MethodInsnNode) src).desc)) {
+            src = instructions.getSingleStackOperandSourceFromBottom(src, 0);
+        }
+        if (src != null && src.getOpcode() == DUP) {
+            src = instructions.getSingleStackOperandSourceFromBottom(src, 0);
+        }
+        return src != null && src.getOpcode() == NEW;
+    }
+
+    private static boolean isStringConcatenation(InvokeDynamicInsnNode insn) {
+        String bootstrapOwner = insn.bsm.getOwner();
+        return "java/lang/invoke/StringConcatFactory".equals(bootstrapOwner) || bootstrapOwner.startsWith("net/daporkchop/ppatches/util/asm/concat/");
+    }
+}
@@ -0,0 +1,389 @@
+package net.daporkchop.ppatches.modules.java.optimizeConstantVarargs;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import net.daporkchop.ppatches.util.asm.VarargsParameterDecoder;
+import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Eliminates allocations caused by passing constant arguments to varargs methods:
+ * <ul>
+ *     <li>calls to collection factory methods such as {@code ImmutableList.of(...)} or {@code Arrays.asList(...)} whose elements are all constants are replaced
+ *     with an {@code INVOKEDYNAMIC} instruction which creates the collection once when the call site is linked. The mutable collections returned by
+ *     {@code Arrays.asList(...)} and {@code EnumSet.of(...)} are only shared if the result is immediately used for a read-only query such as
+ *     {@link java.util.Collection#contains(Object)}.</li>
+ *     <li>calls to the varargs methods in Guava's {@code Preconditions} are replaced with an {@code INVOKEDYNAMIC} instruction which receives the message
+ *     arguments individually, and only boxes them and collects them into an array if the check fails.</li>
+ * </ul>
+ *
+ * @author DaPorkchop_
+ */
+public class OptimizeConstantVarargsTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.LoadingFree {
+    private static final String PRECONDITIONS_NAME = "com/google/common/base/Preconditions";
+
+    //the name of the factory method in each supported collection class
+    private static final Map<String, String> COLLECTION_FACTORY_NAMES = ImmutableMap.of(
+            "java/util/Arrays", "asList",
+            "java/util/EnumSet", "of",
+            "com/google/common/collect/ImmutableList", "of",
+            "com/google/common/collect/ImmutableSet", "of",
+            "com/google/common/collect/ImmutableMap", "of");
+
+    //collection classes whose factory methods return a mutable collection, which can only be shared if it's never modified
+    private static final Set<String> MUTABLE_COLLECTION_OWNERS = ImmutableSet.of("java/util/Arrays", "java/util/EnumSet");
+
+    //methods which can be invoked on any collection without modifying it or allowing it to escape
+    private static final Set<String> READ_ONLY_COLLECTION_METHODS = ImmutableSet.of("contains", "containsAll", "size", "isEmpty", "get", "indexOf", "lastIndexOf");
+
+    private static final MethodHandle INVOKE_FACTORY;
+    private static final MethodHandle NON_NULL;
+    private static final MethodHandle NOOP;
+
+    static {
+        try {
+            INVOKE_FACTORY = MethodHandles.lookup().findStatic(OptimizeConstantVarargsTransformer.class, "invokeFactory", MethodType.methodType(Object.class, MethodHandle.class, Object[].class));
+            NON_NULL = MethodHandles.lookup().findStatic(Objects.class, "nonNull", MethodType.methodType(boolean.class, Object.class));
+            NOOP = MethodHandles.lookup().findStatic(OptimizeConstantVarargsTransformer.class, "noop", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public ConstantPoolReferences interestingReferences() {
+        ConstantPoolReferences references = new ConstantPoolReferences()
+                .referencesMethod(PRECONDITIONS_NAME, "checkArgument", "(ZLjava/lang/String;[Ljava/lang/Object;)V")
+                .referencesMethod(PRECONDITIONS_NAME, "checkState", "(ZLjava/lang/String;[Ljava/lang/Object;)V")
+                .referencesMethod(PRECONDITIONS_NAME, "checkNotNull", "(Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;");
+        for (String owner : COLLECTION_FACTORY_NAMES.keySet()) {
+            references.referencesClass(owner);
+        }
+        return references;
+    }
+
+    @Override
+    public boolean interestedInMethod(String className, String classTransformedName, MethodNode methodNode) {
+        return !"<clinit>".equals(methodNode.name);
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions) {
+        int changeFlags = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(), next; insn != null; insn = next) {
+            next = insn.getNext();
+
+            if (insn.getOpcode() != INVOKESTATIC || instructions.isUnreachable(insn)) {
+                continue;
+            }
+
+            MethodInsnNode invokeInsn = (MethodInsnNode) insn;
+            if (PRECONDITIONS_NAME.equals(invokeInsn.owner)) {
+                if (isVarargsPrecondition(invokeInsn)) {
+                    changeFlags |= transformPrecondition(classNode, methodNode, invokeInsn, instructions);
+                }
+            } else if (invokeInsn.name.equals(COLLECTION_FACTORY_NAMES.get(invokeInsn.owner))) {
+                changeFlags |= transformCollectionFactory(classNode, methodNode, invokeInsn, instructions);
+            }
+        }
+        return changeFlags;
+    }
+
+    //
+    // constant collections
+    //
+
+    private static int transformCollectionFactory(ClassNode classNode, MethodNode methodNode, MethodInsnNode invokeInsn, AnalyzedInsnList instructions) {
+        Type[] argumentTypes = Type.getArgumentTypes(invokeInsn.desc);
+        if (argumentTypes.length == 0) { //the empty collections are already singletons
+            return 0;
+        }
+        for (int i = 0; i < argumentTypes.length; i++) {
+            Type elementType = i == argumentTypes.length - 1 && argumentTypes[i].getSort() == Type.ARRAY ? argumentTypes[i].getElementType() : argumentTypes[i];
+            if (elementType.getSort() != Type.OBJECT) { //this overload takes something other than the collection's elements
+                return 0;
+            }
+        }
+
+        if (MUTABLE_COLLECTION_OWNERS.contains(invokeInsn.owner) && !isOnlyQueried(instructions, invokeInsn)) {
+            return 0;
+        }
+
+        List<AbstractInsnNode> sourceInsns = instructions.getSingleStackOperandSources(invokeInsn);
+        if (sourceInsns == null) {
+            return 0;
+        }
+
+        List<Object> elements = new ArrayList<>();
+        List<AbstractInsnNode> insnsToRemove = new ArrayList<>();
+        boolean varargs = argumentTypes[argumentTypes.length - 1].getSort() == Type.ARRAY;
+        for (int i = 0; i < argumentTypes.length - (varargs ? 1 : 0); i++) {
+            if (!tryDecodeConstantElement(instructions, sourceInsns.get(i), invokeInsn, elements, insnsToRemove)) {
+                return 0;
+            }
+        }
+
+        if (varargs) {
+            VarargsParameterDecoder.Result varargsArray = VarargsParameterDecoder.tryDecode(invokeInsn, instructions).orElse(null);
+            if (varargsArray == null) {
+                return 0;
+            }
+
+            insnsToRemove.addAll(varargsArray.beforeElementsInsns());
+            for (VarargsParameterDecoder.Element element : varargsArray.elements) {
+                if (element.valueSourceInsns.size() != 1
+                    || !tryDecodeConstantElement(instructions, element.valueSourceInsns.iterator().next(), element.astoreInsn, elements, insnsToRemove)) {
+                    return 0;
+                }
+                insnsToRemove.addAll(element.beforeValueInsns());
+                insnsToRemove.addAll(element.afterValueInsns());
+            }
+        }
+
+        if (elements.isEmpty()) {
+            return 0;
+        }
+
+        PPatchesMod.LOGGER.debug("Hoisting constant collection created by L{};{}{} with {} elements at L{};{}{} {}",
+                invokeInsn.owner, invokeInsn.name, invokeInsn.desc, elements.size(),
+                classNode.name, methodNode.name, methodNode.desc, BytecodeHelper.findLineNumberForLog(invokeInsn));
+
+        Object[] bootstrapArgs = new Object[elements.size() + 1];
+        bootstrapArgs[0] = new Handle(H_INVOKESTATIC, invokeInsn.owner, invokeInsn.name, invokeInsn.desc, invokeInsn.itf);
+        for (int i = 0; i < elements.size(); i++) {
+            bootstrapArgs[i + 1] = elements.get(i);
+        }
+
+        try (AnalyzedInsnList.ChangeBatch batch = instructions.beginChanges()) {
+            for (AbstractInsnNode insn : insnsToRemove) {
+                batch.remove(insn);
+            }
+
+            batch.set(invokeInsn, new InvokeDynamicInsnNode(invokeInsn.name, Type.getMethodDescriptor(Type.getReturnType(invokeInsn.desc)),
+                    new Handle(H_INVOKESTATIC,
+                            Type.getInternalName(OptimizeConstantVarargsTransformer.class),
+                            "bootstrapConstantCollection",
+                            Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class), Type.getType(MethodType.class), Type.getType(MethodHandle.class), Type.getType(Object[].class)),
+                            OptimizeConstantVarargsTransformer.class.isInterface()),
+                    bootstrapArgs));
+        }
+        return CHANGED;
+    }
+
+    /**
+     * Checks whether the collection produced by the given instruction is only used as the receiver of a single read-only query.
+     */
+    private static boolean isOnlyQueried(AnalyzedInsnList instructions, AbstractInsnNode producerInsn) {
+        AbstractInsnNode usageInsn = instructions.getSoleResultSingleStackUsage(producerInsn);
+        if (usageInsn == null || (usageInsn.getOpcode() != INVOKEINTERFACE && usageInsn.getOpcode() != INVOKEVIRTUAL)) {
+            return false;
+        }
+
+        MethodInsnNode usageMethodInsn = (MethodInsnNode) usageInsn;
+        return usageMethodInsn.owner.startsWith("java/util/") && READ_ONLY_COLLECTION_METHODS.contains(usageMethodInsn.name)
+               && instructions.getSingleStackOperandSourceFromBottom(usageInsn, 0) == producerInsn;
+    }
+
+    /**
+     * Tries to decode a collection element into a value which can be passed as a bootstrap method argument.
+     * <p>
+     * Enum constants are passed as a {@link Handle} to the field, as we can't tell whether or not the field is actually an enum constant without loading
+     * the class. This is checked when the call site is linked instead.
+     *
+     * @return whether or not the element is a constant
+     */
+    private static boolean tryDecodeConstantElement(AnalyzedInsnList instructions, AbstractInsnNode valueInsn, AbstractInsnNode consumingInsn, List<Object> elements, List<AbstractInsnNode> insnsToRemove) {
+        if (instructions.getSoleResultSingleStackUsage(valueInsn) != consumingInsn) {
+            return false;
+        }
+
+        if (valueInsn instanceof LdcInsnNode) {
+            Object cst = ((LdcInsnNode) valueInsn).cst;
+            if (cst instanceof String || (cst instanceof Type && ((Type) cst).getSort() != Type.METHOD)) {
+                elements.add(cst);
+                insnsToRemove.add(valueInsn);
+                return true;
+            }
+        } else if (valueInsn.getOpcode() == GETSTATIC) {
+            FieldInsnNode getStaticInsn = (FieldInsnNode) valueInsn;
+            if (getStaticInsn.desc.equals('L' + getStaticInsn.owner + ';')) {
+                elements.add(new Handle(H_GETSTATIC, getStaticInsn.owner, getStaticInsn.name, getStaticInsn.desc, false));
+                insnsToRemove.add(valueInsn);
+                return true;
+            }
+        } else if (valueInsn.getOpcode() == INVOKESTATIC && "valueOf".equals(((MethodInsnNode) valueInsn).name)) {
+            //only the boxed types whose constant pool representation is the boxed value itself are supported
+            MethodInsnNode invokeValueOfInsn = (MethodInsnNode) valueInsn;
+            Type primitiveType = BytecodeHelper.unboxedPrimitiveType(invokeValueOfInsn.owner).orElse(null);
+            if (primitiveType != null && primitiveType.getSort() >= Type.INT && primitiveType.getSort() <= Type.DOUBLE
+                && invokeValueOfInsn.desc.equals(Type.getMethodDescriptor(Type.getObjectType(invokeValueOfInsn.owner), primitiveType))) {
+                AbstractInsnNode loadConstantInsn = instructions.getSingleStackOperandSourceFromBottom(invokeValueOfInsn, 0);
+                if (loadConstantInsn != null && BytecodeHelper.isConstant(loadConstantInsn) && instructions.getSoleResultSingleStackUsage(loadConstantInsn) == invokeValueOfInsn) {
+                    elements.add(BytecodeHelper.decodeConstant(loadConstantInsn));
+                    insnsToRemove.add(loadConstantInsn);
+                    insnsToRemove.add(invokeValueOfInsn);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static CallSite bootstrapConstantCollection(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle factory, Object... elements) throws Throwable {
+        //fallback which invokes the factory again every time, reading the current value of any fields
+        MethodHandle dynamicFactory = MethodHandles.insertArguments(INVOKE_FACTORY, 0, factory, elements).asType(type);
+
+        for (Object element : elements) {
+            if (element instanceof MethodHandle && !isEnumConstantGetter(lookup, (MethodHandle) element)) {
+                PPatchesMod.LOGGER.debug("Not hoisting constant collection in {}: {} isn't an enum constant", lookup.lookupClass(), element);
+                return new ConstantCallSite(dynamicFactory);
+            }
+        }
+
+        Object collection;
+        try {
+            collection = invokeFactory(factory, elements);
+        } catch (RuntimeException e) { //the factory rejected the elements (e.g. duplicate map keys), let it throw the exception every time
+            PPatchesMod.LOGGER.debug("Not hoisting constant collection in {}: {}", lookup.lookupClass(), e);
+            return new ConstantCallSite(dynamicFactory);
+        }
+        return new ConstantCallSite(MethodHandles.constant(type.returnType(), collection));
+    }
+
+    private static boolean isEnumConstantGetter(MethodHandles.Lookup lookup, MethodHandle getter) {
+        try {
+            return lookup.revealDirect(getter).reflectAs(Field.class, lookup).isEnumConstant();
+        } catch (IllegalArgumentException | ClassCastException e) {
+            return false;
+        }
+    }
+
+    private static Object invokeFactory(MethodHandle factory, Object[] elements) throws Throwable {
+        Object[] values = elements.clone();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof MethodHandle) {
+                values[i] = ((MethodHandle) values[i]).invoke();
+            }
+        }
+
+        //if the factory is a varargs method, this will collect the trailing elements into an array
+        return factory.invokeWithArguments(values);
+    }
+
+    //
+    // preconditions
+    //
+
+    private static boolean isVarargsPrecondition(MethodInsnNode invokeInsn) {
+        switch (invokeInsn.name) {
+            case "checkArgument":
+            case "checkState":
+                return "(ZLjava/lang/String;[Ljava/lang/Object;)V".equals(invokeInsn.desc);
+            case "checkNotNull":
+                return "(Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;".equals(invokeInsn.desc);
+            default:
+                return false;
+        }
+    }
+
+    private static int transformPrecondition(ClassNode classNode, MethodNode methodNode, MethodInsnNode invokeInsn, AnalyzedInsnList instructions) {
+        VarargsParameterDecoder.Result varargs = VarargsParameterDecoder.tryDecode(invokeInsn, instructions).orElse(null);
+        if (varargs == null) {
+            return 0;
+        }
+
+        //the checked value and the message template stay on the stack, followed by each of the message arguments
+        Type[] originalArgumentTypes = Type.getArgumentTypes(invokeInsn.desc);
+        List<Type> argumentTypes = new ArrayList<>();
+        argumentTypes.add(originalArgumentTypes[0]);
+        argumentTypes.add(originalArgumentTypes[1]);
+
+        List<AbstractInsnNode> insnsToRemove = new ArrayList<>(varargs.beforeElementsInsns());
+        for (VarargsParameterDecoder.Element element : varargs.elements) {
+            insnsToRemove.addAll(element.beforeValueInsns());
+            insnsToRemove.addAll(element.afterValueInsns());
+            argumentTypes.add(tryRemoveBoxing(instructions, element.valueSourceInsns, element.astoreInsn, insnsToRemove));
+        }
+
+        PPatchesMod.LOGGER.debug("Deferring varargs allocation for Preconditions#{} with {} arguments at L{};{}{} {}",
+                invokeInsn.name, varargs.elements.size(),
+                classNode.name, methodNode.name, methodNode.desc, BytecodeHelper.findLineNumberForLog(invokeInsn));
+
+        try (AnalyzedInsnList.ChangeBatch batch = instructions.beginChanges()) {
+            for (AbstractInsnNode insn : insnsToRemove) {
+                batch.remove(insn);
+            }
+
+            batch.set(invokeInsn, new InvokeDynamicInsnNode(invokeInsn.name, Type.getMethodDescriptor(Type.getReturnType(invokeInsn.desc), argumentTypes.toArray(new Type[0])),
+                    new Handle(H_INVOKESTATIC,
+                            Type.getInternalName(OptimizeConstantVarargsTransformer.class),
+                            "bootstrapPrecondition",
+                            Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class), Type.getType(MethodType.class), Type.getType(MethodHandle.class)),
+                            OptimizeConstantVarargsTransformer.class.isInterface()),
+                    new Handle(H_INVOKESTATIC, invokeInsn.owner, invokeInsn.name, invokeInsn.desc, invokeInsn.itf)));
+        }
+        return CHANGED;
+    }
+
+    private static Type tryRemoveBoxing(AnalyzedInsnList instructions, Set<AbstractInsnNode> valueSourceInsns, AbstractInsnNode consumingInsn, List<AbstractInsnNode> insnsToRemove) {
+        if (valueSourceInsns.size() == 1) {
+            AbstractInsnNode boxInsn = valueSourceInsns.iterator().next();
+            if (boxInsn.getOpcode() == INVOKESTATIC && "valueOf".equals(((MethodInsnNode) boxInsn).name)
+                && instructions.getSoleResultSingleStackUsage(boxInsn) == consumingInsn) {
+                MethodInsnNode invokeValueOfInsn = (MethodInsnNode) boxInsn;
+                Type primitiveType = BytecodeHelper.unboxedPrimitiveType(invokeValueOfInsn.owner).orElse(null);
+                if (primitiveType != null && invokeValueOfInsn.desc.equals(Type.getMethodDescriptor(Type.getObjectType(invokeValueOfInsn.owner), primitiveType))) {
+                    insnsToRemove.add(boxInsn);
+                    return primitiveType;
+                }
+            }
+        }
+        return Type.getType(Object.class);
+    }
+
+    public static CallSite bootstrapPrecondition(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle original) throws Throwable {
+        //the original method is a varargs method, so asType() will box the message arguments and collect them into an array
+        MethodHandle failed = original.asVarargsCollector(Object[].class).asType(type);
+
+        MethodHandle test;
+        MethodHandle passed;
+        if (type.returnType() == void.class) { //checkArgument or checkState
+            test = MethodHandles.identity(boolean.class);
+            passed = MethodHandles.dropArguments(NOOP, 0, type.parameterList());
+        } else { //checkNotNull
+            test = NON_NULL.asType(MethodType.methodType(boolean.class, type.parameterType(0)));
+            passed = MethodHandles.dropArguments(MethodHandles.identity(type.parameterType(0)), 1, type.parameterList().subList(1, type.parameterCount())).asType(type);
+        }
+        return new ConstantCallSite(MethodHandles.guardWithTest(test, passed, failed));
+    }
+
+    private static void noop() {
+        //no-op
+    }
+}
@@ -0,0 +1,358 @@
+package net.daporkchop.ppatches.modules.java.optimizeReflection;
+
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.BytecodeHelper;
+import net.daporkchop.ppatches.util.asm.VarargsParameterDecoder;
+import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
+import net.daporkchop.ppatches.util.asm.analysis.IReverseDataflowProvider;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.spongepowered.asm.mixin.transformer.ClassInfo;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Replaces calls to {@link Method#invoke}, {@link Constructor#newInstance} and the getters and setters in {@link Field} on reflective objects which are stored in
+ * {@code static final} fields with {@code INVOKEDYNAMIC} instructions which are bound directly to the reflected member.
+ * <p>
+ * If the arguments are passed in an array which is constructed right before the call, the array is removed and the arguments are passed individually, and
+ * boxing conversions of individual arguments are removed where possible. Exceptions thrown by invoked methods and constructors are still wrapped in an
+ * {@link InvocationTargetException}, but calls with arguments of the wrong type will throw a {@link ClassCastException} or {@link NullPointerException} instead
+ * of an {@link IllegalArgumentException}.
+ *
+ * @author DaPorkchop_
+ */
+public class OptimizeReflectionTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested {
+    private static final Type[] PRIMITIVE_TYPES = {
+            Type.BOOLEAN_TYPE, Type.BYTE_TYPE, Type.CHAR_TYPE, Type.SHORT_TYPE, Type.INT_TYPE, Type.LONG_TYPE, Type.FLOAT_TYPE, Type.DOUBLE_TYPE,
+    };
+
+    private static final MethodHandle REQUIRE_NON_NULL;
+    private static final MethodHandle THROW_INVOCATION_TARGET_EXCEPTION;
+
+    static {
+        try {
+            REQUIRE_NON_NULL = MethodHandles.lookup().findStatic(Objects.class, "requireNonNull", MethodType.methodType(Object.class, Object.class));
+            THROW_INVOCATION_TARGET_EXCEPTION = MethodHandles.lookup().findStatic(OptimizeReflectionTransformer.class, "throwInvocationTargetException", MethodType.methodType(Object.class, Throwable.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public ConstantPoolReferences interestingReferences() {
+        ConstantPoolReferences references = new ConstantPoolReferences()
+                .referencesMethod("java/lang/reflect/Method", "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;")
+                .referencesMethod("java/lang/reflect/Constructor", "newInstance", "([Ljava/lang/Object;)Ljava/lang/Object;")
+                .referencesMethod("java/lang/reflect/Field", "get", "(Ljava/lang/Object;)Ljava/lang/Object;")
+                .referencesMethod("java/lang/reflect/Field", "set", "(Ljava/lang/Object;Ljava/lang/Object;)V");
+        for (Type primitiveType : PRIMITIVE_TYPES) {
+            references.referencesMethod("java/lang/reflect/Field", "get" + primitiveSuffix(primitiveType), Type.getMethodDescriptor(primitiveType, Type.getType(Object.class)))
+                    .referencesMethod("java/lang/reflect/Field", "set" + primitiveSuffix(primitiveType), Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object.class), primitiveType));
+        }
+        return references;
+    }
+
+    private static String primitiveSuffix(Type primitiveType) {
+        String className = primitiveType.getClassName();
+        return Character.toUpperCase(className.charAt(0)) + className.substring(1);
+    }
+
+    @Override
+    public boolean interestedInMethod(String className, String classTransformedName, MethodNode methodNode) {
+        return !"<clinit>".equals(methodNode.name);
+    }
+
+    @Override
+    public int transformMethod(String name, String transformedName, ClassNode classNode, MethodNode methodNode, AnalyzedInsnList instructions) {
+        int changeFlags = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(), next; insn != null; insn = next) {
+            next = insn.getNext();
+
+            if (insn.getOpcode() != INVOKEVIRTUAL || instructions.isUnreachable(insn)) {
+                continue;
+            }
+
+            MethodInsnNode invokeInsn = (MethodInsnNode) insn;
+            switch (invokeInsn.owner) {
+                case "java/lang/reflect/Method":
+                    if ("invoke".equals(invokeInsn.name)) {
+                        changeFlags |= transformReflectiveCall(classNode, methodNode, invokeInsn, instructions, "bootstrapInvoke");
+                    }
+                    break;
+                case "java/lang/reflect/Constructor":
+                    if ("newInstance".equals(invokeInsn.name)) {
+                        changeFlags |= transformReflectiveCall(classNode, methodNode, invokeInsn, instructions, "bootstrapNewInstance");
+                    }
+                    break;
+                case "java/lang/reflect/Field":
+                    if (invokeInsn.name.startsWith("get") && invokeInsn.desc.startsWith("(Ljava/lang/Object;)")) {
+                        changeFlags |= transformReflectiveCall(classNode, methodNode, invokeInsn, instructions, "bootstrapGet");
+                    } else if (invokeInsn.name.startsWith("set") && invokeInsn.desc.startsWith("(Ljava/lang/Object;")) {
+                        changeFlags |= transformReflectiveCall(classNode, methodNode, invokeInsn, instructions, "bootstrapSet");
+                    }
+                    break;
+            }
+        }
+        return changeFlags;
+    }
+
+    private static int transformReflectiveCall(ClassNode classNode, MethodNode methodNode, MethodInsnNode invokeInsn, AnalyzedInsnList instructions, String bootstrapName) {
+        FieldInsnNode getReflectiveObjectInsn = findConstantSourceField(classNode, instructions, instructions.getSingleStackOperandSourceFromBottom(invokeInsn, 0));
+        if (getReflectiveObjectInsn == null) {
+            return 0;
+        }
+
+        //the reflective object stays on the stack, the bootstrap method just ignores it unless the field hasn't been initialized yet when the call site is linked
+        List<Type> argumentTypes = new ArrayList<>();
+        argumentTypes.add(Type.getObjectType(invokeInsn.owner));
+
+        List<AbstractInsnNode> insnsToRemove = new ArrayList<>();
+        Type[] originalArgumentTypes = Type.getArgumentTypes(invokeInsn.desc);
+        switch (bootstrapName) {
+            case "bootstrapInvoke":
+            case "bootstrapNewInstance": {
+                for (int i = 0; i < originalArgumentTypes.length - 1; i++) {
+                    argumentTypes.add(originalArgumentTypes[i]);
+                }
+
+                VarargsParameterDecoder.Result varargs = VarargsParameterDecoder.tryDecode(invokeInsn, instructions).orElse(null);
+                if (varargs == null) { //we can't get rid of the array, so we'll have to spread it at runtime
+                    argumentTypes.add(Type.getType(Object[].class));
+                    break;
+                }
+
+                bootstrapName += "Spread";
+                insnsToRemove.addAll(varargs.beforeElementsInsns());
+                for (VarargsParameterDecoder.Element element : varargs.elements) {
+                    insnsToRemove.addAll(element.beforeValueInsns());
+                    insnsToRemove.addAll(element.afterValueInsns());
+                    argumentTypes.add(tryRemoveBoxing(instructions, element.valueSourceInsns, element.astoreInsn, insnsToRemove));
+                }
+                break;
+            }
+            case "bootstrapSet":
+                argumentTypes.add(originalArgumentTypes[0]);
+                if ("set".equals(invokeInsn.name)) {
+                    argumentTypes.add(tryRemoveBoxing(instructions, instructions.getStackOperandSourcesFromBottom(invokeInsn, 2).insns, invokeInsn, insnsToRemove));
+                } else {
+                    argumentTypes.add(originalArgumentTypes[1]);
+                }
+                break;
+            default:
+                argumentTypes.add(originalArgumentTypes[0]);
+                break;
+        }
+
+        PPatchesMod.LOGGER.debug("Optimizing call to L{};{}{} at L{};{}{} {} on constant L{};{}",
+                invokeInsn.owner, invokeInsn.name, invokeInsn.desc,
+                classNode.name, methodNode.name, methodNode.desc, BytecodeHelper.findLineNumberForLog(invokeInsn),
+                getReflectiveObjectInsn.owner, getReflectiveObjectInsn.name);
+
+        try (AnalyzedInsnList.ChangeBatch batch = instructions.beginChanges()) {
+            for (AbstractInsnNode insn : insnsToRemove) {
+                batch.remove(insn);
+            }
+
+            batch.set(invokeInsn, new InvokeDynamicInsnNode(invokeInsn.name, Type.getMethodDescriptor(Type.getReturnType(invokeInsn.desc), argumentTypes.toArray(new Type[0])),
+                    new Handle(H_INVOKESTATIC,
+                            Type.getInternalName(OptimizeReflectionTransformer.class),
+                            bootstrapName,
+                            Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class), Type.getType(MethodType.class), Type.getType(MethodHandle.class)),
+                            OptimizeReflectionTransformer.class.isInterface()),
+                    new Handle(H_GETSTATIC,
+                            getReflectiveObjectInsn.owner, getReflectiveObjectInsn.name, getReflectiveObjectInsn.desc, isInterface(classNode, getReflectiveObjectInsn.owner))));
+        }
+        return CHANGED;
+    }
+
+    private static FieldInsnNode findConstantSourceField(ClassNode classNode, AnalyzedInsnList instructions, AbstractInsnNode sourceInsn) {
+        if (sourceInsn != null && sourceInsn.getOpcode() == ALOAD) { //the reflective object may have been stored in a local variable first
+            AbstractInsnNode storeInsn = instructions.getSingleLocalSource(sourceInsn, ((VarInsnNode) sourceInsn).var);
+            sourceInsn = storeInsn != null && storeInsn != IReverseDataflowProvider.ARGUMENT_SOURCE
+                    ? instructions.getSingleStackOperandSourceFromBottom(storeInsn, 0)
+                    : null;
+        }
+        if (sourceInsn == null || sourceInsn.getOpcode() != GETSTATIC) {
+            return null;
+        }
+
+        //we can only constant fold the reflective object if it's stored in a static final field
+        FieldInsnNode getStaticInsn = (FieldInsnNode) sourceInsn;
+        if (getStaticInsn.owner.equals(classNode.name)) { //the field is in the class currently being transformed, which mixin doesn't know about yet
+            for (FieldNode fieldNode : classNode.fields) {
+                if (fieldNode.name.equals(getStaticInsn.name) && fieldNode.desc.equals(getStaticInsn.desc)) {
+                    return (fieldNode.access & (ACC_STATIC | ACC_FINAL)) == (ACC_STATIC | ACC_FINAL) ? getStaticInsn : null;
+                }
+            }
+            return null;
+        }
+
+        ClassInfo classInfo;
+        ClassInfo.Field field;
+        if ((classInfo = ClassInfo.forName(getStaticInsn.owner)) == null
+            || (field = classInfo.findFieldInHierarchy(getStaticInsn.name, getStaticInsn.desc, ClassInfo.SearchType.ALL_CLASSES, ClassInfo.Traversal.NONE, ClassInfo.INCLUDE_ALL)) == null) {
+            return null;
+        }
+        return field.isStatic() && field.isFinal() ? getStaticInsn : null;
+    }
+
+    private static boolean isInterface(ClassNode classNode, String owner) {
+        return owner.equals(classNode.name) ? (classNode.access & ACC_INTERFACE) != 0 : ClassInfo.forName(owner).isInterface();
+    }
+
+    private static Type tryRemoveBoxing(AnalyzedInsnList instructions, Set<AbstractInsnNode> valueSourceInsns, AbstractInsnNode consumingInsn, List<AbstractInsnNode> insnsToRemove) {
+        if (valueSourceInsns.size() == 1) {
+            AbstractInsnNode boxInsn = valueSourceInsns.iterator().next();
+            if (boxInsn.getOpcode() == INVOKESTATIC && "valueOf".equals(((MethodInsnNode) boxInsn).name)
+                && instructions.getSoleResultSingleStackUsage(boxInsn) == consumingInsn) {
+                MethodInsnNode invokeValueOfInsn = (MethodInsnNode) boxInsn;
+                Type primitiveType = BytecodeHelper.unboxedPrimitiveType(invokeValueOfInsn.owner).orElse(null);
+                if (primitiveType != null && invokeValueOfInsn.desc.equals(Type.getMethodDescriptor(Type.getObjectType(invokeValueOfInsn.owner), primitiveType))) {
+                    insnsToRemove.add(boxInsn);
+                    return primitiveType;
+                }
+            }
+        }
+        return Type.getType(Object.class);
+    }
+
+    //
+    // bootstrap methods
+    //
+
+    public static CallSite bootstrapInvoke(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter) throws Throwable {
+        return bootstrapExecutable(lookup, type, getter, false);
+    }
+
+    public static CallSite bootstrapInvokeSpread(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter) throws Throwable {
+        return bootstrapExecutable(lookup, type, getter, true);
+    }
+
+    public static CallSite bootstrapNewInstance(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter) throws Throwable {
+        return bootstrapExecutable(lookup, type, getter, false);
+    }
+
+    public static CallSite bootstrapNewInstanceSpread(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter) throws Throwable {
+        return bootstrapExecutable(lookup, type, getter, true);
+    }
+
+    private static CallSite bootstrapExecutable(MethodHandles.Lookup lookup, MethodType type, MethodHandle getter, boolean spread) throws Throwable {
+        Object executable = getter.invoke();
+        boolean isMethod = type.parameterType(0) == Method.class;
+        int argumentsStart = isMethod ? 2 : 1;
+
+        MethodHandle fallback = isMethod
+                ? lookup.findVirtual(Method.class, "invoke", MethodType.methodType(Object.class, Object.class, Object[].class))
+                : lookup.findVirtual(Constructor.class, "newInstance", MethodType.methodType(Object.class, Object[].class));
+        if (spread) {
+            fallback = fallback.asCollector(Object[].class, type.parameterCount() - argumentsStart);
+        }
+        fallback = fallback.asType(type);
+
+        if (executable == null) { //the field hasn't been initialized yet (or the member doesn't exist), fall back to the reflective call
+            PPatchesMod.LOGGER.debug("Not optimizing reflective call with type {} in {}: reflective object is null", type, lookup.lookupClass());
+            return new ConstantCallSite(fallback);
+        }
+
+        try {
+            MethodHandle handle;
+            if (isMethod) {
+                Method method = (Method) executable;
+                handle = lookup.unreflect(method);
+                handle = MethodHandles.catchException(handle, Throwable.class, wrapInInvocationTargetException(handle.type()));
+                if (Modifier.isStatic(method.getModifiers())) { //the receiver is ignored for static methods
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                } else { //Method#invoke throws a NullPointerException without wrapping it if the receiver is null
+                    handle = MethodHandles.filterArguments(handle, 0, REQUIRE_NON_NULL.asType(MethodType.methodType(handle.type().parameterType(0), handle.type().parameterType(0))));
+                }
+            } else {
+                handle = lookup.unreflectConstructor((Constructor<?>) executable);
+                handle = MethodHandles.catchException(handle, Throwable.class, wrapInInvocationTargetException(handle.type()));
+            }
+
+            //drop the reflective object
+            handle = MethodHandles.dropArguments(handle, 0, type.parameterType(0));
+            if (!spread) {
+                handle = handle.asSpreader(Object[].class, handle.type().parameterCount() - argumentsStart);
+            }
+            return new ConstantCallSite(handle.asType(type));
+        } catch (ReflectiveOperationException | WrongMethodTypeException | IllegalArgumentException e) {
+            //the member isn't accessible or the arguments can't possibly match, let the reflective call throw the appropriate exception
+            PPatchesMod.LOGGER.debug("Not optimizing reflective call to {}: {}", executable, e);
+            return new ConstantCallSite(fallback);
+        }
+    }
+
+    public static CallSite bootstrapGet(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter) throws Throwable {
+        return bootstrapField(lookup, name, type, getter, false);
+    }
+
+    public static CallSite bootstrapSet(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter) throws Throwable {
+        return bootstrapField(lookup, name, type, getter, true);
+    }
+
+    private static CallSite bootstrapField(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle getter, boolean setter) throws Throwable {
+        Field field = (Field) getter.invoke();
+
+        //for set(Object, Object), the value may have been unboxed, so we have to use the original method type
+        MethodType reflectiveType = "set".equals(name) ? MethodType.methodType(void.class, Object.class, Object.class) : type.dropParameterTypes(0, 1);
+        MethodHandle fallback = lookup.findVirtual(Field.class, name, reflectiveType).asType(type);
+
+        if (field == null) { //the field hasn't been initialized yet (or the member doesn't exist), fall back to the reflective call
+            PPatchesMod.LOGGER.debug("Not optimizing reflective field access with type {} in {}: reflective object is null", type, lookup.lookupClass());
+            return new ConstantCallSite(fallback);
+        } else if (name.length() > 3 && !field.getType().isPrimitive()) { //the primitive accessors don't unbox reference fields
+            return new ConstantCallSite(fallback);
+        }
+
+        try {
+            MethodHandle handle = setter ? lookup.unreflectSetter(field) : lookup.unreflectGetter(field);
+            if (Modifier.isStatic(field.getModifiers())) { //the receiver is ignored for static fields
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+
+            //drop the reflective object
+            handle = MethodHandles.dropArguments(handle, 0, type.parameterType(0));
+            return new ConstantCallSite(handle.asType(type));
+        } catch (ReflectiveOperationException | WrongMethodTypeException e) {
+            //the field isn't accessible (or is final) or can't be converted to the requested type, let the reflective call throw the appropriate exception
+            PPatchesMod.LOGGER.debug("Not optimizing reflective access to {}: {}", field, e);
+            return new ConstantCallSite(fallback);
+        }
+    }
+
+    private static MethodHandle wrapInInvocationTargetException(MethodType type) {
+        return MethodHandles.dropArguments(THROW_INVOCATION_TARGET_EXCEPTION.asType(MethodType.methodType(type.returnType(), Throwable.class)), 1, type.parameterList());
+    }
+
+    private static Object throwInvocationTargetException(Throwable cause) throws InvocationTargetException {
+        throw new InvocationTargetException(cause);
+    }
+}
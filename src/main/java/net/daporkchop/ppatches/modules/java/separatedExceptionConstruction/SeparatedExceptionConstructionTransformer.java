@@ -21,7 +21,7 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class SeparatedExceptionConstructionTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed {
+public class SeparatedExceptionConstructionTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.LoadingFree {
     @Override
     public boolean interestedInMethod(String className, String classTransformedName, MethodNode methodNode) {
         return !"<clinit>".equals(methodNode.name);
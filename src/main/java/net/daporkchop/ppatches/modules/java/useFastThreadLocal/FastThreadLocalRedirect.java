@@ -0,0 +1,142 @@
+package net.daporkchop.ppatches.modules.java.useFastThreadLocal;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.FastThreadLocalThread;
+import lombok.SneakyThrows;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Optional;
+
+/**
+ * A {@link FastThreadLocal} which stores the values of a {@link ThreadLocal} for {@link FastThreadLocalThread}s, and delegates to the original {@link ThreadLocal}
+ * on all other threads.
+ * <p>
+ * As each thread is either always or never a {@link FastThreadLocalThread}, every thread will consistently see the same value as long as every access to the
+ * {@link ThreadLocal} is redirected here.
+ *
+ * @author DaPorkchop_
+ */
+public final class FastThreadLocalRedirect extends FastThreadLocal<Object> {
+    private static final MethodHandle INITIAL_VALUE;
+
+    static {
+        try {
+            Method method = ThreadLocal.class.getDeclaredMethod("initialValue");
+            method.setAccessible(true);
+            INITIAL_VALUE = MethodHandles.lookup().unreflect(method).asType(MethodType.methodType(Object.class, ThreadLocal.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final LoadingCache<ThreadLocal<Object>, Optional<FastThreadLocalRedirect>> REDIRECTS = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .weakKeys() //this has the convenient side effect of forcing keys to be compared by identity
+            .build(CacheLoader.from(delegate -> canRedirect(delegate) ? Optional.of(new FastThreadLocalRedirect(delegate)) : Optional.empty()));
+
+    private static boolean canRedirect(ThreadLocal<?> delegate) {
+        Class<?> clazz = delegate.getClass();
+        if (clazz == ThreadLocal.class) {
+            return true;
+        } else if (delegate instanceof InheritableThreadLocal) { //values of inheritable thread-locals are copied into child threads, which FastThreadLocal can't do
+            return false;
+        }
+
+        //subclasses may only override initialValue(), anything else could depend on the values actually being stored in the ThreadLocal
+        try {
+            return clazz.getMethod("get").getDeclaringClass() == ThreadLocal.class
+                   && clazz.getMethod("set", Object.class).getDeclaringClass() == ThreadLocal.class
+                   && clazz.getMethod("remove").getDeclaringClass() == ThreadLocal.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Gets the {@link FastThreadLocalRedirect} for the given {@link ThreadLocal}.
+     * <p>
+     * All call sites which access the same {@link ThreadLocal} must use the same redirect, otherwise they could see different values on the same thread.
+     *
+     * @param delegate the {@link ThreadLocal}
+     * @return the {@link FastThreadLocalRedirect} for the given {@link ThreadLocal}, or {@code null} if the given {@link ThreadLocal} can't be redirected
+     */
+    public static FastThreadLocalRedirect forThreadLocal(ThreadLocal<Object> delegate) {
+        return REDIRECTS.getUnchecked(delegate).orElse(null);
+    }
+
+    //the following methods are used by call sites which couldn't resolve the ThreadLocal while being linked, and therefore have to look up the redirect every time
+
+    public static Object dynamicGet(ThreadLocal<Object> delegate) {
+        FastThreadLocalRedirect redirect = forThreadLocal(delegate);
+        return redirect != null ? redirect.redirectGet() : delegate.get();
+    }
+
+    public static void dynamicSet(ThreadLocal<Object> delegate, Object value) {
+        FastThreadLocalRedirect redirect = forThreadLocal(delegate);
+        if (redirect != null) {
+            redirect.redirectSet(value);
+        } else {
+            delegate.set(value);
+        }
+    }
+
+    public static void dynamicRemove(ThreadLocal<Object> delegate) {
+        FastThreadLocalRedirect redirect = forThreadLocal(delegate);
+        if (redirect != null) {
+            redirect.redirectRemove();
+        } else {
+            delegate.remove();
+        }
+    }
+
+    //this must not strongly reference the ThreadLocal, as the redirect is the value in a weakly-keyed cache and would otherwise keep its own key alive forever.
+    //  every caller keeps the ThreadLocal reachable on its own: call sites bound to a redirect are in the class whose static final field holds the
+    //  ThreadLocal, and the dynamic methods are passed the ThreadLocal as an argument.
+    private final WeakReference<ThreadLocal<Object>> delegate;
+
+    private FastThreadLocalRedirect(ThreadLocal<Object> delegate) {
+        this.delegate = new WeakReference<>(delegate);
+    }
+
+    private ThreadLocal<Object> delegate() {
+        ThreadLocal<Object> delegate = this.delegate.get();
+        if (delegate == null) {
+            throw new IllegalStateException("redirected ThreadLocal was garbage collected");
+        }
+        return delegate;
+    }
+
+    @Override
+    @SneakyThrows
+    protected Object initialValue() {
+        //this also works for ThreadLocals which were created using ThreadLocal.withInitial(), as those override initialValue() as well
+        return (Object) INITIAL_VALUE.invokeExact(this.delegate());
+    }
+
+    public Object redirectGet() {
+        return Thread.currentThread() instanceof FastThreadLocalThread ? this.get() : this.delegate().get();
+    }
+
+    public void redirectSet(Object value) {
+        if (Thread.currentThread() instanceof FastThreadLocalThread) {
+            this.set(value);
+        } else {
+            this.delegate().set(value);
+        }
+    }
+
+    public void redirectRemove() {
+        if (Thread.currentThread() instanceof FastThreadLocalThread) {
+            this.remove();
+        } else {
+            this.delegate().remove();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package net.daporkchop.ppatches.modules.java.useFastThreadLocal;
+
+import net.daporkchop.ppatches.PPatchesMod;
+import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
+import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Redirects all calls to {@link ThreadLocal#get()}, {@link ThreadLocal#set(Object)} and {@link ThreadLocal#remove()} on a {@code private static final} field
+ * to a {@link FastThreadLocalRedirect}, which stores the values in Netty's indexed thread-local map when running on a
+ * {@link io.netty.util.concurrent.FastThreadLocalThread}.
+ * <p>
+ * A field is only redirected if every access to it in the class is immediately used as the receiver of one of those methods, since the
+ * {@link ThreadLocal} instance would otherwise be able to escape and be accessed by code which isn't redirected.
+ *
+ * @author DaPorkchop_
+ */
+public class UseFastThreadLocalTransformer implements ITreeClassTransformer, ITreeClassTransformer.ReferenceInterested, ITreeClassTransformer.LoadingFree {
+    private static final String THREADLOCAL_NAME = Type.getInternalName(ThreadLocal.class);
+    private static final String THREADLOCAL_DESC = Type.getDescriptor(ThreadLocal.class);
+
+    @Override
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod(THREADLOCAL_NAME, "get", "()Ljava/lang/Object;")
+                .referencesMethod(THREADLOCAL_NAME, "set", "(Ljava/lang/Object;)V")
+                .referencesMethod(THREADLOCAL_NAME, "remove", "()V");
+    }
+
+    @Override
+    public int transformClass(String name, String transformedName, ClassNode classNode) {
+        if ((classNode.access & ACC_INTERFACE) != 0) { //interfaces can't have private fields
+            return 0;
+        }
+
+        Set<String> candidateFields = new HashSet<>();
+        for (FieldNode fieldNode : classNode.fields) {
+            if ((fieldNode.access & (ACC_PRIVATE | ACC_STATIC | ACC_FINAL)) == (ACC_PRIVATE | ACC_STATIC | ACC_FINAL) && THREADLOCAL_DESC.equals(fieldNode.desc)) {
+                candidateFields.add(fieldNode.name);
+            }
+        }
+        if (candidateFields.isEmpty()) {
+            return 0;
+        }
+
+        //find every access to the candidate fields, and discard any fields whose value is used for anything other than get(), set() or remove()
+        Map<String, Map<MethodInsnNode, MethodNode>> accessesByField = new HashMap<>();
+        Set<String> escapedFields = new HashSet<>();
+        for (MethodNode methodNode : classNode.methods) {
+            if (!containsCandidateFieldAccess(classNode, methodNode, candidateFields)) {
+                continue;
+            }
+
+            try (AnalyzedInsnList instructions = new AnalyzedInsnList(classNode.name, methodNode)) {
+                for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                    if (!isCandidateFieldAccess(classNode, insn, candidateFields) || instructions.isUnreachable(insn)) {
+                        continue;
+                    }
+
+                    String fieldName = ((FieldInsnNode) insn).name;
+                    AbstractInsnNode usageInsn = instructions.getSoleResultSingleStackUsage(insn);
+                    if (isRedirectableInvoke(usageInsn) && instructions.getSingleStackOperandSourceFromBottom(usageInsn, 0) == insn) {
+                        accessesByField.computeIfAbsent(fieldName, unused -> new LinkedHashMap<>()).put((MethodInsnNode) usageInsn, methodNode);
+                    } else {
+                        escapedFields.add(fieldName);
+                    }
+                }
+            }
+        }
+
+        int changeFlags = 0;
+        for (Map.Entry<String, Map<MethodInsnNode, MethodNode>> entry : accessesByField.entrySet()) {
+            String fieldName = entry.getKey();
+            if (escapedFields.contains(fieldName)) {
+                PPatchesMod.LOGGER.debug("Not redirecting ThreadLocal L{};{} as it escapes", classNode.name, fieldName);
+                continue;
+            }
+
+            PPatchesMod.LOGGER.debug("Redirecting {} accesses to ThreadLocal L{};{} to FastThreadLocal", entry.getValue().size(), classNode.name, fieldName);
+            Handle fieldGetter = new Handle(H_GETSTATIC, classNode.name, fieldName, THREADLOCAL_DESC, false);
+            for (Map.Entry<MethodInsnNode, MethodNode> access : entry.getValue().entrySet()) {
+                MethodInsnNode invokeInsn = access.getKey();
+
+                //the original GETSTATIC stays where it is, and is passed to the redirected method as the first argument
+                access.getValue().instructions.set(invokeInsn, new InvokeDynamicInsnNode(invokeInsn.name,
+                        Type.getMethodDescriptor(Type.getReturnType(invokeInsn.desc), Type.getType(ThreadLocal.class), Type.getArgumentTypes(invokeInsn.desc)),
+                        new Handle(H_INVOKESTATIC,
+                                Type.getInternalName(UseFastThreadLocalTransformer.class),
+                                "bootstrapRedirect",
+                                Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class), Type.getType(MethodType.class), Type.getType(MethodHandle.class)),
+                                UseFastThreadLocalTransformer.class.isInterface()),
+                        fieldGetter));
+            }
+            changeFlags |= CHANGED;
+        }
+        return changeFlags;
+    }
+
+    private static boolean isCandidateFieldAccess(ClassNode classNode, AbstractInsnNode insn, Set<String> candidateFields) {
+        if (insn.getOpcode() != GETSTATIC) { //the field can only be assigned in the static initializer, which is fine
+            return false;
+        }
+        FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+        return fieldInsn.owner.equals(classNode.name) && THREADLOCAL_DESC.equals(fieldInsn.desc) && candidateFields.contains(fieldInsn.name);
+    }
+
+    private static boolean containsCandidateFieldAccess(ClassNode classNode, MethodNode methodNode, Set<String> candidateFields) {
+        for (AbstractInsnNode insn = methodNode.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (isCandidateFieldAccess(classNode, insn, candidateFields)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRedirectableInvoke(AbstractInsnNode insn) {
+        if (insn == null || insn.getOpcode() != INVOKEVIRTUAL) {
+            return false;
+        }
+
+        MethodInsnNode methodInsn = (MethodInsnNode) insn;
+        if (!THREADLOCAL_NAME.equals(methodInsn.owner)) {
+            return false;
+        }
+        switch (methodInsn.name) {
+            case "get":
+                return "()Ljava/lang/Object;".equals(methodInsn.desc);
+            case "set":
+                return "(Ljava/lang/Object;)V".equals(methodInsn.desc);
+            case "remove":
+                return "()V".equals(methodInsn.desc);
+            default:
+                return false;
+        }
+    }
+
+    public static CallSite bootstrapRedirect(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle fieldGetter) throws Throwable {
+        //this will initialize the class if it hasn't been already, but the call site is in the same class so it's already being initialized anyway
+        @SuppressWarnings("unchecked")
+        ThreadLocal<Object> threadLocal = (ThreadLocal<Object>) fieldGetter.invoke();
+
+        MethodHandle target;
+        if (threadLocal == null) {
+            //we're being linked from the static initializer before the field has been assigned, so the redirect has to be looked up every time it's invoked
+            target = MethodHandles.lookup().findStatic(FastThreadLocalRedirect.class, "dynamic" + Character.toUpperCase(name.charAt(0)) + name.substring(1),
+                    type.changeParameterType(0, ThreadLocal.class));
+        } else {
+            FastThreadLocalRedirect redirect = FastThreadLocalRedirect.forThreadLocal(threadLocal);
+            if (redirect == null) {
+                PPatchesMod.LOGGER.debug("Not redirecting ThreadLocal of type {}", threadLocal.getClass().getName());
+                target = MethodHandles.lookup().findVirtual(ThreadLocal.class, name, type.dropParameterTypes(0, 1));
+            } else {
+                //the field is final, so the ThreadLocal passed to the call site will always be the same one we just read
+                target = MethodHandles.dropArguments(
+                        MethodHandles.lookup().findVirtual(FastThreadLocalRedirect.class, "redirect" + Character.toUpperCase(name.charAt(0)) + name.substring(1),
+                                type.dropParameterTypes(0, 1)).bindTo(redirect),
+                        0, ThreadLocal.class);
+            }
+        }
+        return new ConstantCallSite(target.asType(type));
+    }
+}
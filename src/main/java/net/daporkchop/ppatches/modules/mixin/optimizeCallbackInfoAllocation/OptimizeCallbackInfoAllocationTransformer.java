@@ -13,9 +13,8 @@ import net.daporkchop.ppatches.util.MethodHandleUtils;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.OptionalBytecodeType;
 import net.daporkchop.ppatches.util.asm.analysis.ResultUsageGraph;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.daporkchop.ppatches.util.mixin.ext.AlwaysCancels;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
@@ -33,7 +32,7 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class OptimizeCallbackInfoAllocationTransformer implements ITreeClassTransformer, ITreeClassTransformer.ExactInterested {
+public class OptimizeCallbackInfoAllocationTransformer implements ITreeClassTransformer, ITreeClassTransformer.ReferenceInterested {
     private static String callbackInfoInternalName(boolean callbackInfoIsReturnable) {
         return callbackInfoIsReturnable
                 ? "org/spongepowered/asm/mixin/injection/callback/CallbackInfoReturnable"
@@ -206,9 +205,10 @@ public class OptimizeCallbackInfoAllocationTransformer implements ITreeClassTran
     }
 
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesClass("org/spongepowered/asm/mixin/injection/callback/CallbackInfo")
-                || cpIndex.referencesClass("org/spongepowered/asm/mixin/injection/callback/CallbackInfoReturnable");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesClass("org/spongepowered/asm/mixin/injection/callback/CallbackInfo")
+                .referencesClass("org/spongepowered/asm/mixin/injection/callback/CallbackInfoReturnable");
     }
 
     @Override
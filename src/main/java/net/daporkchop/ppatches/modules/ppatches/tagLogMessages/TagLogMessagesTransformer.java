@@ -2,9 +2,8 @@ package net.daporkchop.ppatches.modules.ppatches.tagLogMessages;
 
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.apache.logging.log4j.LogManager;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
@@ -24,7 +23,7 @@ import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
 /**
  * @author DaPorkchop_
  */
-public class TagLogMessagesTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ExactInterested {
+public class TagLogMessagesTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.LoadingFree {
     private static String getModuleName(String name) {
         int firstDotIndex;
         int lastDotIndex;
@@ -36,8 +35,9 @@ public class TagLogMessagesTransformer implements ITreeClassTransformer.Individu
     }
 
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesField("net/daporkchop/ppatches/PPatchesMod", "LOGGER", "Lorg/apache/logging/log4j/Logger;");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesField("net/daporkchop/ppatches/PPatchesMod", "LOGGER", "Lorg/apache/logging/log4j/Logger;");
     }
 
     @Override
@@ -5,10 +5,9 @@ import net.daporkchop.ppatches.PPatchesMod;
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
 import net.daporkchop.ppatches.util.asm.analysis.AnalyzedInsnList;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.minecraft.block.Block;
 import net.minecraft.block.state.IBlockState;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -30,11 +29,12 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * @author DaPorkchop_
  */
-public class OptimizeGetDefaultStateTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.ExactInterested {
+public class OptimizeGetDefaultStateTransformer implements ITreeClassTransformer.IndividualMethod.Analyzed, ITreeClassTransformer.MethodReferenceInterested {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod(Type.getInternalName(Block.class), "func_176223_P", Type.getMethodDescriptor(Type.getType(IBlockState.class)))
-                || cpIndex.referencesMethod(Type.getInternalName(Block.class), "getDefaultState", Type.getMethodDescriptor(Type.getType(IBlockState.class)));
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod(Type.getInternalName(Block.class), "func_176223_P", Type.getMethodDescriptor(Type.getType(IBlockState.class)))
+                .referencesMethod(Type.getInternalName(Block.class), "getDefaultState", Type.getMethodDescriptor(Type.getType(IBlockState.class)));
     }
 
     @Override
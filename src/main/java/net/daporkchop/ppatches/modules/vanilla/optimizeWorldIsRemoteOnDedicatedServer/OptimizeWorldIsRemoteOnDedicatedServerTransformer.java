@@ -2,11 +2,10 @@ package net.daporkchop.ppatches.modules.vanilla.optimizeWorldIsRemoteOnDedicated
 
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.TypeUtils;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import net.minecraft.world.World;
 import net.minecraftforge.fml.relauncher.FMLLaunchHandler;
 import net.minecraftforge.fml.relauncher.Side;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
@@ -24,16 +23,17 @@ import static org.objectweb.asm.Opcodes.POP;
 /**
  * @author DaPorkchop_
  */
-public class OptimizeWorldIsRemoteOnDedicatedServerTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ExactInterested {
+public class OptimizeWorldIsRemoteOnDedicatedServerTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested {
     @Override
     public boolean interestedInClass(String name, String transformedName) {
         return FMLLaunchHandler.side() == Side.SERVER && ITreeClassTransformer.IndividualMethod.super.interestedInClass(name, transformedName);
     }
 
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesField("net/minecraft/world/World", "field_72995_K", "Z")
-                || cpIndex.referencesField("net/minecraft/world/World", "isRemote", "Z");
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesField("net/minecraft/world/World", "field_72995_K", "Z")
+                .referencesField("net/minecraft/world/World", "isRemote", "Z");
     }
 
     @Override
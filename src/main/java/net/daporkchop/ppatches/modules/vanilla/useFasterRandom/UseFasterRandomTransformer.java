@@ -3,8 +3,7 @@ package net.daporkchop.ppatches.modules.vanilla.useFasterRandom;
 import net.daporkchop.ppatches.PPatchesMod;
 import net.daporkchop.ppatches.core.transform.ITreeClassTransformer;
 import net.daporkchop.ppatches.util.asm.BytecodeHelper;
-import net.daporkchop.ppatches.util.asm.cp.ConstantPoolIndex;
-import org.objectweb.asm.ClassReader;
+import net.daporkchop.ppatches.util.asm.cp.ConstantPoolReferences;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
@@ -20,10 +19,11 @@ import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
 /**
  * @author DaPorkchop_
  */
-public class UseFasterRandomTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.ExactInterested {
+public class UseFasterRandomTransformer implements ITreeClassTransformer.IndividualMethod, ITreeClassTransformer.MethodReferenceInterested, ITreeClassTransformer.LoadingFree {
     @Override
-    public boolean interestedInClass(String name, String transformedName, ClassReader reader, ConstantPoolIndex cpIndex) {
-        return cpIndex.referencesMethod(Type.getInternalName(Math.class), "random", Type.getMethodDescriptor(Type.DOUBLE_TYPE));
+    public ConstantPoolReferences interestingReferences() {
+        return new ConstantPoolReferences()
+                .referencesMethod(Type.getInternalName(Math.class), "random", Type.getMethodDescriptor(Type.DOUBLE_TYPE));
     }
 
     @Override
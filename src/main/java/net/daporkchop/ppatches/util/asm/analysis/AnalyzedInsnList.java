@@ -27,18 +27,25 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
     static final SourceInterpreter SOURCE_INTERPRETER = new SourceInterpreter();
 
-    static SourceValue mergeNullable(SourceValue a, SourceValue b) {
-        return a != null ? (b != null ? SOURCE_INTERPRETER.merge(a, b) : a) : b;
-    }
-
     final String ownerName;
     final MethodNode methodNode;
 
-    final IdentityHashMap<LabelNode, Set<AbstractInsnNode>> incomingJumps = new IdentityHashMap<>();
+    //instructions have no slot we could store a frame id in (AbstractInsnNode#index belongs to InsnList, which resets it whenever the list is modified), so
+    // the public entry points still have to look up an instruction's frame by identity. everything past that lookup works on frame ids.
     final IdentityHashMap<AbstractInsnNode, DynamicSourceFrame> dynamicFrames;
     DynamicSourceFrame startFrame;
 
-    final IdentityHashMap<LabelNode, TryCatchBlockNode[]> tryCatchBlocksByHandlers = new IdentityHashMap<>();
+    //all the frames in this list, indexed by their id. ids are never reused, the slots of removed frames are simply left empty.
+    DynamicSourceFrame[] framesById;
+    int nextFrameId;
+
+    private final ArrayDeque<VisitedSet> visitedSetPool = new ArrayDeque<>();
+    private final ArrayDeque<SourceCollector> sourceCollectorPool = new ArrayDeque<>();
+
+    //the instructions affected by each change made to this list, in the order the changes were made (null if change tracking isn't enabled)
+    private List<AbstractInsnNode> changeLog;
+    //the position in the change log at which the control flow was last changed, or -1 if it hasn't been changed since change tracking was enabled
+    private int lastControlFlowChangePosition = -1;
 
     public AnalyzedInsnList(String ownerName, MethodNode methodNode) {
         this.ownerName = ownerName;
@@ -48,91 +55,117 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
         super.add(methodNode.instructions);
         methodNode.instructions = this;
 
-        this.dynamicFrames = new IdentityHashMap<>(this.size());
-
         //ensure the method starts with a label
         if (super.getFirst() != null && !(super.getFirst() instanceof LabelNode)) {
             super.insert(new LabelNode());
         }
 
-        //index all the try-catch block handlers
-        for (TryCatchBlockNode tryCatchBlockNode : this.methodNode.tryCatchBlocks) {
-            this.tryCatchBlocksByHandlers.compute(tryCatchBlockNode.handler, (handler, blocks) -> COWArrayUtils.listAdd(TryCatchBlockNode.class, blocks, tryCatchBlockNode));
-        }
+        this.dynamicFrames = new IdentityHashMap<>(this.size());
+        this.framesById = new DynamicSourceFrame[Math.max(this.size(), 16)];
 
-        //initialize local state for each instruction (creating DynamicSourceFrames and linking them together, and creating an empty incoming instruction set for each label)
+        //initialize local state for each instruction (creating DynamicSourceFrames and linking them together)
         {
             AbstractInsnNode prevInsn = super.getFirst();
-            DynamicSourceFrame prevFrame = this.startFrame = new DynamicSourceFrame(prevInsn);
-            this.dynamicFrames.put(prevInsn, prevFrame);
-            this.incomingJumps.put((LabelNode) prevInsn, BytecodeHelper.makeInsnSet());
+            DynamicSourceFrame prevFrame = this.startFrame = this.newFrame(prevInsn);
+            this.createState(prevInsn, prevFrame);
 
             for (AbstractInsnNode nextInsn; (nextInsn = prevInsn.getNext()) != null; ) {
-                DynamicSourceFrame nextFrame = new DynamicSourceFrame(nextInsn);
+                DynamicSourceFrame nextFrame = this.newFrame(nextInsn);
                 nextFrame.insertBetween(prevFrame, null);
-                this.dynamicFrames.put(nextInsn, nextFrame);
-
-                //create empty incoming instruction set for each label
-                if (nextInsn instanceof LabelNode) {
-                    this.incomingJumps.put((LabelNode) nextInsn, BytecodeHelper.makeInsnSet());
-                }
+                this.createState(nextInsn, nextFrame);
 
                 prevInsn = nextInsn;
                 prevFrame = nextFrame;
             }
         }
 
+        //index all the try-catch block handlers
+        for (TryCatchBlockNode tryCatchBlockNode : this.methodNode.tryCatchBlocks) {
+            DynamicSourceFrame handlerFrame = this.getDynamicFrame(tryCatchBlockNode.handler);
+            handlerFrame.handledTryCatchBlocks = COWArrayUtils.listAdd(TryCatchBlockNode.class, handlerFrame.handledTryCatchBlocks, tryCatchBlockNode);
+        }
+
         //track jumps to each label
-        for (AbstractInsnNode insn = super.getFirst(); insn != null; insn = insn.getNext()) {
-            this.trackOutgoingJumps(insn);
+        for (DynamicSourceFrame frame = this.startFrame; frame != null; frame = frame.next) {
+            this.trackOutgoingJumps(frame);
+        }
+    }
+
+    private DynamicSourceFrame newFrame(AbstractInsnNode insn) {
+        DynamicSourceFrame frame = new DynamicSourceFrame(insn, this.nextFrameId++);
+        if (frame.id == this.framesById.length) {
+            this.framesById = Arrays.copyOf(this.framesById, this.framesById.length << 1);
         }
+        this.framesById[frame.id] = frame;
+        return frame;
     }
 
     private void createState(AbstractInsnNode insn, DynamicSourceFrame dynamicFrame) {
-        //create and link DynamicSourceFrames for each instruction
         this.dynamicFrames.put(insn, dynamicFrame);
-
-        //create empty incoming instruction set for each label
-        if (insn instanceof LabelNode) {
-            this.incomingJumps.put((LabelNode) insn, BytecodeHelper.makeInsnSet());
-        }
     }
 
     private void deleteState(AbstractInsnNode insn) {
         //destroy DynamicSourceFrames for each instruction
-        this.dynamicFrames.remove(insn).remove();
-
-        //create empty incoming instruction set for each label
-        if (insn instanceof LabelNode) {
-            this.incomingJumps.remove((LabelNode) insn).clear();
-        }
+        DynamicSourceFrame dynamicFrame = this.dynamicFrames.remove(insn);
+        dynamicFrame.remove();
+        this.framesById[dynamicFrame.id] = null;
     }
 
-    private void trackOutgoingJumps(AbstractInsnNode insn) {
+    private void trackOutgoingJumps(DynamicSourceFrame frame) {
+        AbstractInsnNode insn = frame.insn;
         if (BytecodeHelper.canAdvanceNormallyToNextInstruction(insn) && insn.getNext() instanceof LabelNode) {
-            Preconditions.checkState(!this.tryCatchBlocksByHandlers.containsKey((LabelNode) insn.getNext()), "instruction advances normally to a try-catch block handler?!?");
+            Preconditions.checkState(frame.next.handledTryCatchBlocks == null, "instruction advances normally to a try-catch block handler?!?");
         }
         if (BytecodeHelper.canAdvanceJumpingToLabel(insn)) {
             for (LabelNode possibleNextLabel : BytecodeHelper.possibleNextLabels(insn)) {
-                Preconditions.checkState(!this.tryCatchBlocksByHandlers.containsKey(possibleNextLabel), "instruction jumps to a try-catch block handler?!?");
-                this.incomingJumps.get(possibleNextLabel).add(insn);
+                DynamicSourceFrame nextFrame = this.getDynamicFrame(possibleNextLabel);
+                Preconditions.checkState(nextFrame.handledTryCatchBlocks == null, "instruction jumps to a try-catch block handler?!?");
+                nextFrame.incomingJumps.set(frame.id);
             }
         }
     }
 
     private void untrackOutgoingJumps(AbstractInsnNode insn) {
         if (BytecodeHelper.canAdvanceJumpingToLabel(insn)) {
+            int id = this.getDynamicFrame(insn).id;
             for (LabelNode possibleNextLabel : BytecodeHelper.possibleNextLabels(insn)) {
-                this.incomingJumps.get(possibleNextLabel).remove(insn);
+                this.getDynamicFrame(possibleNextLabel).incomingJumps.clear(id);
             }
         }
     }
 
+    private VisitedSet acquireVisitedSet() {
+        VisitedSet visited = this.visitedSetPool.pollFirst();
+        if (visited == null) {
+            visited = new VisitedSet();
+        }
+        visited.reset(this.framesById.length);
+        return visited;
+    }
+
+    private void releaseVisitedSet(VisitedSet visited) {
+        this.visitedSetPool.addFirst(visited);
+    }
+
+    private SourceCollector acquireSourceCollector() {
+        SourceCollector collector = this.sourceCollectorPool.pollFirst();
+        if (collector == null) {
+            collector = new SourceCollector();
+        }
+        collector.reset();
+        return collector;
+    }
+
+    private void releaseSourceCollector(SourceCollector collector) {
+        this.sourceCollectorPool.addFirst(collector);
+    }
+
     @Override
     public void close() {
-        this.incomingJumps.clear();
         this.dynamicFrames.clear();
-        this.tryCatchBlocksByHandlers.clear();
+        Arrays.fill(this.framesById, null);
+        this.visitedSetPool.clear();
+        this.sourceCollectorPool.clear();
 
         //unlink all the dynamic frames to help out the garbage collector
         for (DynamicSourceFrame dynamicFrame = this.startFrame, next; dynamicFrame != null; dynamicFrame = next) {
@@ -208,25 +241,27 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
         throw new UnsupportedOperationException("AnalyzedInsnList only allows changes through a ChangeBatch");
     }
 
-    private void incomingInsns(DynamicSourceFrame frame, LabelNode insn, ArrayDeque<DynamicSourceFrame> dfsStack) {
-        for (AbstractInsnNode incomingJump : this.incomingJumps.get(insn)) {
-            dfsStack.push(AnalyzedInsnList.this.getDynamicFrame(incomingJump));
+    private void incomingInsns(DynamicSourceFrame frame, ArrayDeque<DynamicSourceFrame> dfsStack) {
+        BitSet incomingJumps = frame.incomingJumps;
+        for (int id = incomingJumps.nextSetBit(0); id >= 0; id = incomingJumps.nextSetBit(id + 1)) {
+            dfsStack.push(this.framesById[id]);
         }
 
-        AbstractInsnNode prev = insn.getPrevious();
+        AbstractInsnNode prev = frame.insn.getPrevious();
         if (prev != null && BytecodeHelper.canAdvanceNormallyToNextInstruction(prev)) {
             dfsStack.push(frame.getPreviousTotal());
         }
     }
 
-    private void incomingInsnsDFS(DynamicSourceFrame frame, LabelNode insn, ArrayDeque<DFSItem> dfsStack, int indexBefore) {
-        for (AbstractInsnNode incomingJump : this.incomingJumps.get(insn)) {
-            DynamicSourceFrame incomingFrame = AnalyzedInsnList.this.getDynamicFrame(incomingJump);
+    private void incomingInsnsDFS(DynamicSourceFrame frame, ArrayDeque<DFSItem> dfsStack, int indexBefore) {
+        BitSet incomingJumps = frame.incomingJumps;
+        for (int id = incomingJumps.nextSetBit(0); id >= 0; id = incomingJumps.nextSetBit(id + 1)) {
+            DynamicSourceFrame incomingFrame = this.framesById[id];
             int incomingIndexFromThis = incomingFrame.convertIndexAfterToIndexFromThis(indexBefore);
             dfsStack.push(new DFSItem(incomingFrame, incomingIndexFromThis));
         }
 
-        AbstractInsnNode prev = insn.getPrevious();
+        AbstractInsnNode prev = frame.insn.getPrevious();
         if (prev != null && BytecodeHelper.canAdvanceNormallyToNextInstruction(prev)) {
             DynamicSourceFrame prevFrame = frame.getPreviousTotal();
             int prevIndexFromThis = prevFrame.convertIndexAfterToIndexFromThis(indexBefore);
@@ -308,6 +343,84 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
         return this.getDynamicFrame(insn).getLocalUsages(this);
     }
 
+    /**
+     * Enables tracking of the instructions affected by changes made to this list.
+     *
+     * @see #changeLogPosition()
+     * @see #changedInsnsSince(int)
+     */
+    public void trackChanges() {
+        if (this.changeLog == null) {
+            this.changeLog = new ArrayList<>();
+        }
+    }
+
+    /**
+     * @return the current position in the change log, which may be passed to {@link #changedInsnsSince(int)} later on
+     */
+    public int changeLogPosition() {
+        Preconditions.checkState(this.changeLog != null, "change tracking isn't enabled");
+        return this.changeLog.size();
+    }
+
+    /**
+     * Gets the instructions which were affected by changes made since the given position in the change log.
+     * <p>
+     * An instruction is affected by a change if it was inserted, or if it uses a value produced by an instruction which was inserted or removed.
+     *
+     * @param position a position in the change log, as returned by {@link #changeLogPosition()}
+     * @return the affected instructions which are still in this list, or {@code null} if the control flow was changed (in which case any instruction may be affected)
+     */
+    public Set<AbstractInsnNode> changedInsnsSince(int position) {
+        Preconditions.checkState(this.changeLog != null, "change tracking isn't enabled");
+        Preconditions.checkPositionIndex(position, this.changeLog.size());
+        if (position <= this.lastControlFlowChangePosition) {
+            return null;
+        }
+
+        Set<AbstractInsnNode> result = BytecodeHelper.makeInsnSet();
+        for (AbstractInsnNode insn : this.changeLog.subList(position, this.changeLog.size())) {
+            if (this.contains(insn)) {
+                result.add(insn);
+            }
+        }
+        return result;
+    }
+
+    private void logChange(AbstractInsnNode insn, Set<AbstractInsnNode> excluded) {
+        if (affectsControlFlow(insn)) {
+            //we don't bother trying to figure out which instructions are affected by changes to the control flow
+            this.lastControlFlowChangePosition = this.changeLog.size();
+            this.changeLog.add(insn);
+        } else {
+            this.changeLog.add(insn);
+            this.logChangedUsages(insn, excluded);
+        }
+    }
+
+    private void logChangedUsages(AbstractInsnNode insn, Set<AbstractInsnNode> excluded) {
+        for (UsageValue usages : this.getStackUsages(insn)) {
+            for (AbstractInsnNode usage : usages.insns) {
+                if (!excluded.contains(usage)) {
+                    this.changeLog.add(usage);
+                }
+            }
+        }
+
+        UsageValue localUsages = this.getLocalUsages(insn);
+        if (localUsages != null) {
+            for (AbstractInsnNode usage : localUsages.insns) {
+                if (!excluded.contains(usage)) {
+                    this.changeLog.add(usage);
+                }
+            }
+        }
+    }
+
+    private static boolean affectsControlFlow(AbstractInsnNode insn) {
+        return insn instanceof LabelNode || BytecodeHelper.canAdvanceJumpingToLabel(insn) || !BytecodeHelper.canAdvanceNormallyToNextInstruction(insn);
+    }
+
     public ChangeBatch beginChanges() {
         return new ChangeBatch();
     }
@@ -376,6 +489,14 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         @Override
         public void close() {
+            if (AnalyzedInsnList.this.changeLog != null) {
+                //the values used by any remaining instructions which were produced by an instruction being removed must be coming from somewhere else now. this
+                //  has to be determined before the instructions are actually removed.
+                for (AbstractInsnNode removedInsn : this.removedInsns) {
+                    AnalyzedInsnList.this.logChange(removedInsn, this.removedInsns);
+                }
+            }
+
             //forget outgoing jump information for all instructions being removed
             this.removedInsns.forEach(AnalyzedInsnList.this::untrackOutgoingJumps);
 
@@ -399,7 +520,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                 DynamicSourceFrame prevFrame = AnalyzedInsnList.this.getDynamicFrame(location);
                 DynamicSourceFrame tailFrame = prevFrame.next;
                 for (AbstractInsnNode currInsn = insns.getFirst(); currInsn != null; currInsn = currInsn.getNext()) {
-                    DynamicSourceFrame currFrame = new DynamicSourceFrame(currInsn);
+                    DynamicSourceFrame currFrame = AnalyzedInsnList.this.newFrame(currInsn);
                     currFrame.insertBetween(prevFrame, tailFrame);
                     allInsertedInsns.put(currInsn, currFrame);
                     prevFrame = currFrame;
@@ -420,7 +541,13 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
             allInsertedInsns.forEach(AnalyzedInsnList.this::createState);
 
             //begin tracking outgoing jumps for each instruction being inserted
-            allInsertedInsns.keySet().forEach(AnalyzedInsnList.this::trackOutgoingJumps);
+            allInsertedInsns.values().forEach(AnalyzedInsnList.this::trackOutgoingJumps);
+
+            if (AnalyzedInsnList.this.changeLog != null) {
+                for (AbstractInsnNode insertedInsn : allInsertedInsns.keySet()) {
+                    AnalyzedInsnList.this.logChange(insertedInsn, Collections.emptySet());
+                }
+            }
 
             //reset this instance
             this.rollback();
@@ -640,6 +767,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
         }
 
         public final AbstractInsnNode insn;
+        public final int id;
 
         public DynamicSourceFrame prev;
         public DynamicSourceFrame next;
@@ -655,8 +783,15 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         public final boolean visible;
 
-        public DynamicSourceFrame(AbstractInsnNode insn) {
+        //the ids of the frames of the instructions which may jump to this label (null if this isn't a label)
+        public final BitSet incomingJumps;
+        //the try-catch blocks for which this label is the handler (null if this isn't a label, or it isn't a handler)
+        public TryCatchBlockNode[] handledTryCatchBlocks;
+
+        public DynamicSourceFrame(AbstractInsnNode insn, int id) {
             this.insn = insn;
+            this.id = id;
+            this.incomingJumps = insn instanceof LabelNode ? new BitSet() : null;
 
             int poppedStackOperandCount = 0;
             int[] pushedStackOperands = PUSHED_STACK_OPS_NOTHING;
@@ -1095,13 +1230,12 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         private static SourceValue getLocalSources(DynamicSourceFrame startFrame, AnalyzedInsnList list, int localIndex) {
             ArrayDeque<DynamicSourceFrame> dfsStack = new ArrayDeque<>();
-            Set<AbstractInsnNode> visited = BytecodeHelper.makeInsnSet();
-
-            SourceValue result = null;
+            VisitedSet visited = list.acquireVisitedSet();
+            SourceCollector result = list.acquireSourceCollector();
 
             DFS_LOOP:
             for (DynamicSourceFrame currFrame = startFrame; currFrame != null; currFrame = dfsStack.pollFirst()) {
-                if (!visited.add(currFrame.insn)) { //we've already visited this instruction, advance to the next one
+                if (!visited.add(currFrame)) { //we've already visited this instruction, advance to the next one
                     continue;
                 }
 
@@ -1113,8 +1247,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                     assert extractSize(storedValueFlags) == currFrame.storedToLocalValues.length : "flags report a different value size than the stored values array";
 
                     if ((storedValueFlags & SOURCE_MASK) == SOURCE_FLAG_NEW || (storedValueFlags & VALUE_MASK) == VALUE_FLAG_COPIED) {
-                        SourceValue nextResult = new SourceValue(extractSize(storedValueFlags), currFrame.insn);
-                        result = mergeNullable(result, nextResult); //tail return: "return nextResult;"
+                        result.add(currFrame, extractSize(storedValueFlags)); //tail return: "return new SourceValue(extractSize(storedValueFlags), currFrame.insn);"
                         continue;
                     } else {
                         throw new AssertionError(); //unreachable
@@ -1122,7 +1255,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                 }
 
                 if (currFrame.insn instanceof LabelNode) {
-                    TryCatchBlockNode[] tryCatchBlocks = list.tryCatchBlocksByHandlers.get(currFrame.insn);
+                    TryCatchBlockNode[] tryCatchBlocks = currFrame.handledTryCatchBlocks;
                     if (tryCatchBlocks != null) { //this label is a try-catch block handler
                         //we want to merge all of the possible sources which the local variable may have, which means we'll have to merge the sources for every
                         // instruction in the try block.
@@ -1138,7 +1271,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                         if (!BytecodeHelper.isStatic(methodNode)) {
                             currentLocalIndex++;
                             if (localIndex == 0) {
-                                result = mergeNullable(result, ARGUMENT_SOURCE_VALUE_BY_SIZE[1]); //tail return: "return ARGUMENT_SOURCE_VALUE_BY_SIZE[1];"
+                                result.addSpecial(ARGUMENT_SOURCE, 1); //tail return: "return ARGUMENT_SOURCE_VALUE_BY_SIZE[1];"
                                 continue;
                             }
                         }
@@ -1146,7 +1279,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                         for (Type argumentType : Type.getArgumentTypes(methodNode.desc)) {
                             int argumentSize = argumentType.getSize();
                             if (localIndex >= currentLocalIndex && localIndex < currentLocalIndex + argumentSize) {
-                                result = mergeNullable(result, ARGUMENT_SOURCE_VALUE_BY_SIZE[argumentSize]); //tail return: "return ARGUMENT_SOURCE_VALUE_BY_SIZE[argumentSize];"
+                                result.addSpecial(ARGUMENT_SOURCE, argumentSize); //tail return: "return ARGUMENT_SOURCE_VALUE_BY_SIZE[argumentSize];"
                                 continue DFS_LOOP;
                             }
                             currentLocalIndex += argumentSize;
@@ -1156,7 +1289,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                     }
 
                     //we've reached the start of the current block, so we want to recurse into the incoming instructions
-                    list.incomingInsns(currFrame, (LabelNode) currFrame.insn, dfsStack);
+                    list.incomingInsns(currFrame, dfsStack);
                     continue;
                 }
 
@@ -1164,8 +1297,10 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                 continue;
             }
 
-            visited.clear();
-            return Objects.requireNonNull(result, "result");
+            list.releaseVisitedSet(visited);
+            SourceValue value = result.toSourceValue(list);
+            list.releaseSourceCollector(result);
+            return Objects.requireNonNull(value, "result");
         }
 
         public SourceValue getStackSources(AnalyzedInsnList list, int indexFromThis) {
@@ -1174,18 +1309,19 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         private static SourceValue getStackSources(DynamicSourceFrame startFrame, AnalyzedInsnList list, int _indexFromStart) {
             ArrayDeque<DFSItem> dfsStack = new ArrayDeque<>();
-            Set<AbstractInsnNode> visited = BytecodeHelper.makeInsnSet();
-
-            SourceValue result = null;
+            VisitedSet visited = list.acquireVisitedSet();
+            SourceCollector result = list.acquireSourceCollector();
 
             DynamicSourceFrame currFrame = startFrame;
             int indexFromThis = _indexFromStart;
             while (true) {
-                if (currFrame == null || !visited.add(currFrame.insn)) { //we've already visited this instruction, advance to the next one
+                if (currFrame == null || !visited.add(currFrame)) { //we've already visited this instruction, advance to the next one
                     DFSItem nextItem = dfsStack.pollFirst();
                     if (nextItem == null) { //we've run out of instructions to visit, return the final result
-                        visited.clear();
-                        return Objects.requireNonNull(result, "result");
+                        list.releaseVisitedSet(visited);
+                        SourceValue value = result.toSourceValue(list);
+                        list.releaseSourceCollector(result);
+                        return Objects.requireNonNull(value, "result");
                     }
                     currFrame = nextItem.frame;
                     indexFromThis = nextItem.indexFromFrame;
@@ -1220,8 +1356,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                         case SOURCE_FLAG_NEW:
                             assert extractSize(pushedOperandFlags) != SIZE_VALUE_UNKNOWN;
 
-                            SourceValue nextResult = new SourceValue(extractSize(pushedOperandFlags), currFrame.insn);
-                            result = mergeNullable(result, nextResult); //tail return: "return nextResult;"
+                            result.add(currFrame, extractSize(pushedOperandFlags)); //tail return: "return new SourceValue(extractSize(pushedOperandFlags), currFrame.insn);"
                             currFrame = null; //set currFrame to null to forcibly advance to the next DFS item
                             continue;
                         default:
@@ -1231,17 +1366,17 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                     assert extractSize(pushedOperandFlags) == SIZE_VALUE_UNKNOWN;
 
                     //resolve the stack operand's size
-                    SourceValue nextResult = new SourceValue(currFrame.getStackSourceSize(list, indexFromThis), currFrame.insn); //TODO: go directly to the previous frame once i figure out the index conversion
-                    result = mergeNullable(result, nextResult); //tail return: "return nextResult;"
+                    //TODO: go directly to the previous frame once i figure out the index conversion
+                    result.add(currFrame, currFrame.getStackSourceSize(list, indexFromThis)); //tail return: "return new SourceValue(currFrame.getStackSourceSize(list, indexFromThis), currFrame.insn);"
                     currFrame = null; //set currFrame to null to forcibly advance to the next DFS item
                     continue;
                 }
 
                 if (currFrame.insn instanceof LabelNode) {
-                    TryCatchBlockNode[] tryCatchBlocks = list.tryCatchBlocksByHandlers.get(currFrame.insn);
+                    TryCatchBlockNode[] tryCatchBlocks = currFrame.handledTryCatchBlocks;
                     if (tryCatchBlocks != null) { //this label is a try-catch block handler
                         if (indexFromThis == -1) { //the caught exception is being queried
-                            result = mergeNullable(result, EXCEPTION_SOURCE_VALUE); //tail return: "return EXCEPTION_SOURCE_VALUE;"
+                            result.addSpecial(EXCEPTION_SOURCE, 1); //tail return: "return EXCEPTION_SOURCE_VALUE;"
                             currFrame = null; //set currFrame to null to forcibly advance to the next DFS item
                             continue;
                         } else {
@@ -1251,7 +1386,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
                     //merge the results from all the incoming instructions
                     int indexBefore = currFrame.convertIndexFromThisToIndexBefore(indexFromThis);
-                    list.incomingInsnsDFS(currFrame, (LabelNode) currFrame.insn, dfsStack, indexBefore);
+                    list.incomingInsnsDFS(currFrame, dfsStack, indexBefore);
 
                     currFrame = null; //set currFrame to null to forcibly advance to the next DFS item
                     continue;
@@ -1286,12 +1421,12 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         private static int getStackSourceSize(DynamicSourceFrame startFrame, AnalyzedInsnList list, int _indexFromStart) {
             ArrayDeque<DFSItem> dfsStack = new ArrayDeque<>();
-            Set<AbstractInsnNode> visited = BytecodeHelper.makeInsnSet();
+            VisitedSet visited = list.acquireVisitedSet();
 
             DynamicSourceFrame currFrame = startFrame;
             int indexFromThis = _indexFromStart;
             while (true) {
-                if (!visited.add(currFrame.insn)) { //we've already visited this instruction, advance to the next one
+                if (!visited.add(currFrame)) { //we've already visited this instruction, advance to the next one
                     DFSItem nextItem = dfsStack.pop();
                     currFrame = nextItem.frame;
                     indexFromThis = nextItem.indexFromFrame;
@@ -1306,7 +1441,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                     Preconditions.checkState((pushedOperandFlags & FLAG_2ND) == 0, "attempted to read from the 2nd part of a category 2 type");
 
                     if (extractSize(pushedOperandFlags) != SIZE_VALUE_UNKNOWN) { //the value's size is known, we can return it
-                        visited.clear();
+                        list.releaseVisitedSet(visited);
                         return extractSize(pushedOperandFlags);
                     }
 
@@ -1325,10 +1460,10 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                 }
 
                 if (currFrame.insn instanceof LabelNode) {
-                    TryCatchBlockNode[] tryCatchBlocks = list.tryCatchBlocksByHandlers.get(currFrame.insn);
+                    TryCatchBlockNode[] tryCatchBlocks = currFrame.handledTryCatchBlocks;
                     if (tryCatchBlocks != null) { //this label is a try-catch block handler
                         if (indexFromThis == -1) { //the caught exception is being queried
-                            visited.clear();
+                            list.releaseVisitedSet(visited);
                             return 1;
                         } else {
                             throw new IndexOutOfBoundsException("try-catch block handler only has a single stack operand!");
@@ -1337,7 +1472,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
                     //find the first result from one of the the incoming instructions
                     int indexBefore = currFrame.convertIndexFromThisToIndexBefore(indexFromThis);
-                    list.incomingInsnsDFS(currFrame, (LabelNode) currFrame.insn, dfsStack, indexBefore);
+                    list.incomingInsnsDFS(currFrame, dfsStack, indexBefore);
 
                     //tail recursion into the first of the incoming instructions we just found (other instructions will be visited on subsequent iterations)
                     DFSItem nextItem = dfsStack.pop();
@@ -1405,20 +1540,20 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         private static UsageValue getLocalUsages(DynamicSourceFrame startFrame, AnalyzedInsnList list, int localIndex) {
             ArrayDeque<DynamicSourceFrame> dfsStack = new ArrayDeque<>();
-            Set<AbstractInsnNode> visited = BytecodeHelper.makeInsnSet();
+            VisitedSet visited = list.acquireVisitedSet();
 
-            startFrame.getNextFrames(list, true, dfsStack);
+            SourceCollector usages = list.acquireSourceCollector();
 
-            Set<AbstractInsnNode> usages = BytecodeHelper.makeInsnSet();
+            startFrame.getNextFrames(list, true, dfsStack);
 
             for (DynamicSourceFrame currFrame; (currFrame = dfsStack.pollFirst()) != null; ) {
-                if (!visited.add(currFrame.insn)) { //we've already visited this instruction, advance to the next one
+                if (!visited.add(currFrame)) { //we've already visited this instruction, advance to the next one
                     continue;
                 }
 
                 if (currFrame.readFromLocalBase >= 0 && localIndex >= currFrame.readFromLocalBase && localIndex < currFrame.readFromLocalBase + currFrame.readFromLocalCount) {
                     //this instruction reads the given local variable
-                    usages.add(currFrame.insn);
+                    usages.add(currFrame, startFrame.storedToLocalValues.length);
                 }
                 if (currFrame.storedToLocalBase >= 0 && localIndex >= currFrame.storedToLocalBase && localIndex < currFrame.storedToLocalBase + currFrame.storedToLocalValues.length) {
                     //this instruction writes to the given local variable, so we can stop recursing
@@ -1430,9 +1565,10 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
             }
 
             //we've run out of instructions to visit, return the final result
-            visited.clear();
-
-            return new UsageValue(startFrame.storedToLocalValues.length, usages);
+            list.releaseVisitedSet(visited);
+            UsageValue value = usages.toUsageValue(list, startFrame.storedToLocalValues.length);
+            list.releaseSourceCollector(usages);
+            return value;
         }
 
         public List<UsageValue> getStackUsages(AnalyzedInsnList list) {
@@ -1461,21 +1597,23 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
 
         private static UsageValue getStackUsages(DynamicSourceFrame startFrame, AnalyzedInsnList list, int _indexAfter, int valueSize) {
             ArrayDeque<DFSItem> dfsStack = new ArrayDeque<>();
-            Set<AbstractInsnNode> visited = BytecodeHelper.makeInsnSet();
+            VisitedSet visited = list.acquireVisitedSet();
 
             //we don't want to visit exception handlers, as the stack will be cleared if an exception is thrown (we assume exception handlers are otherwise unreachable)
             startFrame.getNextFramesDFS(list, false, dfsStack, _indexAfter);
 
-            UsageValue result = null;
+            SourceCollector result = list.acquireSourceCollector();
 
             DynamicSourceFrame currFrame = null;
             int indexFromThis = 0;
             while (true) {
-                if (currFrame == null || !visited.add(currFrame.insn)) { //we've already visited this instruction, advance to the next one
+                if (currFrame == null || !visited.add(currFrame)) { //we've already visited this instruction, advance to the next one
                     DFSItem nextItem = dfsStack.pollFirst();
                     if (nextItem == null) { //we've run out of instructions to visit, return the final result
-                        visited.clear();
-                        return result != null ? result : new UsageValue(valueSize);
+                        list.releaseVisitedSet(visited);
+                        UsageValue value = result.toUsageValue(list, valueSize);
+                        list.releaseSourceCollector(result);
+                        return value;
                     }
                     currFrame = nextItem.frame;
                     indexFromThis = nextItem.indexFromFrame;
@@ -1487,7 +1625,7 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
                     //this instruction popped the stack element in question, so it's the only source which should be visible beyond this point
 
                     if (currFrame.visible) {
-                        result = UsageValue.mergeNullable(result, new UsageValue(valueSize, currFrame.insn));
+                        result.add(currFrame, valueSize);
                     }
 
                     for (int pushedIndexFromThis = 0; pushedIndexFromThis < currFrame.pushedStackOperands.length; pushedIndexFromThis++) {
@@ -1525,6 +1663,110 @@ public final class AnalyzedInsnList extends CheckedInsnList implements IDataflow
         }
     }
 
+    /**
+     * A set of {@link DynamicSourceFrame}s which have been visited by a traversal, indexed by their {@link DynamicSourceFrame#id id}.
+     * <p>
+     * Instances are pooled by each {@link AnalyzedInsnList}, and are reset between traversals by incrementing the generation rather than clearing the array.
+     */
+    private static final class VisitedSet {
+        private int[] generations = new int[0];
+        private int generation;
+
+        public void reset(int capacity) {
+            if (this.generations.length < capacity) {
+                this.generations = new int[capacity];
+                this.generation = 0;
+            }
+            if (++this.generation == 0) { //the generation counter overflowed, we have to actually clear the array so that no old entries become valid again
+                Arrays.fill(this.generations, 0);
+                this.generation = 1;
+            }
+        }
+
+        public boolean add(DynamicSourceFrame frame) {
+            if (this.generations[frame.id] == this.generation) {
+                return false;
+            }
+            this.generations[frame.id] = this.generation;
+            return true;
+        }
+    }
+
+    /**
+     * The sources (or usages) found by a traversal, stored as the {@link DynamicSourceFrame#id ids} of the frames they were found in.
+     * <p>
+     * Instances are pooled by each {@link AnalyzedInsnList}, so the only allocation a traversal makes for its result is the final {@link SourceValue} (and its set of
+     * instructions, if more than one was found).
+     */
+    private static final class SourceCollector {
+        private int[] frameIds = new int[8];
+        private int frameCount;
+
+        //ARGUMENT_SOURCE or EXCEPTION_SOURCE, which don't have a frame of their own
+        private AbstractInsnNode specialSource;
+
+        private int size;
+
+        public void reset() {
+            this.frameCount = 0;
+            this.specialSource = null;
+            this.size = Integer.MAX_VALUE;
+        }
+
+        public boolean isEmpty() {
+            return this.frameCount == 0 && this.specialSource == null;
+        }
+
+        public void add(DynamicSourceFrame frame, int size) {
+            if (this.frameCount == this.frameIds.length) {
+                this.frameIds = Arrays.copyOf(this.frameIds, this.frameCount << 1);
+            }
+            this.frameIds[this.frameCount++] = frame.id;
+            this.size = Math.min(this.size, size);
+        }
+
+        public void addSpecial(AbstractInsnNode source, int size) {
+            assert this.specialSource == null || this.specialSource == source : "multiple special sources";
+            this.specialSource = source;
+            this.size = Math.min(this.size, size);
+        }
+
+        public SourceValue toSourceValue(AnalyzedInsnList list) {
+            if (this.frameCount == 0) {
+                if (this.specialSource == null) {
+                    return null;
+                }
+                return this.specialSource == EXCEPTION_SOURCE ? EXCEPTION_SOURCE_VALUE : ARGUMENT_SOURCE_VALUE_BY_SIZE[this.size];
+            } else if (this.frameCount == 1 && this.specialSource == null) {
+                return new SourceValue(this.size, list.framesById[this.frameIds[0]].insn);
+            } else {
+                return new SourceValue(this.size, this.toInsnSet(list));
+            }
+        }
+
+        public UsageValue toUsageValue(AnalyzedInsnList list, int valueSize) {
+            assert this.specialSource == null : "usages can't have a special source";
+            if (this.frameCount == 0) {
+                return new UsageValue(valueSize);
+            } else if (this.frameCount == 1) {
+                return new UsageValue(valueSize, list.framesById[this.frameIds[0]].insn);
+            } else {
+                return new UsageValue(valueSize, this.toInsnSet(list));
+            }
+        }
+
+        private Set<AbstractInsnNode> toInsnSet(AnalyzedInsnList list) {
+            Set<AbstractInsnNode> insns = BytecodeHelper.makeInsnSet();
+            for (int i = 0; i < this.frameCount; i++) {
+                insns.add(list.framesById[this.frameIds[i]].insn);
+            }
+            if (this.specialSource != null) {
+                insns.add(this.specialSource);
+            }
+            return insns;
+        }
+    }
+
     @AllArgsConstructor
     @NoArgsConstructor
     private static final class DFSItem {
@@ -1,23 +1,23 @@
 package net.daporkchop.ppatches.util.asm.cp;
 
-import lombok.EqualsAndHashCode;
-import lombok.RequiredArgsConstructor;
-import org.objectweb.asm.AnnotationVisitor;
+import com.google.common.base.Preconditions;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.FieldVisitor;
-import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Type;
-import org.objectweb.asm.TypePath;
+import org.objectweb.asm.Handle;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Arrays;
 
 import static net.daporkchop.ppatches.util.asm.cp.ConstantPoolConstants.*;
-import static org.objectweb.asm.Opcodes.ASM5;
 
 /**
+ * An index of the values referenced by a class' constant pool.
+ * <p>
+ * The index consists of open-addressing hash tables which only store offsets into the class' bytes, so building it doesn't decode any strings or box any
+ * primitives. Queries are hashed and compared directly against the modified UTF-8 data in the class.
+ * <p>
+ * Building an index for every class which is loaded would otherwise allocate a lot of short-lived garbage, so an instance is cached for each thread and reused
+ * for every class indexed on that thread (see {@link #acquire(ClassReader, int)}). Its tables are only reallocated if a class needs more space than any of the
+ * classes indexed before it.
+ *
  * @author DaPorkchop_
  */
 public final class ConstantPoolIndex {
@@ -30,84 +30,166 @@ public final class ConstantPoolIndex {
      * Flag to enable extracting classes referenced in annotations as ordinary referenced classes.
      */
     public static final int INCLUDE_ANNOTATIONS_IN_REFERENCED_CLASSES = 2;
-    
+
     /**
      * Flag to enable extracting constant primitive values.
      */
     public static final int INCLUDE_CONSTANT_PRIMITIVES = 4;
 
-    private final Set<String> referencedStrings = new TreeSet<>();
-    private final Set<String> referencedClasses = new TreeSet<>();
-    private final Set<String> referencedMethodTypes = new TreeSet<>();
+    private static final ThreadLocal<ConstantPoolIndex> CACHED = new ThreadLocal<>();
 
-    private final Set<FieldOrMethodRef> referencedFields = new TreeSet<>();
-    private final Set<FieldOrMethodRef> referencedMethods = new TreeSet<>();
+    /**
+     * Gets a {@link ConstantPoolIndex} for the given class, reusing the instance cached for the current thread if possible.
+     * <p>
+     * The returned index must be {@link #release() released} once it's no longer needed, and mustn't be accessed afterwards.
+     *
+     * @param reader a {@link ClassReader} containing the class
+     * @param flags  a bitwise OR combination of the flags defined in this class
+     * @return a {@link ConstantPoolIndex} for the given class
+     */
+    public static ConstantPoolIndex acquire(ClassReader reader, int flags) {
+        ConstantPoolIndex cpIndex = CACHED.get();
+        if (cpIndex == null) {
+            CACHED.set(cpIndex = new ConstantPoolIndex());
+        } else if (cpIndex.inUse) { //the cached instance is still being used further up the stack (e.g. a transformer caused another class to be loaded)
+            cpIndex = new ConstantPoolIndex();
+        }
 
-    //TODO: maybe use fastutil collections for these (they're accessed from the root transformer which results in a ClassCircularityError during startup)
-    private final Set<Integer> referencedInts;
-    private final Set<Integer> referencedFloats;
+        cpIndex.inUse = true;
+        cpIndex.index(reader, flags);
+        return cpIndex;
+    }
 
-    private final Set<Long> referencedLongs;
-    private final Set<Long> referencedDoubles;
+    private ClassReader reader;
+    private byte[] b;
+    private int flags;
+    private boolean inUse;
+
+    private final int[] tagCounts = new int[MAX_CONSTANT_TAGS];
+
+    private final Utf8Table strings = new Utf8Table();
+    private final Utf8Table classes = new Utf8Table();
+    private final Utf8Table methodTypes = new Utf8Table();
+
+    private final MemberTable fields = new MemberTable();
+    private final MemberTable methods = new MemberTable();
+    private final MemberTable methodHandles = new MemberTable();
+    private final MemberTable bootstrapMethods = new MemberTable();
+    private final MemberTable invokeDynamics = new MemberTable(); //the third utf8 is always absent
+
+    private final PrimitiveTable ints = new PrimitiveTable();
+    private final PrimitiveTable floats = new PrimitiveTable();
+    private final PrimitiveTable longs = new PrimitiveTable();
+    private final PrimitiveTable doubles = new PrimitiveTable();
+
+    private ConstantPoolIndex() {
+    }
 
     public ConstantPoolIndex(ClassReader reader, int flags) {
-        if ((flags & INCLUDE_CONSTANT_PRIMITIVES) != 0) {
-            this.referencedInts = new TreeSet<>();
-            this.referencedFloats = new TreeSet<>();
-            this.referencedLongs = new TreeSet<>();
-            this.referencedDoubles = new TreeSet<>();
-        } else {
-            this.referencedInts = this.referencedFloats = null;
-            this.referencedLongs = this.referencedDoubles = null;
+        this.index(reader, flags);
+    }
+
+    /**
+     * Releases this index, allowing it to be reused for another class on the same thread.
+     *
+     * @see #acquire(ClassReader, int)
+     */
+    public void release() {
+        this.reader = null;
+        this.b = null;
+        this.inUse = false;
+    }
+
+    private void index(ClassReader reader, int flags) {
+        this.reader = reader;
+        this.b = reader.b;
+        this.flags = flags;
+
+        //count the items with each tag first, so that all the tables can be sized up front
+        int[] tagCounts = this.tagCounts;
+        Arrays.fill(tagCounts, 0);
+        for (int item = 1, itemCount = reader.getItemCount(); item < itemCount; item++) {
+            int index = reader.getItem(item);
+            if (index != 0) { //the slot after a long or double constant is empty
+                int tag = this.b[index - 1];
+                if (tag >= 0 && tag < MAX_CONSTANT_TAGS) {
+                    tagCounts[tag]++;
+                }
+            }
         }
-        
-        char[] buf = new char[reader.getMaxStringLength()];
 
-        @SuppressWarnings("unchecked")
-        Set<String>[] referencedStringSets = new Set[MAX_CONSTANT_TAGS];
-        referencedStringSets[CONSTANT_String] = this.referencedStrings;
-        referencedStringSets[CONSTANT_Class] = this.referencedClasses;
-        referencedStringSets[CONSTANT_MethodType] = this.referencedMethodTypes;
+        this.strings.reset(tagCounts[CONSTANT_String]);
+        this.classes.reset(tagCounts[CONSTANT_Class]); //this may grow if descriptors or annotations are included
+        this.methodTypes.reset(tagCounts[CONSTANT_MethodType]);
+        this.fields.reset(tagCounts[CONSTANT_Fieldref]);
+        this.methods.reset(tagCounts[CONSTANT_Methodref] + tagCounts[CONSTANT_InterfaceMethodref]);
+        this.methodHandles.reset(tagCounts[CONSTANT_MethodHandle]);
+        this.bootstrapMethods.reset(0); //this is sized once the BootstrapMethods attribute is found
+        this.invokeDynamics.reset(tagCounts[CONSTANT_InvokeDynamic]);
+        if ((flags & INCLUDE_CONSTANT_PRIMITIVES) != 0) {
+            this.ints.reset(tagCounts[CONSTANT_Integer]);
+            this.floats.reset(tagCounts[CONSTANT_Float]);
+            this.longs.reset(tagCounts[CONSTANT_Long]);
+            this.doubles.reset(tagCounts[CONSTANT_Double]);
+        }
 
-        for (int item = 0; item < reader.getItemCount(); item++) { //iterate over all the items in the constant pool
+        byte[] b = this.b;
+        boolean includeDescriptors = (flags & INCLUDE_DESCRIPTORS_IN_REFERENCED_CLASSES) != 0;
+        for (int item = 1, itemCount = reader.getItemCount(); item < itemCount; item++) { //iterate over all the items in the constant pool
             int index = reader.getItem(item);
-            if (index == 0) { //empty item (seems to happen sporadically)
+            if (index == 0) {
                 continue;
             }
 
-            int tag = reader.readByte(index - 1);
+            int tag = b[index - 1];
             switch (tag) {
-                case CONSTANT_Utf8: //this would require reflection to implement, and isn't really worth it since i can't see any meaningful use cases. maybe for the future?
-                case CONSTANT_NameAndType: //this isn't really useful by itself, and would just add unnecessary extra overhead
+                case CONSTANT_Utf8: //these are only indexed as part of the items which reference them
+                case CONSTANT_NameAndType:
                     break;
                 case CONSTANT_String:
+                    this.addUtf8(this.strings, this.utf8Item(index));
+                    break;
                 case CONSTANT_Class:
-                case CONSTANT_MethodType:
-                    referencedStringSets[tag].add(reader.readUTF8(index, buf));
+                    this.addUtf8(this.classes, this.utf8Item(index));
+                    break;
+                case CONSTANT_MethodType: {
+                    int desc = this.utf8Item(index);
+                    this.addUtf8(this.methodTypes, desc);
+                    if (includeDescriptors) {
+                        this.addDescriptorTypes(desc);
+                    }
                     break;
+                }
                 case CONSTANT_Fieldref:
                 case CONSTANT_Methodref:
                 case CONSTANT_InterfaceMethodref: {
+                    int owner = this.utf8Item(reader.getItem(reader.readUnsignedShort(index)));
                     int nameType = reader.getItem(reader.readUnsignedShort(index + 2));
-                    String owner = reader.readClass(index, buf);
-                    String name = reader.readUTF8(nameType, buf);
-                    String desc = reader.readUTF8(nameType + 2, buf);
-                    (tag == CONSTANT_Fieldref ? this.referencedFields : this.referencedMethods).add(new FieldOrMethodRef(owner, name, desc));
+                    int desc = this.utf8Item(nameType + 2);
+                    (tag == CONSTANT_Fieldref ? this.fields : this.methods).add(b, owner, this.utf8Item(nameType), desc, 0);
+                    if (includeDescriptors) {
+                        this.addDescriptorTypes(desc);
+                    }
                     break;
                 }
-                case CONSTANT_MethodHandle: //TODO: implement
-                case CONSTANT_InvokeDynamic:
+                case CONSTANT_MethodHandle:
+                    this.addMethodHandle(this.methodHandles, index);
                     break;
+                case CONSTANT_InvokeDynamic: {
+                    int nameType = reader.getItem(reader.readUnsignedShort(index + 2));
+                    this.invokeDynamics.add(b, this.utf8Item(nameType), this.utf8Item(nameType + 2), 0, 0);
+                    break;
+                }
                 case CONSTANT_Integer:
                 case CONSTANT_Float:
                     if ((flags & INCLUDE_CONSTANT_PRIMITIVES) != 0) {
-                        (tag == CONSTANT_Integer ? this.referencedInts : this.referencedFloats).add(reader.readInt(index));
+                        (tag == CONSTANT_Integer ? this.ints : this.floats).add(reader.readInt(index));
                     }
                     break;
                 case CONSTANT_Long:
                 case CONSTANT_Double:
                     if ((flags & INCLUDE_CONSTANT_PRIMITIVES) != 0) {
-                        (tag == CONSTANT_Long ? this.referencedLongs : this.referencedDoubles).add(reader.readLong(index));
+                        (tag == CONSTANT_Long ? this.longs : this.doubles).add(reader.readLong(index));
                     }
                     break;
                 default:
@@ -115,158 +197,225 @@ public final class ConstantPoolIndex {
             }
         }
 
-        if ((flags & INCLUDE_DESCRIPTORS_IN_REFERENCED_CLASSES) != 0) {
-            this.extractTypesFromDescriptors();
-        }
-
-        if ((flags & INCLUDE_ANNOTATIONS_IN_REFERENCED_CLASSES) != 0) {
-            extractAnnotationTypes(reader, this.referencedClasses);
+        boolean includeAnnotations = (flags & INCLUDE_ANNOTATIONS_IN_REFERENCED_CLASSES) != 0;
+        if (includeAnnotations || tagCounts[CONSTANT_InvokeDynamic] != 0) {
+            this.scanClassAttributes(includeAnnotations);
         }
     }
 
-    private void extractTypesFromDescriptors() {
-        this.referencedMethodTypes.forEach(this::extractTypesFromMethodDescriptor);
-
-        this.referencedFields.forEach(fieldref -> {
-            assert this.referencedClasses.contains(fieldref.owner) : fieldref.owner;
-            this.extractTypesFromFieldDescriptor(fieldref.desc);
-        });
-
-        this.referencedMethods.forEach(methodref -> {
-            assert this.referencedClasses.contains(methodref.owner) : methodref.owner;
-            this.extractTypesFromMethodDescriptor(methodref.desc);
-        });
+    //
+    // indexing helpers
+    //
 
-        //TODO: we'll need a few more
+    private int utf8Item(int offset) {
+        return this.reader.getItem(this.reader.readUnsignedShort(offset));
     }
 
-    private void extractTypesFromFieldDescriptor(String desc) {
-        addInternalNameToSetIfObjectType(desc, this.referencedClasses);
+    private void addUtf8(Utf8Table table, int utf8Item) {
+        table.add(this.b, utf8Item + 2, readUnsignedShort(this.b, utf8Item));
     }
 
-    private void extractTypesFromMethodDescriptor(String desc) {
-        for (Type argumentType : Type.getArgumentTypes(desc)) {
-            addInternalNameToSetIfObjectType(argumentType, this.referencedClasses);
-        }
-
-        addInternalNameToSetIfObjectType(Type.getReturnType(desc), this.referencedClasses);
+    private void addMethodHandle(MemberTable table, int index) {
+        byte[] b = this.b;
+        int member = this.reader.getItem(readUnsignedShort(b, index + 1));
+        int nameType = this.reader.getItem(readUnsignedShort(b, member + 2));
+        table.add(b, this.utf8Item(this.reader.getItem(readUnsignedShort(b, member))), this.utf8Item(nameType), this.utf8Item(nameType + 2),
+                handleKind(b[index] & 0xFF, b[member - 1] == CONSTANT_InterfaceMethodref));
     }
 
-    private static void addInternalNameToSetIfObjectType(String desc, Set<String> dst) {
-        addInternalNameToSetIfObjectType(Type.getType(desc), dst);
+    private static int handleKind(int tag, boolean itf) {
+        return itf ? tag | 0x100 : tag;
     }
 
-    private static void addInternalNameToSetIfObjectType(Type type, Set<String> dst) {
-        switch (type.getSort()) {
-            case Type.OBJECT:
-            case Type.ARRAY:
-                dst.add(type.getInternalName());
-        }
-    }
-
-    private static void extractAnnotationTypes(ClassReader reader, Set<String> dst) {
-        AnnotationVisitor annotationVisitor = new AnnotationVisitor(ASM5) {
-            @Override
-            public void visit(String name, Object value) {
-                if (value instanceof Type) {
-                    addInternalNameToSetIfObjectType((Type) value, dst);
-                }
-            }
-
-            @Override
-            public AnnotationVisitor visitAnnotation(String name, String desc) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return this;
-            }
-
-            @Override
-            public AnnotationVisitor visitArray(String name) {
-                return this;
-            }
-        };
-
-        MethodVisitor methodVisitor = new MethodVisitor(ASM5) {
-            @Override
-            public AnnotationVisitor visitAnnotationDefault() {
-                return annotationVisitor;
-            }
-
-            @Override
-            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
-            }
-
-            @Override
-            public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
-            }
-
-            @Override
-            public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
-            }
-
-            @Override
-            public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
+    private void addDescriptorTypes(int utf8Item) {
+        byte[] b = this.b;
+        for (int i = utf8Item + 2, end = i + readUnsignedShort(b, utf8Item); i < end; ) {
+            int typeStart = i;
+            while (b[i] == '[') {
+                i++;
             }
 
-            @Override
-            public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
-            }
+            switch (b[i]) {
+                case '(':
+                case ')':
+                    i++;
+                    break;
+                case 'L': {
+                    int nameEnd = i + 1;
+                    while (b[nameEnd] != ';') {
+                        nameEnd++;
+                    }
 
-            @Override
-            public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end, int[] index, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
+                    if (typeStart == i) {
+                        this.classes.add(b, i + 1, nameEnd - (i + 1));
+                    } else { //the internal name of an array type is its descriptor
+                        this.classes.add(b, typeStart, nameEnd + 1 - typeStart);
+                    }
+                    i = nameEnd + 1;
+                    break;
+                }
+                default: //primitive type or void, these are only referenced classes if they're the element type of an array
+                    if (typeStart != i) {
+                        this.classes.add(b, typeStart, i + 1 - typeStart);
+                    }
+                    i++;
             }
-        };
+        }
+    }
 
-        FieldVisitor fieldVisitor = new FieldVisitor(ASM5) {
-            @Override
-            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
+    /**
+     * Scans the attributes of the class, its fields and its methods (including each method's code) for annotations and bootstrap methods.
+     * <p>
+     * This operates directly on the raw class bytes, see https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7
+     */
+    private void scanClassAttributes(boolean includeAnnotations) {
+        int offset = this.reader.header + 6;
+        offset += 2 + (this.reader.readUnsignedShort(offset) << 1);
+
+        //fields and methods can't have a BootstrapMethods attribute, so they only need to be scanned if annotations are included
+        for (int member = 0; member < 2; member++) {
+            int memberCount = this.reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < memberCount; i++) {
+                offset = includeAnnotations ? this.scanAttributes(offset + 6, true) : skipAttributes(this.b, offset + 6);
             }
+        }
+        this.scanAttributes(offset, includeAnnotations);
+    }
 
-            @Override
-            public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
-            }
-        };
+    private static int skipAttributes(byte[] b, int offset) {
+        int attributeCount = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            offset += 6 + ((b[offset + 2] & 0xFF) << 24 | (b[offset + 3] & 0xFF) << 16 | (b[offset + 4] & 0xFF) << 8 | (b[offset + 5] & 0xFF));
+        }
+        return offset;
+    }
 
-        reader.accept(new ClassVisitor(ASM5) {
-            @Override
-            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
+    private int scanAttributes(int offset, boolean includeAnnotations) {
+        byte[] b = this.b;
+        int attributeCount = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            int name = this.utf8Item(offset);
+            int start = offset + 6;
+            offset = start + this.reader.readInt(offset + 2);
+
+            if (utf8Equals(b, name, "BootstrapMethods")) {
+                int bootstrapMethodCount = readUnsignedShort(b, start);
+                this.bootstrapMethods.reset(bootstrapMethodCount);
+                for (int j = 0, bootstrapMethod = start + 2; j < bootstrapMethodCount; j++) {
+                    //the bootstrap arguments are ordinary constant pool items, so they've already been indexed
+                    this.addMethodHandle(this.bootstrapMethods, this.reader.getItem(readUnsignedShort(b, bootstrapMethod)));
+                    bootstrapMethod += 4 + (readUnsignedShort(b, bootstrapMethod + 2) << 1);
+                }
+            } else if (!includeAnnotations) {
+                continue;
+            } else if (utf8Equals(b, name, "RuntimeVisibleAnnotations") || utf8Equals(b, name, "RuntimeInvisibleAnnotations")) {
+                for (int j = 0, annotationCount = readUnsignedShort(b, start), annotation = start + 2; j < annotationCount; j++) {
+                    annotation = this.scanAnnotation(annotation);
+                }
+            } else if (utf8Equals(b, name, "RuntimeVisibleParameterAnnotations") || utf8Equals(b, name, "RuntimeInvisibleParameterAnnotations")) {
+                for (int j = 0, parameterCount = b[start] & 0xFF, annotation = start + 1; j < parameterCount; j++) {
+                    int annotationCount = readUnsignedShort(b, annotation);
+                    annotation += 2;
+                    for (int k = 0; k < annotationCount; k++) {
+                        annotation = this.scanAnnotation(annotation);
+                    }
+                }
+            } else if (utf8Equals(b, name, "RuntimeVisibleTypeAnnotations") || utf8Equals(b, name, "RuntimeInvisibleTypeAnnotations")) {
+                for (int j = 0, annotationCount = readUnsignedShort(b, start), annotation = start + 2; j < annotationCount; j++) {
+                    annotation = this.scanTypeAnnotation(annotation);
+                }
+            } else if (utf8Equals(b, name, "AnnotationDefault")) {
+                this.scanElementValue(start);
+            } else if (utf8Equals(b, name, "Code")) { //the code attribute has its own attributes, which may contain type annotations on instructions and local variables
+                int exceptionTable = start + 8 + this.reader.readInt(start + 4);
+                this.scanAttributes(exceptionTable + 2 + (readUnsignedShort(b, exceptionTable) << 3), true);
             }
+        }
+        return offset;
+    }
 
-            @Override
-            public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-                addInternalNameToSetIfObjectType(desc, dst);
-                return annotationVisitor;
-            }
+    private int scanAnnotation(int offset) {
+        this.addDescriptorTypes(this.utf8Item(offset));
+        int pairCount = readUnsignedShort(this.b, offset + 2);
+        offset += 4;
+        for (int i = 0; i < pairCount; i++) {
+            offset = this.scanElementValue(offset + 2); //skip the element name
+        }
+        return offset;
+    }
 
-            @Override
-            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-                return fieldVisitor;
-            }
+    private int scanTypeAnnotation(int offset) {
+        byte[] b = this.b;
+        int targetType = b[offset++] & 0xFF;
+        switch (targetType) { //skip the target_info, see https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7.20.1
+            case 0x13: //empty_target
+            case 0x14:
+            case 0x15:
+                break;
+            case 0x00: //type_parameter_target
+            case 0x01:
+            case 0x16: //formal_parameter_target
+                offset += 1;
+                break;
+            case 0x10: //supertype_target
+            case 0x11: //type_parameter_bound_target
+            case 0x12:
+            case 0x17: //throws_target
+            case 0x42: //catch_target
+            case 0x43: //offset_target
+            case 0x44:
+            case 0x45:
+            case 0x46:
+                offset += 2;
+                break;
+            case 0x47: //type_argument_target
+            case 0x48:
+            case 0x49:
+            case 0x4A:
+            case 0x4B:
+                offset += 3;
+                break;
+            case 0x40: //localvar_target
+            case 0x41:
+                offset += 2 + readUnsignedShort(b, offset) * 6;
+                break;
+            default:
+                throw new IllegalArgumentException("encountered type annotation with unexpected target type " + targetType);
+        }
+        offset += 1 + ((b[offset] & 0xFF) << 1); //skip the type_path
+        return this.scanAnnotation(offset);
+    }
 
-            @Override
-            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                return methodVisitor;
+    private int scanElementValue(int offset) {
+        switch (this.b[offset]) {
+            case 'e': //enum constant, the type is a field descriptor
+                this.addDescriptorTypes(this.utf8Item(offset + 1));
+                return offset + 5;
+            case 'c': //class literal, the type is a return descriptor
+                this.addDescriptorTypes(this.utf8Item(offset + 1));
+                return offset + 3;
+            case '@':
+                return this.scanAnnotation(offset + 1);
+            case '[': {
+                int valueCount = readUnsignedShort(this.b, offset + 1);
+                offset += 3;
+                for (int i = 0; i < valueCount; i++) {
+                    offset = this.scanElementValue(offset);
+                }
+                return offset;
             }
-        }, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG | ClassReader.SKIP_CODE); //TODO: the SKIP_CODE flag means we'll never actually end up visiting local variable instructions, but for now that doesn't matter
+            default: //constant value
+                return offset + 3;
+        }
     }
 
+    //
+    // queries
+    //
+
     /**
      * Checks if this class references a class with the given internal name.
      * <p>
@@ -274,40 +423,84 @@ public final class ConstantPoolIndex {
      * in the class) or as a caught exception type of any try-catch blocks.
      * <p>
      * If the flag {@link #INCLUDE_DESCRIPTORS_IN_REFERENCED_CLASSES} is set, this will also include any classes referenced as the field type of any field references, or
-     * as an argument or return type of the method descriptor of any method references in the class.
+     * as an argument or return type of the method descriptor of any method references or method types in the class.
      * <p>
      * If the flag {@link #INCLUDE_ANNOTATIONS_IN_REFERENCED_CLASSES} is set, this will also include any classes referenced as the type or value of any annotation in
-     * the class.
+     * the class, including type annotations in method code.
      *
      * @param internalName the internal name of the class to check for
      * @return {@code true} if the class contains any references to the class with the given internal name
      */
     public boolean referencesClass(String internalName) {
-        return this.referencedClasses.contains(internalName);
+        return this.classes.contains(this.b, internalName);
     }
-    
+
     /**
      * Checks if this class references a field with the given owner, name and descriptor.
      *
      * @param owner the internal name of the owning class
-     * @param name the field name
-     * @param desc the field descriptor
+     * @param name  the field name
+     * @param desc  the field descriptor
      * @return {@code true} if the class contains any references to the given field
      */
     public boolean referencesField(String owner, String name, String desc) {
-        return this.referencedFields.contains(new FieldOrMethodRef(owner, name, desc));
+        return this.fields.contains(this.b, owner, name, desc, 0);
     }
-    
+
     /**
      * Checks if this class references a method with the given owner, name and descriptor.
      *
      * @param owner the internal name of the owning class
-     * @param name the method name
-     * @param desc the method descriptor
+     * @param name  the method name
+     * @param desc  the method descriptor
      * @return {@code true} if the class contains any references to the given method
      */
     public boolean referencesMethod(String owner, String name, String desc) {
-        return this.referencedMethods.contains(new FieldOrMethodRef(owner, name, desc));
+        return this.methods.contains(this.b, owner, name, desc, 0);
+    }
+
+    /**
+     * Checks if this class contains a constant pool entry with the given method type.
+     *
+     * @param desc the method descriptor
+     * @return {@code true} if the class contains a constant pool entry with the given method type
+     */
+    public boolean referencesMethodType(String desc) {
+        return this.methodTypes.contains(this.b, desc);
+    }
+
+    /**
+     * Checks if this class contains a constant pool entry with the given method handle.
+     * <p>
+     * This includes method handles which are used as the bootstrap method or as a bootstrap argument of an {@code INVOKEDYNAMIC} instruction, such as the
+     * implementation methods of lambdas.
+     *
+     * @param handle the method handle
+     * @return {@code true} if the class contains a constant pool entry with the given method handle
+     */
+    public boolean referencesMethodHandle(Handle handle) {
+        return this.methodHandles.contains(this.b, handle.getOwner(), handle.getName(), handle.getDesc(), handleKind(handle.getTag(), handle.isInterface()));
+    }
+
+    /**
+     * Checks if this class contains an {@code INVOKEDYNAMIC} instruction which uses the given bootstrap method.
+     *
+     * @param handle the method handle of the bootstrap method
+     * @return {@code true} if the class contains an {@code INVOKEDYNAMIC} instruction which uses the given bootstrap method
+     */
+    public boolean referencesBootstrapMethod(Handle handle) {
+        return this.bootstrapMethods.contains(this.b, handle.getOwner(), handle.getName(), handle.getDesc(), handleKind(handle.getTag(), handle.isInterface()));
+    }
+
+    /**
+     * Checks if this class contains an {@code INVOKEDYNAMIC} instruction with the given name and descriptor.
+     *
+     * @param name the name
+     * @param desc the method descriptor
+     * @return {@code true} if the class contains an {@code INVOKEDYNAMIC} instruction with the given name and descriptor
+     */
+    public boolean referencesInvokeDynamic(String name, String desc) {
+        return this.invokeDynamics.contains(this.b, name, desc, null, 0);
     }
 
     /**
@@ -317,7 +510,7 @@ public final class ConstantPoolIndex {
      * @return {@code true} if the class contains a constant pool entry with the given {@link String} value
      */
     public boolean referencesString(String value) {
-        return this.referencedStrings.contains(value);
+        return this.strings.contains(this.b, value);
     }
 
     /**
@@ -328,7 +521,8 @@ public final class ConstantPoolIndex {
      * @throws RuntimeException if this {@link ConstantPoolIndex} was not constructed with the {@link #INCLUDE_CONSTANT_PRIMITIVES} flag
      */
     public boolean referencesInt(int value) {
-        return this.referencedInts.contains(value);
+        this.checkPrimitivesIncluded();
+        return this.ints.contains(value);
     }
 
     /**
@@ -339,7 +533,8 @@ public final class ConstantPoolIndex {
      * @throws RuntimeException if this {@link ConstantPoolIndex} was not constructed with the {@link #INCLUDE_CONSTANT_PRIMITIVES} flag
      */
     public boolean referencesFloat(float value) {
-        return this.referencedFloats.contains(Float.floatToRawIntBits(value));
+        this.checkPrimitivesIncluded();
+        return this.floats.contains(Float.floatToRawIntBits(value));
     }
 
     /**
@@ -350,7 +545,8 @@ public final class ConstantPoolIndex {
      * @throws RuntimeException if this {@link ConstantPoolIndex} was not constructed with the {@link #INCLUDE_CONSTANT_PRIMITIVES} flag
      */
     public boolean referencesLong(long value) {
-        return this.referencedLongs.contains(value);
+        this.checkPrimitivesIncluded();
+        return this.longs.contains(value);
     }
 
     /**
@@ -361,31 +557,293 @@ public final class ConstantPoolIndex {
      * @throws RuntimeException if this {@link ConstantPoolIndex} was not constructed with the {@link #INCLUDE_CONSTANT_PRIMITIVES} flag
      */
     public boolean referencesDouble(double value) {
-        return this.referencedDoubles.contains(Double.doubleToRawLongBits(value));
+        this.checkPrimitivesIncluded();
+        return this.doubles.contains(Double.doubleToRawLongBits(value));
+    }
+
+    private void checkPrimitivesIncluded() {
+        Preconditions.checkState((this.flags & INCLUDE_CONSTANT_PRIMITIVES) != 0, "constant pool index doesn't include constant primitives");
+    }
+
+    //
+    // modified UTF-8 helpers
+    //
+
+    private static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    //computes the same value as String#hashCode() would for the decoded string
+    private static int hashUtf8(byte[] b, int start, int length) {
+        int hash = 0;
+        for (int i = start, end = start + length; i < end; ) {
+            int c = b[i++] & 0xFF;
+            if (c >= 0x80) {
+                if (c < 0xE0) {
+                    c = ((c & 0x1F) << 6) | (b[i++] & 0x3F);
+                } else {
+                    c = ((c & 0x0F) << 12) | ((b[i++] & 0x3F) << 6) | (b[i++] & 0x3F);
+                }
+            }
+            hash = hash * 31 + c;
+        }
+        return hash;
+    }
+
+    private static int hashUtf8Item(byte[] b, int utf8Item) {
+        return utf8Item == 0 ? 0 : hashUtf8(b, utf8Item + 2, readUnsignedShort(b, utf8Item));
+    }
+
+    private static boolean utf8Equals(byte[] b, int start, int length, String value) {
+        int j = 0;
+        int valueLength = value.length();
+        for (int i = start, end = start + length; i < end; ) {
+            if (j == valueLength) {
+                return false;
+            }
+
+            int c = b[i++] & 0xFF;
+            if (c >= 0x80) {
+                if (c < 0xE0) {
+                    c = ((c & 0x1F) << 6) | (b[i++] & 0x3F);
+                } else {
+                    c = ((c & 0x0F) << 12) | ((b[i++] & 0x3F) << 6) | (b[i++] & 0x3F);
+                }
+            }
+            if (value.charAt(j++) != c) {
+                return false;
+            }
+        }
+        return j == valueLength;
+    }
+
+    private static boolean utf8Equals(byte[] b, int utf8Item, String value) {
+        return utf8Item == 0 ? value == null : value != null && utf8Equals(b, utf8Item + 2, readUnsignedShort(b, utf8Item), value);
+    }
+
+    private static boolean rangeEquals(byte[] b, int start1, int start2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (b[start1 + i] != b[start2 + i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    @RequiredArgsConstructor
-    @EqualsAndHashCode(cacheStrategy = EqualsAndHashCode.CacheStrategy.LAZY)
-    private static final class FieldOrMethodRef implements Comparable<FieldOrMethodRef> {
-        public final String owner;
-        public final String name;
-        public final String desc;
+    //
+    // tables
+    //
+
+    /**
+     * Base class for the open-addressing hash tables used by {@link ConstantPoolIndex}.
+     * <p>
+     * Rather than clearing the table when it's reused, each slot records the generation in which it was last written, and slots from older generations are treated
+     * as empty.
+     */
+    private static abstract class Table {
+        protected int[] stamps = new int[0];
+        protected int generation;
+        protected int size;
+
+        protected final void reset(int expectedSize) {
+            this.size = 0;
+
+            int capacity = 16;
+            while (capacity < expectedSize << 1) {
+                capacity <<= 1;
+            }
+
+            if (this.stamps.length < capacity) {
+                this.stamps = new int[capacity];
+                this.generation = 1;
+                this.allocate(capacity);
+            } else if (++this.generation == 0) { //the generation counter overflowed, we have to actually clear the stamps so that no old entries become valid again
+                Arrays.fill(this.stamps, 0);
+                this.generation = 1;
+            }
+        }
+
+        protected abstract void allocate(int capacity);
+
+        protected static int firstSlot(int hash, int mask) {
+            hash *= 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+    /**
+     * A set of modified UTF-8 strings, each of which is stored as a range of bytes in the class.
+     */
+    private static final class Utf8Table extends Table {
+        private int[] starts;
+        private int[] lengths;
+        private int[] hashes;
 
         @Override
-        public String toString() {
-            return 'L' + this.owner + ';' + this.name + ':' + this.desc;
+        protected void allocate(int capacity) {
+            this.starts = new int[capacity];
+            this.lengths = new int[capacity];
+            this.hashes = new int[capacity];
+        }
+
+        void add(byte[] b, int start, int length) {
+            int hash = hashUtf8(b, start, length);
+            int[] stamps = this.stamps;
+            int mask = stamps.length - 1;
+            for (int slot = firstSlot(hash, mask); ; slot = (slot + 1) & mask) {
+                if (stamps[slot] != this.generation) {
+                    stamps[slot] = this.generation;
+                    this.starts[slot] = start;
+                    this.lengths[slot] = length;
+                    this.hashes[slot] = hash;
+                    if (++this.size << 1 > stamps.length) {
+                        this.grow();
+                    }
+                    return;
+                } else if (this.hashes[slot] == hash && this.lengths[slot] == length && rangeEquals(b, this.starts[slot], start, length)) {
+                    return; //the same string is already present
+                }
+            }
+        }
+
+        private void grow() {
+            int[] oldStamps = this.stamps;
+            int[] oldStarts = this.starts;
+            int[] oldLengths = this.lengths;
+            int[] oldHashes = this.hashes;
+            int oldGeneration = this.generation;
+
+            int capacity = oldStamps.length << 1;
+            int mask = capacity - 1;
+            this.stamps = new int[capacity];
+            this.generation = 1;
+            this.allocate(capacity);
+
+            for (int oldSlot = 0; oldSlot < oldStamps.length; oldSlot++) {
+                if (oldStamps[oldSlot] == oldGeneration) {
+                    int slot = firstSlot(oldHashes[oldSlot], mask);
+                    while (this.stamps[slot] == 1) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.stamps[slot] = 1;
+                    this.starts[slot] = oldStarts[oldSlot];
+                    this.lengths[slot] = oldLengths[oldSlot];
+                    this.hashes[slot] = oldHashes[oldSlot];
+                }
+            }
         }
 
+        boolean contains(byte[] b, String value) {
+            int hash = value.hashCode();
+            int[] stamps = this.stamps;
+            int mask = stamps.length - 1;
+            for (int slot = firstSlot(hash, mask); stamps[slot] == this.generation; slot = (slot + 1) & mask) {
+                if (this.hashes[slot] == hash && utf8Equals(b, this.starts[slot], this.lengths[slot], value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A set of tuples of up to three {@code CONSTANT_Utf8} items and an additional {@code int}. A utf8 item offset of {@code 0} indicates that the value is absent.
+     * <p>
+     * The number of entries may never exceed the size which the table was {@link #reset(int) reset} with.
+     */
+    private static final class MemberTable extends Table {
+        private int[] firsts;
+        private int[] seconds;
+        private int[] thirds;
+        private int[] extras;
+        private int[] hashes;
+
         @Override
-        public int compareTo(FieldOrMethodRef o) {
-            int d = this.owner.compareTo(o.owner);
-            if (d == 0) {
-                d = this.name.compareTo(o.name);
-                if (d == 0) {
-                    d = this.desc.compareTo(o.desc);
+        protected void allocate(int capacity) {
+            this.firsts = new int[capacity];
+            this.seconds = new int[capacity];
+            this.thirds = new int[capacity];
+            this.extras = new int[capacity];
+            this.hashes = new int[capacity];
+        }
+
+        private static int hash(int firstHash, int secondHash, int thirdHash, int extra) {
+            return ((firstHash * 31 + secondHash) * 31 + thirdHash) * 31 + extra;
+        }
+
+        void add(byte[] b, int first, int second, int third, int extra) {
+            int hash = hash(hashUtf8Item(b, first), hashUtf8Item(b, second), hashUtf8Item(b, third), extra);
+            int[] stamps = this.stamps;
+            int mask = stamps.length - 1;
+            int slot = firstSlot(hash, mask);
+            while (stamps[slot] == this.generation) { //duplicates are harmless, so we don't bother checking for them
+                slot = (slot + 1) & mask;
+            }
+
+            stamps[slot] = this.generation;
+            this.firsts[slot] = first;
+            this.seconds[slot] = second;
+            this.thirds[slot] = third;
+            this.extras[slot] = extra;
+            this.hashes[slot] = hash;
+            this.size++;
+        }
+
+        boolean contains(byte[] b, String first, String second, String third, int extra) {
+            int hash = hash(first.hashCode(), second.hashCode(), third != null ? third.hashCode() : 0, extra);
+            int[] stamps = this.stamps;
+            int mask = stamps.length - 1;
+            for (int slot = firstSlot(hash, mask); stamps[slot] == this.generation; slot = (slot + 1) & mask) {
+                if (this.hashes[slot] == hash && this.extras[slot] == extra
+                    && utf8Equals(b, this.firsts[slot], first) && utf8Equals(b, this.seconds[slot], second) && utf8Equals(b, this.thirds[slot], third)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A set of primitive values, stored as their raw bits.
+     * <p>
+     * The number of entries may never exceed the size which the table was {@link #reset(int) reset} with.
+     */
+    private static final class PrimitiveTable extends Table {
+        private long[] values;
+
+        @Override
+        protected void allocate(int capacity) {
+            this.values = new long[capacity];
+        }
+
+        private static int hash(long value) {
+            return (int) (value ^ (value >>> 32));
+        }
+
+        void add(long value) {
+            int[] stamps = this.stamps;
+            int mask = stamps.length - 1;
+            for (int slot = firstSlot(hash(value), mask); ; slot = (slot + 1) & mask) {
+                if (stamps[slot] != this.generation) {
+                    stamps[slot] = this.generation;
+                    this.values[slot] = value;
+                    this.size++;
+                    return;
+                } else if (this.values[slot] == value) {
+                    return;
+                }
+            }
+        }
+
+        boolean contains(long value) {
+            int[] stamps = this.stamps;
+            int mask = stamps.length - 1;
+            for (int slot = firstSlot(hash(value), mask); stamps[slot] == this.generation; slot = (slot + 1) & mask) {
+                if (this.values[slot] == value) {
+                    return true;
                 }
             }
-            return d;
+            return false;
         }
     }
 }
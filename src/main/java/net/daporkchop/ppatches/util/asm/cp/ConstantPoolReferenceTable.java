@@ -0,0 +1,274 @@
+package net.daporkchop.ppatches.util.asm.cp;
+
+import lombok.RequiredArgsConstructor;
+import org.objectweb.asm.ClassReader;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static net.daporkchop.ppatches.util.asm.cp.ConstantPoolConstants.*;
+
+/**
+ * Combines the {@link ConstantPoolReferences} declared by multiple transformers into a single hash table, which allows determining which of the transformers are
+ * interested in a class with only a single pass over the class' constant pool.
+ * <p>
+ * Unlike {@link ConstantPoolIndex}, this operates directly on the raw constant pool bytes, and doesn't need to decode any strings or allocate any collections.
+ *
+ * @author DaPorkchop_
+ */
+public final class ConstantPoolReferenceTable {
+    private static final int NO_ITEM = -1;
+
+    private final Entry[] entries;
+    private final int mask;
+
+    private final BitSet transformers = new BitSet(); //the indices of all the transformers which declared at least one reference
+    private final boolean anyClasses;
+    private final boolean anyMembers;
+
+    /**
+     * @param references the references declared by each transformer, indexed by the transformer's index in the pipeline. Elements may be {@code null} if the
+     *                   corresponding transformer didn't declare any references.
+     */
+    public ConstantPoolReferenceTable(ConstantPoolReferences[] references) {
+        int totalReferences = 0;
+        for (ConstantPoolReferences transformerReferences : references) {
+            if (transformerReferences != null) {
+                totalReferences += transformerReferences.references.size();
+            }
+        }
+
+        //keep the load factor at or below 0.5 so that probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(totalReferences, 1) * 2 - 1) << 1;
+        this.entries = new Entry[capacity];
+        this.mask = capacity - 1;
+
+        boolean anyClasses = false;
+        boolean anyMembers = false;
+        for (int transformerIndex = 0; transformerIndex < references.length; transformerIndex++) {
+            if (references[transformerIndex] == null) {
+                continue;
+            }
+            this.transformers.set(transformerIndex);
+
+            for (ConstantPoolReferences.Reference reference : references[transformerIndex].references) {
+                boolean member = reference.tag != CONSTANT_Class;
+                anyClasses |= !member;
+                anyMembers |= member;
+
+                byte[] owner = encodeModifiedUtf8(reference.owner);
+                byte[] name = member ? encodeModifiedUtf8(reference.name) : null;
+                byte[] desc = member ? encodeModifiedUtf8(reference.desc) : null;
+                int hash = hash(reference.tag, hash(owner, 0, owner.length), member ? hash(name, 0, name.length) : 0, member ? hash(desc, 0, desc.length) : 0);
+
+                Entry entry = null;
+                int slot = hash & this.mask;
+                for (Entry existing; (existing = this.entries[slot]) != null; slot = (slot + 1) & this.mask) {
+                    if (existing.hash == hash && existing.tag == reference.tag
+                        && Arrays.equals(existing.owner, owner) && Arrays.equals(existing.name, name) && Arrays.equals(existing.desc, desc)) {
+                        //the same reference was already declared by another transformer
+                        entry = existing;
+                        break;
+                    }
+                }
+                if (entry == null) {
+                    this.entries[slot] = entry = new Entry(reference.tag, hash, owner, name, desc);
+                }
+                entry.transformers.set(transformerIndex);
+            }
+        }
+        this.anyClasses = anyClasses;
+        this.anyMembers = anyMembers;
+    }
+
+    /**
+     * Removes all the transformers which declared references from the given interested mask, unless the class contains at least one of the references declared by
+     * the transformer.
+     *
+     * @param reader         a {@link ClassReader} containing the class
+     * @param interestedMask the indices of the transformers which are currently interested in the class
+     */
+    public void filter(ClassReader reader, BitSet interestedMask) {
+        if (!interestedMask.intersects(this.transformers)) {
+            return;
+        }
+
+        byte[] b = reader.b;
+        BitSet matched = new BitSet();
+        for (int item = 1, itemCount = reader.getItemCount(); item < itemCount; item++) { //iterate over all the items in the constant pool (item 0 is always unused)
+            int index = reader.getItem(item);
+            if (index == 0) { //empty item (the second slot of a long or double constant)
+                continue;
+            }
+
+            switch (b[index - 1]) {
+                case CONSTANT_Class:
+                    if (this.anyClasses) {
+                        match(matched, this.lookupClass(reader, index));
+                    }
+                    break;
+                case CONSTANT_Fieldref:
+                case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref:
+                    if (this.anyMembers) {
+                        match(matched, this.lookupMember(reader, index));
+                    }
+                    break;
+            }
+        }
+
+        //remove all the transformers which didn't find any of their references
+        for (int i = this.transformers.nextSetBit(0); i >= 0; i = this.transformers.nextSetBit(i + 1)) {
+            if (!matched.get(i)) {
+                interestedMask.clear(i);
+            }
+        }
+    }
+
+    /**
+     * Finds the constant pool items in the given class which would be used as an instruction operand to directly reference one of the references declared by any
+     * of the given transformers.
+     * <p>
+     * This includes all matching class, field and method references, as well as all field and method references whose owner is a matching class.
+     *
+     * @param reader       a {@link ClassReader} containing the class
+     * @param transformers the indices of the transformers whose references should be searched for
+     * @return the indices of the matching constant pool items
+     */
+    public BitSet findItems(ClassReader reader, BitSet transformers) {
+        BitSet items = new BitSet();
+        if (!transformers.intersects(this.transformers)) {
+            return items;
+        }
+
+        //classes need to be checked first, as member references whose owner is a matching class need to be included as well
+        if (this.anyClasses) {
+            for (int item = 1, itemCount = reader.getItemCount(); item < itemCount; item++) {
+                int index = reader.getItem(item);
+                if (index != 0 && reader.b[index - 1] == CONSTANT_Class) {
+                    BitSet entryTransformers = this.lookupClass(reader, index);
+                    if (entryTransformers != null && entryTransformers.intersects(transformers)) {
+                        items.set(item);
+                    }
+                }
+            }
+        }
+
+        for (int item = 1, itemCount = reader.getItemCount(); item < itemCount; item++) {
+            int index = reader.getItem(item);
+            if (index == 0) { //empty item (the second slot of a long or double constant)
+                continue;
+            }
+
+            switch (reader.b[index - 1]) {
+                case CONSTANT_Fieldref:
+                case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref:
+                    if (items.get(reader.readUnsignedShort(index))) { //the owner class is a match
+                        items.set(item);
+                    } else if (this.anyMembers) {
+                        BitSet entryTransformers = this.lookupMember(reader, index);
+                        if (entryTransformers != null && entryTransformers.intersects(transformers)) {
+                            items.set(item);
+                        }
+                    }
+                    break;
+            }
+        }
+        return items;
+    }
+
+    private BitSet lookupClass(ClassReader reader, int index) {
+        return this.lookup(reader.b, CONSTANT_Class, reader.getItem(reader.readUnsignedShort(index)), NO_ITEM, NO_ITEM);
+    }
+
+    private BitSet lookupMember(ClassReader reader, int index) {
+        int owner = reader.getItem(reader.readUnsignedShort(reader.getItem(reader.readUnsignedShort(index))));
+        int nameType = reader.getItem(reader.readUnsignedShort(index + 2));
+        return this.lookup(reader.b, reader.b[index - 1] == CONSTANT_Fieldref ? CONSTANT_Fieldref : CONSTANT_Methodref,
+                owner, reader.getItem(reader.readUnsignedShort(nameType)), reader.getItem(reader.readUnsignedShort(nameType + 2)));
+    }
+
+    private BitSet lookup(byte[] b, int tag, int owner, int name, int desc) {
+        int hash = hash(tag, hashUtf8(b, owner), name != NO_ITEM ? hashUtf8(b, name) : 0, desc != NO_ITEM ? hashUtf8(b, desc) : 0);
+        for (int slot = hash & this.mask; this.entries[slot] != null; slot = (slot + 1) & this.mask) {
+            Entry entry = this.entries[slot];
+            if (entry.hash == hash && entry.tag == tag && utf8Equals(entry.owner, b, owner)
+                && (name == NO_ITEM || (utf8Equals(entry.name, b, name) && utf8Equals(entry.desc, b, desc)))) {
+                return entry.transformers;
+            }
+        }
+        return null;
+    }
+
+    private static void match(BitSet matched, BitSet entryTransformers) {
+        if (entryTransformers != null) {
+            matched.or(entryTransformers);
+        }
+    }
+
+    private static int hash(int tag, int ownerHash, int nameHash, int descHash) {
+        return ((tag * 31 + ownerHash) * 31 + nameHash) * 31 + descHash;
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        int hash = 1;
+        for (int i = 0; i < len; i++) {
+            hash = hash * 31 + b[off + i];
+        }
+        return hash;
+    }
+
+    private static int hashUtf8(byte[] b, int utf8) {
+        return hash(b, utf8 + 2, utf8Length(b, utf8));
+    }
+
+    private static int utf8Length(byte[] b, int utf8) {
+        return ((b[utf8] & 0xFF) << 8) | (b[utf8 + 1] & 0xFF);
+    }
+
+    private static boolean utf8Equals(byte[] expected, byte[] b, int utf8) {
+        int length = utf8Length(b, utf8);
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (expected[i] != b[utf8 + 2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the given {@link String} using the modified UTF-8 encoding used by the class file format.
+     */
+    private static byte[] encodeModifiedUtf8(String s) {
+        byte[] buf = new byte[s.length() * 3];
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf[length++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                buf[length++] = (byte) (0xC0 | (c >> 6));
+                buf[length++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf[length++] = (byte) (0xE0 | (c >> 12));
+                buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return Arrays.copyOf(buf, length);
+    }
+
+    @RequiredArgsConstructor
+    private static final class Entry {
+        final int tag;
+        final int hash;
+        final byte[] owner;
+        final byte[] name;
+        final byte[] desc;
+        final BitSet transformers = new BitSet(); //the indices of all the transformers which declared this reference
+    }
+}
@@ -0,0 +1,65 @@
+package net.daporkchop.ppatches.util.asm.cp;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.daporkchop.ppatches.util.asm.cp.ConstantPoolConstants.*;
+
+/**
+ * A set of classes, fields and methods which a class may reference in its constant pool.
+ * <p>
+ * The semantics of each reference are identical to the corresponding methods in {@link ConstantPoolIndex} (constructed without any flags).
+ *
+ * @author DaPorkchop_
+ * @see ConstantPoolReferenceTable
+ */
+public final class ConstantPoolReferences {
+    final List<Reference> references = new ArrayList<>();
+
+    /**
+     * Adds a reference to the class with the given internal name.
+     *
+     * @param internalName the internal name of the class
+     * @see ConstantPoolIndex#referencesClass(String)
+     */
+    public ConstantPoolReferences referencesClass(String internalName) {
+        this.references.add(new Reference(CONSTANT_Class, internalName, null, null));
+        return this;
+    }
+
+    /**
+     * Adds a reference to the field with the given owner, name and descriptor.
+     *
+     * @param owner the internal name of the owning class
+     * @param name  the field name
+     * @param desc  the field descriptor
+     * @see ConstantPoolIndex#referencesField(String, String, String)
+     */
+    public ConstantPoolReferences referencesField(String owner, String name, String desc) {
+        this.references.add(new Reference(CONSTANT_Fieldref, owner, name, desc));
+        return this;
+    }
+
+    /**
+     * Adds a reference to the method with the given owner, name and descriptor.
+     *
+     * @param owner the internal name of the owning class
+     * @param name  the method name
+     * @param desc  the method descriptor
+     * @see ConstantPoolIndex#referencesMethod(String, String, String)
+     */
+    public ConstantPoolReferences referencesMethod(String owner, String name, String desc) {
+        this.references.add(new Reference(CONSTANT_Methodref, owner, name, desc));
+        return this;
+    }
+
+    @RequiredArgsConstructor
+    static final class Reference {
+        public final int tag; //one of CONSTANT_Class, CONSTANT_Fieldref or CONSTANT_Methodref
+        public final String owner;
+        public final String name; //null for class references
+        public final String desc; //null for class references
+    }
+}